@@ -10,6 +10,7 @@ import java.util.Map.Entry;
 
 import sem.model.SemModel;
 import sem.model.VectorSpace;
+import sem.sim.CandidateIndex;
 import sem.sim.SimFinder;
 import sem.sim.SimMeasure;
 import sem.util.FileReader;
@@ -120,8 +121,7 @@ public class HyponymGeneration {
 		String outputPath = null;
 		
 		SemModel semModel = new SemModel(modelPath, true, false); 
-		semModel.makeTensorSymmetric();
-		VectorSpace vectorSpace = new VectorSpace(semModel, VectorSpace.WEIGHT_PMI_LIM, true);
+		VectorSpace vectorSpace = VectorSpace.load(semModel, modelPath, VectorSpace.WEIGHT_PMI_LIM, true);
 		
 		for(String dataset : Arrays.asList("dev", "test")){
 			for(String pos : Arrays.asList("noun", "verb")){
@@ -141,8 +141,7 @@ public class HyponymGeneration {
 		String modelPath = "/anfs/bigdisc/mr472/semsim_models/model1";
 		
 		SemModel semModel = new SemModel(modelPath, true, false); 
-		semModel.makeTensorSymmetric();
-		VectorSpace vectorSpace = new VectorSpace(semModel, VectorSpace.WEIGHT_PMI_LIM, true);
+		VectorSpace vectorSpace = VectorSpace.load(semModel, modelPath, VectorSpace.WEIGHT_PMI_LIM, true);
 		
 		LinkedHashMap<String,ArrayList<String>> examples = new LinkedHashMap<String,ArrayList<String>>();
 		examples.put("noun", new ArrayList<String>(Arrays.asList("sport_NOUN", "weapon_NOUN", "fabric_NOUN", "parent_NOUN", "politician_NOUN", "procedure_NOUN", "pleasure_NOUN", "narcotic_NOUN", "treatment_NOUN", "linguist_NOUN", "scientist_NOUN", "limitation_NOUN", "nutrient_NOUN", "vegetable_NOUN", "support_NOUN", "attribute_NOUN", "fruit_NOUN", "sex_NOUN")));
@@ -165,6 +164,8 @@ public class HyponymGeneration {
 				gold = readGold(goldPath, pos);
 			}
 			
+			// The candidates are the same for every example, so they are indexed once
+			CandidateIndex candidateIndex = simFinder.getCandidateIndex(candidateWords);
 			for(String word : examples.get(pos)){
 				System.out.println("%%%% " + word);
 				System.out.println("\\begin{table}[h]\n"+
@@ -175,7 +176,7 @@ public class HyponymGeneration {
 				for(SimMeasure simMeasure : Arrays.asList(SimMeasure.COSINE, SimMeasure.DICE_GEN_2, SimMeasure.BAL_AP_INC, SimMeasure.CLARKE_DE, SimMeasure.BAL_PREC, SimMeasure.WEIGHTED_COSINE)){
 					//System.out.println("#### : " + word + " " + simMeasure.getLabel());
 					System.out.print(Character.toUpperCase(simMeasure.getLabel().charAt(0)) + simMeasure.getLabel().substring(1) + " & ");
-					LinkedHashMap<String,LinkedHashMap<String,Double>> predictions = simFinder.getScores(new LinkedHashSet<String>(Arrays.asList(word)), candidateWords, simMeasure, false, threadCount);
+					LinkedHashMap<String,LinkedHashMap<String,Double>> predictions = simFinder.getScores(new LinkedHashSet<String>(Arrays.asList(word)), candidateIndex, simMeasure, false, threadCount);
 					int count = 0;
 					ArrayList<String> topexamples = new ArrayList<String>();
 					for(Entry<String,Double> e : Tools.sort(predictions.get(word), true).entrySet()){
@@ -217,8 +218,7 @@ public class HyponymGeneration {
 			
 			SimMeasure simMeasure = SimMeasure.getType(simMeasureLabel);
 			SemModel semModel = new SemModel(modelPath, true, false); 
-			semModel.makeTensorSymmetric();
-			VectorSpace vectorSpace = new VectorSpace(semModel, VectorSpace.WEIGHT_PMI_LIM, true);
+			VectorSpace vectorSpace = VectorSpace.load(semModel, modelPath, VectorSpace.WEIGHT_PMI_LIM, true);
 			
 			double map = run(simMeasure, pos, inputFile, semModel, vectorSpace, minFreq, threadCount, outputPath);
 			System.out.println("MAP: " + map);
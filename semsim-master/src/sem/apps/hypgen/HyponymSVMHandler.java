@@ -16,6 +16,7 @@ import java.util.concurrent.TimeUnit;
 
 import sem.model.SemModel;
 import sem.model.VectorSpace;
+import sem.sim.MultiSimMeasure;
 import sem.sim.SimMeasure;
 import sem.util.FeatureNormaliser;
 import sem.util.FileReader;
@@ -137,7 +138,7 @@ public class HyponymSVMHandler {
 	 * Create the feature file for SVM training and testing.
 	 * If cachePath is specified, it reads similarity scores from the corresponding cache file instead.
 	 * The file is generated iteratively, one feature at a time, since all the cache files don't fit into memory at once.
-	 * If cachePath is null, the scores are calculated on the fly.
+	 * If cachePath is null, the scores are calculated on the fly, all the measures of a pair at once with MultiSimMeasure.
 	 */
 	public static void createSVMFile(LinkedHashMap<Pair<String>,Integer> goldPairs, String outputFile, String pos, VectorSpace vectorSpace, SemModel semModel, String cachePath){
 		String line;
@@ -147,9 +148,17 @@ public class HyponymSVMHandler {
 		//LinkedHashMap<String,LinkedHashMap<String,Double>> cachedScores = null;
 		LinkedHashMap<Pair<String>,Double> cachedScores = null;
 		HashSet<Integer> common = new HashSet<Integer>();
+		MultiSimMeasure multiSimMeasure = (cachePath == null) ? new MultiSimMeasure(measures) : null;
+		double[] scores = new double[measures.size()];
 		
 		
 		
+		// The candidates are compared with every main word, so their vectors are kept in the cache
+		LinkedHashSet<String> candidates = new LinkedHashSet<String>();
+		for(Pair<String> wordPair : goldPairs.keySet())
+			candidates.add(wordPair.getItem1());
+		vectorSpace.pinVectors(candidates);
+		
 		// First printing the answers
 		FileWriter fileWriter = new FileWriter(outputFile);
 		for(Pair<String> wordPair : goldPairs.keySet()){
@@ -193,9 +202,23 @@ public class HyponymSVMHandler {
 			fileWriter.write(" " + getFeatureId("common2")+":"+common2);
 			fileWriter.write(" " + getFeatureId("commonX")+":"+(common1 * common2));
 			
+			// Similarity features, when they are not read from the cache
+			if(multiSimMeasure != null){
+				multiSimMeasure.sim(vectorSpace.getSparseVector(wordPair.getItem1()), vectorSpace.getSparseVector(wordPair.getItem2()), scores);
+				for(int m = 0; m < measures.size(); m++){
+					score = scores[m];
+					if(score.isInfinite() || score.isNaN())
+						throw new RuntimeException("Illegal score value: " + score);
+					fileWriter.write(" " + getFeatureId(measures.get(m).getLabel()) + ":" + score);
+				}
+			}
+			
 			fileWriter.writeln("");
 		}
 		fileWriter.close();
+		vectorSpace.unpinVectors();
+		if(multiSimMeasure != null)
+			return;
 		
 		
 		// Now printing all the features, iteratively
@@ -205,11 +228,7 @@ public class HyponymSVMHandler {
 			Tools.runCommand("rm " + outputFile +".temp");
 			Tools.runCommand("mv " + outputFile + " " + outputFile +".temp");
 			
-			if(cachePath != null){
-				cachedScores = loadCachedScores(cachePath, simMeasure.getLabel(), goldPairs);
-			}
-			else
-				cachedScores = null;
+			cachedScores = loadCachedScores(cachePath, simMeasure.getLabel(), goldPairs);
 			
 			FileReader input = new FileReader(outputFile + ".temp");
 			FileWriter output = new FileWriter(outputFile);
@@ -219,14 +238,7 @@ public class HyponymSVMHandler {
 					throw new RuntimeException("No lines left in input file");
 				line = input.next();
 				
-				if(cachedScores != null){
-					score = cachedScores.get(wordPair);
-				}
-				else {
-					vector1 = vectorSpace.getVector(wordPair.getItem1());
-					vector2 = vectorSpace.getVector(wordPair.getItem2());
-					score = simMeasure.sim(vector1, vector2);
-				}
+				score = cachedScores.get(wordPair);
 				
 				if(score == null || score.isInfinite() || score.isNaN())
 					throw new RuntimeException("Illegal score value: " + score);
@@ -238,11 +250,9 @@ public class HyponymSVMHandler {
 				output.writeln(line + " " + featureId + ":" + score);
 			}
 			
-			if(cachedScores != null){
-				cachedScores.clear();
-				cachedScores = null;
-				//System.gc();
-			}
+			cachedScores.clear();
+			cachedScores = null;
+			//System.gc();
 			input.close();
 			output.close();
 		}
@@ -12,6 +12,7 @@ import sem.model.SemModel;
 import sem.model.VectorSpace;
 import sem.sim.SimFinder;
 import sem.sim.SimMeasure;
+import sem.sim.SimilaritySink;
 import sem.util.StringMap;
 import sem.util.Tools;
 import sem.util.FileReader;
@@ -36,7 +37,7 @@ public class ExpansionFinder {
 		int minCandidateCount = 100;
 		
 		SemModel semModel = new SemModel(semModelPath, false); 
-		semModel.makeTensorSymmetric();
+		VectorSpace vectorSpace = VectorSpace.load(semModel, semModelPath, VectorSpace.WEIGHT_PMI_LIM, true);
 		StringMap lemmaMap = new StringMap(lemmaMapPath);
 		
 		//
@@ -130,27 +131,20 @@ public class ExpansionFinder {
 		// Finding similar words
 		//
 		
-		VectorSpace vectorSpace = new VectorSpace(semModel, VectorSpace.WEIGHT_PMI_LIM, true);
 		SimFinder simFinder = new SimFinder(vectorSpace);
 		SimMeasure simMeasure = SimMeasure.getType(simMeasureType);
-		int count = 0;
-		
-		for(String p : mainWords.keySet()){
-			LinkedHashMap<String,LinkedHashMap<String,Double>> scores = simFinder.getScores(mainWords.get(p), candidateWords.get(p), simMeasure, findHypernyms, threadLimit);
-			
-			for(String mainWord : mainWords.get(p)){
+		SimilaritySink sink = new SimilaritySink(){
+			public void addRow(String mainWord, String[] candidates, double[] scores){
 				System.out.print(mainWord);
-				count = 0;
-				for(Entry<String,Double> e : Tools.sort(scores.get(mainWord), true).entrySet()){
-					System.out.print("\t" + e.getKey() + "\t" + e.getValue());
-					if(++count >= wordLimit)
-						break;
-				}
+				for(int i = 0; i < candidates.length; i++)
+					System.out.print("\t" + candidates[i] + "\t" + scores[i]);
 				System.out.println();
 			}
-			
-			scores = null;
-			System.gc();
+		};
+		
+		for(String p : mainWords.keySet()){
+			LinkedHashSet<String> candidates = candidateWords.containsKey(p) ? candidateWords.get(p) : new LinkedHashSet<String>();
+			simFinder.join(mainWords.get(p), simFinder.getCandidateIndex(candidates), simMeasure, findHypernyms, Double.NaN, Math.max(1, wordLimit), sink, threadLimit);
 		}
 	}
 	
@@ -168,7 +162,6 @@ public class ExpansionFinder {
 				existingPath = args[6];
 			
 			run(simMeasureType, findHypernyms, wordLimit, threadLimit, semModelPath, lemmaMapPath, existingPath);
-			System.gc();
 			
 		}
 		else{
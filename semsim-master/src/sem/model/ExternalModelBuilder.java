@@ -0,0 +1,85 @@
+package sem.model;
+
+import java.io.File;
+
+import sem.exception.SemModelException;
+import sem.graph.Edge;
+import sem.graph.Graph;
+import sem.graph.Node;
+import sem.util.ExternalTripleSorter;
+import sem.util.Index;
+
+/**
+ * Builds a SemModel directly on disk, for corpora where the tensor does not fit into memory.
+ * <p>Only the node and edge indexes are kept in memory. The edges are buffered up to the memory budget and then written to disk as sorted runs, which are merged into the tensor file when the model is saved.
+ * The saved model can be loaded with new SemModel(path, false). Sentence locations and the marginals for wildcard queries are not created. The ModelStatistics are computed with one more pass over the saved tensor.
+ */
+public class ExternalModelBuilder {
+	private Index nodeIndex;
+	private Index edgeIndex;
+	private ExternalTripleSorter sorter;
+	private long count;
+	
+	/**
+	 * @param memoryBudget Memory used for buffering the edges, in bytes
+	 * @param tempDir Directory for the temporary files
+	 */
+	public ExternalModelBuilder(long memoryBudget, File tempDir){
+		this.nodeIndex = new Index();
+		this.edgeIndex = new Index();
+		this.sorter = new ExternalTripleSorter(memoryBudget, tempDir);
+		this.count = 0;
+	}
+	
+	/**
+	 * Add a graph to the model. The counts are the same as with SemModel.add().
+	 * @param graph The graph
+	 * @throws SemModelException
+	 */
+	public void add(Graph graph) throws SemModelException{
+		count++;
+		for(Node node : graph.getNodes())
+			nodeIndex.add(node.getLabel());
+		
+		Integer headId, edgeId, depId;
+		for(Edge edge : graph.getEdges()){
+			edgeId = edgeIndex.add(edge.getLabel());
+			headId = nodeIndex.getId(edge.getHead().getLabel());
+			depId = nodeIndex.getId(edge.getDep().getLabel());
+			
+			if(headId == null || edgeId == null || depId == null)
+				throw new SemModelException("Error when adding an edge. Head, dep or edge id is null");
+			
+			sorter.add(headId, edgeId, depId, 1.0);
+		}
+	}
+	
+	/**
+	 * @return The number of graphs added so far.
+	 */
+	public long getCount(){
+		return this.count;
+	}
+	
+	/**
+	 * @return The number of sorted runs that have been written to disk so far.
+	 */
+	public int getNumRuns(){
+		return this.sorter.getNumRuns();
+	}
+	
+	/**
+	 * Merge the sorted runs into the tensor file and save the indexes. Files that are not created by this class are removed, so that they are not loaded together with the new model.
+	 * @param path Path prefix of the model files
+	 */
+	public void save(String path){
+		new File(path + SemModel.marginalsBinaryFileName).delete();
+		new File(path + SemModel.locationsBinaryFileName).delete();
+		new File(path + SemModel.statisticsBinaryFileName).delete();
+		sorter.write(path + SemModel.tensorBinaryFileName);
+		nodeIndex.saveBinary(path + SemModel.nodeIndexBinaryFileName);
+		edgeIndex.saveBinary(path + SemModel.edgeIndexBinaryFileName);
+		// The statistics are computed from the saved tensor, which is read from disk
+		new ModelStatistics(new SemModel(path, false)).save(path + SemModel.statisticsBinaryFileName);
+	}
+}
@@ -4,6 +4,7 @@ import java.util.Set;
 
 import sem.graph.Graph;
 import sem.graph.Edge;
+import sem.util.FeatureIndex;
 import sem.util.Index;
 
 class Enumerator {
@@ -96,10 +97,10 @@ public class Fragment {
 
 /* featureCountMap stores the # of times a feature occurs with a fragment in the corpus. */
 private Map<Integer, Integer> featureCountMap;
-private Index featureIndex;
+private FeatureIndex featureIndex;
 private Index nodeIndex;
 
-public Fragment(Index featureIndex, Index nodeIndex) {
+public Fragment(FeatureIndex featureIndex, Index nodeIndex) {
 	featureCountMap = new HashMap<Intger, Integer>();
 	this.featureIndex = featureIndex;
 	this.nodeIndex = nodeIndex;
@@ -128,8 +129,7 @@ private void putStats(List<Edge> completeEdgeRep, List<Edge> edges)
 		{
 			/* This edge is a feature of this fragment. */
 			Integer edgeId = edgeIndex.getId(e.getLabel());
-			String featureLabel = edgeId + "," + e2;
-			Integer featureId = featureIndex.getId(featureLabel);
+			Integer featureId = featureIndex.getId(edgeId, e2);
 			if (featureCountMap.containsKey(featureId))
 				featureCountMap.put(featureId, featureCountMap.get(featureId)+1);
 			else
@@ -0,0 +1,86 @@
+package sem.model;
+
+/**
+ * A snapshot of the ingestion statistics of a SemModel.
+ */
+public class IngestProgress {
+	private long graphs;
+	private long nodes;
+	private long edges;
+	private int nodeLabels;
+	private int edgeLabels;
+	private double seconds;
+	
+	public IngestProgress(long graphs, long nodes, long edges, int nodeLabels, int edgeLabels, double seconds){
+		this.graphs = graphs;
+		this.nodes = nodes;
+		this.edges = edges;
+		this.nodeLabels = nodeLabels;
+		this.edgeLabels = edgeLabels;
+		this.seconds = seconds;
+	}
+	
+	/**
+	 * @return Number of graphs added so far.
+	 */
+	public long getGraphs(){
+		return this.graphs;
+	}
+	
+	/**
+	 * @return Number of nodes added so far.
+	 */
+	public long getNodes(){
+		return this.nodes;
+	}
+	
+	/**
+	 * @return Number of edges added so far.
+	 */
+	public long getEdges(){
+		return this.edges;
+	}
+	
+	/**
+	 * @return Number of distinct node labels in the model.
+	 */
+	public int getNodeLabels(){
+		return this.nodeLabels;
+	}
+	
+	/**
+	 * @return Number of distinct edge labels in the model.
+	 */
+	public int getEdgeLabels(){
+		return this.edgeLabels;
+	}
+	
+	/**
+	 * @return Seconds since the first graph was added.
+	 */
+	public double getSeconds(){
+		return this.seconds;
+	}
+	
+	private double perSecond(long value){
+		return this.seconds > 0.0 ? value / this.seconds : 0.0;
+	}
+	
+	public double getGraphsPerSecond(){
+		return perSecond(this.graphs);
+	}
+	
+	public double getNodesPerSecond(){
+		return perSecond(this.nodes);
+	}
+	
+	public double getEdgesPerSecond(){
+		return perSecond(this.edges);
+	}
+	
+	@Override
+	public String toString(){
+		return String.format("graphs: %d (%.0f/s), nodes: %d (%.0f/s), edges: %d (%.0f/s), node labels: %d, edge labels: %d, time: %.1fs", 
+				graphs, getGraphsPerSecond(), nodes, getNodesPerSecond(), edges, getEdgesPerSecond(), nodeLabels, edgeLabels, seconds);
+	}
+}
@@ -0,0 +1,212 @@
+package sem.model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import sem.util.LocationIndex;
+import sem.util.MappedFile;
+import sem.util.TensorView;
+
+/**
+ * Global statistics of a SemModel, computed with one scan of the tensor when the model is saved.
+ * <p>It contains the totals that would otherwise need a full scan on every query process: the number of distinct triples, the sum of all the triples and the total number of co-occurrences in sentences.
+ * It also contains the sums of the triples for every relation, and for every node as a head and as a dependent.
+ * <p>The file is memory-mapped when it is loaded, so the per-node sums are not read into memory.
+ * The sizes and the total counts of the indexes are stored as well, and the statistics are only used if they match the loaded model.
+ */
+public class ModelStatistics {
+	public static final int MAGIC = 0x53454d53;
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 64;
+
+	private int numNodes;
+	private int numEdges;
+	private double totalNodeCount;
+	private double totalEdgeCount;
+	private double tripleCount;
+	private double tripleTypeCount;
+	private double totalCoocCount;
+	private double[] relationCounts;
+	private double[] relationTypeCounts;
+	// Null if they are read from the mapped file
+	private double[] headCounts;
+	private double[] depCounts;
+	private MappedFile mappedFile;
+
+	/**
+	 * Compute the statistics of a model.
+	 * @param semModel The model
+	 */
+	public ModelStatistics(SemModel semModel){
+		this.numNodes = semModel.getNodeIndex().size();
+		this.numEdges = semModel.getEdgeIndex().size();
+		this.totalNodeCount = semModel.getNodeIndex().getTotalCount();
+		this.totalEdgeCount = semModel.getEdgeIndex().getTotalCount();
+		this.relationCounts = new double[numEdges + 1];
+		this.relationTypeCounts = new double[numEdges + 1];
+		this.headCounts = new double[numNodes + 1];
+		this.depCounts = new double[numNodes + 1];
+
+		TensorView tensor = semModel.getTensor();
+		for(int key1 : tensor.getKeys()){
+			for(int key2 : tensor.getKeys(key1)){
+				int[] keys3 = tensor.getKeys(key1, key2);
+				double[] values3 = tensor.getValues(key1, key2);
+				double sum = 0.0;
+				for(int i = 0; i < keys3.length; i++){
+					sum += values3[i];
+					depCounts[keys3[i]] += values3[i];
+				}
+				headCounts[key1] += sum;
+				relationCounts[key2] += sum;
+				relationTypeCounts[key2] += keys3.length;
+				tripleCount += sum;
+				tripleTypeCount += keys3.length;
+			}
+		}
+
+		LocationIndex locations = semModel.getLocations();
+		this.totalCoocCount = (locations == null ? Double.NaN : locations.countAllMatches());
+	}
+
+	/**
+	 * Open the statistics saved with save().
+	 * @param file Input file
+	 */
+	public ModelStatistics(String file){
+		this.mappedFile = new MappedFile(file);
+		mappedFile.checkHeader(MAGIC, VERSION);
+		this.numNodes = mappedFile.getInt(8);
+		this.numEdges = mappedFile.getInt(12);
+		this.totalNodeCount = mappedFile.getDouble(16);
+		this.totalEdgeCount = mappedFile.getDouble(24);
+		this.tripleCount = mappedFile.getDouble(32);
+		this.tripleTypeCount = mappedFile.getDouble(40);
+		this.totalCoocCount = mappedFile.getDouble(48);
+		this.relationCounts = new double[numEdges + 1];
+		this.relationTypeCounts = new double[numEdges + 1];
+		mappedFile.getDoubles(HEADER_SIZE, relationCounts, 0, numEdges + 1);
+		mappedFile.getDoubles(HEADER_SIZE + 8L * (numEdges + 1), relationTypeCounts, 0, numEdges + 1);
+	}
+
+	/**
+	 * Check whether the statistics were computed from a model with the same indexes.
+	 * @param semModel The model
+	 */
+	public boolean matches(SemModel semModel){
+		return numNodes == semModel.getNodeIndex().size() && numEdges == semModel.getEdgeIndex().size()
+				&& Double.compare(totalNodeCount, semModel.getNodeIndex().getTotalCount()) == 0
+				&& Double.compare(totalEdgeCount, semModel.getEdgeIndex().getTotalCount()) == 0;
+	}
+
+	/**
+	 * Save the statistics in a binary file.
+	 * The file is written to a temporary file first, so it is safe to overwrite the file that these statistics were opened from.
+	 * @param file Output file
+	 */
+	public void save(String file){
+		try{
+			File tempFile = new File(file + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numNodes);
+			out.writeInt(numEdges);
+			out.writeDouble(totalNodeCount);
+			out.writeDouble(totalEdgeCount);
+			out.writeDouble(tripleCount);
+			out.writeDouble(tripleTypeCount);
+			out.writeDouble(totalCoocCount);
+			out.writeDouble(0.0);
+			for(double value : relationCounts)
+				out.writeDouble(value);
+			for(double value : relationTypeCounts)
+				out.writeDouble(value);
+			for(int id = 0; id <= numNodes; id++)
+				out.writeDouble(getHeadCount(id));
+			for(int id = 0; id <= numNodes; id++)
+				out.writeDouble(getDepCount(id));
+			out.close();
+			File target = new File(file);
+			if(target.exists() && !target.delete())
+				throw new RuntimeException("Unable to replace file: " + file);
+			if(!tempFile.renameTo(target))
+				throw new RuntimeException("Unable to rename " + tempFile + " to " + file);
+		} catch(IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	public double getTotalNodeCount(){
+		return this.totalNodeCount;
+	}
+
+	public double getTotalEdgeCount(){
+		return this.totalEdgeCount;
+	}
+
+	/**
+	 * @return The sum of all the triples in the tensor
+	 */
+	public double getTripleCount(){
+		return this.tripleCount;
+	}
+
+	/**
+	 * @return The number of distinct triples in the tensor
+	 */
+	public double getTripleTypeCount(){
+		return this.tripleTypeCount;
+	}
+
+	/**
+	 * @return True if the model had sentence locations when the statistics were computed
+	 */
+	public boolean hasCoocCount(){
+		return !Double.isNaN(this.totalCoocCount);
+	}
+
+	public double getTotalCoocCount(){
+		return this.totalCoocCount;
+	}
+
+	/**
+	 * @return The sum of the triples with the relation
+	 */
+	public double getRelationCount(int edgeId){
+		return (edgeId < 0 || edgeId > numEdges) ? 0.0 : relationCounts[edgeId];
+	}
+
+	/**
+	 * @return The number of distinct triples with the relation
+	 */
+	public double getRelationTypeCount(int edgeId){
+		return (edgeId < 0 || edgeId > numEdges) ? 0.0 : relationTypeCounts[edgeId];
+	}
+
+	/**
+	 * @return The sum of the triples where the node is the head
+	 */
+	public double getHeadCount(int nodeId){
+		if(nodeId < 0 || nodeId > numNodes)
+			return 0.0;
+		if(headCounts != null)
+			return headCounts[nodeId];
+		return mappedFile.getDouble(HEADER_SIZE + 16L * (numEdges + 1) + 8L * nodeId);
+	}
+
+	/**
+	 * @return The sum of the triples where the node is the dependent
+	 */
+	public double getDepCount(int nodeId){
+		if(nodeId < 0 || nodeId > numNodes)
+			return 0.0;
+		if(depCounts != null)
+			return depCounts[nodeId];
+		return mappedFile.getDouble(HEADER_SIZE + 16L * (numEdges + 1) + 8L * (numNodes + 1) + 8L * nodeId);
+	}
+}
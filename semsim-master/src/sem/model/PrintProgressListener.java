@@ -0,0 +1,31 @@
+package sem.model;
+
+import java.io.PrintStream;
+
+/**
+ * Prints every progress report as a single line.
+ */
+public class PrintProgressListener implements ProgressListener {
+	private PrintStream out;
+	private String prefix;
+	
+	/**
+	 * Print the progress to System.out.
+	 */
+	public PrintProgressListener(){
+		this(System.out, "");
+	}
+	
+	/**
+	 * @param out Output stream
+	 * @param prefix Text printed at the start of every line, for example the name of the input shard.
+	 */
+	public PrintProgressListener(PrintStream out, String prefix){
+		this.out = out;
+		this.prefix = prefix;
+	}
+	
+	public void progress(IngestProgress progress){
+		out.println(prefix + progress);
+	}
+}
@@ -0,0 +1,10 @@
+package sem.model;
+
+/**
+ * Receives progress reports while graphs are being added to a SemModel.
+ * When graphs are added from several threads, the listener can also be called from several threads.
+ * @see SemModel#setProgressListener(ProgressListener, int)
+ */
+public interface ProgressListener {
+	public void progress(IngestProgress progress);
+}
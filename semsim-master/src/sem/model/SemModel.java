@@ -1,42 +1,72 @@
 package sem.model;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
-import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.File;
 
 import sem.exception.SemModelException;
 import sem.graph.Edge;
 import sem.graph.Graph;
 import sem.graph.Node;
 import sem.util.Index;
-import sem.util.IntegerMultiMap;
+import sem.util.CsfTensor;
+import sem.util.LocationIndex;
+import sem.util.MappedTensor;
+import sem.util.SymmetricTensor;
 import sem.util.Tensor;
+import sem.util.TensorMarginals;
+import sem.util.TensorView;
+import sem.util.TripleCountCache;
 
 /**
  * <p>This class stores the information and statistics about the vector space model. All labels are matched to unique IDs. The number of times a label appears on a node or an edge is counted.
  * <p>It also retains a 3-dimensional tensor of the edge statistics, which has the shape <it>HEADID-RELATIONID-DEPID</it>. Every position in the tensor depends on the 3 keys of integer type, corresponding to a value of type double. However, the VSM has functions for these values directly using only the labels.
- * <p>By default the tensor is built with edges only in one direction, e.g. (head, rel, dep). This saves both disk space and memory. However, when creating feature vectors, we might want to include reverse edges as well, e.g. (dep, rev_rel, head). Call the makeTensorSymmetric() function on a completed SemModel to mirror the tensor and add these missing edges to the model.
+ * <p>By default the tensor is built with edges only in one direction, e.g. (head, rel, dep). This saves both disk space and memory. However, when creating feature vectors, we might want to include reverse edges as well, e.g. (dep, rev_rel, head). Call the makeTensorSymmetric() function on a completed SemModel to add these missing edges to the model. They are served from a secondary index, without mirroring the tensor.
+ * <p>Graphs can be added from several threads at once, for example when reading from several GraphReaders. The indexes and the tensor are updated concurrently, and the model should only be queried once all the threads have finished.
+ * <p>Models are saved in a binary format by default. When a binary model is loaded, the tensor is memory-mapped and queried directly from disk. It is copied into memory only if the model is modified. The older text format can still be written with saveText() and is loaded automatically if no binary files are found.
+ * <p>The binary format also includes the ModelStatistics, so the global counts of a loaded model are available without scanning the tensor. They are dropped as soon as the model is modified.
  */
 public class SemModel {
-	private Tensor tensor;
+	private volatile TensorView tensor;
 	private Index nodeIndex;
 	private Index edgeIndex;
 	
-	private IntegerMultiMap locations;
-	private int count;
+	private LocationIndex locations;
+	private volatile ModelStatistics statistics;
+	private AtomicInteger count;
+	private AtomicLong nodeCount = new AtomicLong();
+	private AtomicLong edgeCount = new AtomicLong();
+	private volatile long startTime = 0;
+	
+	private volatile ProgressListener progressListener;
+	private volatile int progressInterval;
 	
 	private String tensorFileName = "_tensor.vsm";
 	private String nodeIndexFileName = "_nodeindex.vsm";
 	private String edgeIndexFileName = "_edgeindex.vsm";
 	private String locationsFileName = "_locations.vsm";
 	
+	static final String tensorBinaryFileName = "_tensor.bin";
+	static final String nodeIndexBinaryFileName = "_nodeindex.bin";
+	static final String edgeIndexBinaryFileName = "_edgeindex.bin";
+	static final String locationsBinaryFileName = "_locations.bin";
+	static final String marginalsBinaryFileName = "_marginals.bin";
+	static final String statisticsBinaryFileName = "_stats.bin";
+	
 	boolean enableCache;
 	ConcurrentHashMap<String,Double> cache;
 	
+	/**
+	 * Default memory budget of the triple count cache, which is used when the cache is enabled.
+	 */
+	public static final long DEFAULT_TRIPLE_CACHE_BYTES = 64L << 20;
+	
+	private volatile TripleCountCache tripleCache;
+	private volatile long tripleCacheBytes = DEFAULT_TRIPLE_CACHE_BYTES;
+	
 	/**
 	 * 
 	 * @param keepLoc Setting this to true will keep track of in which sentences every word occurs. It can be useful when we need to find how many times two words occur together in a sentence. However, it requires quite a bit of extra memory.
@@ -52,56 +82,152 @@ public class SemModel {
 		this.enableCache = enableCache;
 		this.cache = new ConcurrentHashMap<String,Double>();
 		if(keepLoc)
-			this.locations = new IntegerMultiMap();
+			this.locations = new LocationIndex();
 		else
 			this.locations = null;
-		this.count = 0;
+		this.count = new AtomicInteger();
 	}
 	
 	public SemModel(String path, boolean keepLoc){
 		this(path, keepLoc, false);
 	}
 	
+	/**
+	 * Load a model from disk. The binary format is used if it exists, otherwise the model is read from the text files.
+	 * @param path Path prefix of the model files
+	 * @param keepLoc Load the sentence locations of every word
+	 * @param enableCache Cache the results of count queries
+	 */
 	public SemModel(String path, boolean keepLoc, boolean enableCache){
-		this.tensor = new Tensor(path + tensorFileName);
-		this.nodeIndex = new Index(path + nodeIndexFileName);
-		this.edgeIndex = new Index(path + edgeIndexFileName);
+		if(new File(path + tensorBinaryFileName).exists()){
+			MappedTensor mappedTensor = new MappedTensor(path + tensorBinaryFileName);
+			if(new File(path + marginalsBinaryFileName).exists())
+				mappedTensor.setMarginals(new TensorMarginals(path + marginalsBinaryFileName));
+			this.tensor = mappedTensor;
+			this.nodeIndex = new Index(path + nodeIndexBinaryFileName);
+			this.edgeIndex = new Index(path + edgeIndexBinaryFileName);
+			if(keepLoc)
+				this.locations = new LocationIndex(path + locationsBinaryFileName);
+			else
+				this.locations = null;
+			if(new File(path + statisticsBinaryFileName).exists()){
+				ModelStatistics statistics = new ModelStatistics(path + statisticsBinaryFileName);
+				if(statistics.matches(this))
+					this.statistics = statistics;
+			}
+		}
+		else {
+			this.tensor = new Tensor(path + tensorFileName);
+			this.nodeIndex = new Index(path + nodeIndexFileName);
+			this.edgeIndex = new Index(path + edgeIndexFileName);
+			if(keepLoc)
+				this.locations = new LocationIndex(path + this.locationsFileName);
+			else
+				this.locations = null;
+		}
 		this.enableCache = enableCache;
 		this.cache = new ConcurrentHashMap<String,Double>();
-		if(keepLoc)
-			this.locations = new IntegerMultiMap(path + this.locationsFileName);
-		else
-			this.locations = null;
+		// Sentences are numbered from 1, so new sentences continue after the largest loaded one
+		this.count = new AtomicInteger(this.locations == null ? 0 : this.locations.getMaxSentence());
+	}
+	
+	/**
+	 * Check whether a saved model exists, in either the binary or the text format.
+	 * @param path Path prefix of the model files
+	 */
+	public static boolean exists(String path){
+		return new File(path + tensorBinaryFileName).exists() || new File(path + "_tensor.vsm").exists();
+	}
+	
+	/**
+	 * Check whether a saved model contains the sentence locations.
+	 * @param path Path prefix of the model files
+	 */
+	public static boolean hasLocations(String path){
+		return new File(path + locationsBinaryFileName).exists() || new File(path + "_locations.vsm").exists();
 	}
 	
+	/**
+	 * Save the model in the binary format. This includes the TensorMarginals, so that wildcard queries on the loaded model do not need to scan the tensor, and the ModelStatistics.
+	 * @param path Path prefix of the model files
+	 */
 	public void save(String path){
-		this.tensor.save(path + tensorFileName);
+		MappedTensor.save(this.tensor, path + tensorBinaryFileName);
+		TensorMarginals marginals = null;
+		if(this.tensor instanceof CsfTensor)
+			marginals = ((CsfTensor)this.tensor).getMarginals();
+		if(marginals == null)
+			marginals = new TensorMarginals(this.tensor);
+		marginals.save(path + marginalsBinaryFileName);
+		this.nodeIndex.saveBinary(path + nodeIndexBinaryFileName);
+		this.edgeIndex.saveBinary(path + edgeIndexBinaryFileName);
+		if(this.locations != null)
+			this.locations.saveBinary(path + locationsBinaryFileName);
+		ModelStatistics statistics = new ModelStatistics(this);
+		statistics.save(path + statisticsBinaryFileName);
+		this.statistics = statistics;
+	}
+	
+	/**
+	 * Export the model in the text format.
+	 * @param path Path prefix of the model files
+	 */
+	public void saveText(String path){
+		Tensor.save(this.tensor, path + tensorFileName);
 		this.nodeIndex.save(path + nodeIndexFileName);
 		this.edgeIndex.save(path + edgeIndexFileName);
 		if(this.locations != null)
 			this.locations.save(path + this.locationsFileName);
 	}
+	
+	/**
+	 * Convert the tensor into a compact, read-only FrozenTensor, and build the indexes for wildcard queries.
+	 * This should be called once the model is complete, for example after makeTensorSymmetric(). If the model is modified later, the tensor is copied back into a mutable Tensor.
+	 */
+	public synchronized void freeze(){
+		if(this.tensor instanceof Tensor)
+			this.tensor = ((Tensor)this.tensor).freeze();
+		else if(this.tensor instanceof SymmetricTensor)
+			this.tensor = ((SymmetricTensor)this.tensor).freeze();
+		else if(this.tensor instanceof CsfTensor && ((CsfTensor)this.tensor).getMarginals() == null)
+			((CsfTensor)this.tensor).buildMarginals();
+	}
+	
+	/**
+	 * Get a tensor that can be modified. If the tensor is read-only (opened from a binary file or frozen), it is first copied into a new Tensor.
+	 * @return The mutable tensor
+	 */
+	private Tensor getMutableTensor(){
+		this.statistics = null;
+		TripleCountCache tripleCache = this.tripleCache;
+		if(tripleCache != null)
+			tripleCache.clear();
+		TensorView tensor = this.tensor;
+		if(tensor instanceof Tensor)
+			return (Tensor)tensor;
+		synchronized(this){
+			if(!(this.tensor instanceof Tensor))
+				this.tensor = new Tensor(this.tensor);
+			return (Tensor)this.tensor;
+		}
+	}
 
-	public synchronized void add(Graph graph) throws SemModelException{
-		count++;
-		int inChar;
+	/**
+	 * Add a graph to the model. This method can be called from several threads at once.
+	 * @param graph The graph
+	 * @throws SemModelException
+	 */
+	public void add(Graph graph) throws SemModelException{
+		if(startTime == 0)
+			startTime = System.nanoTime();
+		int count = this.count.incrementAndGet();
 		for(Node node : graph.getNodes()){
 			int nodeKey = nodeIndex.add(node.getLabel());
-			System.out.println("#" + count + " " + nodeKey + " => " + node.getLabel());
-			try
-			{
-				inChar = System.in.read();
-			} catch (IOException e)
-			{
-				System.out.println("Error reading input");
-			}	
-			if(locations != null){
-				if(!locations.containsKey(nodeKey))
-					locations.put(nodeKey, new ArrayList<Integer>());
-				locations.get(nodeKey).add(count);
-			}
+			if(locations != null)
+				locations.add(nodeKey, count);
 		}
 		
+		Tensor tensor = getMutableTensor();
 		Integer headId, edgeId, depId;
 		for(Edge edge : graph.getEdges()){
 			edgeId = edgeIndex.add(edge.getLabel());
@@ -113,6 +239,80 @@ public class SemModel {
 			
 			tensor.add(headId, edgeId, depId, 1.0);
 		}
+		
+		nodeCount.addAndGet(graph.getNodes().size());
+		edgeCount.addAndGet(graph.getEdges().size());
+		ProgressListener listener = this.progressListener;
+		if(listener != null && count % progressInterval == 0)
+			listener.progress(getIngestProgress());
+	}
+	
+	/**
+	 * Report the progress of adding graphs to the model.
+	 * @param listener The listener, or null to stop reporting.
+	 * @param interval The listener is called after every interval graphs.
+	 */
+	public void setProgressListener(ProgressListener listener, int interval){
+		if(listener != null && interval <= 0)
+			throw new RuntimeException("Progress interval needs to be positive.");
+		this.progressInterval = interval;
+		this.progressListener = listener;
+	}
+	
+	/**
+	 * Get the number of graphs, nodes and edges that have been added to the model, and the speed of adding them.
+	 * @return A snapshot of the statistics
+	 */
+	public IngestProgress getIngestProgress(){
+		double seconds = startTime == 0 ? 0.0 : (System.nanoTime() - startTime) / 1e9;
+		return new IngestProgress(count.get(), nodeCount.get(), edgeCount.get(), nodeIndex.size(), edgeIndex.size(), seconds);
+	}
+	
+	/**
+	 * Add all the counts from another model into this one.
+	 * The IDs of the other model are remapped through the indexes of this model. Labels that are new to this model get IDs in the order of the other model, so merging partial models in the order of their input gives the same IDs as adding all the graphs into one model.
+	 * Sentence locations of the other model are placed after the sentences of this model.
+	 * @param other The model to merge into this one. It is not modified.
+	 */
+	public void merge(SemModel other){
+		if(this.locations != null && other.locations == null)
+			throw new RuntimeException("Unable to merge a model without locations into a model with locations.");
+		
+		Index otherNodeIndex = other.getNodeIndex();
+		int[] nodeIds = new int[otherNodeIndex.size() + 1];
+		for(int id = 1; id < nodeIds.length; id++)
+			nodeIds[id] = this.nodeIndex.add(otherNodeIndex.getLabel(id), otherNodeIndex.getCount(id));
+		
+		Index otherEdgeIndex = other.getEdgeIndex();
+		int[] edgeIds = new int[otherEdgeIndex.size() + 1];
+		for(int id = 1; id < edgeIds.length; id++)
+			edgeIds[id] = this.edgeIndex.add(otherEdgeIndex.getLabel(id), otherEdgeIndex.getCount(id));
+		
+		Tensor tensor = getMutableTensor();
+		TensorView otherTensor = other.getTensor();
+		int[] keys1 = otherTensor.getKeys();
+		Arrays.sort(keys1);
+		for(int key1 : keys1){
+			int[] keys2 = otherTensor.getKeys(key1);
+			Arrays.sort(keys2);
+			for(int key2 : keys2){
+				int[] keys3 = otherTensor.getKeys(key1, key2);
+				double[] values3 = otherTensor.getValues(key1, key2);
+				for(int i = 0; i < keys3.length; i++)
+					tensor.add(nodeIds[key1], edgeIds[key2], nodeIds[keys3[i]], values3[i]);
+			}
+		}
+		
+		int offset = this.count.getAndAdd(other.count.get());
+		if(this.locations != null && other.locations != null){
+			for(int key : other.locations.getKeys())
+				for(int sentence : other.locations.get(key))
+					this.locations.add(nodeIds[key], offset + sentence);
+		}
+		this.cache.clear();
+		TripleCountCache tripleCache = this.tripleCache;
+		if(tripleCache != null)
+			tripleCache.clear();
 	}
 	
 	public double getNodeCount(String label){
@@ -127,28 +327,35 @@ public class SemModel {
 		this.cache.put(key, value);
 	}
 	
+	/**
+	 * Get the count of a triple. Any of the labels can be null, which matches all the labels in that position.
+	 * The labels are looked up as IDs, and the counts are cached by their IDs when the cache is enabled, so a cache hit does not allocate.
+	 */
 	public double getTripleCount(String headLabel, String edgeLabel, String depLabel){
-		String key = "TRIPLE:" + (headLabel == null?"[[!!NULL!!]]":headLabel) + "\t" + (edgeLabel == null?"[[!!NULL!!]]":edgeLabel) + "\t" + (depLabel == null?"[[!!NULL!!]]":depLabel);
-		if(this.enableCache && this.cache.containsKey(key))
-			return this.cache.get(key);
-		
-		double result = 0.0;
-		Integer headId = null, depId = null, edgeId = null;
+		int headId = this.nodeIndex.indexOf(headLabel);
+		int edgeId = this.edgeIndex.indexOf(edgeLabel);
+		int depId = this.nodeIndex.indexOf(depLabel);
+		if((headLabel != null && headId == 0) || (edgeLabel != null && edgeId == 0) || (depLabel != null && depId == 0))
+			return 0.0;
 		
-		if(headLabel != null)
-			headId = this.nodeIndex.getId(headLabel);
-		if(depLabel != null)
-			depId = this.nodeIndex.getId(depLabel);
-		if(edgeLabel != null)
-			edgeId = this.edgeIndex.getId(edgeLabel);
+		TripleCountCache tripleCache = getTripleCountCache();
+		if(tripleCache != null){
+			double cached = tripleCache.get(headId, edgeId, depId);
+			if(!Double.isNaN(cached))
+				return cached;
+		}
 		
-		if((headLabel != null && headId == null) || (depLabel != null && depId == null) || (edgeLabel != null && edgeId == null))
-			result = 0.0;
+		double result;
+		ModelStatistics statistics = this.statistics;
+		if(statistics != null && headId == 0 && depId == 0)
+			result = (edgeId == 0 ? statistics.getTripleCount() : statistics.getRelationCount(edgeId));
+		else if(statistics != null && edgeId == 0 && (headId == 0 || depId == 0))
+			result = (headId != 0 ? statistics.getHeadCount(headId) : statistics.getDepCount(depId));
 		else
-			result = this.tensor.get(headId, edgeId, depId);
+			result = this.tensor.get(headId == 0 ? null : headId, edgeId == 0 ? null : edgeId, depId == 0 ? null : depId);
 		
-		if(this.enableCache)
-			addToCache(key, result);
+		if(tripleCache != null)
+			tripleCache.put(headId, edgeId, depId, result);
 		
 		return result;
 	}
@@ -172,71 +379,14 @@ public class SemModel {
 		if((label1 != null && label1Id == null) || (label2 != null && label2Id == null))
 			return 0.0;
 		
-		ArrayList<Integer> locations1 = this.locations.get(label1Id);
-		ArrayList<Integer> locations2 = this.locations.get(label2Id);
-		
 		double total = 0.0;
 		
-		if(label1 == null && label2 == null){
+		if(label1 == null && label2 == null)
 			total = getTotalCoocCount();
-		}
-		else if((label1 == null && label2 != null) || (label1 != null && label2 == null)){
-			Integer labelId = null;
-			if(label1 != null)
-				labelId = label1Id;
-			else if(label2 != null)
-				labelId = label2Id;
-			
-			if(labelId == null)
-				total = 0.0;
-			else {
-				HashSet<Integer> locations = new HashSet<Integer>(this.locations.get(labelId));
-				for(Entry<Integer,ArrayList<Integer>> entry : this.locations.entrySet()){
-					if(entry.getKey().equals(labelId))
-						continue;
-
-					for(Integer sentence : entry.getValue()){
-						if(locations.contains(sentence))
-							total += 1;
-					}
-				}
-			}
-		}
-		else if(label1Id.equals(label2Id)){
-			double sequenceLength = 0.0;
-			for(int i = 1; i < locations1.size(); i++){
-				if(locations1.get(i).equals(locations1.get(i-1))){
-					sequenceLength++;
-					total += sequenceLength;
-				}
-				else
-					sequenceLength = 0.0;
-			}
-		}
-		else{
-			int pos1 = 0, pos2 = 0, count1 = 0, count2 = 0;
-			while(pos1 < locations1.size() && pos2 < locations2.size()){
-				if(locations1.get(pos1).equals(locations2.get(pos2))){
-					count1 = 1;
-					count2 = 1;
-					while(pos1+1 < locations1.size() && locations1.get(pos1).equals(locations1.get(pos1+1))){
-						pos1++;
-						count1++;
-					}
-					while(pos2+1 < locations2.size() && locations2.get(pos2).equals(locations2.get(pos2+1))){
-						pos2++;
-						count2++;
-					}
-					total += count1 * count2;
-					pos1++;
-					pos2++;
-				}
-				else if(locations1.get(pos1) < locations2.get(pos2))
-					pos1++;
-				else if(locations2.get(pos2) < locations1.get(pos1))
-					pos2++;
-			}
-		}
+		else if(label1 == null || label2 == null)
+			total = this.locations.countMatches(label1 != null ? label1Id : label2Id);
+		else
+			total = this.locations.countMatches(label1Id, label2Id);
 		
 		if(this.enableCache)
 			addToCache(key, total);
@@ -252,21 +402,7 @@ public class SemModel {
 	}
 	
 	private synchronized double calculateTotalCoocCount(){
-		double total = 0.0;
-		LinkedHashMap<Integer,Double> sentenceLengths = new LinkedHashMap<Integer,Double>();
-		Double value;
-		for(ArrayList<Integer> list : this.locations.values()){
-			for(Integer sentence : list){
-				value = sentenceLengths.get(sentence);
-				sentenceLengths.put(sentence, (value==null?0.0:value)+1.0);
-			}
-		}
-		for(Double length : sentenceLengths.values())
-			if(length > 0.0)
-				total += length * (length-1.0);
-		
-		sentenceLengths = null;
-		return total;
+		return this.locations.countAllMatches();
 	}
 	
 	private synchronized double _getTotalCoocCount(){
@@ -283,6 +419,9 @@ public class SemModel {
 	}
 	
 	public double getTotalCoocCount(){
+		ModelStatistics statistics = this.statistics;
+		if(statistics != null && statistics.hasCoocCount())
+			return statistics.getTotalCoocCount();
 		String key = getLocationMatchKey(null, null);
 		if(this.cache.containsKey(key))
 			return this.cache.get(key);
@@ -296,7 +435,6 @@ public class SemModel {
 		for(int key1 : this.tensor.getKeys())
 			for(int key2 : this.tensor.getKeys(key1))
 				total += this.tensor.getKeys(key1, key2).length;
-		System.out.println("TOTAL_TRIPLE_COUNT:" + total);
 		return total;
 	}
 	
@@ -314,6 +452,9 @@ public class SemModel {
 	}
 	
 	public double getTripleTypeCount(){
+		ModelStatistics statistics = this.statistics;
+		if(statistics != null)
+			return statistics.getTripleTypeCount();
 		String key = "TRIPLE_TYPE_COUNT";
 		if(this.cache.containsKey(key))
 			return this.cache.get(key);
@@ -322,6 +463,9 @@ public class SemModel {
 	}
 	
 	public double getTotalNodeCount(){
+		ModelStatistics statistics = this.statistics;
+		if(statistics != null)
+			return statistics.getTotalNodeCount();
 		String key = "TOTAL_NODE_COUNT";
 		if(this.enableCache && this.cache.containsKey(key))
 			return this.cache.get(key);
@@ -332,6 +476,9 @@ public class SemModel {
 	}
 	
 	public double getTotalEdgeCount(){
+		ModelStatistics statistics = this.statistics;
+		if(statistics != null)
+			return statistics.getTotalEdgeCount();
 		String key = "TOTAL_EDGE_COUNT";
 		if(this.enableCache && this.cache.containsKey(key))
 			return this.cache.get(key);
@@ -345,27 +492,87 @@ public class SemModel {
 		this.enableCache = true;
 	}
 	
+	/**
+	 * Disable the cache. The triple count cache is dropped, and a new one is created if the cache is enabled again.
+	 */
 	public void disableCache(){
 		this.enableCache = false;
+		this.tripleCache = null;
+	}
+	
+	/**
+	 * Set the memory budget of the triple count cache. The cached counts are dropped.
+	 * @param maxBytes Memory budget, DEFAULT_TRIPLE_CACHE_BYTES by default
+	 */
+	public void setTripleCacheSize(long maxBytes){
+		if(maxBytes < 0)
+			throw new RuntimeException("Cache size cannot be negative: " + maxBytes);
+		this.tripleCacheBytes = maxBytes;
+		this.tripleCache = null;
+	}
+	
+	/**
+	 * Get the triple count cache, creating it on first use.
+	 * @return The cache, or null if the cache is disabled
+	 */
+	private TripleCountCache getTripleCountCache(){
+		if(!this.enableCache)
+			return null;
+		TripleCountCache tripleCache = this.tripleCache;
+		if(tripleCache == null){
+			synchronized(this){
+				if(this.tripleCache == null)
+					this.tripleCache = new TripleCountCache(this.tripleCacheBytes);
+				tripleCache = this.tripleCache;
+			}
+		}
+		return tripleCache;
 	}
 	
 	/**
 	 * This method needs to be called to make the tensor symmetric (adding dependency edges in the reverse direction).
+	 * The tensor is not copied. It is wrapped in a SymmetricTensor, which answers queries for the reverse edges from a secondary index sorted by the dependent.
+	 * Every edge label gets a reverse label starting with "!", which is added to the edge index without a count, so the edge counts are not changed.
+	 * Calling the method again has no effect.
 	 */
-	public void makeTensorSymmetric(){
-		int key2New;
+	public synchronized void makeTensorSymmetric(){
+		if(this.tensor instanceof SymmetricTensor)
+			return;
+		this.statistics = null;
+		int[] reverseKeys = new int[this.edgeIndex.size() + 1];
 		String edgeLabel;
-		for(int key1 : tensor.getKeys()){
-			for(int key2 : tensor.getKeys(key1)){
-				edgeLabel = this.edgeIndex.getLabel(key2);
-				if(edgeLabel != null && !edgeLabel.startsWith("!")){
-					for(int key3 : tensor.getKeys(key1, key2)){
-						key2New = edgeIndex.add("!" + edgeLabel, 1.0);
-						tensor.add(key3, key2New, key1, tensor.get(key1, key2, key3));
-					}
-				}
-			}
+		for(int key2 = 1; key2 < reverseKeys.length; key2++){
+			edgeLabel = this.edgeIndex.getLabel(key2);
+			if(edgeLabel != null && !edgeLabel.startsWith("!"))
+				reverseKeys[key2] = this.edgeIndex.add("!" + edgeLabel, 0.0);
 		}
+		this.tensor = new SymmetricTensor(this.tensor, reverseKeys);
+		TripleCountCache tripleCache = this.tripleCache;
+		if(tripleCache != null)
+			tripleCache.clear();
+	}
+	
+	/**
+	 * @return True if makeTensorSymmetric() has been called
+	 */
+	public boolean isSymmetric(){
+		return this.tensor instanceof SymmetricTensor;
+	}
+	
+	/**
+	 * @return The size of the edge index after makeTensorSymmetric(), without changing the model
+	 */
+	public int getSymmetricEdgeIndexSize(){
+		int size = this.edgeIndex.size();
+		if(isSymmetric())
+			return size;
+		String edgeLabel;
+		for(int key2 = 1; key2 <= this.edgeIndex.size(); key2++){
+			edgeLabel = this.edgeIndex.getLabel(key2);
+			if(edgeLabel != null && !edgeLabel.startsWith("!") && this.edgeIndex.getId("!" + edgeLabel) == null)
+				size++;
+		}
+		return size;
 	}
 	
 	public Index getNodeIndex(){
@@ -376,7 +583,25 @@ public class SemModel {
 		return this.edgeIndex;
 	}
 	
-	public Tensor getTensor(){
+	public TensorView getTensor(){
 		return this.tensor;
 	}
+	
+	/**
+	 * @return The triple count cache, or null if the cache is disabled or has not been used yet
+	 */
+	public TripleCountCache getTripleCache(){
+		return this.tripleCache;
+	}
+	
+	/**
+	 * @return The statistics of the model, or null if they have not been saved or the model has been modified since.
+	 */
+	public ModelStatistics getStatistics(){
+		return this.statistics;
+	}
+
+	LocationIndex getLocations(){
+		return this.locations;
+	}
 }
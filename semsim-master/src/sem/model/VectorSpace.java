@@ -1,24 +1,54 @@
 package sem.model;
 
-import java.util.HashMap;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.LinkedHashMap;
 
-import sem.util.Index;
+import sem.util.FeatureIndex;
+import sem.util.MappedFile;
+import sem.util.SparseMatrix;
+import sem.util.SparseVector;
+import sem.util.SymmetricTensor;
+import sem.util.TensorView;
 import sem.util.Tools;
+import sem.util.VectorCache;
 
 /**
  * A class for managing the feature vectors. It creates vectors using a specified weight measure, and caches them if necessary.
- *
+ * <p>The cache is a VectorCache with a memory budget, by default CACHE_HEAP_FRACTION of the maximum heap size, and it can be used from several threads. The budget can be given to the constructor or changed with setCacheSize().
+ * <p>After buildMatrix(), all the vectors are precomputed into a SparseMatrix and served from there, which takes much less memory than the cache.
+ * <p>save() writes the feature index, its counts and the matrix into a single file, which open() maps back into memory.
+ * Opening a saved vector space does not scan the tensor, so the model does not need to be made symmetric again.
+ * Only the feature index is copied into memory, and the rows of the matrix are copied from the mapped file when they are requested. If the cache is enabled, the copied rows are kept in it.
+ * The file has the following layout, where the features are packed with FeatureIndex.pack():
+ * <pre>
+ * magic, version, weight scheme            int, int, int
+ * number of nodes, total node count        int, double
+ * number of edges, total edge count        int, double
+ * tensor total, symmetric                  double, int
+ * number of features, total feature count  int, double
+ * features [features], counts [features]   long, double
+ * matrix                                   see SparseMatrix.write()
+ * </pre>
+ * The node and edge indexes and the tensor total identify the model that the vectors were made from. The tensor total does not include the reverse edges.
+ * If the vectors were made from a symmetric model, the number of edges includes the reverse edge labels.
  */
 public class VectorSpace {
 	private SemModel semModel;
 	private int weightScheme;
 	private boolean enableCache;
 	
-	private Index featureIndex;
-	private Index nodeIndex;
+	private FeatureIndex featureIndex;
 	private double totalFeatureCount;
-	private HashMap<Integer,LinkedHashMap<Integer,Double>> vectorCache;
+	private VectorCache vectorCache;
+	private volatile SparseMatrix matrix;
+	// The edge index size and whether the model was symmetric when the vectors were made
+	private int numEdges;
+	private boolean symmetric;
 	
 	public static int WEIGHT_BINARY = 0;
 	public static int WEIGHT_FREQ = 1;
@@ -26,37 +56,214 @@ public class VectorSpace {
 	public static int WEIGHT_PMI = 3;
 	public static int WEIGHT_PMI_LIM = 4;
 	
+	public static final double CACHE_HEAP_FRACTION = 0.25;
+	
+	public static final int MAGIC = 0x53454d56;
+	public static final int VERSION = 2;
+	public static final String vectorsBinaryFileName = "_vectors.bin";
+	
 	public VectorSpace(SemModel semModel, int weightScheme, boolean enableCache){
+		this(semModel, weightScheme, enableCache, getDefaultCacheSize());
+	}
+	
+	/**
+	 * @param semModel The model
+	 * @param weightScheme Weight scheme
+	 * @param enableCache Enable the vector cache
+	 * @param cacheBytes Memory budget of the vector cache
+	 */
+	public VectorSpace(SemModel semModel, int weightScheme, boolean enableCache, long cacheBytes){
 		this.semModel = semModel;
 		this.weightScheme = weightScheme;
 		this.enableCache = enableCache;
-		this.vectorCache = new HashMap<Integer,LinkedHashMap<Integer,Double>>();
+		this.vectorCache = new VectorCache(cacheBytes);
 		
 		this.featureIndex = null;
-		this.nodeIndex = null;
 		
 		init();
 	}
 	
+	/**
+	 * Create a vector space from a saved feature index and matrix.
+	 */
+	private VectorSpace(SemModel semModel, int weightScheme, boolean enableCache, long cacheBytes, FeatureIndex featureIndex, SparseMatrix matrix, int numEdges, boolean symmetric){
+		this.semModel = semModel;
+		this.weightScheme = weightScheme;
+		this.enableCache = enableCache;
+		this.vectorCache = new VectorCache(cacheBytes);
+		this.featureIndex = featureIndex;
+		this.totalFeatureCount = featureIndex.getTotalCount();
+		this.matrix = matrix;
+		this.numEdges = numEdges;
+		this.symmetric = symmetric;
+	}
+	
+	/**
+	 * @return The default memory budget of the vector cache, CACHE_HEAP_FRACTION of the maximum heap size
+	 */
+	public static long getDefaultCacheSize(){
+		return (long)(Runtime.getRuntime().maxMemory() * CACHE_HEAP_FRACTION);
+	}
+	
+	/**
+	 * Open a vector space written by save(), with the default cache budget.
+	 * @param semModel The model that the vector space was made from
+	 * @param file Input file
+	 * @param enableCache Enable the vector cache, which keeps the rows copied from the file
+	 * @return The vector space, with the saved weight scheme
+	 */
+	public static VectorSpace open(SemModel semModel, String file, boolean enableCache){
+		return open(semModel, file, enableCache, getDefaultCacheSize());
+	}
+	
+	/**
+	 * Open a vector space written by save().
+	 * @param semModel The model that the vector space was made from
+	 * @param file Input file
+	 * @param enableCache Enable the vector cache, which keeps the rows copied from the file
+	 * @param cacheBytes Memory budget of the vector cache
+	 * @return The vector space, with the saved weight scheme
+	 */
+	public static VectorSpace open(SemModel semModel, String file, boolean enableCache, long cacheBytes){
+		MappedFile mappedFile = new MappedFile(file);
+		mappedFile.checkHeader(MAGIC, VERSION);
+		if(!matches(mappedFile, semModel))
+			throw new RuntimeException("The vector space does not match the model: " + file);
+		int weightScheme = mappedFile.getInt(8);
+		int numNodes = mappedFile.getInt(12);
+		
+		int numFeatures = mappedFile.getInt(48);
+		double totalFeatureCount = mappedFile.getDouble(52);
+		long position = 60;
+		long[] features = new long[numFeatures + 1];
+		double[] counts = new double[numFeatures + 1];
+		mappedFile.getLongs(position, features, 1, numFeatures);
+		position += 8L * numFeatures;
+		mappedFile.getDoubles(position, counts, 1, numFeatures);
+		position += 8L * numFeatures;
+		FeatureIndex featureIndex = new FeatureIndex(features, counts, numFeatures, totalFeatureCount);
+		
+		SparseMatrix matrix = SparseMatrix.map(mappedFile, position);
+		if(matrix.getNumRows() != numNodes + 1)
+			throw new RuntimeException("The vector space does not match the model: " + file);
+		return new VectorSpace(semModel, weightScheme, enableCache, cacheBytes, featureIndex, matrix, mappedFile.getInt(24), mappedFile.getInt(44) != 0);
+	}
+	
+	/**
+	 * Check that a saved vector space was made from a model with the same nodes, edges and counts.
+	 * A symmetric vector space matches a model that has not been made symmetric yet, but not the other way round.
+	 */
+	private static boolean matches(MappedFile mappedFile, SemModel semModel){
+		if(mappedFile.getInt(12) != semModel.getNodeIndex().size() || Double.compare(mappedFile.getDouble(16), semModel.getNodeIndex().getTotalCount()) != 0)
+			return false;
+		boolean symmetric = mappedFile.getInt(44) != 0;
+		if(symmetric ? mappedFile.getInt(24) != semModel.getSymmetricEdgeIndexSize() : (semModel.isSymmetric() || mappedFile.getInt(24) != semModel.getEdgeIndex().size()))
+			return false;
+		return Double.compare(mappedFile.getDouble(28), semModel.getEdgeIndex().getTotalCount()) == 0 && Double.compare(mappedFile.getDouble(36), getTensorTotal(semModel)) == 0;
+	}
+	
+	/**
+	 * Sum of the tensor of the model, without the reverse edges.
+	 */
+	private static double getTensorTotal(SemModel semModel){
+		TensorView tensor = semModel.getTensor();
+		if(tensor instanceof SymmetricTensor)
+			tensor = ((SymmetricTensor)tensor).getBaseTensor();
+		return tensor.get(null, null, null);
+	}
+	
+	/**
+	 * Load a vector space with the default cache budget. See load(SemModel, String, int, boolean, long).
+	 */
+	public static VectorSpace load(SemModel semModel, String path, int weightScheme, boolean enableCache){
+		return load(semModel, path, weightScheme, enableCache, getDefaultCacheSize());
+	}
+	
+	/**
+	 * Open the vector space saved with the model if it exists, has the requested weight scheme, was made symmetric and matches the model.
+	 * Otherwise, the tensor of the model is made symmetric and frozen, and the vectors are computed from it as usual.
+	 * @param semModel The model
+	 * @param path Path prefix of the model files. The vector space is in path + vectorsBinaryFileName.
+	 * @param weightScheme Weight scheme
+	 * @param enableCache Enable the vector cache
+	 * @param cacheBytes Memory budget of the vector cache
+	 * @return The vector space
+	 */
+	public static VectorSpace load(SemModel semModel, String path, int weightScheme, boolean enableCache, long cacheBytes){
+		String file = path + vectorsBinaryFileName;
+		if(MappedFile.hasMagic(file, MAGIC)){
+			MappedFile mappedFile = new MappedFile(file);
+			if(mappedFile.getInt(4) == VERSION && mappedFile.getInt(8) == weightScheme && mappedFile.getInt(44) != 0 && matches(mappedFile, semModel))
+				return open(semModel, file, enableCache, cacheBytes);
+			System.err.println("Ignoring the saved vector space, it does not match the model or the weight scheme: " + file);
+		}
+		semModel.makeTensorSymmetric();
+		semModel.freeze();
+		return new VectorSpace(semModel, weightScheme, enableCache, cacheBytes);
+	}
+	
+	/**
+	 * Save the feature index and the vectors of all the nodes. The matrix is built first if necessary.
+	 * The file is written to a temporary file first, so it is safe to overwrite a vector space that is currently mapped.
+	 * @param file Output file
+	 */
+	public void save(String file){
+		if(this.matrix == null)
+			buildMatrix();
+		try{
+			File tempFile = new File(file + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(this.weightScheme);
+			out.writeInt(this.semModel.getNodeIndex().size());
+			out.writeDouble(this.semModel.getNodeIndex().getTotalCount());
+			out.writeInt(this.numEdges);
+			out.writeDouble(this.semModel.getEdgeIndex().getTotalCount());
+			out.writeDouble(getTensorTotal(this.semModel));
+			out.writeInt(this.symmetric ? 1 : 0);
+			out.writeInt(this.featureIndex.size());
+			out.writeDouble(this.featureIndex.getTotalCount());
+			for(int id = 1; id <= this.featureIndex.size(); id++)
+				out.writeLong(this.featureIndex.getFeature(id));
+			for(int id = 1; id <= this.featureIndex.size(); id++)
+				out.writeDouble(this.featureIndex.getCount(id));
+			this.matrix.write(out);
+			out.close();
+			
+			File target = new File(file);
+			if(target.exists() && !target.delete())
+				throw new RuntimeException("Unable to replace file: " + file);
+			if(!tempFile.renameTo(target))
+				throw new RuntimeException("Unable to rename " + tempFile + " to " + file);
+		} catch(IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public int getWeightScheme(){
+		return this.weightScheme;
+	}
+	
 	private void init(){
-		this.featureIndex = new Index();
-		this.nodeIndex = new Index();
-		String featureLabel;
-		double c;
-		for(int key1 : this.semModel.getTensor().getKeys()){
-			for(int key2 : this.semModel.getTensor().getKeys(key1)){
-				for(int key3 : this.semModel.getTensor().getKeys(key1, key2)){
-					featureLabel = key2 + "," + key3;
-					c = this.semModel.getTensor().get(key1, key2, key3);
-					featureIndex.add(featureLabel, c);
-					nodeIndex.add("" + key1, c);
-				}
+		this.numEdges = this.semModel.getEdgeIndex().size();
+		this.symmetric = this.semModel.isSymmetric();
+		this.featureIndex = new FeatureIndex();
+		TensorView tensor = this.semModel.getTensor();
+		int[] keys3;
+		double[] values3;
+		for(int key1 : tensor.getKeys()){
+			for(int key2 : tensor.getKeys(key1)){
+				keys3 = tensor.getKeys(key1, key2);
+				values3 = tensor.getValues(key1, key2);
+				for(int i = 0; i < keys3.length; i++)
+					featureIndex.add(key2, keys3[i], values3[i]);
 			}
 		}
 		this.totalFeatureCount = this.featureIndex.getTotalCount();
 	}
 	
-	public Index getFeatureIndex(){
+	public FeatureIndex getFeatureIndex(){
 		return this.featureIndex;
 	}
 	
@@ -64,12 +271,55 @@ public class VectorSpace {
 		return this.totalFeatureCount;
 	}
 	
-	public synchronized void addToCache(Integer nodeId, LinkedHashMap<Integer,Double> sortedVector){
-		this.vectorCache.put(nodeId, sortedVector);
+	public void addToCache(Integer nodeId, LinkedHashMap<Integer,Double> sortedVector){
+		this.vectorCache.put(nodeId, new SparseVector(sortedVector));
 	}
 	
 	public LinkedHashMap<Integer,Double> getVectorFromCache(Integer nodeId){
-		return this.vectorCache.get(nodeId);
+		SparseVector vector = this.vectorCache.get(nodeId);
+		return (vector == null) ? null : vector.toMap();
+	}
+	
+	/**
+	 * Get the vector cache, for example to read its counters.
+	 */
+	public VectorCache getCache(){
+		return this.vectorCache;
+	}
+	
+	/**
+	 * Set the memory budget of the vector cache.
+	 * @param maxBytes Memory budget in bytes, not including the pinned vectors
+	 */
+	public void setCacheSize(long maxBytes){
+		this.vectorCache.setMaxBytes(maxBytes);
+	}
+	
+	/**
+	 * Compute the vectors of the nodes and keep them in the cache until unpinVectors() is called.
+	 * Nothing is pinned if the cache is disabled or the vectors are served from a matrix built by buildMatrix().
+	 * @param nodeLabels Node labels, for example the candidates that are compared most often
+	 */
+	public void pinVectors(Collection<String> nodeLabels){
+		SparseMatrix matrix = this.matrix;
+		if(!this.enableCache || (matrix != null && !matrix.isMapped()))
+			return;
+		for(String nodeLabel : nodeLabels){
+			Integer nodeId = this.semModel.getNodeIndex().getId(nodeLabel);
+			if(nodeId == null)
+				continue;
+			SparseVector vector = this.vectorCache.get(nodeId);
+			if(vector == null)
+				vector = (matrix != null) ? matrix.getRow(nodeId) : new SparseVector(computeVector(nodeId));
+			this.vectorCache.pin(nodeId, vector);
+		}
+	}
+	
+	/**
+	 * Release the vectors pinned with pinVectors().
+	 */
+	public void unpinVectors(){
+		this.vectorCache.unpinAll();
 	}
 
 	public LinkedHashMap<Integer,Double> getVector(String nodeLabel){
@@ -77,12 +327,83 @@ public class VectorSpace {
 		if(nodeId == null)
 			return new LinkedHashMap<Integer,Double>();
 		
-		LinkedHashMap<Integer,Double> vector = null;
-		if(this.enableCache)
-			vector = getVectorFromCache(nodeId);
-		if(vector != null)
-			return vector;
+		if(this.matrix != null)
+			return getSparseVector(nodeId).toMap();
+		
+		if(this.enableCache){
+			SparseVector vector = this.vectorCache.get(nodeId);
+			if(vector != null)
+				return vector.toMap();
+		}
+		
+		LinkedHashMap<Integer,Double> sortedVector = computeVector(nodeId);
+		if(this.enableCache){
+			addToCache(nodeId, sortedVector);
+		}
+		return sortedVector;
+	}
+	
+	/**
+	 * Get the vector as a SparseVector, see getSparseVector(int).
+	 * @param nodeLabel Node label
+	 * @return The vector, empty if the node does not exist.
+	 */
+	public SparseVector getSparseVector(String nodeLabel){
+		Integer nodeId = this.semModel.getNodeIndex().getId(nodeLabel);
+		if(nodeId == null)
+			return new SparseVector(new LinkedHashMap<Integer,Double>());
+		return getSparseVector(nodeId);
+	}
+	
+	/**
+	 * Get the vector as a SparseVector. With a matrix from buildMatrix(), this is a view into the matrix and nothing is copied.
+	 * With a matrix mapped by open(), the row is copied from the file and kept in the cache if it is enabled.
+	 * @param nodeId Node ID
+	 * @return The vector, empty if the node does not exist.
+	 */
+	public SparseVector getSparseVector(int nodeId){
+		SparseMatrix matrix = this.matrix;
+		if(matrix != null && !matrix.isMapped())
+			return matrix.getRow(nodeId);
 		
+		SparseVector vector = null;
+		if(this.enableCache)
+			vector = this.vectorCache.get(nodeId);
+		if(vector == null){
+			vector = (matrix != null) ? matrix.getRow(nodeId) : new SparseVector(computeVector(nodeId));
+			if(this.enableCache)
+				this.vectorCache.put(nodeId, vector);
+		}
+		return vector;
+	}
+	
+	/**
+	 * Precompute the vectors of all the nodes into a SparseMatrix, where row i is the vector of node i.
+	 * Afterwards, all the vectors are served from the matrix and the cache is cleared.
+	 */
+	public void buildMatrix(){
+		SparseMatrix matrix = new SparseMatrix();
+		matrix.addRow(new LinkedHashMap<Integer,Double>());
+		for(int nodeId = 1; nodeId <= this.semModel.getNodeIndex().size(); nodeId++)
+			matrix.addRow(computeVector(nodeId));
+		matrix.trim();
+		this.matrix = matrix;
+		clearCache();
+	}
+	
+	/**
+	 * Get the precomputed matrix.
+	 * @return The matrix, or null if buildMatrix() has not been called.
+	 */
+	public SparseMatrix getMatrix(){
+		return this.matrix;
+	}
+	
+	/**
+	 * Compute the weighted vector for a node, sorted by descending weight.
+	 */
+	private LinkedHashMap<Integer,Double> computeVector(Integer nodeId){
+		LinkedHashMap<Integer,Double> vector;
 		if(this.weightScheme == WEIGHT_BINARY)
 			vector = getVectorBinary(nodeId);
 		else if(this.weightScheme == WEIGHT_FREQ)
@@ -96,17 +417,12 @@ public class VectorSpace {
 		else
 			throw new RuntimeException("Unknown weight scheme: " + this.weightScheme);
 		
-		LinkedHashMap<Integer,Double> sortedVector = Tools.sort(vector, true);
-		if(this.enableCache){
-			addToCache(nodeId, sortedVector);
-		}
-		return sortedVector;
+		return Tools.sort(vector, true);
 	}
 	
 	private LinkedHashMap<Integer,Double> getVectorPMI(Integer nodeId){
 		LinkedHashMap<Integer,Double> vector = new LinkedHashMap<Integer,Double>();
-		String featureLabel;
-		Integer featureId;
+		int featureId;
 		
 		if(!this.semModel.getTensor().containsKey(nodeId))
 			return vector;
@@ -114,11 +430,13 @@ public class VectorSpace {
 		Double nodeCount = this.semModel.getNodeIndex().getCount(nodeId);
 		Double totalFeatureCount = this.getTotalFeatureCount();
 		
-		for(int key2 : this.semModel.getTensor().getKeys(nodeId)){
-			for(int key3 : this.semModel.getTensor().getKeys(nodeId, key2)){
-				featureLabel = key2 + "," + key3;
-				featureId = this.getFeatureIndex().getId(featureLabel);
-				Double weight = Math.log((this.semModel.getTensor().get(nodeId, key2, key3)/totalFeatureCount) 
+		TensorView tensor = this.semModel.getTensor();
+		for(int key2 : tensor.getKeys(nodeId)){
+			int[] keys3 = tensor.getKeys(nodeId, key2);
+			double[] values3 = tensor.getValues(nodeId, key2);
+			for(int i = 0; i < keys3.length; i++){
+				featureId = this.getFeatureIndex().getId(key2, keys3[i]);
+				Double weight = Math.log((values3[i]/totalFeatureCount) 
 								/ ((nodeCount / totalFeatureCount) * (this.featureIndex.getCount(featureId)/totalFeatureCount)));
 				vector.put(featureId, weight);
 			}
@@ -131,8 +449,7 @@ public class VectorSpace {
 	
 	private LinkedHashMap<Integer,Double> getVectorPMILim(Integer nodeId){
 		LinkedHashMap<Integer,Double> vector = new LinkedHashMap<Integer,Double>();
-		String featureLabel;
-		Integer featureId;
+		int featureId;
 		
 		if(!this.semModel.getTensor().containsKey(nodeId))
 			return vector;
@@ -140,15 +457,17 @@ public class VectorSpace {
 		Double nodeCount = this.semModel.getNodeIndex().getCount(nodeId);
 		Double totalFeatureCount = this.getTotalFeatureCount();
 		double featureCount;
-		for(int key2 : this.semModel.getTensor().getKeys(nodeId)){
-			for(int key3 : this.semModel.getTensor().getKeys(nodeId, key2)){
-				featureLabel = key2 + "," + key3;
-				featureId = this.getFeatureIndex().getId(featureLabel);
+		TensorView tensor = this.semModel.getTensor();
+		for(int key2 : tensor.getKeys(nodeId)){
+			int[] keys3 = tensor.getKeys(nodeId, key2);
+			double[] values3 = tensor.getValues(nodeId, key2);
+			for(int i = 0; i < keys3.length; i++){
+				featureId = this.getFeatureIndex().getId(key2, keys3[i]);
 				featureCount = this.featureIndex.getCount(featureId);
 				
 				if(featureCount < 2)
 					continue;
-				Double weight = Math.log((this.semModel.getTensor().get(nodeId, key2, key3)/totalFeatureCount) 
+				Double weight = Math.log((values3[i]/totalFeatureCount) 
 								/ ((nodeCount / totalFeatureCount) * (featureCount/totalFeatureCount)));
 				vector.put(featureId, weight);
 			}
@@ -161,16 +480,17 @@ public class VectorSpace {
 	
 	private LinkedHashMap<Integer,Double> getVectorBinary(Integer nodeId){
 		LinkedHashMap<Integer,Double> vector = new LinkedHashMap<Integer,Double>();
-		String featureLabel;
-		Integer featureId;
+		int featureId;
 		
 		if(!this.semModel.getTensor().containsKey(nodeId))
 			return vector;
 		
-		for(int key2 : this.semModel.getTensor().getKeys(nodeId)){
-			for(int key3 : this.semModel.getTensor().getKeys(nodeId, key2)){
-				featureLabel = key2 + "," + key3;
-				featureId = this.getFeatureIndex().getId(featureLabel);
+		TensorView tensor = this.semModel.getTensor();
+		for(int key2 : tensor.getKeys(nodeId)){
+			int[] keys3 = tensor.getKeys(nodeId, key2);
+			double[] values3 = tensor.getValues(nodeId, key2);
+			for(int i = 0; i < keys3.length; i++){
+				featureId = this.getFeatureIndex().getId(key2, keys3[i]);
 				Double weight = 1.0;
 				vector.put(featureId, weight);
 			}
@@ -181,17 +501,18 @@ public class VectorSpace {
 	
 	private LinkedHashMap<Integer,Double> getVectorFreq(Integer nodeId){
 		LinkedHashMap<Integer,Double> vector = new LinkedHashMap<Integer,Double>();
-		String featureLabel;
-		Integer featureId;
+		int featureId;
 		
 		if(!this.semModel.getTensor().containsKey(nodeId))
 			return vector;
 		
-		for(int key2 : this.semModel.getTensor().getKeys(nodeId)){
-			for(int key3 : this.semModel.getTensor().getKeys(nodeId, key2)){
-				featureLabel = key2 + "," + key3;
-				featureId = this.getFeatureIndex().getId(featureLabel);
-				Double weight = this.semModel.getTensor().get(nodeId, key2, key3);
+		TensorView tensor = this.semModel.getTensor();
+		for(int key2 : tensor.getKeys(nodeId)){
+			int[] keys3 = tensor.getKeys(nodeId, key2);
+			double[] values3 = tensor.getValues(nodeId, key2);
+			for(int i = 0; i < keys3.length; i++){
+				featureId = this.getFeatureIndex().getId(key2, keys3[i]);
+				Double weight = values3[i];
 				vector.put(featureId, weight);
 			}
 		}
@@ -201,18 +522,19 @@ public class VectorSpace {
 	
 	private LinkedHashMap<Integer,Double> getVectorRelFreq(Integer nodeId){
 		LinkedHashMap<Integer,Double> vector = new LinkedHashMap<Integer,Double>();
-		String featureLabel;
-		Integer featureId;
+		int featureId;
 		
 		if(!this.semModel.getTensor().containsKey(nodeId))
 			return vector;
 		
 		Double nodeCount = this.semModel.getTensor().get(nodeId, null, null);
-		for(int key2 : this.semModel.getTensor().getKeys(nodeId)){
-			for(int key3 : this.semModel.getTensor().getKeys(nodeId, key2)){
-				featureLabel = key2 + "," + key3;
-				featureId = this.getFeatureIndex().getId(featureLabel);
-				Double weight = this.semModel.getTensor().get(nodeId, key2, key3) / nodeCount;
+		TensorView tensor = this.semModel.getTensor();
+		for(int key2 : tensor.getKeys(nodeId)){
+			int[] keys3 = tensor.getKeys(nodeId, key2);
+			double[] values3 = tensor.getValues(nodeId, key2);
+			for(int i = 0; i < keys3.length; i++){
+				featureId = this.getFeatureIndex().getId(key2, keys3[i]);
+				Double weight = values3[i] / nodeCount;
 				vector.put(featureId, weight);
 			}
 		}
@@ -0,0 +1,95 @@
+package sem.run;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+import sem.model.SemModel;
+import sem.model.VectorSpace;
+import sem.sim.CandidateIndex;
+import sem.sim.LshIndex;
+import sem.sim.SimFinder;
+import sem.sim.SimMeasure;
+
+/**
+ * Builds an LshIndex over the words of a model, for approximate search in MostSimilar.
+ * The candidates and the vectors are chosen the same way as in MostSimilar.
+ * <p>With --recall N, the saved index is opened again and its recall is measured against the exact results for N random candidates, when probing 1, 2, 4, ... of the tables.
+ */
+public class BuildLshIndex {
+	public static void main(String[] args) {
+		int numThreads = 1, numTables = 16, bitsPerTable = 16, numQueries = 0, k = 10;
+		int type = LshIndex.TYPE_SIMHASH;
+		int pos = 0;
+		while(pos < args.length && args[pos].startsWith("--")){
+			if(args[pos].equals("--minhash"))
+				type = LshIndex.TYPE_MINHASH;
+			else if(args[pos].equals("--threads") && pos + 1 < args.length)
+				numThreads = Integer.parseInt(args[++pos]);
+			else if(args[pos].equals("--tables") && pos + 1 < args.length)
+				numTables = Integer.parseInt(args[++pos]);
+			else if(args[pos].equals("--bits") && pos + 1 < args.length)
+				bitsPerTable = Integer.parseInt(args[++pos]);
+			else if(args[pos].equals("--recall") && pos + 1 < args.length)
+				numQueries = Integer.parseInt(args[++pos]);
+			else if(args[pos].equals("--k") && pos + 1 < args.length)
+				k = Integer.parseInt(args[++pos]);
+			else
+				break;
+			pos++;
+		}
+		
+		if(args.length - pos == 4 && numThreads > 0 && numQueries >= 0 && k > 0){
+			SemModel semModel = new SemModel(args[pos], false);
+			SimMeasure simMeasure = SimMeasure.getType(args[pos + 1]);
+			if(simMeasure == null)
+				throw new RuntimeException("SimMeasureType is null");
+			int frequencyLimit = Integer.parseInt(args[pos + 2]);
+			String outputPath = args[pos + 3];
+			
+			VectorSpace vectorSpace = VectorSpace.load(semModel, args[pos], VectorSpace.WEIGHT_PMI_LIM, true);
+			if(vectorSpace.getMatrix() == null)
+				vectorSpace.buildMatrix();
+			
+			LinkedHashSet<String> candidateWords = new LinkedHashSet<String>();
+			for(String s : semModel.getNodeIndex().getIdMap().keySet()){
+				if(semModel.getNodeCount(s) >= frequencyLimit){
+					candidateWords.add(s);
+				}
+			}
+			
+			long startTime = System.currentTimeMillis();
+			LshIndex lshIndex = new LshIndex(vectorSpace, candidateWords, type, numTables, bitsPerTable, 1L, numThreads);
+			lshIndex.save(outputPath);
+			System.out.println("Indexed " + candidateWords.size() + " candidates in " + (System.currentTimeMillis() - startTime) + " ms");
+			
+			if(numQueries > 0){
+				lshIndex = new LshIndex(outputPath);
+				SimFinder simFinder = new SimFinder(vectorSpace);
+				CandidateIndex candidateIndex = simFinder.getCandidateIndex(candidateWords);
+				List<String> queries = new ArrayList<String>(candidateWords);
+				Collections.shuffle(queries, new Random(1));
+				queries = queries.subList(0, Math.min(numQueries, queries.size()));
+				
+				startTime = System.currentTimeMillis();
+				for(String query : queries)
+					simFinder.getTopScores(query, candidateIndex, simMeasure, false, k);
+				System.out.println("exact\t" + (System.currentTimeMillis() - startTime) + " ms");
+				for(int numProbes = 1; numProbes < 2 * numTables; numProbes *= 2){
+					numProbes = Math.min(numProbes, numTables);
+					startTime = System.currentTimeMillis();
+					for(String query : queries)
+						simFinder.getApproximateTopScores(query, lshIndex, simMeasure, false, k, numProbes);
+					long time = System.currentTimeMillis() - startTime;
+					double recall = simFinder.getRecall(queries, candidateIndex, lshIndex, simMeasure, false, k, numProbes);
+					System.out.println(numProbes + " tables\t" + time + " ms\trecall@" + k + " " + recall);
+				}
+			}
+		}
+		else {
+			System.out.println("BuildLshIndex [--threads N] [--tables N] [--bits N] [--minhash] [--recall N] [--k N] <modelpath> <similaritytype> <frequencylimit> <outputpath>");
+		}
+	}
+}
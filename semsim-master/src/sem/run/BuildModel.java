@@ -1,17 +1,208 @@
 package sem.run;
 
-import sem.graph.Graph;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import sem.graphreader.GraphReader;
 import sem.graphreader.GraphReaderType;
+import sem.model.ExternalModelBuilder;
+import sem.model.PrintProgressListener;
+import sem.model.ProgressListener;
 import sem.model.SemModel;
+import sem.util.FileReader;
 
 /**
  * Builds a SemModel
- *
+ * <p>With --threads N, the input files are split into N shards that are read in parallel. Every shard is built into its own partial model, and the partial models are merged in the order of the shards.
+ * The shards are contiguous ranges of the sorted file list, so the result is the same as when reading all the files with a single thread.
+ * <p>With --progress N, the speed of the build is printed after every N graphs.
+ * <p>With --memory MB, the model is built on disk with ExternalModelBuilder, and only MB megabytes are used for buffering the edges. This allows building models that do not fit into memory.
+ * <p>The list of corpus files is saved next to the model. With --append, an existing model is loaded from the output path, only the files that are not in its list are read, and they are merged into the model.
  */
 public class BuildModel {
+	private static String fileListName = "_files.txt";
+		
+	/**
+	 * Builds a partial model from a list of input files.
+	 */
+	private static class ShardBuilder implements Callable<SemModel>{
+		private GraphReaderType graphReaderType;
+		private List<File> files;
+		private ProgressListener progressListener;
+		private int progressInterval;
+		private boolean keepLoc;
+		
+		public ShardBuilder(GraphReaderType graphReaderType, List<File> files, ProgressListener progressListener, int progressInterval, boolean keepLoc){
+			this.graphReaderType = graphReaderType;
+			this.files = files;
+			this.progressListener = progressListener;
+			this.progressInterval = progressInterval;
+			this.keepLoc = keepLoc;
+		}
+		
+		@Override
+		public SemModel call() throws Exception {
+			SemModel semModel = new SemModel(keepLoc);
+			semModel.setProgressListener(progressListener, progressInterval);
+			for(File file : files){
+				GraphReader reader = graphReaderType.makeGraphReader(file.getPath());
+				while(reader.hasNext())
+					semModel.add(reader.next());
+				reader.close();
+			}
+			return semModel;
+		}
+	}
+	
+	/**
+	 * Split the files into contiguous shards of roughly equal size in bytes.
+	 * @param files Input files, in the order they should be read
+	 * @param numShards Number of shards
+	 * @return List of shards. It can be shorter than numShards if there are only a few files.
+	 */
+	public static List<List<File>> shard(List<File> files, int numShards){
+		long totalSize = 0;
+		for(File file : files)
+			totalSize += file.length();
+		
+		List<List<File>> shards = new ArrayList<List<File>>();
+		List<File> shard = new ArrayList<File>();
+		long size = 0;
+		for(File file : files){
+			shard.add(file);
+			size += file.length();
+			// Close the shard once it has reached its share of the total size
+			if(shards.size() < numShards - 1 && size * numShards >= totalSize * (shards.size() + 1)){
+				shards.add(shard);
+				shard = new ArrayList<File>();
+			}
+		}
+		if(shard.size() > 0)
+			shards.add(shard);
+		return shards;
+	}
+	
+	/**
+	 * Build a model from a list of input files. With several threads, the files are split into shards that are read in parallel, and the partial models are merged in the order of the shards.
+	 * @param graphReaderType Type of the input files
+	 * @param files Input files, in the order they should be read
+	 * @param numThreads Number of threads
+	 * @param progressInterval Print the progress of every shard after this many graphs, or 0 to disable it.
+	 * @param keepLoc Keep the sentence locations of every word, for example when the model is merged into a model with locations.
+	 * @return The model
+	 */
+	public static SemModel build(GraphReaderType graphReaderType, List<File> files, int numThreads, int progressInterval, boolean keepLoc) throws Exception{
+		if(numThreads <= 1)
+			return new ShardBuilder(graphReaderType, files, (progressInterval > 0 ? new PrintProgressListener() : null), progressInterval, keepLoc).call();
+		
+		List<List<File>> shards = shard(files, numThreads);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try{
+			List<Future<SemModel>> partialModels = new ArrayList<Future<SemModel>>();
+			for(List<File> shard : shards){
+				ProgressListener listener = null;
+				if(progressInterval > 0)
+					listener = new PrintProgressListener(System.out, "shard " + partialModels.size() + ": ");
+				partialModels.add(executor.submit(new ShardBuilder(graphReaderType, shard, listener, progressInterval, keepLoc)));
+			}
+			
+			SemModel semModel = new SemModel(keepLoc);
+			for(Future<SemModel> partialModel : partialModels)
+				semModel.merge(partialModel.get());
+			return semModel;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Read the list of corpus files that have already been added to a model.
+	 * @param outputPath Path prefix of the model files
+	 * @return Set of canonical file paths, empty if the model has no list.
+	 */
+	public static HashSet<String> loadFileList(String outputPath) throws IOException{
+		HashSet<String> fileList = new HashSet<String>();
+		File file = new File(outputPath + fileListName);
+		if(file.exists()){
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			String line;
+			while((line = in.readLine()) != null)
+				if(line.length() > 0)
+					fileList.add(line);
+			in.close();
+		}
+		return fileList;
+	}
+	
+	/**
+	 * Add corpus files to the list that is stored next to the model.
+	 * @param outputPath Path prefix of the model files
+	 * @param files Files that were added to the model
+	 * @param append Append to the existing list instead of replacing it
+	 */
+	public static void saveFileList(String outputPath, List<File> files, boolean append) throws IOException{
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + fileListName, append), "UTF-8"));
+		for(File file : files)
+			out.write(file.getCanonicalPath() + "\n");
+		out.close();
+	}
+	
+	/**
+	 * Build a model on disk, using a limited amount of memory.
+	 * @param graphReaderType Type of the input files
+	 * @param files Input files, in the order they should be read
+	 * @param outputPath Path prefix of the model files
+	 * @param memoryBudget Memory used for buffering the edges, in bytes
+	 */
+	public static void buildExternal(GraphReaderType graphReaderType, List<File> files, String outputPath, long memoryBudget) throws Exception{
+		File tempDir = new File(outputPath).getAbsoluteFile().getParentFile();
+		ExternalModelBuilder builder = new ExternalModelBuilder(memoryBudget, tempDir);
+		for(File file : files){
+			GraphReader reader = graphReaderType.makeGraphReader(file.getPath());
+			while(reader.hasNext())
+				builder.add(reader.next());
+			reader.close();
+		}
+		builder.save(outputPath);
+	}
+	
 	public static void main(String[] args) {
-		if(args.length == 3){
+		int numThreads = 1, progressInterval = 0;
+		long memoryBudget = 0;
+		boolean append = false;
+		int pos = 0;
+		while(pos < args.length && args[pos].startsWith("--")){
+			if(args[pos].equals("--append"))
+				append = true;
+			else if(args[pos].equals("--threads") && pos + 1 < args.length)
+				numThreads = Integer.parseInt(args[++pos]);
+			else if(args[pos].equals("--progress") && pos + 1 < args.length)
+				progressInterval = Integer.parseInt(args[++pos]);
+			else if(args[pos].equals("--memory") && pos + 1 < args.length)
+				memoryBudget = Long.parseLong(args[++pos]) << 20;
+			else
+				break;
+			pos++;
+		}
+		String[] temp = new String[args.length - pos];
+		System.arraycopy(args, pos, temp, 0, temp.length);
+		args = temp;
+		
+		if(args.length == 3 && numThreads > 0 && progressInterval >= 0 && memoryBudget >= 0 && !(append && memoryBudget > 0)){
 			try{
 				GraphReaderType graphReaderType = GraphReaderType.getType(args[0]);
 				String corpusPath = args[1];
@@ -19,27 +210,44 @@ public class BuildModel {
 				
 				if(graphReaderType == null)
 					throw new RuntimeException("Invalid corpus type");
-				GraphReader reader = graphReaderType.makeGraphReader(corpusPath);
 				
-				// Creating a new empty model
-				SemModel semModel = new SemModel(false);
-
-				// Adding all the graphs to the model
-				while(reader.hasNext()){
-					Graph graph = reader.next();
-					semModel.add(graph);
+				List<File> files = FileReader.listFileRec(new File(corpusPath));
+				SemModel semModel;
+				if(memoryBudget > 0){
+					buildExternal(graphReaderType, files, outputPath, memoryBudget);
+					saveFileList(outputPath, files, false);
+				}
+				else if(append && SemModel.exists(outputPath)){
+					// Only the files that are not yet in the model are read
+					HashSet<String> fileList = loadFileList(outputPath);
+					List<File> newFiles = new ArrayList<File>();
+					for(File file : files)
+						if(!fileList.contains(file.getCanonicalPath()))
+							newFiles.add(file);
+					System.out.println("Adding " + newFiles.size() + " new files out of " + files.size());
+					if(newFiles.isEmpty())
+						return;
+					
+					// The new files are built with locations if the model has them, so that they can be merged
+					boolean keepLoc = SemModel.hasLocations(outputPath);
+					semModel = new SemModel(outputPath, keepLoc);
+					semModel.merge(build(graphReaderType, newFiles, numThreads, progressInterval, keepLoc));
+					semModel.save(outputPath);
+					saveFileList(outputPath, newFiles, true);
+				}
+				else {
+					semModel = build(graphReaderType, files, numThreads, progressInterval, false);
+					semModel.save(outputPath);
+					saveFileList(outputPath, files, false);
 				}
-				reader.close();
-				
-				semModel.save(outputPath);
 				
 			} catch(Exception e){
 				throw new RuntimeException(e);
 			}
 		}
 		else {
-			System.out.println("BuildModel <corpustype> <corpuspath> <outputpath>");
+			System.out.println("BuildModel [--threads N] [--progress N] [--append | --memory MB] <corpustype> <corpuspath> <outputpath>");
 		}
 	}
-
+	
 }
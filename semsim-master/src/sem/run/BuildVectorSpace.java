@@ -0,0 +1,38 @@
+package sem.run;
+
+import sem.model.SemModel;
+import sem.model.VectorSpace;
+
+/**
+ * Computes the weighted vectors of a model and saves them next to the model files.
+ * MostSimilar, Similarity, BuildLshIndex, ExpansionFinder and HyponymGeneration open the saved vectors instead of making the tensor symmetric and computing the vectors at startup.
+ * <p>The weight scheme is given with --weight, using the numbers of the VectorSpace.WEIGHT_* constants. The tools use WEIGHT_PMI_LIM, which is the default.
+ */
+public class BuildVectorSpace {
+	public static void main(String[] args) {
+		int weightScheme = VectorSpace.WEIGHT_PMI_LIM;
+		int pos = 0;
+		while(pos < args.length && args[pos].startsWith("--")){
+			if(args[pos].equals("--weight") && pos + 1 < args.length)
+				weightScheme = Integer.parseInt(args[++pos]);
+			else
+				break;
+			pos++;
+		}
+		
+		if(args.length - pos == 1 && weightScheme >= VectorSpace.WEIGHT_BINARY && weightScheme <= VectorSpace.WEIGHT_PMI_LIM){
+			String modelPath = args[pos];
+			long startTime = System.currentTimeMillis();
+			SemModel semModel = new SemModel(modelPath, false);
+			semModel.makeTensorSymmetric();
+			semModel.freeze();
+			VectorSpace vectorSpace = new VectorSpace(semModel, weightScheme, false);
+			vectorSpace.buildMatrix();
+			vectorSpace.save(modelPath + VectorSpace.vectorsBinaryFileName);
+			System.out.println("Saved " + vectorSpace.getMatrix().getNumEntries() + " entries in " + (System.currentTimeMillis() - startTime) + " ms");
+		}
+		else {
+			System.out.println("BuildVectorSpace [--weight N] <modelpath>");
+		}
+	}
+}
@@ -8,15 +8,39 @@ import java.util.Map.Entry;
 
 import sem.model.SemModel;
 import sem.model.VectorSpace;
+import sem.sim.CandidateIndex;
+import sem.sim.LshIndex;
 import sem.sim.SimFinder;
 import sem.sim.SimMeasure;
-import sem.util.Tools;
 
 /**
  * Given a word, find most similar words.
+ * <p>With --lsh, the search is approximate and only looks at the candidates found by an index made with BuildLshIndex. --probes sets the number of its hash tables that are used.
  */
 public class MostSimilar {
+	private static LinkedHashMap<String,Double> getTopScores(SimFinder simFinder, String word, CandidateIndex candidateIndex, LshIndex lshIndex, SimMeasure simMeasure, int resultLimit, int numProbes){
+		if(lshIndex != null)
+			return simFinder.getApproximateTopScores(word, lshIndex, simMeasure, false, resultLimit, numProbes);
+		return simFinder.getTopScores(word, candidateIndex, simMeasure, false, resultLimit);
+	}
+	
 	public static void main(String[] args) {
+		String lshPath = null;
+		int numProbes = Integer.MAX_VALUE;
+		int pos = 0;
+		while(pos < args.length && args[pos].startsWith("--")){
+			if(args[pos].equals("--lsh") && pos + 1 < args.length)
+				lshPath = args[++pos];
+			else if(args[pos].equals("--probes") && pos + 1 < args.length)
+				numProbes = Integer.parseInt(args[++pos]);
+			else
+				break;
+			pos++;
+		}
+		String[] temp = new String[args.length - pos];
+		System.arraycopy(args, pos, temp, 0, temp.length);
+		args = temp;
+		
 		if(args.length == 4 || args.length == 5){
 			SemModel semModel = new SemModel(args[0], false);
 			if(semModel == null)
@@ -29,8 +53,7 @@ public class MostSimilar {
 			int frequencyLimit = Integer.parseInt(args[2]);
 			int resultLimit = Integer.parseInt(args[3]);
 			
-			semModel.makeTensorSymmetric();
-			VectorSpace vectorSpace = new VectorSpace(semModel, VectorSpace.WEIGHT_PMI_LIM, true);
+			VectorSpace vectorSpace = VectorSpace.load(semModel, args[0], VectorSpace.WEIGHT_PMI_LIM, true);
 			SimFinder simFinder = new SimFinder(vectorSpace);
 			
 			LinkedHashSet<String> candidateWords = new LinkedHashSet<String>();
@@ -40,14 +63,17 @@ public class MostSimilar {
 				}
 			}
 			
+			CandidateIndex candidateIndex = null;
+			LshIndex lshIndex = null;
+			if(lshPath != null)
+				lshIndex = new LshIndex(lshPath);
+			else
+				candidateIndex = simFinder.getCandidateIndex(candidateWords);
+			
 			if(args.length == 5){
-				LinkedHashMap<String,Double> results = simFinder.getScores(args[4], candidateWords, simMeasure, false);
-				int count = 0;
-				for(Entry<String,Double> e : Tools.sort(results, !simMeasure.isDistance()).entrySet()){
+				LinkedHashMap<String,Double> results = getTopScores(simFinder, args[4], candidateIndex, lshIndex, simMeasure, resultLimit, numProbes);
+				for(Entry<String,Double> e : results.entrySet())
 					System.out.println(e.getKey() + "\t" + e.getValue());
-					if(++count >= resultLimit)
-						break;
-				}
 			}
 			else {
 				try{
@@ -56,13 +82,9 @@ public class MostSimilar {
 						String line = br.readLine();
 						if(line.equalsIgnoreCase("q") || line.equalsIgnoreCase("quit") || line.equalsIgnoreCase("exit"))
 							break;
-						LinkedHashMap<String,Double> results = simFinder.getScores(line.trim(), candidateWords, simMeasure, false);
-						int count = 0;
-						for(Entry<String,Double> e : Tools.sort(results, !simMeasure.isDistance()).entrySet()){
+						LinkedHashMap<String,Double> results = getTopScores(simFinder, line.trim(), candidateIndex, lshIndex, simMeasure, resultLimit, numProbes);
+						for(Entry<String,Double> e : results.entrySet())
 							System.out.println(e.getKey() + "\t" + e.getValue());
-							if(++count >= resultLimit)
-								break;
-						}
 					}
 				} catch(Exception e){
 					throw new RuntimeException(e);
@@ -70,7 +92,7 @@ public class MostSimilar {
 			}
 		}
 		else {
-			System.out.println("MostSimilar <modelpath> <similaritytype> <frequencylimit> <resultlimit> [word1]");
+			System.out.println("MostSimilar [--lsh indexpath] [--probes N] <modelpath> <similaritytype> <frequencylimit> <resultlimit> [word1]");
 		}
 	}
 
@@ -23,8 +23,7 @@ public class Similarity {
 			if(simMeasure == null)
 				throw new RuntimeException("SimMeasureType is null");
 			
-			semModel.makeTensorSymmetric();
-			VectorSpace vectorSpace = new VectorSpace(semModel, VectorSpace.WEIGHT_PMI_LIM, true);
+			VectorSpace vectorSpace = VectorSpace.load(semModel, args[0], VectorSpace.WEIGHT_PMI_LIM, true);
 			SimFinder simFinder = new SimFinder(vectorSpace);
 			
 			if(args.length == 4){
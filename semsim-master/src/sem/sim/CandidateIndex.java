@@ -0,0 +1,507 @@
+package sem.sim;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
+
+import sem.model.VectorSpace;
+import sem.util.SparseVector;
+
+/**
+ * An inverted index over a set of candidate vectors, for scoring one vector against all the candidates.
+ * For every feature, it stores the list of candidates that contain it. A pass over the postings of the features of the main vector finds the candidates that share at least one feature with it.
+ * <p>Only these candidates are scored with the similarity function. For all the others, most measures have a fixed value (usually 0.0), or a value that only depends on sums and maximums which are precomputed for every candidate.
+ * Measures where this is not possible (pearson, spearman, kendallsTau, jsDivergence, manhattan, euclidean) are calculated for every candidate.
+ * The scores are exactly the same as when calculating every pair with SimMeasure.
+ * <p>getTopScores() finds only the best k candidates. For cosine, lin, the Weeds measures and the set measures, an upper bound of the score of every overlapping candidate is accumulated from the postings of the main vector's features.
+ * The candidates are then scored in the order of their bounds, and the search stops when no remaining bound can reach the k-th best score.
+ * <p>The index is read-only after construction, and can be shared by several threads.
+ */
+public class CandidateIndex {
+	private static final double ALPHA = 0.99;
+	
+	/**
+	 * Margin added to the upper bounds, to cover the rounding errors of accumulating them in a different order than the similarity measures do.
+	 * All the measures with bounds are between -1 and 1, where the rounding errors are far smaller.
+	 */
+	private static final double BOUND_MARGIN = 1e-8;
+	
+	private String[] labels;
+	private SparseVector[] vectors;
+	private int[] postingPtr;
+	private int[] postings;
+	private double[] postingWeights;
+	
+	private boolean[] nonNegative;
+	private double[] maxAbs;
+	private double[] alphaSkewSums;
+	private double[] sumSquares;
+	private double[] positiveSums;
+	private int[] nonZeroCounts;
+	
+	/**
+	 * Build the index.
+	 * @param vectorSpace The vectors are taken from here
+	 * @param candidates Labels of the candidates
+	 */
+	public CandidateIndex(VectorSpace vectorSpace, Collection<String> candidates){
+		int n = candidates.size();
+		this.labels = new String[n];
+		this.vectors = new SparseVector[n];
+		this.nonNegative = new boolean[n];
+		this.maxAbs = new double[n];
+		this.alphaSkewSums = new double[n];
+		this.sumSquares = new double[n];
+		this.positiveSums = new double[n];
+		this.nonZeroCounts = new int[n];
+		
+		int c = 0, maxId = -1;
+		long numPostings = 0;
+		for(String label : candidates){
+			labels[c] = label;
+			vectors[c] = vectorSpace.getSparseVector(label);
+			nonNegative[c] = isNonNegative(vectors[c]);
+			maxAbs[c] = getMaxAbs(vectors[c]);
+			alphaSkewSums[c] = getAlphaSkewSum(vectors[c]);
+			sumSquares[c] = getSumSquares(vectors[c]);
+			positiveSums[c] = getPositiveSum(vectors[c]);
+			nonZeroCounts[c] = getNonZeroCount(vectors[c]);
+			if(vectors[c].size() > 0)
+				maxId = Math.max(maxId, vectors[c].getId(vectors[c].size() - 1));
+			numPostings += vectors[c].size();
+			c++;
+		}
+		if(numPostings >= Integer.MAX_VALUE)
+			throw new RuntimeException("Too many features in the candidate vectors");
+		
+		// Count the candidates for every feature, then fill in the lists in the order of the candidates
+		this.postingPtr = new int[maxId + 2];
+		for(SparseVector vector : vectors)
+			for(int i = 0; i < vector.size(); i++)
+				postingPtr[vector.getId(i) + 1]++;
+		for(int id = 0; id <= maxId; id++)
+			postingPtr[id + 1] += postingPtr[id];
+		this.postings = new int[(int)numPostings];
+		this.postingWeights = new double[(int)numPostings];
+		int[] cursor = new int[maxId + 1];
+		System.arraycopy(postingPtr, 0, cursor, 0, maxId + 1);
+		int p;
+		for(c = 0; c < n; c++){
+			for(int i = 0; i < vectors[c].size(); i++){
+				p = cursor[vectors[c].getId(i)]++;
+				postings[p] = c;
+				postingWeights[p] = vectors[c].getWeight(i);
+			}
+		}
+	}
+	
+	public int size(){
+		return this.labels.length;
+	}
+	
+	public String getLabel(int candidate){
+		return this.labels[candidate];
+	}
+	
+	public SparseVector getVector(int candidate){
+		return this.vectors[candidate];
+	}
+	
+	/**
+	 * Find the candidates that share at least one feature with the vector.
+	 * @param vector The vector
+	 * @return For every candidate, whether it shares a feature.
+	 */
+	public boolean[] getOverlapping(SparseVector vector){
+		boolean[] overlapping = new boolean[labels.length];
+		int id;
+		for(int i = 0; i < vector.size(); i++){
+			id = vector.getId(i);
+			if(id < 0 || id >= postingPtr.length - 1)
+				continue;
+			for(int p = postingPtr[id], end = postingPtr[id + 1]; p < end; p++)
+				overlapping[postings[p]] = true;
+		}
+		return overlapping;
+	}
+	
+	/**
+	 * Score the main vector against all the candidates.
+	 * @param mainVector The main vector
+	 * @param simMeasure Similarity measure
+	 * @param findHypernyms Value FALSE will put the main vector in the second argument position of the similarity measure, and TRUE in the first position.
+	 * @return The scores, in the order of the candidates.
+	 */
+	public double[] getScores(SparseVector mainVector, SimMeasure simMeasure, boolean findHypernyms){
+		double[] scores = new double[labels.length];
+		getScores(mainVector, getOverlapping(mainVector), simMeasure, findHypernyms, 0, labels.length, scores);
+		return scores;
+	}
+	
+	/**
+	 * Score the main vector against a range of the candidates.
+	 * @param mainVector The main vector
+	 * @param overlapping The result of getOverlapping() for the main vector
+	 * @param simMeasure Similarity measure
+	 * @param findHypernyms Value FALSE will put the main vector in the second argument position of the similarity measure, and TRUE in the first position.
+	 * @param start First candidate of the range
+	 * @param end End of the range, exclusive
+	 * @param scores Filled with the scores of the range, starting from index 0
+	 */
+	public void getScores(SparseVector mainVector, boolean[] overlapping, SimMeasure simMeasure, boolean findHypernyms, int start, int end, double[] scores){
+		boolean mainNonNegative = isNonNegative(mainVector);
+		double mainMaxAbs = getMaxAbs(mainVector);
+		double mainAlphaSkewSum = getAlphaSkewSum(mainVector);
+		
+		double score;
+		for(int c = start; c < end; c++){
+			score = Double.NaN;
+			if(!overlapping[c])
+				score = getZeroOverlapScore(simMeasure, c, mainNonNegative, mainMaxAbs, mainAlphaSkewSum, findHypernyms);
+			if(Double.isNaN(score))
+				score = score(mainVector, c, simMeasure, findHypernyms);
+			scores[c - start] = score;
+		}
+	}
+	
+	/**
+	 * Check whether getTopScores() can use upper bounds for the measure. For the other measures, all the candidates are scored.
+	 */
+	public static boolean hasUpperBounds(SimMeasure simMeasure){
+		switch(simMeasure){
+		case COSINE:
+		case LIN:
+		case WEEDS_PREC:
+		case WEEDS_REC:
+		case WEEDS_F:
+		case BAL_PREC:
+		case LIN_D:
+		case JACCARD_SET:
+		case DICE_SET:
+		case OVERLAP_SET:
+		case COSINE_SET:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Find the k best candidates for the main vector.
+	 * The result is the same as the first k entries of Tools.sort() over the scores of all the candidates: descending for similarities and ascending for distances, with ties in the order of the candidates.
+	 * @param mainVector The main vector
+	 * @param simMeasure Similarity measure
+	 * @param findHypernyms Value FALSE will put the main vector in the second argument position of the similarity measure, and TRUE in the first position.
+	 * @param k Number of candidates to return
+	 * @return The best candidates and their scores, best first.
+	 */
+	public LinkedHashMap<String,Double> getTopScores(SparseVector mainVector, SimMeasure simMeasure, boolean findHypernyms, int k){
+		if(k <= 0 || !hasUpperBounds(simMeasure))
+			return getTopScores(k > 0 ? getScores(mainVector, simMeasure, findHypernyms) : new double[labels.length], simMeasure, k);
+		
+		boolean desc = !simMeasure.isDistance();
+		double[] scores = new double[labels.length];
+		PriorityQueue<Integer> heap = createHeap(scores, desc, k);
+		boolean[] overlapping = new boolean[labels.length];
+		final double[] bounds = getUpperBounds(mainVector, simMeasure, findHypernyms, overlapping);
+			
+		// All the measures with bounds give 0.0 without shared features, so the first k of these candidates are enough
+		int count = 0, zeroCount = 0;
+		Integer[] sorted = new Integer[labels.length];
+		for(int c = 0; c < labels.length; c++){
+			if(overlapping[c])
+				sorted[count++] = c;
+			else if(zeroCount++ < k)
+				offer(heap, scores, desc, k, c, 0.0);
+		}
+		sorted = Arrays.copyOf(sorted, count);
+		Arrays.sort(sorted, new Comparator<Integer>(){
+			public int compare(Integer c1, Integer c2){
+				return Double.compare(bounds[c2], bounds[c1]);
+			}
+		});
+			
+		for(int c : sorted){
+			if(heap.size() >= k && bounds[c] < scores[heap.peek()])
+				break;
+			offer(heap, scores, desc, k, c, score(mainVector, c, simMeasure, findHypernyms));
+		}
+		return getResult(heap, scores, desc);
+	}
+		
+	/**
+	 * Find the k best candidates from scores that have already been calculated, ranked the same way as in getTopScores().
+	 * @param allScores The scores of all the candidates, in the order of the candidates
+	 * @param simMeasure Similarity measure that gave the scores
+	 * @param k Number of candidates to return
+	 * @return The best candidates and their scores, best first.
+	 */
+	public LinkedHashMap<String,Double> getTopScores(double[] allScores, SimMeasure simMeasure, int k){
+		boolean desc = !simMeasure.isDistance();
+		double[] scores = new double[labels.length];
+		PriorityQueue<Integer> heap = createHeap(scores, desc, k);
+		for(int c = 0; c < labels.length && k > 0; c++)
+			offer(heap, scores, desc, k, c, allScores[c]);
+		return getResult(heap, scores, desc);
+	}
+	
+	/**
+	 * Create a queue for the k best candidates, where the worst of them is at the head.
+	 */
+	private static PriorityQueue<Integer> createHeap(final double[] scores, final boolean desc, int k){
+		return new PriorityQueue<Integer>(Math.max(1, k + 1), new Comparator<Integer>(){
+			public int compare(Integer c1, Integer c2){
+				return -compareRank(scores, desc, c1, c2);
+			}
+		});
+	}
+	
+	/**
+	 * Sort the candidates in the queue, best first.
+	 */
+	private LinkedHashMap<String,Double> getResult(PriorityQueue<Integer> heap, final double[] scores, final boolean desc){
+		Integer[] best = heap.toArray(new Integer[heap.size()]);
+		Arrays.sort(best, new Comparator<Integer>(){
+			public int compare(Integer c1, Integer c2){
+				return compareRank(scores, desc, c1, c2);
+			}
+		});
+		LinkedHashMap<String,Double> result = new LinkedHashMap<String,Double>();
+		for(int c : best)
+			result.put(labels[c], scores[c]);
+		return result;
+	}
+	
+	/**
+	 * Compare two scored candidates in the order of Tools.sort().
+	 * @return Negative if c1 comes first.
+	 */
+	static int compareRank(double[] scores, boolean desc, int c1, int c2){
+		if(scores[c1] > scores[c2])
+			return desc ? -1 : 1;
+		else if(scores[c1] < scores[c2])
+			return desc ? 1 : -1;
+		return c1 < c2 ? -1 : (c1 > c2 ? 1 : 0);
+	}
+	
+	/**
+	 * Add a scored candidate to the queue of the k best candidates, if it belongs there.
+	 * @return True if the candidate was added.
+	 */
+	private static boolean offer(PriorityQueue<Integer> heap, double[] scores, boolean desc, int k, int c, double score){
+		scores[c] = score;
+		if(heap.size() < k){
+			heap.add(c);
+			return true;
+		}
+		if(compareRank(scores, desc, c, heap.peek()) < 0){
+			heap.poll();
+			heap.add(c);
+			return true;
+		}
+		return false;
+	}
+	
+	private double score(SparseVector mainVector, int c, SimMeasure simMeasure, boolean findHypernyms){
+		if(!findHypernyms)
+			return simMeasure.sim(vectors[c], mainVector);
+		return simMeasure.sim(mainVector, vectors[c]);
+	}
+	
+	/**
+	 * Accumulate the upper bounds of the scores from the postings of the main vector's features.
+	 * The shared part of every score is summed over the postings, and the rest comes from the precomputed sums and counts of the vectors.
+	 * @param mainVector The main vector
+	 * @param simMeasure A measure for which hasUpperBounds() is true
+	 * @param findHypernyms Direction of the measure
+	 * @param overlapping Filled with the candidates that share at least one feature with the main vector
+	 * @return The bounds by candidate. Only the overlapping candidates have bounds.
+	 */
+	private double[] getUpperBounds(SparseVector mainVector, SimMeasure simMeasure, boolean findHypernyms, boolean[] overlapping){
+		// sharedX and sharedY are sums over the shared features, where x is the weight in the first argument of the measure and y in the second
+		double[] sharedX = new double[labels.length];
+		double[] sharedY = new double[labels.length];
+		int id, c;
+		double mainWeight, x, y;
+		for(int i = 0; i < mainVector.size(); i++){
+			id = mainVector.getId(i);
+			if(id < 0 || id >= postingPtr.length - 1)
+				continue;
+			mainWeight = mainVector.getWeight(i);
+			for(int p = postingPtr[id], end = postingPtr[id + 1]; p < end; p++){
+				c = postings[p];
+				overlapping[c] = true;
+				x = findHypernyms ? mainWeight : postingWeights[p];
+				y = findHypernyms ? postingWeights[p] : mainWeight;
+				if(simMeasure == SimMeasure.COSINE)
+					sharedX[c] += x * y;
+				else if(simMeasure == SimMeasure.JACCARD_SET || simMeasure == SimMeasure.DICE_SET || simMeasure == SimMeasure.OVERLAP_SET || simMeasure == SimMeasure.COSINE_SET)
+					sharedX[c]++;
+				else if(x > 0.0 && y > 0.0){
+					sharedX[c] += x;
+					sharedY[c] += y;
+				}
+			}
+		}
+		
+		double mainSumSquares = getSumSquares(mainVector);
+		double mainPositiveSum = getPositiveSum(mainVector);
+		double mainNonZeroCount = getNonZeroCount(mainVector);
+		double[] bounds = new double[labels.length];
+		double positiveX, positiveY, countX, countY, lin, prec, rec, bound;
+		for(c = 0; c < labels.length; c++){
+			if(!overlapping[c])
+				continue;
+			positiveX = findHypernyms ? mainPositiveSum : positiveSums[c];
+			positiveY = findHypernyms ? positiveSums[c] : mainPositiveSum;
+			countX = findHypernyms ? mainNonZeroCount : nonZeroCounts[c];
+			countY = findHypernyms ? nonZeroCounts[c] : mainNonZeroCount;
+			lin = (positiveX + positiveY == 0.0) ? 0.0 : (sharedX[c] + sharedY[c]) / (positiveX + positiveY);
+			prec = (positiveX == 0.0) ? 0.0 : sharedX[c] / positiveX;
+			rec = (positiveY == 0.0) ? 0.0 : sharedY[c] / positiveY;
+			
+			switch(simMeasure){
+			case COSINE:
+				bound = (mainSumSquares == 0.0 || sumSquares[c] == 0.0) ? 0.0 : sharedX[c] / Math.sqrt(mainSumSquares * sumSquares[c]);
+				break;
+			case LIN:
+				bound = lin;
+				break;
+			case WEEDS_PREC:
+				bound = prec;
+				break;
+			case WEEDS_REC:
+				bound = rec;
+				break;
+			case WEEDS_F:
+				bound = (prec + rec == 0.0) ? 0.0 : 2 * prec * rec / (prec + rec);
+				break;
+			case BAL_PREC:
+				bound = Math.sqrt(lin * prec);
+				break;
+			case LIN_D:
+				bound = (positiveX + sharedY[c] == 0.0) ? 0.0 : (sharedX[c] + sharedY[c]) / (positiveX + sharedY[c]);
+				break;
+			// The shared count includes features that are zero in one of the vectors, so these are upper bounds
+			case JACCARD_SET:
+				bound = (Math.max(countX, countY) == 0.0) ? 0.0 : sharedX[c] / Math.max(countX, countY);
+				break;
+			case DICE_SET:
+				bound = (countX + countY == 0.0) ? 0.0 : 2 * sharedX[c] / (countX + countY);
+				break;
+			case OVERLAP_SET:
+				bound = (Math.min(countX, countY) == 0.0) ? 0.0 : sharedX[c] / Math.min(countX, countY);
+				break;
+			case COSINE_SET:
+				bound = (countX == 0.0 || countY == 0.0) ? 0.0 : sharedX[c] / Math.sqrt(countX * countY);
+				break;
+			default:
+				throw new RuntimeException("No upper bounds for similarity measure: " + simMeasure);
+			}
+			bounds[c] = bound + BOUND_MARGIN;
+		}
+		return bounds;
+	}
+	
+	/**
+	 * Get the score between the main vector and a candidate that have no features in common.
+	 * @return The score, or NaN if it cannot be found without calculating it.
+	 */
+	private double getZeroOverlapScore(SimMeasure simMeasure, int c, boolean mainNonNegative, double mainMaxAbs, double mainAlphaSkewSum, boolean findHypernyms){
+		switch(simMeasure){
+		case COSINE:
+		case JACCARD_SET:
+		case LIN:
+		case DICE_SET:
+		case OVERLAP_SET:
+		case COSINE_SET:
+		case WEEDS_PREC:
+		case WEEDS_REC:
+		case WEEDS_F:
+		case AP:
+		case AP_INC:
+		case BAL_AP_INC:
+		case LIN_D:
+		case BAL_PREC:
+		case KL_DIVERGENCE:
+		case KL_DIVERGENCE_R:
+		case WEIGHTED_COSINE:
+		case WEIGHTED_COSINE_2:
+			return 0.0;
+		case JACCARD_GEN:
+		case DICE_GEN:
+		case DICE_GEN_2:
+		case CLARKE_DE:
+			// 0.0 divided by a sum of the weights, which has the sign of the weights
+			if(mainNonNegative && nonNegative[c])
+				return 0.0;
+			return Double.NaN;
+		case CHEBYSHEV:
+			return Math.max(mainMaxAbs, maxAbs[c]);
+		case ALPHA_SKEW:
+			// Only the second vector contributes
+			return findHypernyms ? alphaSkewSums[c] : mainAlphaSkewSum;
+		case ALPHA_SKEW_R:
+			return findHypernyms ? mainAlphaSkewSum : alphaSkewSums[c];
+		default:
+			return Double.NaN;
+		}
+	}
+	
+	private static boolean isNonNegative(SparseVector vector){
+		for(int i = 0; i < vector.size(); i++)
+			if(!(vector.getWeight(i) >= 0.0))
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Largest absolute weight, found the same way as in SimMeasure.chebyshev().
+	 */
+	private static double getMaxAbs(SparseVector vector){
+		double max = 0.0;
+		for(int i = 0; i < vector.size(); i++)
+			if(Math.abs(vector.getWeight(i)) > max)
+				max = Math.abs(vector.getWeight(i));
+		return max;
+	}
+	
+	/**
+	 * The alpha skew divergence against a vector with no shared features, summed in the same order as in SimMeasure.alphaSkew().
+	 */
+	private static double getAlphaSkewSum(SparseVector vector){
+		double divergence = 0;
+		double value;
+		for(int k = 0; k < vector.size(); k++){
+			value = vector.getWeight(vector.getOrder(k));
+			if(value > 0.0)
+				divergence += value * Math.log(value/ ((1-ALPHA) * value));
+		}
+		return divergence;
+	}
+	
+	private static double getSumSquares(SparseVector vector){
+		double sum = 0.0;
+		for(int i = 0; i < vector.size(); i++)
+			sum += vector.getWeight(i) * vector.getWeight(i);
+		return sum;
+	}
+
+	private static double getPositiveSum(SparseVector vector){
+		double sum = 0.0;
+		for(int i = 0; i < vector.size(); i++)
+			if(vector.getWeight(i) > 0.0)
+				sum += vector.getWeight(i);
+		return sum;
+	}
+	
+	private static int getNonZeroCount(SparseVector vector){
+		int count = 0;
+		for(int i = 0; i < vector.size(); i++)
+			if(vector.getWeight(i) != 0.0)
+				count++;
+		return count;
+	}
+}
@@ -0,0 +1,394 @@
+package sem.sim;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import sem.model.VectorSpace;
+import sem.util.FeatureIndex;
+import sem.util.MappedFile;
+import sem.util.SparseVector;
+
+/**
+ * An approximate nearest-neighbour index over the vectors of candidate words, using locality-sensitive hashing.
+ * <p>Every candidate is hashed into a bucket in each of several tables. A query only scores the candidates that share a bucket with the main word in at least one table, using the exact similarity measure.
+ * Two hash families are available:
+ * <ul>
+ * <li>TYPE_SIMHASH: random hyperplanes over the weights (SimHash), for cosine and the other weighted measures.</li>
+ * <li>TYPE_MINHASH: MinHash over the nonzero features, for the set measures.</li>
+ * </ul>
+ * More bits per table make the buckets smaller and the queries faster, and more tables (or probing more of them at query time) give a higher recall.
+ * <p>The hashes are seeded from the edge and node IDs of the features, so an index stays valid for any VectorSpace over the same model.
+ * The index is built in parallel, and saved in a format that is memory-mapped when loaded.
+ * <pre>
+ * header  magic, version, type, numTables, bitsPerTable, numCandidates, seed
+ * tables  for every table: bucket keys [numCandidates] (ascending), candidates [numCandidates]
+ * labels  for every candidate: length, UTF-8 bytes
+ * </pre>
+ */
+public class LshIndex {
+	public static final int MAGIC = 0x4c534831;
+	public static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	
+	public static int TYPE_SIMHASH = 0;
+	public static int TYPE_MINHASH = 1;
+	
+	private int type;
+	private int numTables;
+	private int bitsPerTable;
+	private long seed;
+	private String[] labels;
+	
+	// Either the tables are in memory, or the index is mapped from a file
+	private int[][] keys;
+	private int[][] members;
+	private MappedFile mappedFile;
+	
+	/**
+	 * Computes the bucket keys of a range of candidates.
+	 */
+	private class SignatureTask implements Callable<Object>{
+		private VectorSpace vectorSpace;
+		private int start, end;
+		
+		public SignatureTask(VectorSpace vectorSpace, int start, int end){
+			this.vectorSpace = vectorSpace;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		public Object call() throws Exception {
+			for(int c = start; c < end; c++){
+				int[] bucketKeys = getBucketKeys(vectorSpace.getSparseVector(labels[c]), vectorSpace.getFeatureIndex(), numTables);
+				for(int t = 0; t < numTables; t++)
+					keys[t][c] = bucketKeys[t];
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Sorts the candidates of one table by their bucket keys.
+	 */
+	private class SortTask implements Callable<Object>{
+		private int table;
+		
+		public SortTask(int table){
+			this.table = table;
+		}
+		
+		@Override
+		public Object call() throws Exception {
+			int n = labels.length;
+			long[] sorted = new long[n];
+			for(int c = 0; c < n; c++)
+				sorted[c] = ((long)keys[table][c] << 32) | c;
+			Arrays.sort(sorted);
+			for(int i = 0; i < n; i++){
+				keys[table][i] = (int)(sorted[i] >> 32);
+				members[table][i] = (int)sorted[i];
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Build the index.
+	 * @param vectorSpace Vector space of the candidates
+	 * @param candidates Candidate words. Their order is kept, and decides between candidates with equal scores.
+	 * @param type TYPE_SIMHASH or TYPE_MINHASH
+	 * @param numTables Number of hash tables
+	 * @param bitsPerTable For SimHash, the number of hyperplanes per table (1 to 32). For MinHash, the number of hash functions per table.
+	 * @param seed Seed of the hash functions
+	 * @param numThreads Number of threads used for building
+	 */
+	public LshIndex(VectorSpace vectorSpace, Collection<String> candidates, int type, int numTables, int bitsPerTable, long seed, int numThreads){
+		if(type != TYPE_SIMHASH && type != TYPE_MINHASH)
+			throw new RuntimeException("Unknown LSH type: " + type);
+		if(numTables < 1 || bitsPerTable < 1 || (type == TYPE_SIMHASH && bitsPerTable > 32))
+			throw new RuntimeException("Invalid LSH parameters: " + numTables + " tables, " + bitsPerTable + " bits");
+		this.type = type;
+		this.numTables = numTables;
+		this.bitsPerTable = bitsPerTable;
+		this.seed = seed;
+		this.labels = candidates.toArray(new String[candidates.size()]);
+		this.keys = new int[numTables][labels.length];
+		this.members = new int[numTables][labels.length];
+		
+		numThreads = Math.max(1, numThreads);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try{
+			List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			int chunkSize = Math.max(1, (labels.length + 4 * numThreads - 1) / (4 * numThreads));
+			for(int start = 0; start < labels.length; start += chunkSize)
+				futures.add(executor.submit(new SignatureTask(vectorSpace, start, Math.min(labels.length, start + chunkSize))));
+			for(Future<Object> future : futures)
+				future.get();
+			
+			futures.clear();
+			for(int t = 0; t < numTables; t++)
+				futures.add(executor.submit(new SortTask(t)));
+			for(Future<Object> future : futures)
+				future.get();
+		} catch(Exception e){
+			throw new RuntimeException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Open a saved index. The tables are memory-mapped, and only the labels are read into the heap.
+	 * @param file Index file
+	 */
+	public LshIndex(String file){
+		this.mappedFile = new MappedFile(file);
+		mappedFile.checkHeader(MAGIC, VERSION);
+		this.type = mappedFile.getInt(8);
+		this.numTables = mappedFile.getInt(12);
+		this.bitsPerTable = mappedFile.getInt(16);
+		int n = mappedFile.getInt(20);
+		this.seed = mappedFile.getLong(24);
+		
+		this.labels = new String[n];
+		long position = HEADER_SIZE + 8L * numTables * n;
+		try{
+			int length;
+			for(int c = 0; c < n; c++){
+				length = mappedFile.getInt(position);
+				labels[c] = new String(mappedFile.getBytes(position + 4, length), "UTF-8");
+				position += 4 + length;
+			}
+		} catch(IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Save the index. It is written to a temporary file first, so it is safe to overwrite an index that is currently mapped.
+	 * @param file Output file
+	 */
+	public void save(String file){
+		try{
+			File tempFile = new File(file + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(type);
+			out.writeInt(numTables);
+			out.writeInt(bitsPerTable);
+			out.writeInt(labels.length);
+			out.writeLong(seed);
+			for(int t = 0; t < numTables; t++){
+				for(int i = 0; i < labels.length; i++)
+					out.writeInt(getKey(t, i));
+				for(int i = 0; i < labels.length; i++)
+					out.writeInt(getMember(t, i));
+			}
+			byte[] bytes;
+			for(String label : labels){
+				bytes = label.getBytes("UTF-8");
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			out.close();
+			
+			File target = new File(file);
+			if(target.exists() && !target.delete())
+				throw new RuntimeException("Unable to replace file: " + file);
+			if(!tempFile.renameTo(target))
+				throw new RuntimeException("Unable to rename " + tempFile + " to " + file);
+		} catch(IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public int getType(){
+		return this.type;
+	}
+	
+	public int getNumTables(){
+		return this.numTables;
+	}
+	
+	public int getBitsPerTable(){
+		return this.bitsPerTable;
+	}
+	
+	public int size(){
+		return labels.length;
+	}
+	
+	public String getLabel(int candidate){
+		return labels[candidate];
+	}
+	
+	private int getKey(int table, int i){
+		if(mappedFile != null)
+			return mappedFile.getInt(HEADER_SIZE + 8L * table * labels.length + 4L * i);
+		return keys[table][i];
+	}
+	
+	private int getMember(int table, int i){
+		if(mappedFile != null)
+			return mappedFile.getInt(HEADER_SIZE + 8L * table * labels.length + 4L * (labels.length + i));
+		return members[table][i];
+	}
+	
+	/**
+	 * Find the candidates that share a bucket with the vector.
+	 * @param vector The main vector
+	 * @param featureIndex Feature index of the vector space
+	 * @param numProbes Number of tables to look into, at most the number of tables. Fewer tables are faster, but find fewer of the true neighbours.
+	 * @return For every candidate, whether it was found.
+	 */
+	public boolean[] getCandidates(SparseVector vector, FeatureIndex featureIndex, int numProbes){
+		numProbes = Math.max(1, Math.min(numProbes, numTables));
+		int[] bucketKeys = getBucketKeys(vector, featureIndex, numProbes);
+		boolean[] found = new boolean[labels.length];
+		int low, high, middle;
+		for(int t = 0; t < numProbes; t++){
+			// Find the first entry of the bucket
+			low = 0;
+			high = labels.length;
+			while(low < high){
+				middle = (low + high) >>> 1;
+				if(getKey(t, middle) < bucketKeys[t])
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			for(int i = low; i < labels.length && getKey(t, i) == bucketKeys[t]; i++)
+				found[getMember(t, i)] = true;
+		}
+		return found;
+	}
+	
+	/**
+	 * Find approximately the k best candidates for the main word.
+	 * Only the candidates that share a bucket with the main word are scored. Their scores are exact, and they are ranked the same way as in CandidateIndex.getTopScores().
+	 * @param vectorSpace Vector space of the candidates
+	 * @param mainWord The main word
+	 * @param simMeasure Similarity measure
+	 * @param findHypernyms Value FALSE will put the main word in the second argument position of the similarity measure, and TRUE in the first position.
+	 * @param k Number of candidates to return
+	 * @param numProbes Number of tables to look into
+	 * @return The best candidates found and their scores, best first.
+	 */
+	public LinkedHashMap<String,Double> getTopScores(VectorSpace vectorSpace, String mainWord, SimMeasure simMeasure, boolean findHypernyms, int k, int numProbes){
+		SparseVector mainVector = vectorSpace.getSparseVector(mainWord);
+		boolean[] found = getCandidates(mainVector, vectorSpace.getFeatureIndex(), numProbes);
+		
+		final boolean desc = !simMeasure.isDistance();
+		final double[] scores = new double[labels.length];
+		PriorityQueue<Integer> heap = new PriorityQueue<Integer>(Math.max(1, k + 1), new Comparator<Integer>(){
+			public int compare(Integer c1, Integer c2){
+				return -CandidateIndex.compareRank(scores, desc, c1, c2);
+			}
+		});
+		SparseVector vector;
+		for(int c = 0; c < labels.length && k > 0; c++){
+			if(!found[c])
+				continue;
+			vector = vectorSpace.getSparseVector(labels[c]);
+			scores[c] = findHypernyms ? simMeasure.sim(mainVector, vector) : simMeasure.sim(vector, mainVector);
+			if(heap.size() < k)
+				heap.add(c);
+			else if(CandidateIndex.compareRank(scores, desc, c, heap.peek()) < 0){
+				heap.poll();
+				heap.add(c);
+			}
+		}
+		
+		Integer[] best = heap.toArray(new Integer[heap.size()]);
+		Arrays.sort(best, new Comparator<Integer>(){
+			public int compare(Integer c1, Integer c2){
+				return CandidateIndex.compareRank(scores, desc, c1, c2);
+			}
+		});
+		LinkedHashMap<String,Double> result = new LinkedHashMap<String,Double>();
+		for(int c : best)
+			result.put(labels[c], scores[c]);
+		return result;
+	}
+	
+	/**
+	 * Calculate the bucket keys of a vector in the first numTables tables.
+	 */
+	private int[] getBucketKeys(SparseVector vector, FeatureIndex featureIndex, int numTables){
+		int[] bucketKeys = new int[numTables];
+		long[] featureKeys = new long[vector.size()];
+		for(int i = 0; i < vector.size(); i++)
+			featureKeys[i] = FeatureIndex.pack(featureIndex.getKey2(vector.getId(i)), featureIndex.getKey3(vector.getId(i)));
+		
+		if(type == TYPE_SIMHASH){
+			double[] projections = new double[bitsPerTable];
+			long hash;
+			double weight;
+			int key;
+			for(int t = 0; t < numTables; t++){
+				Arrays.fill(projections, 0.0);
+				for(int i = 0; i < vector.size(); i++){
+					// Every bit of the hash is the side of one hyperplane for this feature
+					hash = hash(seed, t, featureKeys[i]);
+					weight = vector.getWeight(i);
+					for(int b = 0; b < bitsPerTable; b++)
+						projections[b] += ((hash >>> b) & 1L) != 0 ? weight : -weight;
+				}
+				key = 0;
+				for(int b = 0; b < bitsPerTable; b++)
+					if(projections[b] > 0.0)
+						key |= 1 << b;
+				bucketKeys[t] = key;
+			}
+		}
+		else {
+			long min, hash, key;
+			for(int t = 0; t < numTables; t++){
+				key = t;
+				for(int j = 0; j < bitsPerTable; j++){
+					min = Long.MAX_VALUE;
+					for(int i = 0; i < vector.size(); i++){
+						if(vector.getWeight(i) == 0.0)
+							continue;
+						hash = hash(seed, (long)t * bitsPerTable + j, featureKeys[i]);
+						if(hash < min)
+							min = hash;
+					}
+					key = mix(key ^ min);
+				}
+				bucketKeys[t] = (int)(key ^ (key >>> 32));
+			}
+		}
+		return bucketKeys;
+	}
+	
+	private static long hash(long seed, long function, long featureKey){
+		return mix(seed ^ mix(function ^ mix(featureKey)));
+	}
+	
+	/**
+	 * The finalizer of SplitMix64.
+	 */
+	private static long mix(long z){
+		z += 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
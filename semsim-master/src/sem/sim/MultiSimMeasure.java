@@ -0,0 +1,370 @@
+package sem.sim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+
+import sem.util.SparseVector;
+
+/**
+ * Calculates a set of similarity measures for a pair of vectors in one go.
+ * The vectors are merged once in each direction, and the sums that several measures have in common (dot product, norms, sums, intersection sums, min and max sums, counts) are accumulated in a single pass over each vector.
+ * The passes over the sorted entries for AP, APinc and the weighted cosines, and the logarithms of the divergences, are only done when one of these measures is selected.
+ * <p>Every result is exactly the same as from SimMeasure.sim(SparseVector, SparseVector): each sum is accumulated in the same order as in SparseSimMeasure.
+ * Pearson, Spearman and Kendall's tau need their own ordering of the union of the features, and are calculated with SparseSimMeasure.
+ */
+public class MultiSimMeasure {
+	private SimMeasure[] measures;
+	private EnumSet<SimMeasure> selected;
+	private boolean needsAP, needsWeighted, needsDivergences;
+	
+	/**
+	 * @param measures The measures to calculate, in the order of the results
+	 */
+	public MultiSimMeasure(Collection<SimMeasure> measures){
+		this.measures = measures.toArray(new SimMeasure[measures.size()]);
+		this.selected = EnumSet.noneOf(SimMeasure.class);
+		this.selected.addAll(measures);
+		this.needsAP = selected.contains(SimMeasure.AP) || selected.contains(SimMeasure.AP_INC) || selected.contains(SimMeasure.BAL_AP_INC);
+		this.needsWeighted = selected.contains(SimMeasure.WEIGHTED_COSINE) || selected.contains(SimMeasure.WEIGHTED_COSINE_2);
+		for(SimMeasure simMeasure : new SimMeasure[]{SimMeasure.KL_DIVERGENCE, SimMeasure.KL_DIVERGENCE_R, SimMeasure.JS_DIVERGENCE, SimMeasure.ALPHA_SKEW, SimMeasure.ALPHA_SKEW_R})
+			if(selected.contains(simMeasure))
+				this.needsDivergences = true;
+	}
+	
+	/**
+	 * Get the measures, in the order of the results.
+	 */
+	public ArrayList<SimMeasure> getMeasures(){
+		ArrayList<SimMeasure> list = new ArrayList<SimMeasure>();
+		for(SimMeasure simMeasure : measures)
+			list.add(simMeasure);
+		return list;
+	}
+	
+	/**
+	 * Calculate all the measures.
+	 * @param a The first vector
+	 * @param b The second vector
+	 * @return The scores, in the order of the measures
+	 */
+	public double[] sim(SparseVector a, SparseVector b){
+		double[] results = new double[measures.length];
+		sim(a, b, results);
+		return results;
+	}
+	
+	/**
+	 * Calculate all the measures.
+	 * @param a The first vector
+	 * @param b The second vector
+	 * @param results Receives the scores, in the order of the measures
+	 */
+	public void sim(SparseVector a, SparseVector b, double[] results){
+		SparseSimMeasure.validateVectors(a, b);
+		if(results.length < measures.length)
+			throw new RuntimeException("Results array is too short: " + results.length);
+		
+		int na = a.size(), nb = b.size();
+		int[] matchA = match(a, b);
+		int[] matchB = match(b, a);
+		double C = 0.5, alpha = 0.99;
+		int pos;
+		double value, other;
+		
+		// Weighted cosines, over b in sorted order. Their lengths of a are finished in the pass over a.
+		double wDot = 0.0, wLengthA = 0.0, wLengthB = 0.0;
+		double w2Dot = 0.0, w2LengthA = 0.0, w2LengthB = 0.0;
+		if(needsWeighted){
+			int[] bSorted = b.getSortedOrder();
+			double[] ranks = b.getTiedRanks();
+			double rank = 0.0;
+			long previousBits = 0;
+			for(int k = 0; k < bSorted.length; k++){
+				pos = bSorted[k];
+				value = b.getWeight(pos);
+				if(k == 0 || Double.doubleToLongBits(value) != previousBits){
+					rank = k + 1;
+					previousBits = Double.doubleToLongBits(value);
+				}
+				if(matchB[pos] >= 0){
+					other = a.getWeight(matchB[pos]);
+					double w = (1.0 - (ranks[pos] / ((double)nb + 1.0)))*(1.0 - C) + C;
+					wDot += (value * w) * (other * w);
+					wLengthA += Math.pow(other * w, 2.0);
+					wLengthB += Math.pow(value * w, 2.0);
+					double w2 = (1.0 - (rank / ((double)nb + 1.0)))*(1.0 - C) + C;
+					w2Dot += (value * w2) * (other * w2);
+					w2LengthA += Math.pow(other * w2, 2.0);
+					w2LengthB += Math.pow(value * w2, 2.0);
+				}
+				else {
+					wLengthB += Math.pow(value * C, 2.0);
+					w2LengthB += Math.pow(value * C, 2.0);
+				}
+			}
+		}
+		
+		// Pass over a in the original order
+		double dotA = 0.0, squaresA = 0.0, positiveA = 0.0, combinedA = 0.0, sharedPositiveB = 0.0;
+		double minSum = 0.0, maxSum = 0.0, sum = 0.0, sumA, weedsBothA = 0.0;
+		double klR = 0.0, js = 0.0, skewR = 0.0, manhattan = 0.0, euclidean = 0.0, chebyshev = 0.0;
+		int sharedNonZeroA = 0, sharedNonZeroB = 0, sharedNonZeroEither = 0, nonZeroA = 0, nonZeroB = 0;
+		for(int k = 0; k < na; k++){
+			pos = a.getOrder(k);
+			value = a.getWeight(pos);
+			if(value != 0.0)
+				nonZeroA++;
+			squaresA += value * value;
+			sum += value;
+			if(matchA[pos] >= 0){
+				other = b.getWeight(matchA[pos]);
+				if(value != 0.0)
+					sharedNonZeroA++;
+				if(other != 0.0)
+					sharedNonZeroB++;
+				if(value != 0.0 || other != 0.0)
+					sharedNonZeroEither++;
+				dotA += value * other;
+				minSum += Math.min(value, other);
+				maxSum += Math.max(value, other);
+				if(value > 0.0 && other > 0.0){
+					combinedA += value + other;
+					sharedPositiveB += other;
+					weedsBothA += value;
+				}
+				manhattan += Math.abs(value - other);
+				euclidean += Math.pow(value - other, 2);
+				if(Math.abs(value - other) > chebyshev)
+					chebyshev = Math.abs(value - other);
+			}
+			else {
+				other = 0.0;
+				maxSum += value;
+				manhattan += Math.abs(value);
+				euclidean += Math.pow(value, 2);
+				if(Math.abs(value) > chebyshev)
+					chebyshev = Math.abs(value);
+				if(needsWeighted){
+					wLengthA += Math.pow(C * value, 2.0);
+					w2LengthA += Math.pow(C * value, 2.0);
+				}
+			}
+			if(value > 0.0)
+				positiveA += value;
+			if(needsDivergences && value > 0.0){
+				if(matchA[pos] >= 0 && other > 0.0){
+					klR += value * Math.log(value/ other);
+					skewR += value * Math.log(value/ ((1-alpha) * value + alpha * other));
+				}
+				else if(matchA[pos] < 0)
+					skewR += value * Math.log(value/ ((1-alpha) * value));
+				if(other > 0.0)
+					js += value * Math.log(value/ ((value + other)/2));
+				else if(other == 0.0)
+					js += value * Math.log(value/ (value/2));
+			}
+		}
+		sumA = sum;
+		
+		// Pass over b in the original order
+		double dotB = 0.0, squaresB = 0.0, positiveB = 0.0, combinedB = 0.0, weedsBothB = 0.0;
+		double kl = 0.0, skew = 0.0;
+		for(int k = 0; k < nb; k++){
+			pos = b.getOrder(k);
+			value = b.getWeight(pos);
+			if(value != 0.0)
+				nonZeroB++;
+			squaresB += value * value;
+			sum += value;
+			if(value > 0.0)
+				positiveB += value;
+			if(matchB[pos] >= 0){
+				other = a.getWeight(matchB[pos]);
+				dotB += value * other;
+				if(value > 0.0 && other > 0.0){
+					combinedB += value + other;
+					weedsBothB += value;
+				}
+			}
+			else {
+				other = 0.0;
+				maxSum += value;
+				manhattan += Math.abs(value);
+				euclidean += Math.pow(value, 2);
+				if(Math.abs(value) > chebyshev)
+					chebyshev = Math.abs(value);
+			}
+			if(needsDivergences && value > 0.0){
+				if(matchB[pos] >= 0 && other > 0.0){
+					kl += value * Math.log(value/ other);
+					skew += value * Math.log(value/ ((1-alpha) * value + alpha * other));
+				}
+				else if(matchB[pos] < 0)
+					skew += value * Math.log(value/ ((1-alpha) * value));
+				if(other > 0.0)
+					js += value * Math.log(value/ ((value + other)/2));
+				else if(other == 0.0)
+					js += value * Math.log(value/ (value/2));
+			}
+		}
+		
+		// AP and APinc, over a in sorted order
+		double apSum = 0.0, apIncSum = 0.0;
+		if(needsAP){
+			int[] aSorted = a.getSortedOrder();
+			int[] bRanks = b.getSortedRanks();
+			double correctReturned = 0.0, p, rel;
+			for(int k = 0; k < aSorted.length; k++){
+				if(matchA[aSorted[k]] >= 0){
+					correctReturned++;
+					p = correctReturned / (k + 1);
+					apSum += p;
+					rel = 1.0 - ((double)bRanks[matchA[aSorted[k]]] / ((double)nb + 1.0));
+					apIncSum += p * rel;
+				}
+			}
+		}
+		
+		// The set measures and Lin iterate over the shorter vector, and cosine takes its dot product in that order
+		boolean swap = na > nb;
+		double dot = swap ? dotB : dotA;
+		double combined = swap ? combinedB : combinedA;
+		double intersection = swap ? sharedNonZeroA : sharedNonZeroB;
+		double union = (nonZeroA - sharedNonZeroA) + (nonZeroB - sharedNonZeroB) + sharedNonZeroEither;
+		double lin = ratio(combined, positiveA + positiveB);
+		double weedsPrec = ratio(weedsBothA, positiveA);
+		double weedsRec = ratio(weedsBothB, positiveB);
+		double apInc = (na == 0) ? 0.0 : apIncSum / (double)na;
+		
+		double result;
+		for(int m = 0; m < measures.length; m++){
+			switch(measures[m]){
+			case COSINE:
+				result = (squaresA == 0.0 || squaresB == 0.0) ? 0.0 : dot / Math.sqrt(squaresA * squaresB);
+				break;
+			case PEARSON:
+				result = SparseSimMeasure.pearson(a, b);
+				break;
+			case SPEARMAN:
+				result = SparseSimMeasure.spearman(a, b);
+				break;
+			case JACCARD_SET:
+				result = (union == 0) ? 0.0 : intersection / union;
+				break;
+			case LIN:
+				result = lin;
+				break;
+			case DICE_SET:
+				result = (nonZeroA + nonZeroB == 0) ? 0.0 : 2 * intersection / ((double)nonZeroA + (double)nonZeroB);
+				break;
+			case OVERLAP_SET:
+				result = (Math.min(nonZeroA, nonZeroB) == 0) ? 0.0 : intersection / Math.min((double)nonZeroA, (double)nonZeroB);
+				break;
+			case COSINE_SET:
+				result = (nonZeroA == 0 || nonZeroB == 0) ? 0.0 : intersection / Math.sqrt((double)nonZeroA * (double)nonZeroB);
+				break;
+			case JACCARD_GEN:
+				result = ratio(minSum, maxSum);
+				break;
+			case DICE_GEN:
+				result = (sum == 0.0) ? 0.0 : 2 * minSum / sum;
+				break;
+			case DICE_GEN_2:
+				result = ratio(dotA, sum);
+				break;
+			case KENDALLS_TAU:
+				result = SparseSimMeasure.kendallsTau(a, b);
+				break;
+			case CLARKE_DE:
+				result = ratio(minSum, sumA);
+				break;
+			case WEEDS_PREC:
+				result = weedsPrec;
+				break;
+			case WEEDS_REC:
+				result = weedsRec;
+				break;
+			case WEEDS_F:
+				result = (weedsPrec + weedsRec == 0.0) ? 0.0 : 2 * weedsPrec * weedsRec / (weedsPrec + weedsRec);
+				break;
+			case AP:
+				result = (nb == 0) ? 0.0 : apSum / (double)nb;
+				break;
+			case AP_INC:
+				result = apInc;
+				break;
+			case BAL_AP_INC:
+				result = Math.sqrt(lin * apInc);
+				break;
+			case LIN_D:
+				result = ratio(combinedA, positiveA + sharedPositiveB);
+				break;
+			case BAL_PREC:
+				result = Math.sqrt(lin * weedsPrec);
+				break;
+			case KL_DIVERGENCE:
+				result = kl;
+				break;
+			case KL_DIVERGENCE_R:
+				result = klR;
+				break;
+			case JS_DIVERGENCE:
+				result = js;
+				break;
+			case ALPHA_SKEW:
+				result = skew;
+				break;
+			case ALPHA_SKEW_R:
+				result = skewR;
+				break;
+			case MANHATTAN:
+				result = manhattan;
+				break;
+			case EUCLIDEAN:
+				result = Math.sqrt(euclidean);
+				break;
+			case CHEBYSHEV:
+				result = chebyshev;
+				break;
+			case WEIGHTED_COSINE:
+				result = (wLengthA == 0.0 || wLengthB == 0.0) ? 0.0 : wDot / Math.sqrt(wLengthA * wLengthB);
+				break;
+			case WEIGHTED_COSINE_2:
+				result = (w2LengthA == 0.0 || w2LengthB == 0.0) ? 0.0 : w2Dot / Math.sqrt(w2LengthA * w2LengthB);
+				break;
+			default:
+				throw new RuntimeException("Unknown similarity measure: " + measures[m]);
+			}
+			SimMeasure.validateResult(result);
+			results[m] = result;
+		}
+	}
+	
+	private static double ratio(double numerator, double denominator){
+		return (denominator == 0.0) ? 0.0 : numerator / denominator;
+	}
+	
+	/**
+	 * Merge the two vectors.
+	 * @return For every position in a, the position of the same feature in b, or -1 if b does not contain it.
+	 */
+	private static int[] match(SparseVector a, SparseVector b){
+		int na = a.size(), nb = b.size();
+		int[] match = new int[na];
+		int i = 0, j = 0, idA, idB;
+		while(i < na && j < nb){
+			idA = a.getId(i);
+			idB = b.getId(j);
+			if(idA < idB)
+				match[i++] = -1;
+			else if(idA > idB)
+				j++;
+			else
+				match[i++] = j++;
+		}
+		while(i < na)
+			match[i++] = -1;
+		return match;
+	}
+}
@@ -1,55 +1,74 @@
 package sem.sim;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import sem.model.VectorSpace;
 import sem.util.Pair;
+import sem.util.SparseVector;
 
-class SimGeneratorTask implements Runnable{
-	String mainWord;
-	LinkedHashSet<String> candidateWords;
+/**
+ * Scores one main word against a range of the candidates. Large ranges are split in half, so that the work of a single main word is spread over the threads of the pool.
+ */
+class SimGeneratorTask extends RecursiveAction{
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Ranges with fewer candidates than this are not split further.
+	 */
+	static int MIN_CHUNK_SIZE = 256;
+	
+	SparseVector mainVector;
+	boolean[] overlapping;
+	CandidateIndex candidateIndex;
 	SimMeasure simMeasure;
 	boolean findHypernyms;
-	VectorSpace vectorSpace;
-	LinkedHashMap<String,Double> result;
-	
+	double[] scores;
+	int start, end, chunkSize;
 	
 	/**
 	 * Create a new task for finding most similar items.
-	 * @param mainWord
-	 * @param candidateWords
+	 * @param mainVector
+	 * @param candidateIndex Index over the candidate words
 	 * @param simMeasureType
 	 * @param findHypernyms Value FALSE will put the mainWord in the second argument position of the similarity measure, and find hyponyms. Setting it to TRUE will put mainWord in the first argument position and find hypernyms. This only affects non-symmetric measures.
-	 * @param vectorSpace
-	 * @param result
+	 * @param scores Filled with the scores, in the order of the candidates
+	 * @param parallelism Number of threads that the work should be spread over
 	 */
-	public SimGeneratorTask(String mainWord, LinkedHashSet<String> candidateWords, SimMeasure simMeasure, boolean findHypernyms, VectorSpace vectorSpace, LinkedHashMap<String,Double> result){
-		this.mainWord = mainWord;
-		this.candidateWords = candidateWords;
+	public SimGeneratorTask(SparseVector mainVector, CandidateIndex candidateIndex, SimMeasure simMeasure, boolean findHypernyms, double[] scores, int parallelism){
+		this(mainVector, null, candidateIndex, simMeasure, findHypernyms, scores, 0, candidateIndex.size(), Math.max(MIN_CHUNK_SIZE, candidateIndex.size() / (8 * Math.max(1, parallelism))));
+	}
+	
+	private SimGeneratorTask(SparseVector mainVector, boolean[] overlapping, CandidateIndex candidateIndex, SimMeasure simMeasure, boolean findHypernyms, double[] scores, int start, int end, int chunkSize){
+		this.mainVector = mainVector;
+		this.overlapping = overlapping;
+		this.candidateIndex = candidateIndex;
 		this.simMeasure = simMeasure;
 		this.findHypernyms = findHypernyms;
-		this.vectorSpace = vectorSpace;
-		this.result = result;
+		this.scores = scores;
+		this.start = start;
+		this.end = end;
+		this.chunkSize = chunkSize;
 	}
 
 	@Override
-	public void run() { 
-		LinkedHashMap<Integer,Double> mainVector = vectorSpace.getVector(mainWord);
-		for(String candidateWord : candidateWords){
-			double val;
-			if(!this.findHypernyms)
-				val = this.simMeasure.sim(vectorSpace.getVector(candidateWord), mainVector);
-			else
-				val = this.simMeasure.sim(mainVector, vectorSpace.getVector(candidateWord));
-
-			result.put(candidateWord, val);
+	protected void compute() { 
+		if(overlapping == null)
+			overlapping = candidateIndex.getOverlapping(mainVector);
+		if(end - start <= chunkSize){
+			double[] chunk = new double[end - start];
+			candidateIndex.getScores(mainVector, overlapping, simMeasure, findHypernyms, start, end, chunk);
+			System.arraycopy(chunk, 0, scores, start, chunk.length);
+		}
+		else {
+			int middle = (start + end) >>> 1;
+			invokeAll(new SimGeneratorTask(mainVector, overlapping, candidateIndex, simMeasure, findHypernyms, scores, start, middle, chunkSize),
+					new SimGeneratorTask(mainVector, overlapping, candidateIndex, simMeasure, findHypernyms, scores, middle, end, chunkSize));
 		}
 	}
 }
@@ -57,12 +76,51 @@ class SimGeneratorTask implements Runnable{
 /**
  * A class that can perform various tasks related to finding similarities or most similar items.
  * For example, you can get the (directional) similarity between two items for hyponym detection. Or you can specify main words and candidate words, and run hyponym generation. In this case, work on different main words can be distributed to multiple cores.
+ * <p>If the VectorSpace has a precomputed matrix, getScore() calculates the scores on SparseVectors, which gives the same results faster.
+ * For getScores(), the candidate words are put into a CandidateIndex, so that only the candidates which share features with a main word need to be compared with it.
+ * getTopScores() returns only the k most similar candidates, and skips the candidates that cannot get into them.
+ * getApproximateTopScores() only looks at the candidates found by an LshIndex, and getRecall() measures how many of the exact results it finds.
+ * join() scores many main words at once with a SimilarityJoin, and streams only the best candidates of every main word to a sink.
+ * <p>The work runs on long-lived ForkJoinPools that are shared by all SimFinders, one for every number of threads.
+ * The candidates of a single main word are split into chunks, so even one query is spread over all the threads of the pool.
  */
 public class SimFinder {
+	private static HashMap<Integer,ForkJoinPool> pools = new HashMap<Integer,ForkJoinPool>();
+	
 	private VectorSpace vectorSpace;
+	private ForkJoinPool pool;
 	
+	/**
+	 * Create a SimFinder that uses the shared pool with one thread for every processor.
+	 * @param vectorSpace
+	 */
 	public SimFinder(VectorSpace vectorSpace){
+		this(vectorSpace, getPool(Runtime.getRuntime().availableProcessors()));
+	}
+	
+	/**
+	 * Create a SimFinder that runs the queries without a thread limit on the specified pool.
+	 * @param vectorSpace
+	 * @param pool
+	 */
+	public SimFinder(VectorSpace vectorSpace, ForkJoinPool pool){
 		this.vectorSpace = vectorSpace;
+		this.pool = pool;
+	}
+	
+	/**
+	 * Get the shared pool with the specified number of threads. The pool is created on first use, and lives until the end of the program.
+	 * @param numThreads
+	 * @return
+	 */
+	public static synchronized ForkJoinPool getPool(int numThreads){
+		numThreads = Math.max(1, numThreads);
+		ForkJoinPool pool = pools.get(numThreads);
+		if(pool == null){
+			pool = new ForkJoinPool(numThreads);
+			pools.put(numThreads, pool);
+		}
+		return pool;
 	}
 	
 	/**
@@ -73,10 +131,11 @@ public class SimFinder {
 	 * @return
 	 */
 	public double getScore(SimMeasure simMeasure, String label1, String label2){
-		LinkedHashMap<Integer,Double> vector1 = vectorSpace.getVector(label1);
-		LinkedHashMap<Integer,Double> vector2 = vectorSpace.getVector(label2);
-		
-		double score = simMeasure.sim(vector1, vector2);
+		double score;
+		if(vectorSpace.getMatrix() != null)
+			score = simMeasure.sim(vectorSpace.getSparseVector(label1), vectorSpace.getSparseVector(label2));
+		else
+			score = simMeasure.sim(vectorSpace.getVector(label1), vectorSpace.getVector(label2));
 		if(Double.isInfinite(score) || Double.isNaN(score))
 			throw new RuntimeException("Illegal score value: " + score);
 		
@@ -101,7 +160,7 @@ public class SimFinder {
 	 * Find the all the similarity scores for the cartesian product of "main words" and "candidate words".
 	 * For example, if we want to find hyponyms for "liquid", we would put the word "liquid" in the set of main words, and a large number of other words into the candidate set.
 	 * This function then find the similarity scores between "liquid" and all the other words.
-	 * If several main words are specified together, and numThreads is set to > 1, each main word is parallelized to a different thread.
+	 * The work is spread over the shared pool with numThreads threads, both between the main words and within the candidates of every main word.
 	 * The output is scored but unsorted.
 	 * @param mainWords
 	 * @param candidateWords
@@ -111,35 +170,83 @@ public class SimFinder {
 	 * @return
 	 */
 	public LinkedHashMap<String,LinkedHashMap<String,Double>> getScores(LinkedHashSet<String> mainWords, LinkedHashSet<String> candidateWords, SimMeasure simMeasure, boolean findHypernyms, int numThreads){
-		LinkedHashMap<String,LinkedHashMap<String,Double>> results = new LinkedHashMap<String,LinkedHashMap<String,Double>>();
-		
-		BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
-		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
-		ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads, 30, TimeUnit.SECONDS, queue);
-		
+		return getScores(mainWords, getCandidateIndex(candidateWords), simMeasure, findHypernyms, numThreads);
+	}
+	
+	/**
+	 * Build an index over the candidate words. When the same candidates are used for many queries, the index can be built once and passed to getScores().
+	 * @param candidateWords
+	 * @return
+	 */
+	public CandidateIndex getCandidateIndex(LinkedHashSet<String> candidateWords){
+		return new CandidateIndex(vectorSpace, candidateWords);
+	}
+	
+	/**
+	 * Same as getScores() with the set of candidate words, but using an index that has already been built over them.
+	 * @param mainWords
+	 * @param candidateIndex
+	 * @param simMeasure
+	 * @param findHypernyms
+	 * @param numThreads
+	 * @return
+	 */
+	public LinkedHashMap<String,LinkedHashMap<String,Double>> getScores(LinkedHashSet<String> mainWords, final CandidateIndex candidateIndex, final SimMeasure simMeasure, final boolean findHypernyms, int numThreads){
+		final ForkJoinPool pool = getPool(numThreads);
+		final ArrayList<double[]> scores = new ArrayList<double[]>();
+		final ArrayList<SimGeneratorTask> tasks = new ArrayList<SimGeneratorTask>();
 		for(String mainWord : mainWords){
-			LinkedHashMap<String,Double> result = new LinkedHashMap<String,Double>();
-			results.put(mainWord, result);
-			SimGeneratorTask task = new SimGeneratorTask(mainWord, candidateWords, simMeasure, findHypernyms, vectorSpace, result);
-			Future<?> future = executor.submit(task);
-			futures.add(future);
+			scores.add(new double[candidateIndex.size()]);
+			tasks.add(new SimGeneratorTask(vectorSpace.getSparseVector(mainWord), candidateIndex, simMeasure, findHypernyms, scores.get(scores.size() - 1), pool.getParallelism()));
 		}
-		
-		// Wait to finish
-		try {
-			for (Future<?> future : futures) {
-				future.get();
+		pool.invoke(new RecursiveAction(){
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected void compute(){
+				invokeAll(tasks);
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		
-		futures.clear();
-		queue.clear();
-		executor.shutdown();
+		});
 		
+		LinkedHashMap<String,LinkedHashMap<String,Double>> results = new LinkedHashMap<String,LinkedHashMap<String,Double>>();
+		int i = 0;
+		for(String mainWord : mainWords)
+			results.put(mainWord, toMap(candidateIndex, scores.get(i++)));
 		return results;
 	}
+		
+	private static LinkedHashMap<String,Double> toMap(CandidateIndex candidateIndex, double[] scores){
+		LinkedHashMap<String,Double> result = new LinkedHashMap<String,Double>();
+		for(int c = 0; c < scores.length; c++)
+			result.put(candidateIndex.getLabel(c), scores[c]);
+		return result;
+	}
+		
+	/**
+	 * Score one main word against all the candidates, spread over the threads of the pool.
+	 * @return The scores, in the order of the candidates.
+	 */
+	private double[] getScores(SparseVector mainVector, CandidateIndex candidateIndex, SimMeasure simMeasure, boolean findHypernyms){
+		double[] scores = new double[candidateIndex.size()];
+		pool.invoke(new SimGeneratorTask(mainVector, candidateIndex, simMeasure, findHypernyms, scores, pool.getParallelism()));
+		return scores;
+	}
+	
+	/**
+	 * Score all the main words against all the candidates, and pass the best candidates of every main word to a sink, in the order of the main words.
+	 * Unlike getScores(), the full score matrix is never kept in memory.
+	 * @param mainWords
+	 * @param candidateIndex
+	 * @param simMeasure
+	 * @param findHypernyms
+	 * @param minScore Candidates that rank below this score are dropped: lower scores for similarities, and higher scores for distances. Double.NaN keeps all the candidates.
+	 * @param k Number of candidates to keep for every main word, or 0 to keep all of them.
+	 * @param sink Receives the results
+	 * @param numThreads
+	 */
+	public void join(Collection<String> mainWords, CandidateIndex candidateIndex, SimMeasure simMeasure, boolean findHypernyms, double minScore, int k, SimilaritySink sink, int numThreads){
+		new SimilarityJoin(vectorSpace, candidateIndex, getPool(numThreads)).run(mainWords, simMeasure, findHypernyms, minScore, k, sink);
+	}
 	
 	/**
 	 * A simplified function for finding the similarities for only one main words.
@@ -150,10 +257,81 @@ public class SimFinder {
 	 * @return
 	 */
 	public LinkedHashMap<String,Double> getScores(String mainWord, LinkedHashSet<String> candidateWords, SimMeasure simMeasure, boolean findHypernyms){
-		LinkedHashSet<String> mainWords = new LinkedHashSet<String>();
-		mainWords.add(mainWord);
-		
-		LinkedHashMap<String,LinkedHashMap<String,Double>> results = getScores(mainWords, candidateWords, simMeasure, findHypernyms, 1);
-		return results.get(mainWord);
+		return getScores(mainWord, getCandidateIndex(candidateWords), simMeasure, findHypernyms);
+	}
+	
+	/**
+	 * A simplified function for finding the similarities for only one main word, using an index over the candidate words.
+	 * @param mainWord
+	 * @param candidateIndex
+	 * @param simMeasure
+	 * @param findHypernyms
+	 * @return
+	 */
+	public LinkedHashMap<String,Double> getScores(String mainWord, CandidateIndex candidateIndex, SimMeasure simMeasure, boolean findHypernyms){
+		return toMap(candidateIndex, getScores(vectorSpace.getSparseVector(mainWord), candidateIndex, simMeasure, findHypernyms));
+	}
+	
+	/**
+	 * Find the k most similar candidates for one main word.
+	 * The result is the same as the first k entries of Tools.sort(getScores(mainWord, candidateIndex, simMeasure, findHypernyms), !simMeasure.isDistance()).
+	 * For measures with upper bounds (see CandidateIndex.hasUpperBounds()), only the candidates that can get into the top k are scored.
+	 * @param mainWord
+	 * @param candidateIndex
+	 * @param simMeasure
+	 * @param findHypernyms
+	 * @param k Number of candidates to return
+	 * @return The best candidates and their scores, best first.
+	 */
+	public LinkedHashMap<String,Double> getTopScores(String mainWord, CandidateIndex candidateIndex, SimMeasure simMeasure, boolean findHypernyms, int k){
+		SparseVector mainVector = vectorSpace.getSparseVector(mainWord);
+		if(CandidateIndex.hasUpperBounds(simMeasure))
+			return candidateIndex.getTopScores(mainVector, simMeasure, findHypernyms, k);
+		return candidateIndex.getTopScores(getScores(mainVector, candidateIndex, simMeasure, findHypernyms), simMeasure, k);
+	}
+	
+	/**
+	 * Find approximately the k most similar candidates for one main word, using a locality-sensitive hashing index over the candidates.
+	 * @param mainWord
+	 * @param lshIndex
+	 * @param simMeasure
+	 * @param findHypernyms
+	 * @param k Number of candidates to return
+	 * @param numProbes Number of hash tables to look into. More tables find more of the true neighbours, but are slower.
+	 * @return The best candidates found and their scores, best first.
+	 */
+	public LinkedHashMap<String,Double> getApproximateTopScores(String mainWord, LshIndex lshIndex, SimMeasure simMeasure, boolean findHypernyms, int k, int numProbes){
+		return lshIndex.getTopScores(vectorSpace, mainWord, simMeasure, findHypernyms, k, numProbes);
+	}
+
+	/**
+	 * Measure the recall of an LshIndex against the exact results of getTopScores().
+	 * @param mainWords Main words to test with
+	 * @param candidateIndex Index over the same candidates as the LshIndex
+	 * @param lshIndex
+	 * @param simMeasure
+	 * @param findHypernyms
+	 * @param k Number of candidates to return
+	 * @param numProbes Number of hash tables to look into
+	 * @return The fraction of the exact top k candidates that were found, averaged over the main words.
+	 */
+	public double getRecall(Collection<String> mainWords, CandidateIndex candidateIndex, LshIndex lshIndex, SimMeasure simMeasure, boolean findHypernyms, int k, int numProbes){
+		double recallSum = 0.0;
+		int count = 0;
+		for(String mainWord : mainWords){
+			LinkedHashMap<String,Double> exact = getTopScores(mainWord, candidateIndex, simMeasure, findHypernyms, k);
+			if(exact.size() == 0)
+				continue;
+			LinkedHashMap<String,Double> approximate = getApproximateTopScores(mainWord, lshIndex, simMeasure, findHypernyms, k, numProbes);
+			int found = 0;
+			for(String candidate : exact.keySet())
+				if(approximate.containsKey(candidate))
+					found++;
+			recallSum += (double)found / (double)exact.size();
+			count++;
+		}
+		if(count == 0)
+			return 0.0;
+		return recallSum / count;
 	}
 }
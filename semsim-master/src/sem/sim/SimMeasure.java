@@ -9,6 +9,7 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map.Entry;
 
+import sem.util.SparseVector;
 import sem.util.Tools;
 
 /**
@@ -1177,4 +1178,80 @@ public enum SimMeasure {
 			throw new RuntimeException("Unknown similarity measure: " + this);
 		}
 	}
+	
+	/**
+	 * Calculate the similarity between two sparse vectors, using the functions in SparseSimMeasure.
+	 * The result is exactly the same as for the vectors in LinkedHashMap form, with the entries in their original order.
+	 * @param v1
+	 * @param v2
+	 * @return
+	 */
+	public double sim(SparseVector v1, SparseVector v2){
+		switch(this){
+		case COSINE:
+			return SparseSimMeasure.cosine(v1, v2);
+		case PEARSON:
+			return SparseSimMeasure.pearson(v1, v2);
+		case SPEARMAN:
+			return SparseSimMeasure.spearman(v1, v2);
+		case JACCARD_SET:
+			return SparseSimMeasure.jaccardSet(v1, v2);
+		case LIN:
+			return SparseSimMeasure.lin(v1, v2);
+		case DICE_SET:
+			return SparseSimMeasure.diceSet(v1, v2);
+		case OVERLAP_SET:
+			return SparseSimMeasure.overlapSet(v1, v2);
+		case COSINE_SET:
+			return SparseSimMeasure.cosineSet(v1, v2);
+		case JACCARD_GEN:
+			return SparseSimMeasure.jaccardGen(v1, v2);
+		case DICE_GEN:
+			return SparseSimMeasure.diceGen(v1, v2);
+		case DICE_GEN_2:
+			return SparseSimMeasure.diceGen2(v1, v2);
+		case KENDALLS_TAU:
+			return SparseSimMeasure.kendallsTau(v1, v2);
+		case CLARKE_DE:
+			return SparseSimMeasure.clarkeDE(v1, v2);
+		case WEEDS_PREC:
+			return SparseSimMeasure.weedsPrec(v1, v2);
+		case WEEDS_REC:
+			return SparseSimMeasure.weedsRec(v1, v2);
+		case WEEDS_F:
+			return SparseSimMeasure.weedsF(v1, v2);
+		case AP:
+			return SparseSimMeasure.ap(v1, v2);
+		case AP_INC:
+			return SparseSimMeasure.apInc(v1, v2);
+		case BAL_AP_INC:
+			return SparseSimMeasure.balAPInc(v1, v2);
+		case LIN_D:
+			return SparseSimMeasure.linD(v1, v2);
+		case BAL_PREC:
+			return SparseSimMeasure.balPrec(v1, v2);
+		case KL_DIVERGENCE:
+			return SparseSimMeasure.klDivergence(v1, v2);
+		case KL_DIVERGENCE_R:
+			return SparseSimMeasure.klDivergenceR(v1, v2);
+		case JS_DIVERGENCE:
+			return SparseSimMeasure.jsDivergence(v1, v2);
+		case ALPHA_SKEW:
+			return SparseSimMeasure.alphaSkew(v1, v2);
+		case ALPHA_SKEW_R:
+			return SparseSimMeasure.alphaSkewR(v1, v2);
+		case MANHATTAN:
+			return SparseSimMeasure.manhattan(v1, v2);
+		case EUCLIDEAN:
+			return SparseSimMeasure.euclidean(v1, v2);
+		case CHEBYSHEV:
+			return SparseSimMeasure.chebyshev(v1, v2);
+		case WEIGHTED_COSINE:
+			return SparseSimMeasure.weightedCosine(v1, v2);
+		case WEIGHTED_COSINE_2:
+			return SparseSimMeasure.weightedCosine2(v1, v2);
+		default:
+			throw new RuntimeException("Unknown similarity measure: " + this);
+		}
+	}
 }
@@ -0,0 +1,290 @@
+package sem.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import sem.model.VectorSpace;
+import sem.util.SparseVector;
+
+/**
+ * Scores many main words against all the candidates of a CandidateIndex, and streams the best candidates of every main word to a SimilaritySink.
+ * <p>The work is split into tiles of a few main words and a range of candidates, where the vectors of the candidates in a range fit into the CPU cache.
+ * Every tile keeps only the candidates that pass the minimum score and the top k of its rows, so the full score matrix is never kept in memory.
+ * For measures where CandidateIndex has upper bounds, every row is instead found with CandidateIndex.getTopScores(), which skips most of the candidates.
+ * <p>The main words are processed in rounds, and the rows of a round are passed to the sink in the order of the main words once the round is finished.
+ * The candidates of every row are ranked the same way as in Tools.sort(): descending for similarities and ascending for distances, with ties in the order of the candidates.
+ */
+public class SimilarityJoin {
+	public static int MAIN_BLOCK_SIZE = 16;
+	public static int CANDIDATE_BLOCK_ENTRIES = 1 << 14;
+	
+	private VectorSpace vectorSpace;
+	private CandidateIndex candidateIndex;
+	private ForkJoinPool pool;
+	private int mainBlockSize;
+	private int[] candidateBlocks;
+	private HashMap<String,Integer> labelIds;
+	
+	// Settings of the current run
+	private SimMeasure simMeasure;
+	private boolean findHypernyms;
+	private double minScore;
+	private int k;
+	
+	/**
+	 * The selected candidates of one main word, best first.
+	 */
+	private static class Row {
+		int[] candidates;
+		double[] scores;
+		int size;
+		
+		Row(int capacity){
+			this.candidates = new int[capacity];
+			this.scores = new double[capacity];
+			this.size = 0;
+		}
+	}
+	
+	/**
+	 * Scores a block of main words against a range of candidates.
+	 */
+	private class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private SparseVector[] mainVectors;
+		private boolean[][] overlapping;
+		private int start, end;
+		private Row[] rows;
+		
+		public TileTask(SparseVector[] mainVectors, boolean[][] overlapping, int start, int end){
+			this.mainVectors = mainVectors;
+			this.overlapping = overlapping;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute(){
+			rows = new Row[mainVectors.length];
+			double[] scores = new double[end - start];
+			int[] candidates = new int[end - start];
+			for(int c = start; c < end; c++)
+				candidates[c - start] = c;
+			for(int r = 0; r < mainVectors.length; r++){
+				candidateIndex.getScores(mainVectors[r], overlapping[r], simMeasure, findHypernyms, start, end, scores);
+				rows[r] = select(candidates, scores, end - start);
+			}
+		}
+	}
+	
+	/**
+	 * Finds one row with the upper bounds of CandidateIndex.
+	 */
+	private class RowTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private SparseVector mainVector;
+		private Row row;
+		
+		public RowTask(SparseVector mainVector){
+			this.mainVector = mainVector;
+		}
+		
+		@Override
+		protected void compute(){
+			row = new Row(k);
+			for(Entry<String,Double> e : candidateIndex.getTopScores(mainVector, simMeasure, findHypernyms, k).entrySet()){
+				if(!passes(e.getValue()))
+					break;
+				row.candidates[row.size] = labelIds.get(e.getKey());
+				row.scores[row.size++] = e.getValue();
+			}
+		}
+	}
+	
+	/**
+	 * @param vectorSpace Vector space of the main words
+	 * @param candidateIndex Index over the candidates
+	 * @param pool Pool that runs the tasks
+	 */
+	public SimilarityJoin(VectorSpace vectorSpace, CandidateIndex candidateIndex, ForkJoinPool pool){
+		this(vectorSpace, candidateIndex, pool, MAIN_BLOCK_SIZE, CANDIDATE_BLOCK_ENTRIES);
+	}
+	
+	/**
+	 * @param vectorSpace Vector space of the main words
+	 * @param candidateIndex Index over the candidates
+	 * @param pool Pool that runs the tasks
+	 * @param mainBlockSize Number of main words in a tile
+	 * @param candidateBlockEntries Number of vector entries in the candidates of a tile
+	 */
+	public SimilarityJoin(VectorSpace vectorSpace, CandidateIndex candidateIndex, ForkJoinPool pool, int mainBlockSize, int candidateBlockEntries){
+		this.vectorSpace = vectorSpace;
+		this.candidateIndex = candidateIndex;
+		this.pool = pool;
+		this.mainBlockSize = Math.max(1, mainBlockSize);
+		
+		// Split the candidates into ranges with roughly the same number of entries
+		List<Integer> blocks = new ArrayList<Integer>();
+		blocks.add(0);
+		long entries = 0;
+		for(int c = 0; c < candidateIndex.size(); c++){
+			entries += candidateIndex.getVector(c).size() + 1;
+			if(entries >= candidateBlockEntries){
+				blocks.add(c + 1);
+				entries = 0;
+			}
+		}
+		if(blocks.get(blocks.size() - 1) < candidateIndex.size())
+			blocks.add(candidateIndex.size());
+		this.candidateBlocks = new int[blocks.size()];
+		for(int i = 0; i < blocks.size(); i++)
+			candidateBlocks[i] = blocks.get(i);
+	}
+	
+	/**
+	 * Score all the main words against all the candidates.
+	 * @param mainWords The main words
+	 * @param simMeasure Similarity measure
+	 * @param findHypernyms Value FALSE will put the main words in the second argument position of the similarity measure, and TRUE in the first position.
+	 * @param minScore Candidates that rank below this score are dropped: lower scores for similarities, and higher scores for distances. Double.NaN keeps all the candidates.
+	 * @param k Number of candidates to keep for every main word, or 0 to keep all of them.
+	 * @param sink Receives the results
+	 */
+	public synchronized void run(Collection<String> mainWords, SimMeasure simMeasure, boolean findHypernyms, double minScore, int k, SimilaritySink sink){
+		this.simMeasure = simMeasure;
+		this.findHypernyms = findHypernyms;
+		this.minScore = minScore;
+		this.k = Math.max(0, k);
+		boolean useBounds = (k > 0 && CandidateIndex.hasUpperBounds(simMeasure));
+		if(useBounds && labelIds == null){
+			labelIds = new HashMap<String,Integer>();
+			for(int c = 0; c < candidateIndex.size(); c++)
+				labelIds.put(candidateIndex.getLabel(c), c);
+		}
+		
+		String[] words = mainWords.toArray(new String[mainWords.size()]);
+		int roundSize = mainBlockSize * Math.max(1, pool.getParallelism());
+		for(int roundStart = 0; roundStart < words.length; roundStart += roundSize){
+			int roundEnd = Math.min(words.length, roundStart + roundSize);
+			Row[] rows = useBounds ? runRows(words, roundStart, roundEnd) : runTiles(words, roundStart, roundEnd);
+			for(int r = 0; r < rows.length; r++){
+				String[] candidates = new String[rows[r].size];
+				for(int i = 0; i < rows[r].size; i++)
+					candidates[i] = candidateIndex.getLabel(rows[r].candidates[i]);
+				sink.addRow(words[roundStart + r], candidates, Arrays.copyOf(rows[r].scores, rows[r].size));
+			}
+		}
+	}
+	
+	private Row[] runRows(String[] words, int roundStart, int roundEnd){
+		final List<RowTask> tasks = new ArrayList<RowTask>();
+		for(int w = roundStart; w < roundEnd; w++)
+			tasks.add(new RowTask(vectorSpace.getSparseVector(words[w])));
+		invokeAll(tasks);
+		
+		Row[] rows = new Row[tasks.size()];
+		for(int r = 0; r < rows.length; r++)
+			rows[r] = tasks.get(r).row;
+		return rows;
+	}
+	
+	private Row[] runTiles(String[] words, int roundStart, int roundEnd){
+		final List<TileTask> tasks = new ArrayList<TileTask>();
+		for(int blockStart = roundStart; blockStart < roundEnd; blockStart += mainBlockSize){
+			int blockEnd = Math.min(roundEnd, blockStart + mainBlockSize);
+			SparseVector[] mainVectors = new SparseVector[blockEnd - blockStart];
+			boolean[][] overlapping = new boolean[blockEnd - blockStart][];
+			for(int r = 0; r < mainVectors.length; r++){
+				mainVectors[r] = vectorSpace.getSparseVector(words[blockStart + r]);
+				overlapping[r] = candidateIndex.getOverlapping(mainVectors[r]);
+			}
+			for(int b = 0; b + 1 < candidateBlocks.length; b++)
+				tasks.add(new TileTask(mainVectors, overlapping, candidateBlocks[b], candidateBlocks[b + 1]));
+		}
+		invokeAll(tasks);
+		
+		// The tiles of a block of main words are consecutive, in the order of the candidates
+		int numBlocks = candidateBlocks.length - 1;
+		Row[] rows = new Row[roundEnd - roundStart];
+		int r = 0;
+		for(int t = 0; numBlocks > 0 && t < tasks.size(); t += numBlocks){
+			for(int i = 0; i < tasks.get(t).rows.length; i++){
+				int total = 0;
+				for(int b = 0; b < numBlocks; b++)
+					total += tasks.get(t + b).rows[i].size;
+				int[] candidates = new int[total];
+				double[] scores = new double[total];
+				total = 0;
+				for(int b = 0; b < numBlocks; b++){
+					Row partial = tasks.get(t + b).rows[i];
+					System.arraycopy(partial.candidates, 0, candidates, total, partial.size);
+					System.arraycopy(partial.scores, 0, scores, total, partial.size);
+					total += partial.size;
+				}
+				rows[r++] = select(candidates, scores, total);
+			}
+		}
+		while(r < rows.length)
+			rows[r++] = new Row(0);
+		return rows;
+	}
+	
+	private void invokeAll(final List<? extends ForkJoinTask<?>> tasks){
+		pool.invoke(new RecursiveAction(){
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected void compute(){
+				ForkJoinTask.invokeAll(tasks);
+			}
+		});
+	}
+	
+	private boolean passes(double score){
+		if(Double.isNaN(minScore))
+			return true;
+		return simMeasure.isDistance() ? score <= minScore : score >= minScore;
+	}
+	
+	/**
+	 * Select the candidates that pass the minimum score, and keep the best k of them.
+	 * @param candidates Candidate indices, ascending
+	 * @param scores Their scores
+	 * @param length Number of candidates
+	 */
+	private Row select(final int[] candidates, final double[] scores, int length){
+		Integer[] selected = new Integer[length];
+		int count = 0;
+		for(int i = 0; i < length; i++)
+			if(passes(scores[i]))
+				selected[count++] = i;
+		final boolean desc = !simMeasure.isDistance();
+		Arrays.sort(selected, 0, count, new Comparator<Integer>(){
+			public int compare(Integer i1, Integer i2){
+				if(scores[i1] > scores[i2])
+					return desc ? -1 : 1;
+				else if(scores[i1] < scores[i2])
+					return desc ? 1 : -1;
+				return candidates[i1] < candidates[i2] ? -1 : (candidates[i1] > candidates[i2] ? 1 : 0);
+			}
+		});
+		if(k > 0)
+			count = Math.min(count, k);
+		
+		Row row = new Row(count);
+		for(int i = 0; i < count; i++){
+			row.candidates[i] = candidates[selected[i]];
+			row.scores[i] = scores[selected[i]];
+		}
+		row.size = count;
+		return row;
+	}
+}
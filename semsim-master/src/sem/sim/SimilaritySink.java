@@ -0,0 +1,14 @@
+package sem.sim;
+
+/**
+ * Receives the results of a SimilarityJoin, one main word at a time.
+ */
+public interface SimilaritySink {
+	/**
+	 * Receive the results for one main word. The rows arrive in the order of the main words, from the thread that runs the join.
+	 * @param mainWord The main word
+	 * @param candidates The selected candidates, best first
+	 * @param scores Their scores
+	 */
+	public void addRow(String mainWord, String[] candidates, double[] scores);
+}
@@ -0,0 +1,1026 @@
+package sem.sim;
+
+import sem.util.SparseVector;
+
+/**
+ * The similarity functions of SimMeasure, implemented for SparseVector.
+ * The shared features are found with a linear merge of the sorted feature IDs instead of hash lookups, and the rankings needed by some measures are computed once per vector.
+ * <p>Every function gives exactly the same result as the corresponding function in SimMeasure, when the vectors are given as maps with the entries in their original order.
+ * Sums are therefore accumulated in the original order of the entries, not in the order of the IDs.
+ */
+public class SparseSimMeasure {
+	
+	public static void validateVectors(SparseVector a, SparseVector b){
+		if(a == null || b == null)
+			throw new IllegalArgumentException("Vectors cannot be null");
+	}
+	
+	/**
+	 * Merge the two vectors.
+	 * @return For every position in a, the position of the same feature in b, or -1 if b does not contain it.
+	 */
+	private static int[] match(SparseVector a, SparseVector b){
+		int na = a.size(), nb = b.size();
+		int[] match = new int[na];
+		int i = 0, j = 0, idA, idB;
+		while(i < na && j < nb){
+			idA = a.getId(i);
+			idB = b.getId(j);
+			if(idA < idB)
+				match[i++] = -1;
+			else if(idA > idB)
+				j++;
+			else
+				match[i++] = j++;
+		}
+		while(i < na)
+			match[i++] = -1;
+		return match;
+	}
+	
+	/**
+	 * Count the features that are in both vectors.
+	 */
+	private static int countShared(SparseVector a, SparseVector b){
+		int na = a.size(), nb = b.size();
+		int i = 0, j = 0, shared = 0, idA, idB;
+		while(i < na && j < nb){
+			idA = a.getId(i);
+			idB = b.getId(j);
+			if(idA < idB)
+				i++;
+			else if(idA > idB)
+				j++;
+			else {
+				shared++;
+				i++;
+				j++;
+			}
+		}
+		return shared;
+	}
+	
+	/**
+	 * Count the nonzero weights.
+	 */
+	private static int countNonZero(SparseVector a){
+		int count = 0;
+		for(int i = 0; i < a.size(); i++)
+			if(a.getWeight(i) != 0.0)
+				count++;
+		return count;
+	}
+	
+	/**
+	 * Count the features that are in both vectors and have a nonzero weight in b.
+	 */
+	private static int countSharedNonZeroB(SparseVector a, SparseVector b){
+		int na = a.size(), nb = b.size();
+		int i = 0, j = 0, shared = 0, idA, idB;
+		while(i < na && j < nb){
+			idA = a.getId(i);
+			idB = b.getId(j);
+			if(idA < idB)
+				i++;
+			else if(idA > idB)
+				j++;
+			else {
+				if(b.getWeight(j) != 0.0)
+					shared++;
+				i++;
+				j++;
+			}
+		}
+		return shared;
+	}
+	
+	public static double cosine(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		if(a.size() > b.size())
+			return cosine(b, a);
+		
+		double aLength = 0.0;
+		double bLength = 0.0;
+		double dotProduct = 0.0;
+		
+		int[] match = match(a, b);
+		int pos;
+		double value;
+		for(int k = 0; k < a.size(); k++){
+			pos = a.getOrder(k);
+			value = a.getWeight(pos);
+			if(match[pos] >= 0)
+				dotProduct += value * b.getWeight(match[pos]);
+			aLength += value * value;
+		}
+		
+		for(int k = 0; k < b.size(); k++){
+			value = b.getWeight(b.getOrder(k));
+			bLength += value * value;
+		}
+		
+		double result;
+		if(aLength == 0.0 || bLength == 0.0)
+			result = 0.0;
+		else
+			result = dotProduct / Math.sqrt(aLength * bLength);
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	/**
+	 * The sums in Pearson's correlation depend on the iteration order of the HashMaps that SimMeasure.pearson() creates for the zero-filled vectors.
+	 * That order cannot be reproduced from the sparse vectors, so the same maps are built here.
+	 */
+	public static double pearson(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		return SimMeasure.pearson(a.toMap(), b.toMap());
+	}
+	
+	/**
+	 * The ranks of the zero-filled vectors are found from the tied ranks of the vectors themselves:
+	 * the zeros added from the other vector only shift the ranks of zero and negative weights.
+	 * All the ranks are multiples of 0.5 and the mean rank is exactly (n+1)/2, so every sum in the correlation is computed exactly, and the order of summation does not change the result.
+	 */
+	public static double spearman(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		int shared = countShared(a, b);
+		int n = a.size() + b.size() - shared;
+		double[] ranksA = getFilledRanks(a, b.size() - shared);
+		double[] ranksB = getFilledRanks(b, a.size() - shared);
+		double fillA = ranksA[a.size()], fillB = ranksB[b.size()];
+		
+		double mean1 = 0.0, mean2 = 0.0;
+		for(int i = 0; i < a.size(); i++)
+			mean1 += ranksA[i];
+		mean1 += fillA * (b.size() - shared);
+		mean1 /= n;
+		for(int j = 0; j < b.size(); j++)
+			mean2 += ranksB[j];
+		mean2 += fillB * (a.size() - shared);
+		mean2 /= n;
+		
+		double sumAB = 0.0, sumAA = 0.0, sumBB = 0.0;
+		double rankA, rankB;
+		int i = 0, j = 0, idA, idB;
+		while(i < a.size() || j < b.size()){
+			idA = (i < a.size()) ? a.getId(i) : Integer.MAX_VALUE;
+			idB = (j < b.size()) ? b.getId(j) : Integer.MAX_VALUE;
+			if(j >= b.size() || (i < a.size() && idA < idB)){
+				rankA = ranksA[i++];
+				rankB = fillB;
+			}
+			else if(i >= a.size() || idA > idB){
+				rankA = fillA;
+				rankB = ranksB[j++];
+			}
+			else {
+				rankA = ranksA[i++];
+				rankB = ranksB[j++];
+			}
+			sumAB += (rankA - mean1)*(rankB - mean2);
+			sumAA += (rankA - mean1)*(rankA - mean1);
+			sumBB += (rankB - mean2)*(rankB - mean2);
+		}
+		
+		double result;
+		if(sumAA == 0.0 || sumBB == 0.0)
+			result = 0.0;
+		else
+			result = sumAB / (Math.sqrt(sumAA * sumBB));
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	/**
+	 * Get the ranks of the entries after adding zeros to the vector, as in Tools._convert_to_ranks(SimMeasure.fillVector()).
+	 * @param a The vector
+	 * @param numZeros Number of added zeros
+	 * @return Ranks by position, followed by the rank of the added zeros.
+	 */
+	private static double[] getFilledRanks(SparseVector a, int numZeros){
+		double[] tiedRanks = a.getTiedRanks();
+		double[] ranks = new double[a.size() + 1];
+		int numPositive = 0, numZero = 0;
+		for(int i = 0; i < a.size(); i++){
+			if(a.getWeight(i) > 0.0)
+				numPositive++;
+			else if(a.getWeight(i) == 0.0)
+				numZero++;
+		}
+		double zeroRank = (numPositive+1+numPositive+numZero+numZeros)/2.0;
+		for(int i = 0; i < a.size(); i++){
+			if(a.getWeight(i) > 0.0)
+				ranks[i] = tiedRanks[i];
+			else if(a.getWeight(i) == 0.0)
+				ranks[i] = zeroRank;
+			else
+				ranks[i] = tiedRanks[i] + numZeros;
+		}
+		ranks[a.size()] = zeroRank;
+		return ranks;
+	}
+	
+	public static double jaccardSet(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		if(a.size() > b.size())
+			return jaccardSet(b, a);
+		
+		double intersectionSize = 0;
+		int unionSize = 0;
+		int i = 0, j = 0, idA, idB;
+		while(i < a.size() || j < b.size()){
+			idA = (i < a.size()) ? a.getId(i) : Integer.MAX_VALUE;
+			idB = (j < b.size()) ? b.getId(j) : Integer.MAX_VALUE;
+			if(j >= b.size() || (i < a.size() && idA < idB)){
+				if(a.getWeight(i) != 0.0)
+					unionSize++;
+				i++;
+			}
+			else if(i >= a.size() || idA > idB){
+				if(b.getWeight(j) != 0.0)
+					unionSize++;
+				j++;
+			}
+			else {
+				if(b.getWeight(j) != 0.0)
+					intersectionSize++;
+				if(a.getWeight(i) != 0.0 || b.getWeight(j) != 0.0)
+					unionSize++;
+				i++;
+				j++;
+			}
+		}
+		
+		double result;
+		if(unionSize == 0)
+			result = 0.0;
+		else
+			result = intersectionSize / unionSize;
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double lin(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		if(a.size() > b.size())
+			return lin(b, a);
+		
+		double aSum = 0.0;
+		double bSum = 0.0;
+		double combinedSum = 0.0;
+		
+		int[] match = match(a, b);
+		int pos;
+		double value, bValue;
+		for(int k = 0; k < a.size(); k++){
+			pos = a.getOrder(k);
+			value = a.getWeight(pos);
+			if(value <= 0.0)
+				continue;
+			if(match[pos] >= 0){
+				bValue = b.getWeight(match[pos]);
+				if(bValue > 0.0)
+					combinedSum += value + bValue;
+			}
+			aSum += value;
+		}
+		
+		for(int k = 0; k < b.size(); k++){
+			value = b.getWeight(b.getOrder(k));
+			if(value > 0.0)
+				bSum += value;
+		}
+		
+		double result;
+		if(aSum + bSum == 0.0)
+			result = 0.0;
+		else
+			result = combinedSum / (aSum + bSum);
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double diceSet(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		if(a.size() > b.size())
+			return diceSet(b, a);
+		
+		double sharedCount = countSharedNonZeroB(a, b), aCount = countNonZero(a), bCount = countNonZero(b);
+		
+		double result;
+		if(aCount + bCount == 0.0)
+			result = 0.0;
+		else
+			result = 2 * sharedCount / (aCount + bCount);
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double overlapSet(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		if(a.size() > b.size())
+			return overlapSet(b, a);
+		
+		double sharedCount = countSharedNonZeroB(a, b), aCount = countNonZero(a), bCount = countNonZero(b);
+		
+		double result;
+		if(Math.min(aCount,  bCount) == 0.0)
+			result = 0.0;
+		else
+			result = sharedCount / Math.min(aCount,  bCount);
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double cosineSet(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		if(a.size() > b.size())
+			return cosineSet(b, a);
+		
+		double sharedCount = countSharedNonZeroB(a, b), aCount = countNonZero(a), bCount = countNonZero(b);
+		
+		double result;
+		if(aCount == 0.0 || bCount == 0.0)
+			result = 0.0;
+		else
+			result = sharedCount / Math.sqrt(aCount * bCount);
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double jaccardGen(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double minSum = 0.0, maxSum = 0.0;
+		
+		int[] match = match(a, b);
+		int pos;
+		double value, bValue;
+		for(int k = 0; k < a.size(); k++){
+			pos = a.getOrder(k);
+			value = a.getWeight(pos);
+			if(match[pos] >= 0){
+				bValue = b.getWeight(match[pos]);
+				minSum += Math.min(value, bValue);
+				maxSum += Math.max(value, bValue);
+			}
+			else
+				maxSum += value;
+		}
+		
+		int[] matchB = match(b, a);
+		for(int k = 0; k < b.size(); k++){
+			pos = b.getOrder(k);
+			if(matchB[pos] < 0)
+				maxSum += b.getWeight(pos);
+		}
+		
+		double result;
+		if(maxSum == 0.0)
+			result = 0.0;
+		else
+			result = minSum / maxSum;
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double diceGen(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double minSum = 0.0, sum = 0.0;
+		
+		int[] match = match(a, b);
+		int pos;
+		double value;
+		for(int k = 0; k < a.size(); k++){
+			pos = a.getOrder(k);
+			value = a.getWeight(pos);
+			if(match[pos] >= 0)
+				minSum += Math.min(value, b.getWeight(match[pos]));
+			sum += value;
+		}
+		
+		for(int k = 0; k < b.size(); k++)
+			sum += b.getWeight(b.getOrder(k));
+		
+		double result;
+		if(sum == 0.0)
+			result = 0.0;
+		else
+			result = 2 * minSum / sum;
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double diceGen2(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double uSum = 0.0, sum = 0.0;
+		
+		int[] match = match(a, b);
+		int pos;
+		double value;
+		for(int k = 0; k < a.size(); k++){
+			pos = a.getOrder(k);
+			value = a.getWeight(pos);
+			if(match[pos] >= 0)
+				uSum += value * b.getWeight(match[pos]);
+			sum += value;
+		}
+		
+		for(int k = 0; k < b.size(); k++)
+			sum += b.getWeight(b.getOrder(k));
+		
+		double result;
+		if(sum == 0.0)
+			result = 0.0;
+		else
+			result = uSum / sum;
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	/**
+	 * Kendall's tau only depends on counts of ties and exchanges, so the features can be processed in any order.
+	 * The union of the features is sorted by the weights in a and then b, and the exchanges are counted with a merge sort on the weights in b.
+	 */
+	public static double kendallsTau(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		int n = a.size() + b.size() - countShared(a, b);
+		long[] keysA = new long[n];
+		long[] keysB = new long[n];
+		int i = 0, j = 0, k = 0, idA, idB;
+		while(i < a.size() || j < b.size()){
+			idA = (i < a.size()) ? a.getId(i) : Integer.MAX_VALUE;
+			idB = (j < b.size()) ? b.getId(j) : Integer.MAX_VALUE;
+			if(j >= b.size() || (i < a.size() && idA < idB)){
+				keysA[k] = sortKey(a.getWeight(i++));
+				keysB[k] = sortKey(0.0);
+			}
+			else if(i >= a.size() || idA > idB){
+				keysA[k] = sortKey(0.0);
+				keysB[k] = sortKey(b.getWeight(j++));
+			}
+			else {
+				keysA[k] = sortKey(a.getWeight(i++));
+				keysB[k] = sortKey(b.getWeight(j++));
+			}
+			k++;
+		}
+		
+		// Sort by values of a and, if tied, by values of b.
+		sort(keysA, keysB, 0, n, new long[n], new long[n]);
+		
+		// Compute joint ties and ties in a
+		double t = 0, u = 0;
+		int start = 0, startA = 0;
+		for(k = 1; k < n; k++){
+			if(keysA[start] == keysA[k] && keysB[start] == keysB[k])
+				t += k-start;
+			else
+				start = k;
+			if(keysA[startA] == keysA[k])
+				u += k-startA;
+			else
+				startA = k;
+		}
+		
+		// Count exchanges
+		double exchanges = countExchanges(keysB, 0, n, new long[n]);
+		
+		// Compute ties in b (after mergesort has been performed, sorting the elements according to b).
+		double v = 0;
+		start = 0;
+		for(k = 1; k < n; k++){
+			if(keysB[start] == keysB[k])
+				v += k-start;
+			else
+				start = k;
+		}
+		
+		double nn = n;
+		double tot = (nn * (nn-1)) / 2;
+		if(tot == u || tot == v){
+			return 1.0;
+		}
+		
+		double tau = ((tot-(v+u-t)) - 2.0 * exchanges) / Math.sqrt((tot-u) * (tot-v));
+		
+		SimMeasure.validateResult(tau);
+		return tau;
+	}
+	
+	/**
+	 * Map a double to a long with the same ordering as the comparison operators, with 0.0 and -0.0 being equal.
+	 */
+	private static long sortKey(double value){
+		long bits = Double.doubleToLongBits(value + 0.0);
+		return bits ^ ((bits >> 63) & 0x7fffffffffffffffL);
+	}
+	
+	/**
+	 * Merge sort the pairs (keys1[i], keys2[i]) in the range [from, to).
+	 */
+	private static void sort(long[] keys1, long[] keys2, int from, int to, long[] temp1, long[] temp2){
+		if(to - from < 2)
+			return;
+		int middle = (from + to) >>> 1;
+		sort(keys1, keys2, from, middle, temp1, temp2);
+		sort(keys1, keys2, middle, to, temp1, temp2);
+		int i = from, j = middle, k = from;
+		while(i < middle || j < to){
+			if(j >= to || (i < middle && (keys1[i] < keys1[j] || (keys1[i] == keys1[j] && keys2[i] <= keys2[j])))){
+				temp1[k] = keys1[i];
+				temp2[k++] = keys2[i++];
+			}
+			else {
+				temp1[k] = keys1[j];
+				temp2[k++] = keys2[j++];
+			}
+		}
+		System.arraycopy(temp1, from, keys1, from, to - from);
+		System.arraycopy(temp2, from, keys2, from, to - from);
+	}
+	
+	/**
+	 * Merge sort the keys in the range [from, to) and count the pairs that are out of order.
+	 */
+	private static long countExchanges(long[] keys, int from, int to, long[] temp){
+		if(to - from < 2)
+			return 0;
+		int middle = (from + to) >>> 1;
+		long exchanges = countExchanges(keys, from, middle, temp) + countExchanges(keys, middle, to, temp);
+		int i = from, j = middle, k = from;
+		while(i < middle || j < to){
+			if(j >= to || (i < middle && keys[i] <= keys[j]))
+				temp[k++] = keys[i++];
+			else {
+				temp[k++] = keys[j++];
+				exchanges += middle - i;
+			}
+		}
+		System.arraycopy(temp, from, keys, from, to - from);
+		return exchanges;
+	}
+	
+	public static double clarkeDE(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double minSum = 0.0, aSum = 0.0;
+		
+		int[] match = match(a, b);
+		int pos;
+		double value;
+		for(int k = 0; k < a.size(); k++){
+			pos = a.getOrder(k);
+			value = a.getWeight(pos);
+			aSum += value;
+			if(match[pos] >= 0)
+				minSum += Math.min(value, b.getWeight(match[pos]));
+		}
+		
+		double result;
+		if(aSum == 0.0)
+			result = 0.0;
+		else
+			result = minSum / aSum;
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double weedsPrec(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double sumA = 0.0, sumBoth = 0.0;
+		
+		int[] match = match(a, b);
+		int pos;
+		double value;
+		for(int k = 0; k < a.size(); k++){
+			pos = a.getOrder(k);
+			value = a.getWeight(pos);
+			if(value > 0.0){
+				sumA += value;
+				if(match[pos] >= 0 && b.getWeight(match[pos]) > 0.0)
+					sumBoth += value;
+			}
+		}
+		
+		double result;
+		if(sumA == 0.0)
+			result = 0.0;
+		else
+			result = sumBoth / sumA;
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double weedsRec(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double result = weedsPrec(b, a);
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double weedsF(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double prec = weedsPrec(a, b);
+		double rec = weedsRec(a, b);
+		
+		double result;
+		if(prec + rec == 0.0)
+			result = 0.0;
+		else
+			result = 2 * prec * rec / (prec + rec);
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double ap(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		int[] match = match(a, b);
+		int[] aSorted = a.getSortedOrder();
+		
+		int r = 0;
+		double sum = 0.0, correctReturned = 0.0;
+		for(int k = 0; k < aSorted.length; k++){
+			r++;
+			
+			if(match[aSorted[k]] >= 0){
+				correctReturned++;
+				sum += correctReturned / r;
+			}
+		}
+		
+		double result;
+		if(b.size() == 0)
+			result = 0.0;
+		else
+			result = sum / (double)b.size();
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double apInc(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		int[] match = match(a, b);
+		int[] aSorted = a.getSortedOrder();
+		int[] bRanks = b.getSortedRanks();
+		
+		int r = 0;
+		double sum = 0.0, correctReturned = 0.0, p, rel;
+		for(int k = 0; k < aSorted.length; k++){
+			r++;
+			
+			if(match[aSorted[k]] >= 0){
+				correctReturned++;
+				p = correctReturned / r;
+				rel = 1.0 - ((double)bRanks[match[aSorted[k]]] / ((double)b.size() + 1.0));
+				sum += p * rel;
+			}
+		}
+		
+		double result;
+		if(a.size() == 0)
+			result = 0.0;
+		else
+			result = sum / (double)a.size();
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double balAPInc(SparseVector a, SparseVector b){
+		double lin = lin(a, b);
+		double apInc = apInc(a, b);
+		double result = Math.sqrt(lin * apInc);
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double linD(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double aSum = 0.0;
+		double bSum = 0.0;
+		double combinedSum = 0.0;
+		
+		int[] match = match(a, b);
+		int pos;
+		double value, bValue;
+		for(int k = 0; k < a.size(); k++){
+			pos = a.getOrder(k);
+			value = a.getWeight(pos);
+			if(value <= 0.0)
+				continue;
+			if(match[pos] >= 0){
+				bValue = b.getWeight(match[pos]);
+				if(bValue > 0.0){
+					combinedSum += value + bValue;
+					bSum += bValue;
+				}
+			}
+			aSum += value;
+		}
+		
+		double result;
+		if(aSum + bSum == 0.0)
+			result = 0.0;
+		else
+			result = combinedSum / (aSum + bSum);
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double balPrec(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double lin = lin(a, b);
+		double weedsPrec = weedsPrec(a, b);
+		double result = Math.sqrt(lin * weedsPrec);
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double klDivergence(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double divergence = 0;
+		
+		int[] match = match(b, a);
+		int pos;
+		double value, aValue;
+		for(int k = 0; k < b.size(); k++){
+			pos = b.getOrder(k);
+			if(match[pos] < 0)
+				continue;
+			value = b.getWeight(pos);
+			aValue = a.getWeight(match[pos]);
+			if(aValue > 0.0 && value > 0.0)
+				divergence += value * Math.log(value/ aValue);
+		}
+		
+		SimMeasure.validateResult(divergence);
+		return divergence;
+	}
+	
+	public static double klDivergenceR(SparseVector a, SparseVector b){
+		return klDivergence(b, a);
+	}
+	
+	public static double jsDivergence(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double divergence = 0;
+		
+		int[] match = match(a, b);
+		int pos;
+		double value, otherValue;
+		for(int k = 0; k < a.size(); k++){
+			pos = a.getOrder(k);
+			value = a.getWeight(pos);
+			otherValue = (match[pos] >= 0) ? b.getWeight(match[pos]) : 0.0;
+			if(otherValue > 0.0 && value > 0.0)
+				divergence += value * Math.log(value/ ((value + otherValue)/2));
+			else if(otherValue == 0.0 && value > 0.0)
+				divergence += value * Math.log(value/ (value/2));
+		}
+		
+		match = match(b, a);
+		for(int k = 0; k < b.size(); k++){
+			pos = b.getOrder(k);
+			value = b.getWeight(pos);
+			if(value <= 0.0)
+				continue;
+			otherValue = (match[pos] >= 0) ? a.getWeight(match[pos]) : 0.0;
+			if(otherValue > 0.0)
+				divergence += value * Math.log(value/ ((value + otherValue)/2));
+			else if(otherValue == 0.0)
+				divergence += value * Math.log(value/ (value/2));
+		}
+		
+		SimMeasure.validateResult(divergence);
+		return divergence;
+	}
+	
+	public static double alphaSkew(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		double alpha = 0.99;
+		
+		double divergence = 0;
+		
+		int[] match = match(b, a);
+		int pos;
+		double value, aValue;
+		for(int k = 0; k < b.size(); k++){
+			pos = b.getOrder(k);
+			value = b.getWeight(pos);
+			if(value <= 0.0)
+				continue;
+			if(match[pos] >= 0){
+				aValue = a.getWeight(match[pos]);
+				if(aValue > 0.0)
+					divergence += value * Math.log(value/ ((1-alpha) * value + alpha * aValue));
+			}
+			else
+				divergence += value * Math.log(value/ ((1-alpha) * value));
+		}
+		
+		SimMeasure.validateResult(divergence);
+		return divergence;
+	}
+	
+	public static double alphaSkewR(SparseVector a, SparseVector b){
+		return alphaSkew(b, a);
+	}
+	
+	public static double manhattan(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double sum = 0.0;
+		
+		int[] match = match(a, b);
+		int pos;
+		for(int k = 0; k < a.size(); k++){
+			pos = a.getOrder(k);
+			if(match[pos] >= 0)
+				sum += Math.abs(a.getWeight(pos) - b.getWeight(match[pos]));
+			else
+				sum += Math.abs(a.getWeight(pos));
+		}
+		
+		match = match(b, a);
+		for(int k = 0; k < b.size(); k++){
+			pos = b.getOrder(k);
+			if(match[pos] < 0)
+				sum += Math.abs(b.getWeight(pos));
+		}
+		
+		SimMeasure.validateResult(sum);
+		return sum;
+	}
+	
+	public static double euclidean(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double sum = 0.0;
+		
+		int[] match = match(a, b);
+		int pos;
+		for(int k = 0; k < a.size(); k++){
+			pos = a.getOrder(k);
+			if(match[pos] >= 0)
+				sum += Math.pow(a.getWeight(pos) - b.getWeight(match[pos]), 2);
+			else
+				sum += Math.pow(a.getWeight(pos), 2);
+		}
+		
+		match = match(b, a);
+		for(int k = 0; k < b.size(); k++){
+			pos = b.getOrder(k);
+			if(match[pos] < 0)
+				sum += Math.pow(b.getWeight(pos), 2);
+		}
+		
+		double result = Math.sqrt(sum);
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double chebyshev(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double max = 0.0;
+		
+		int[] match = match(a, b);
+		int pos;
+		for(int k = 0; k < a.size(); k++){
+			pos = a.getOrder(k);
+			if(match[pos] >= 0 && Math.abs(a.getWeight(pos) - b.getWeight(match[pos])) > max)
+				max = Math.abs(a.getWeight(pos) - b.getWeight(match[pos]));
+			else if(match[pos] < 0 && Math.abs(a.getWeight(pos)) > max)
+				max = Math.abs(a.getWeight(pos));
+		}
+		
+		match = match(b, a);
+		for(int k = 0; k < b.size(); k++){
+			pos = b.getOrder(k);
+			if(match[pos] < 0 && Math.abs(b.getWeight(pos)) > max)
+				max = Math.abs(b.getWeight(pos));
+		}
+		
+		SimMeasure.validateResult(max);
+		return max;
+	}
+	
+	public static double weightedCosine(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double C = 0.5;
+		
+		double aLength = 0.0;
+		double bLength = 0.0;
+		double dotProduct = 0.0;
+		
+		int[] match = match(b, a);
+		int[] bSorted = b.getSortedOrder();
+		double[] ranks = b.getTiedRanks();
+		int pos;
+		double aValue, bValue;
+		for(int k = 0; k < bSorted.length; k++){
+			pos = bSorted[k];
+			bValue = b.getWeight(pos);
+			if(match[pos] >= 0){
+				aValue = a.getWeight(match[pos]);
+				double w = (1.0 - (ranks[pos] / ((double)b.size() + 1.0)))*(1.0 - C) + C;
+				dotProduct += (bValue * w) * (aValue * w);
+				aLength += Math.pow(aValue * w, 2.0);
+				bLength += Math.pow(bValue * w, 2.0);
+			}
+			else {
+				bLength += Math.pow(bValue * C, 2.0);
+			}
+		}
+		
+		match = match(a, b);
+		for(int k = 0; k < a.size(); k++){
+			pos = a.getOrder(k);
+			if(match[pos] < 0)
+				aLength += Math.pow(C * a.getWeight(pos), 2.0);
+		}
+		
+		double result;
+		if(aLength == 0.0 || bLength == 0.0)
+			result = 0.0;
+		else
+			result = dotProduct / Math.sqrt(aLength * bLength);
+		
+		SimMeasure.validateResult(result);
+		return result;
+	}
+	
+	public static double weightedCosine2(SparseVector a, SparseVector b){
+		validateVectors(a, b);
+		
+		double C = 0.5;
+		
+		double aLength = 0.0;
+		double bLength = 0.0;
+		double dotProduct = 0.0;
+		
+		int[] match = match(b, a);
+		int[] bSorted = b.getSortedOrder();
+		int pos;
+		double aValue, bValue;
+		double rank = 0.0;
+		long previousBits = 0;
+		for(int k = 0; k < bSorted.length; k++){
+			pos = bSorted[k];
+			bValue = b.getWeight(pos);
+			// Tied weights are compared the same way as Double.equals()
+			if(k == 0 || Double.doubleToLongBits(bValue) != previousBits){
+				rank = k + 1;
+				previousBits = Double.doubleToLongBits(bValue);
+			}
+			
+			double w = (1.0 - (rank / ((double)b.size() + 1.0)))*(1.0 - C) + C;
+			if(match[pos] >= 0){
+				aValue = a.getWeight(match[pos]);
+				dotProduct += (bValue * w) * (aValue * w);
+				aLength += Math.pow(aValue * w, 2.0);
+				bLength += Math.pow(bValue * w, 2.0);
+			}
+			else {
+				bLength += Math.pow(bValue * C, 2.0);
+			}
+		}
+		
+		match = match(a, b);
+		for(int k = 0; k < a.size(); k++){
+			pos = a.getOrder(k);
+			if(match[pos] < 0)
+				aLength += Math.pow(C * a.getWeight(pos), 2.0);
+		}
+		
+		double result;
+		if(aLength == 0.0 || bLength == 0.0)
+			result = 0.0;
+		else
+			result = dotProduct / Math.sqrt(aLength * bLength);
+		
+		SimMeasure.validateResult(result);
+		return result;
+	}
+}
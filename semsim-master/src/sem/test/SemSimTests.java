@@ -7,12 +7,14 @@ import org.junit.runners.Suite.SuiteClasses;
 import sem.test.model.ModelTest;
 import sem.test.sim.SimilarityTest;
 import sem.test.util.IndexTest;
+import sem.test.util.LocationIndexTest;
 import sem.test.util.TensorTest;
 
 @RunWith(Suite.class)
 @SuiteClasses({ ModelTest.class, 
 				SimilarityTest.class,
 				IndexTest.class,
+				LocationIndexTest.class,
 				TensorTest.class
 				})
 
@@ -2,15 +2,43 @@ package sem.test.model;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import sem.exception.SemModelException;
+import sem.graph.Edge;
 import sem.graph.Graph;
 import sem.graph.Node;
+import sem.model.ExternalModelBuilder;
+import sem.model.IngestProgress;
+import sem.model.ProgressListener;
 import sem.model.SemModel;
+import sem.model.VectorSpace;
+import sem.run.BuildModel;
+import sem.sim.CandidateIndex;
+import sem.sim.LshIndex;
+import sem.sim.SimFinder;
+import sem.sim.SimMeasure;
+import sem.sim.SimilarityJoin;
+import sem.sim.SimilaritySink;
 import sem.test.util.ToolsTest;
+import sem.util.SparseVector;
+import sem.util.Tools;
+import sem.util.TripleCountCache;
+import sem.util.VectorCache;
 
 public class ModelTest {
 	
@@ -90,6 +118,88 @@ public class ModelTest {
 		assertTrue(vsm.getTripleCount(null, null, null) == 8);
 		
 	}
+	
+	@Test
+	public void testSymmetric() throws SemModelException {
+		SemModel vsm = new SemModel(false);
+		vsm.add(createGraph());
+		vsm.makeTensorSymmetric();
+		testBasic(vsm);
+		assertTrue(vsm.getTotalEdgeCount() == 8);
+		assertTrue(vsm.getEdgeCount("!3") == 0);
+		
+		assertTrue(vsm.getTripleCount("C_C", "!3", "D_D") == 2);
+		assertTrue(vsm.getTripleCount("A_A", "!1", "C_C") == 1);
+		assertTrue(vsm.getTripleCount("A_A", null, null) == 5);
+		assertTrue(vsm.getTripleCount(null, "!3", null) == 3);
+		assertTrue(vsm.getTripleCount(null, null, "A_A") == 5);
+		assertTrue(vsm.getTripleCount(null, null, null) == 16);
+		
+		// Calling it again does not mirror the reverse edges
+		int edges = vsm.getEdgeIndex().size();
+		vsm.makeTensorSymmetric();
+		vsm.freeze();
+		assertTrue(vsm.getEdgeIndex().size() == edges);
+		assertTrue(vsm.getTripleCount("C_C", "!3", "D_D") == 2);
+		assertTrue(vsm.getTripleCount(null, null, null) == 16);
+		
+		// Changes after the model is made symmetric are applied to a copy with all the edges
+		Graph graph = new Graph();
+		graph.addEdge("3", graph.addNode("D", "D"), graph.addNode("C", "C"));
+		vsm.add(graph);
+		assertTrue(vsm.getTripleCount("D_D", "3", "C_C") == 3);
+		assertTrue(vsm.getTripleCount("C_C", "!3", "D_D") == 2);
+	}
+	
+	@Test
+	public void testTripleCache() throws SemModelException {
+		SemModel vsm = new SemModel(false, true);
+		// A small cache, so that entries are evicted
+		vsm.setTripleCacheSize(8 * TripleCountCache.ENTRY_BYTES);
+		vsm.add(createGraph());
+		SemModel uncached = new SemModel(false);
+		uncached.add(createGraph());
+		
+		String[] nodes = {null, "A_A", "B_B", "C_C", "D_D", "X_X"};
+		String[] edges = {null, "1", "2", "3", "9"};
+		for(int round = 0; round < 2; round++)
+			for(String head : nodes)
+				for(String edge : edges)
+					for(String dep : nodes)
+						assertEquals(uncached.getTripleCount(head, edge, dep), vsm.getTripleCount(head, edge, dep), 0.0);
+		assertNull(uncached.getTripleCache());
+		assertEquals(8, vsm.getTripleCache().capacity());
+		assertTrue(vsm.getTripleCache().size() <= 8);
+		
+		// The cache is created when it is enabled, and dropped when it is disabled
+		uncached.enableCache();
+		assertTrue(uncached.getTripleCount("D_D", "3", "C_C") == 2);
+		assertEquals(1, uncached.getTripleCache().size());
+		assertEquals(new TripleCountCache(SemModel.DEFAULT_TRIPLE_CACHE_BYTES).capacity(), uncached.getTripleCache().capacity());
+		uncached.disableCache();
+		assertTrue(uncached.getTripleCount("D_D", "3", "C_C") == 2);
+		assertNull(uncached.getTripleCache());
+		
+		// Making the model symmetric changes the counts, so the cache is cleared
+		assertTrue(vsm.getTripleCount(null, null, "A_A") == 4);
+		vsm.makeTensorSymmetric();
+		assertTrue(vsm.getTripleCount(null, null, "A_A") == 5);
+		
+		// Adding a graph changes the counts, so the cache is cleared
+		assertTrue(vsm.getTripleCount("D_D", "3", "C_C") == 2);
+		vsm.add(createGraph());
+		assertTrue(vsm.getTripleCount("D_D", "3", "C_C") == 4);
+		
+		TripleCountCache cache = new TripleCountCache(1 << 20);
+		assertTrue(Double.isNaN(cache.get(1, 0, 2)));
+		cache.put(1, 0, 2, 3.0);
+		cache.put(1, 0, 2, 4.0);
+		assertEquals(4.0, cache.get(1, 0, 2), 0.0);
+		assertTrue(Double.isNaN(cache.get(2, 0, 1)));
+		assertEquals(1, cache.size());
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
 	/*
 	@Test
 	public void testNull() {
@@ -122,7 +232,7 @@ public class ModelTest {
 	}
 	*/
 	@Test
-	public void testSave(){
+	public void testSave() throws SemModelException {
 		SemModel vsm = new SemModel(true);
 		Graph graph = createGraph();
 		try {
@@ -147,6 +257,649 @@ public class ModelTest {
 		assertTrue(vsm2.getTripleCount(null, null, "A_A") == 4);
 		
 		assertTrue(vsm2.getTripleCount(null, null, null) == 8);
+		
+		// The global counts are read from the saved statistics
+		assertTrue(vsm2.getStatistics() != null);
+		assertTrue(vsm2.getTripleTypeCount() == 7);
+		assertTrue(vsm2.getTotalCoocCount() == 30);
+		assertTrue(vsm2.getStatistics().getRelationTypeCount(vsm2.getEdgeIndex().getId("3")) == 2);
+		assertTrue(vsm2.getStatistics().getHeadCount(vsm2.getNodeIndex().getId("C_C")) == 3);
+		assertTrue(vsm2.getStatistics().getDepCount(vsm2.getNodeIndex().getId("A_A")) == 4);
+		
+		// Statistics that do not match the model are ignored, and modifying the model drops them
+		vsm.add(graph);
+		assertTrue(vsm.getStatistics() == null);
+		assertTrue(vsm.getTripleCount(null, "2", null) == 4);
+		assertTrue(vsm.getTripleTypeCount() == 7);
+		vsm.save(file + "2");
+		new File(file + "2" + "_stats.bin").renameTo(new File(file + "_stats.bin"));
+		SemModel vsm3 = new SemModel(file, true);
+		assertTrue(vsm3.getStatistics() == null);
+		assertTrue(vsm3.getTripleCount(null, null, null) == 8);
+		vsm2.add(graph);
+		assertTrue(vsm2.getStatistics() == null);
+		assertTrue(vsm2.getTripleCount(null, null, null) == 16);
+		assertTrue(vsm2.getTotalCoocCount() == 60);
+	}
+	
+	@Test
+	public void testFreeze(){
+		SemModel vsm = new SemModel(true);
+		Graph graph = createGraph();
+		try {
+			vsm.add(graph);
+		} catch (SemModelException e) {
+			e.printStackTrace();
+		}
+		vsm.freeze();
+		testBasic(vsm);
+		assertTrue(vsm.getTripleCount("C_C", null, "A_A") == 3);
+		assertTrue(vsm.getTripleCount(null, null, null) == 8);
+		
+		// Modifying a frozen model copies the tensor back into a mutable one
+		try {
+			vsm.add(graph);
+		} catch (SemModelException e) {
+			e.printStackTrace();
+		}
+		assertTrue(vsm.getTripleCount(null, null, null) == 16);
+	}
+	
+	@Test
+	public void testSaveText(){
+		SemModel vsm = new SemModel(true);
+		Graph graph = createGraph();
+		try {
+			vsm.add(graph);
+		} catch (SemModelException e) {
+			e.printStackTrace();
+		}
+		
+		vsm.saveText(file);
+		
+		SemModel vsm2 = new SemModel(file, true);
+		testBasic(vsm2);
+		assertTrue(vsm2.getTotalEdgeCount() == 8);
+		assertTrue(vsm2.getTripleCount(null, null, "A_A") == 4);
+		
+		// Adding to a loaded binary model copies the tensor into memory
+		vsm2.save(file);
+		SemModel vsm3 = new SemModel(file, true);
+		assertTrue(vsm3.getTripleCount(null, null, "A_A") == 4);
+		assertTrue(vsm3.getTripleCount(null, null, null) == 8);
+		try {
+			vsm3.add(graph);
+		} catch (SemModelException e) {
+			e.printStackTrace();
+		}
+		assertTrue(vsm3.getTripleCount("D_D", "3", "C_C") == 4);
+		assertTrue(vsm3.getTripleCount(null, null, null) == 16);
+	}
+
+	@Test
+	public void testConcurrentAdd() throws InterruptedException {
+		final SemModel vsm = new SemModel(true);
+		final Graph graph = createGraph();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(int t = 0; t < 4; t++){
+			threads.add(new Thread(){
+				public void run(){
+					for(int i = 0; i < 25; i++){
+						try {
+							vsm.add(graph);
+						} catch (SemModelException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			});
+		}
+		for(Thread thread : threads)
+			thread.start();
+		for(Thread thread : threads)
+			thread.join();
+		
+		assertTrue(vsm.getTotalNodeCount() == 600);
+		assertTrue(vsm.getNodeCount("A_A") == 200);
+		assertTrue(vsm.getTripleCount(null, null, null) == 800);
+		assertTrue(vsm.getTripleCount("D_D", "3", "C_C") == 200);
+		assertTrue(vsm.getLocationMatchCount("A_A", "B_B") == 200);
 	}
 
+	@Test
+	public void testMerge() throws SemModelException {
+		Graph graph2 = new Graph();
+		Node n1 = graph2.addNode("E", "E");
+		Node n2 = graph2.addNode("A", "A");
+		graph2.addEdge("5", n1, n2);
+		graph2.addEdge("1", n2, n1);
+		
+		SemModel sequential = new SemModel(true);
+		sequential.add(createGraph());
+		sequential.add(graph2);
+		sequential.add(createGraph());
+		
+		SemModel partial1 = new SemModel(true);
+		partial1.add(createGraph());
+		SemModel partial2 = new SemModel(true);
+		partial2.add(graph2);
+		partial2.add(createGraph());
+		
+		SemModel merged = new SemModel(true);
+		merged.merge(partial1);
+		merged.merge(partial2);
+		
+		for(String label : sequential.getNodeIndex().getIdMap().keySet()){
+			assertTrue(merged.getNodeIndex().getId(label).equals(sequential.getNodeIndex().getId(label)));
+			assertTrue(merged.getNodeCount(label) == sequential.getNodeCount(label));
+		}
+		for(String label : sequential.getEdgeIndex().getIdMap().keySet())
+			assertTrue(merged.getEdgeIndex().getId(label).equals(sequential.getEdgeIndex().getId(label)));
+		assertTrue(merged.getNodeIndex().size() == 5);
+		assertTrue(merged.getTripleCount(null, null, null) == 18);
+		assertTrue(merged.getTripleCount("E_E", "5", "A_A") == 1);
+		assertTrue(merged.getTripleCount("D_D", "3", "C_C") == 4);
+		assertTrue(merged.getLocationMatchCount("A_A", "B_B") == sequential.getLocationMatchCount("A_A", "B_B"));
+		assertTrue(merged.getLocationMatchCount("A_A", "E_E") == 1);
+		assertTrue(merged.getLocationMatchCount("A_A", "A_A") == sequential.getLocationMatchCount("A_A", "A_A"));
+	}
+
+	@Test
+	public void testProgressListener() throws SemModelException {
+		final ArrayList<IngestProgress> reports = new ArrayList<IngestProgress>();
+		SemModel vsm = new SemModel(false);
+		vsm.setProgressListener(new ProgressListener(){
+			public void progress(IngestProgress progress){
+				reports.add(progress);
+			}
+		}, 2);
+		Graph graph = createGraph();
+		for(int i = 0; i < 5; i++)
+			vsm.add(graph);
+		
+		assertTrue(reports.size() == 2);
+		assertTrue(reports.get(0).getGraphs() == 2);
+		assertTrue(reports.get(1).getGraphs() == 4);
+		assertTrue(reports.get(1).getNodes() == 24);
+		assertTrue(reports.get(1).getEdges() == 32);
+		assertTrue(reports.get(1).getNodeLabels() == 4);
+		assertTrue(reports.get(1).getEdgeLabels() == 4);
+		assertTrue(vsm.getIngestProgress().getGraphs() == 5);
+		
+		vsm.setProgressListener(null, 0);
+		vsm.add(graph);
+		assertTrue(reports.size() == 2);
+	}
+
+	@Test
+	public void testMergeIntoSaved() throws SemModelException {
+		SemModel vsm = new SemModel(true);
+		vsm.add(createGraph());
+		vsm.save(file);
+		assertTrue(SemModel.exists(file));
+		assertTrue(SemModel.hasLocations(file));
+		
+		SemModel update = new SemModel(true);
+		update.add(createGraph());
+		
+		SemModel loaded = new SemModel(file, true);
+		loaded.merge(update);
+		loaded.save(file);
+		
+		SemModel vsm2 = new SemModel(file, true);
+		assertTrue(vsm2.getTripleCount(null, null, null) == 16);
+		assertTrue(vsm2.getTripleCount("D_D", "3", "C_C") == 4);
+		assertTrue(vsm2.getNodeCount("A_A") == 4);
+		// The sentences of the update do not overlap with the saved ones
+		assertTrue(vsm2.getLocationMatchCount("A_A", "B_B") == 4);
+		assertTrue(vsm2.getLocationMatchCount("A_A", "A_A") == 2);
+		
+		try {
+			loaded.merge(new SemModel(false));
+			fail();
+		} catch (RuntimeException e) {
+		}
+	}
+
+	@Test
+	public void testAppendWithLocations() throws Exception {
+		SemModel vsm = new SemModel(true);
+		vsm.add(createGraph());
+		vsm.save(file);
+		
+		String corpus = dir + "corpus.tsv";
+		Writer out = new OutputStreamWriter(new FileOutputStream(corpus), "UTF-8");
+		out.write("<s>\n<g>\n<lem>\n1\tA\tA\n2\tB\tB\n</lem>\n<gr>\n1\t2\t1\n</gr>\n</g>\n</s>\n");
+		out.write("<s>\n<g>\n<lem>\n1\tA\tA\n2\tE\tE\n</lem>\n<gr>\n5\t2\t1\n</gr>\n</g>\n</s>\n");
+		out.close();
+		
+		BuildModel.main(new String[]{"--append", "--threads", "2", "tsv", corpus, file});
+		SemModel vsm2 = new SemModel(file, true);
+		assertTrue(vsm2.getTripleCount(null, null, null) == 10);
+		assertTrue(vsm2.getTripleCount("B_B", "1", "A_A") == 2);
+		assertTrue(vsm2.getTripleCount("E_E", "5", "A_A") == 1);
+		assertTrue(vsm2.getLocationMatchCount("A_A", "B_B") == 3);
+		assertTrue(vsm2.getLocationMatchCount("A_A", "E_E") == 1);
+		
+		// The corpus file is in the list of the model, so it is not added again
+		BuildModel.main(new String[]{"--append", "tsv", corpus, file});
+		assertTrue(new SemModel(file, true).getTripleCount(null, null, null) == 10);
+	}
+	
+	@Test
+	public void testExternalBuild() throws SemModelException {
+		ExternalModelBuilder builder = new ExternalModelBuilder(100, new File(dir));
+		SemModel vsm = new SemModel(false);
+		for(int i = 0; i < 3; i++){
+			builder.add(createGraph());
+			vsm.add(createGraph());
+		}
+		assertTrue(builder.getNumRuns() == 4);
+		builder.save(file);
+		
+		SemModel vsm2 = new SemModel(file, false);
+		assertTrue(vsm2.getTotalNodeCount() == 18);
+		assertTrue(vsm2.getTripleCount(null, null, null) == 24);
+		assertTrue(vsm2.getTripleCount("D_D", "3", "C_C") == 6);
+		assertTrue(vsm2.getTripleCount("C_C", null, "A_A") == 9);
+		assertTrue(vsm2.getStatistics() != null);
+		assertTrue(vsm2.getTripleTypeCount() == vsm.getTripleTypeCount());
+		assertTrue(vsm2.getTripleCount(null, "3", null) == vsm.getTripleCount(null, "3", null));
+		assertTrue(vsm2.getTripleCount("A_A", null, null) == vsm.getTripleCount("A_A", null, null));
+		for(String label : vsm.getNodeIndex().getIdMap().keySet())
+			assertTrue(vsm2.getNodeIndex().getId(label).equals(vsm.getNodeIndex().getId(label)));
+	}
+	
+	@Test
+	public void testVectorMatrix() throws SemModelException {
+		SemModel vsm = new SemModel(false);
+		vsm.add(createGraph());
+		vsm.add(createGraph());
+		vsm.freeze();
+		
+		for(int weightScheme = VectorSpace.WEIGHT_BINARY; weightScheme <= VectorSpace.WEIGHT_PMI_LIM; weightScheme++){
+			VectorSpace vectorSpace = new VectorSpace(vsm, weightScheme, false);
+			VectorSpace matrixSpace = new VectorSpace(vsm, weightScheme, false);
+			matrixSpace.buildMatrix();
+			assertTrue(matrixSpace.getMatrix().getNumRows() == vsm.getNodeIndex().size() + 1);
+			
+			for(String label : new String[]{"A_A", "B_B", "C_C", "D_D", "X_X"}){
+				LinkedHashMap<Integer,Double> vector = vectorSpace.getVector(label);
+				// Same entries in the same order
+				assertTrue(new ArrayList<Integer>(matrixSpace.getVector(label).keySet()).equals(new ArrayList<Integer>(vector.keySet())));
+				assertTrue(matrixSpace.getVector(label).equals(vector));
+				
+				SparseVector sparse = matrixSpace.getSparseVector(label);
+				assertTrue(sparse.size() == vector.size());
+				for(int i = 1; i < sparse.size(); i++)
+					assertTrue(sparse.getId(i-1) < sparse.getId(i));
+				assertTrue(sparse.toMap().equals(vectorSpace.getSparseVector(label).toMap()));
+			}
+		}
+	}
+	
+	@Test
+	public void testVectorSpaceSave() throws SemModelException {
+		SemModel vsm = new SemModel(false);
+		vsm.add(createGraph());
+		vsm.save(file);
+		
+		for(int weightScheme = VectorSpace.WEIGHT_BINARY; weightScheme <= VectorSpace.WEIGHT_PMI_LIM; weightScheme++){
+			SemModel model = new SemModel(file, false);
+			model.makeTensorSymmetric();
+			model.freeze();
+			VectorSpace vectorSpace = new VectorSpace(model, weightScheme, false);
+			vectorSpace.save(file + VectorSpace.vectorsBinaryFileName);
+			
+			// The saved model is not made symmetric again
+			SemModel opened = new SemModel(file, false);
+			VectorSpace savedSpace = VectorSpace.load(opened, file, weightScheme, true);
+			assertTrue(savedSpace.getWeightScheme() == weightScheme);
+			assertTrue(savedSpace.getMatrix() != null);
+			assertTrue(opened.getEdgeIndex().size() < model.getEdgeIndex().size());
+			assertTrue(savedSpace.getTotalFeatureCount() == vectorSpace.getTotalFeatureCount());
+			assertTrue(savedSpace.getFeatureIndex().size() == vectorSpace.getFeatureIndex().size());
+			for(int id = 1; id <= vectorSpace.getFeatureIndex().size(); id++){
+				int key2 = vectorSpace.getFeatureIndex().getKey2(id), key3 = vectorSpace.getFeatureIndex().getKey3(id);
+				assertTrue(savedSpace.getFeatureIndex().getId(key2, key3) == id);
+				assertTrue(savedSpace.getFeatureIndex().getCount(id) == vectorSpace.getFeatureIndex().getCount(id));
+			}
+			for(String label : new String[]{"A_A", "B_B", "C_C", "D_D", "X_X"}){
+				LinkedHashMap<Integer,Double> vector = vectorSpace.getVector(label);
+				assertTrue(new ArrayList<Entry<Integer,Double>>(savedSpace.getVector(label).entrySet()).equals(new ArrayList<Entry<Integer,Double>>(vector.entrySet())));
+				assertTrue(savedSpace.getSparseVector(label).toMap().equals(vector));
+			}
+			
+			// The rows copied from the file are kept in the cache. X_X is not in the model.
+			assertTrue(savedSpace.getCache().size() == 4);
+			assertTrue(savedSpace.getSparseVector("A_A") == savedSpace.getSparseVector("A_A"));
+			
+			// The mapped matrix can be written over the file it was opened from
+			int numEntries = savedSpace.getMatrix().getNumEntries();
+			savedSpace.save(file + VectorSpace.vectorsBinaryFileName);
+			VectorSpace resaved = VectorSpace.load(new SemModel(file, false), file, weightScheme, false);
+			assertTrue(resaved.getMatrix().getNumEntries() == numEntries);
+			assertTrue(resaved.getMatrix().getRow(-1).size() == 0);
+			for(String label : new String[]{"A_A", "C_C", "X_X"})
+				assertTrue(resaved.getSparseVector(label).toMap().equals(vectorSpace.getVector(label)));
+		}
+		
+		// The cache budget is passed on to the opened vector space
+		VectorSpace uncached = VectorSpace.load(new SemModel(file, false), file, VectorSpace.WEIGHT_PMI_LIM, true, 0);
+		uncached.getSparseVector("A_A");
+		assertTrue(uncached.getMatrix() != null && uncached.getCache().size() == 0);
+		
+		// A different weight scheme or a different model is not loaded
+		SemModel opened = new SemModel(file, false);
+		assertTrue(VectorSpace.load(opened, file, VectorSpace.WEIGHT_PMI, false).getMatrix() == null);
+		SemModel other = new SemModel(false);
+		other.add(createGraph());
+		other.add(createGraph());
+		assertTrue(VectorSpace.load(other, file, VectorSpace.WEIGHT_PMI_LIM, false).getMatrix() == null);
+		
+		// The same nodes and counts, but one edge label less
+		Graph graph = createGraph();
+		for(Edge edge : graph.getEdges())
+			if(edge.getLabel().equals("4"))
+				edge.setLabel("1");
+		other = new SemModel(false);
+		other.add(graph);
+		assertTrue(other.getTotalNodeCount() == opened.getTotalNodeCount() && other.getTotalEdgeCount() == opened.getTotalEdgeCount());
+		assertTrue(VectorSpace.load(other, file, VectorSpace.WEIGHT_PMI_LIM, false).getMatrix() == null);
+		
+		// A vector space made without the reverse edges is not loaded, and does not match a symmetric model
+		opened = new SemModel(file, false);
+		new VectorSpace(opened, VectorSpace.WEIGHT_PMI_LIM, false).save(file + VectorSpace.vectorsBinaryFileName);
+		assertTrue(VectorSpace.open(new SemModel(file, false), file + VectorSpace.vectorsBinaryFileName, false).getMatrix() != null);
+		assertTrue(VectorSpace.load(new SemModel(file, false), file, VectorSpace.WEIGHT_PMI_LIM, false).getMatrix() == null);
+		try{
+			opened = new SemModel(file, false);
+			opened.makeTensorSymmetric();
+			VectorSpace.open(opened, file + VectorSpace.vectorsBinaryFileName, false);
+			fail("The vector space should not match a symmetric model");
+		} catch(RuntimeException e){
+		}
+		try{
+			VectorSpace.open(new SemModel(false), file + VectorSpace.vectorsBinaryFileName, false);
+			fail("The vector space should not match an empty model");
+		} catch(RuntimeException e){
+		}
+	}
+	
+	@Test
+	public void testVectorCache() throws SemModelException, InterruptedException {
+		SemModel vsm = new SemModel(false);
+		vsm.add(createGraph());
+		vsm.freeze();
+		VectorSpace vectorSpace = new VectorSpace(vsm, VectorSpace.WEIGHT_PMI, true);
+		VectorSpace uncached = new VectorSpace(vsm, VectorSpace.WEIGHT_PMI, false);
+		final String[] labels = new String[]{"A_A", "B_B", "C_C", "D_D"};
+		
+		// Cached vectors are the same as computed ones, in the same order
+		for(int round = 0; round < 2; round++){
+			for(String label : labels){
+				assertTrue(new ArrayList<Entry<Integer,Double>>(vectorSpace.getVector(label).entrySet()).equals(new ArrayList<Entry<Integer,Double>>(uncached.getVector(label).entrySet())));
+				assertTrue(vectorSpace.getSparseVector(label).toMap().equals(uncached.getVector(label)));
+			}
+		}
+		VectorCache cache = vectorSpace.getCache();
+		assertTrue(cache.size() == labels.length);
+		assertTrue(cache.getMisses() == labels.length);
+		assertTrue(cache.getHits() == 3 * labels.length);
+		assertTrue(cache.getEvictions() == 0);
+		
+		// The budget of one vector space does not change the others
+		VectorSpace noCache = new VectorSpace(vsm, VectorSpace.WEIGHT_PMI, true, 0);
+		assertTrue(noCache.getVector("A_A").equals(uncached.getVector("A_A")));
+		assertTrue(noCache.getCache().size() == 0);
+		assertTrue(cache.size() == labels.length);
+		
+		// A budget for a single vector per segment evicts the older ones
+		long size = VectorCache.getBytes(vectorSpace.getSparseVector("A_A"));
+		VectorCache small = new VectorCache(VectorCache.NUM_SEGMENTS * size);
+		for(int key = 0; key < 100; key++)
+			small.put(key, vectorSpace.getSparseVector("A_A"));
+		assertTrue(small.size() <= VectorCache.NUM_SEGMENTS);
+		assertTrue(small.getBytes() == small.size() * size);
+		assertTrue(small.getEvictions() == 100 - small.size());
+		assertTrue(small.get(99) != null);
+		
+		// Pinned vectors are not evicted
+		small.pin(0, vectorSpace.getSparseVector("B_B"));
+		for(int key = 0; key < 100; key++)
+			small.put(key, vectorSpace.getSparseVector("A_A"));
+		assertTrue(small.get(0).size() == vectorSpace.getSparseVector("B_B").size());
+		small.unpinAll();
+		assertTrue(small.get(0) == null);
+		
+		vectorSpace.setCacheSize(0);
+		assertTrue(cache.size() == 0);
+		vectorSpace.pinVectors(Arrays.asList(labels));
+		assertTrue(cache.size() == labels.length);
+		vectorSpace.unpinVectors();
+		assertTrue(cache.size() == 0);
+		
+		// Concurrent reads and writes with a small budget
+		vectorSpace.setCacheSize(2 * VectorCache.NUM_SEGMENTS * VectorCache.getBytes(vectorSpace.getSparseVector("A_A")));
+		final VectorSpace sharedSpace = vectorSpace;
+		final LinkedHashMap<String,LinkedHashMap<Integer,Double>> expected = new LinkedHashMap<String,LinkedHashMap<Integer,Double>>();
+		for(String label : labels)
+			expected.put(label, uncached.getVector(label));
+		final boolean[] failed = new boolean[1];
+		Thread[] threads = new Thread[4];
+		for(int t = 0; t < threads.length; t++){
+			final int seed = t;
+			threads[t] = new Thread(){
+				public void run(){
+					Random random = new Random(seed);
+					for(int i = 0; i < 2000; i++){
+						String label = labels[random.nextInt(labels.length)];
+						if(!sharedSpace.getSparseVector(label).toMap().equals(expected.get(label)))
+							failed[0] = true;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		assertFalse(failed[0]);
+	}
+	
+	@Test
+	public void testCandidateIndex() throws SemModelException {
+		SemModel vsm = new SemModel(false);
+		vsm.add(createGraph());
+		// Nodes that share no features with the others
+		Graph graph = new Graph();
+		Node n1 = graph.addNode("E", "E");
+		Node n2 = graph.addNode("F", "F");
+		graph.addEdge("5", n1, n2);
+		graph.addEdge("6", n2, n1);
+		vsm.add(graph);
+		vsm.makeTensorSymmetric();
+		vsm.freeze();
+		
+		VectorSpace vectorSpace = new VectorSpace(vsm, VectorSpace.WEIGHT_PMI, true);
+		SimFinder simFinder = new SimFinder(vectorSpace);
+		LinkedHashSet<String> candidates = new LinkedHashSet<String>(Arrays.asList("A_A", "B_B", "C_C", "D_D", "E_E", "F_F", "X_X"));
+		for(SimMeasure simMeasure : SimMeasure.values()){
+			for(boolean findHypernyms : new boolean[]{false, true}){
+				LinkedHashMap<String,LinkedHashMap<String,Double>> results = simFinder.getScores(candidates, candidates, simMeasure, findHypernyms, 2);
+				for(String mainWord : candidates){
+					assertTrue(new ArrayList<String>(results.get(mainWord).keySet()).equals(new ArrayList<String>(candidates)));
+					for(String candidate : candidates){
+						double expected;
+						if(findHypernyms)
+							expected = simMeasure.sim(vectorSpace.getVector(mainWord), vectorSpace.getVector(candidate));
+						else
+							expected = simMeasure.sim(vectorSpace.getVector(candidate), vectorSpace.getVector(mainWord));
+						assertTrue(simMeasure.getLabel(), Double.compare(results.get(mainWord).get(candidate), expected) == 0);
+					}
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testTopScores() throws SemModelException {
+		SemModel vsm = new SemModel(false);
+		vsm.add(createGraph());
+		Graph graph = new Graph();
+		Node n1 = graph.addNode("E", "E");
+		Node n2 = graph.addNode("F", "F");
+		graph.addEdge("5", n1, n2);
+		graph.addEdge("6", n2, n1);
+		vsm.add(graph);
+		vsm.makeTensorSymmetric();
+		vsm.freeze();
+		
+		VectorSpace vectorSpace = new VectorSpace(vsm, VectorSpace.WEIGHT_PMI, true);
+		SimFinder simFinder = new SimFinder(vectorSpace);
+		LinkedHashSet<String> candidates = new LinkedHashSet<String>(Arrays.asList("A_A", "B_B", "C_C", "D_D", "E_E", "F_F", "X_X"));
+		CandidateIndex candidateIndex = simFinder.getCandidateIndex(candidates);
+		for(SimMeasure simMeasure : SimMeasure.values()){
+			for(boolean findHypernyms : new boolean[]{false, true}){
+				for(String mainWord : candidates){
+					ArrayList<Entry<String,Double>> expected = new ArrayList<Entry<String,Double>>(Tools.sort(simFinder.getScores(mainWord, candidateIndex, simMeasure, findHypernyms), !simMeasure.isDistance()).entrySet());
+					for(int k = 0; k <= candidates.size() + 1; k++){
+						ArrayList<Entry<String,Double>> result = new ArrayList<Entry<String,Double>>(simFinder.getTopScores(mainWord, candidateIndex, simMeasure, findHypernyms, k).entrySet());
+						assertEquals(simMeasure.getLabel(), Math.min(k, candidates.size()), result.size());
+						for(int i = 0; i < result.size(); i++){
+							assertEquals(simMeasure.getLabel(), expected.get(i).getKey(), result.get(i).getKey());
+							assertTrue(simMeasure.getLabel(), Double.compare(expected.get(i).getValue(), result.get(i).getValue()) == 0);
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testLshIndex() throws SemModelException {
+		SemModel vsm = new SemModel(false);
+		vsm.add(createGraph());
+		Graph graph = new Graph();
+		Node n1 = graph.addNode("E", "E");
+		Node n2 = graph.addNode("F", "F");
+		graph.addEdge("5", n1, n2);
+		graph.addEdge("6", n2, n1);
+		vsm.add(graph);
+		vsm.makeTensorSymmetric();
+		vsm.freeze();
+		
+		VectorSpace vectorSpace = new VectorSpace(vsm, VectorSpace.WEIGHT_PMI, true);
+		SimFinder simFinder = new SimFinder(vectorSpace);
+		LinkedHashSet<String> candidates = new LinkedHashSet<String>(Arrays.asList("A_A", "B_B", "C_C", "D_D", "E_E", "F_F"));
+		CandidateIndex candidateIndex = simFinder.getCandidateIndex(candidates);
+		for(int type : new int[]{LshIndex.TYPE_SIMHASH, LshIndex.TYPE_MINHASH}){
+			LshIndex lshIndex = new LshIndex(vectorSpace, candidates, type, 8, 2, 1L, 3);
+			lshIndex.save(file + ".lsh");
+			LshIndex loaded = new LshIndex(file + ".lsh");
+			assertEquals(candidates.size(), loaded.size());
+			assertEquals(8, loaded.getNumTables());
+			
+			for(String mainWord : candidates){
+				boolean[] found = lshIndex.getCandidates(vectorSpace.getSparseVector(mainWord), vectorSpace.getFeatureIndex(), 8);
+				assertTrue(Arrays.equals(found, loaded.getCandidates(vectorSpace.getSparseVector(mainWord), vectorSpace.getFeatureIndex(), 8)));
+				
+				// The found candidates are ranked as in the exact search
+				LinkedHashMap<String,Double> expected = new LinkedHashMap<String,Double>();
+				for(Entry<String,Double> e : simFinder.getTopScores(mainWord, candidateIndex, SimMeasure.COSINE, false, candidates.size()).entrySet())
+					if(found[new ArrayList<String>(candidates).indexOf(e.getKey())] && expected.size() < 3)
+						expected.put(e.getKey(), e.getValue());
+				LinkedHashMap<String,Double> result = simFinder.getApproximateTopScores(mainWord, loaded, SimMeasure.COSINE, false, 3, 8);
+				assertEquals(new ArrayList<Entry<String,Double>>(expected.entrySet()), new ArrayList<Entry<String,Double>>(result.entrySet()));
+				assertTrue(result.containsKey(mainWord));
+			}
+
+			double recall = simFinder.getRecall(candidates, candidateIndex, loaded, SimMeasure.COSINE, false, 3, 8);
+			assertTrue(recall > 0.0 && recall <= 1.0);
+			assertTrue(simFinder.getRecall(candidates, candidateIndex, loaded, SimMeasure.COSINE, false, 3, 1) <= recall);
+		}
+	}
+	
+	@Test
+	public void testSimilarityJoin() throws SemModelException {
+		SemModel vsm = new SemModel(false);
+		vsm.add(createGraph());
+		Graph graph = new Graph();
+		Node n1 = graph.addNode("E", "E");
+		Node n2 = graph.addNode("F", "F");
+		graph.addEdge("5", n1, n2);
+		graph.addEdge("6", n2, n1);
+		vsm.add(graph);
+		vsm.makeTensorSymmetric();
+		vsm.freeze();
+		
+		VectorSpace vectorSpace = new VectorSpace(vsm, VectorSpace.WEIGHT_PMI, true);
+		SimFinder simFinder = new SimFinder(vectorSpace);
+		LinkedHashSet<String> candidates = new LinkedHashSet<String>(Arrays.asList("A_A", "B_B", "C_C", "D_D", "E_E", "F_F", "X_X"));
+		CandidateIndex candidateIndex = simFinder.getCandidateIndex(candidates);
+		ForkJoinPool pool = new ForkJoinPool(3);
+		// Small tiles, so that every row is merged from several of them
+		SimilarityJoin join = new SimilarityJoin(vectorSpace, candidateIndex, pool, 2, 2);
+		for(SimMeasure simMeasure : SimMeasure.values()){
+			for(int k : new int[]{0, 2}){
+				for(double minScore : new double[]{Double.NaN, 0.1}){
+					final ArrayList<String> rows = new ArrayList<String>();
+					join.run(candidates, simMeasure, false, minScore, k, new SimilaritySink(){
+						public void addRow(String mainWord, String[] candidates, double[] scores){
+							rows.add(mainWord + Arrays.toString(candidates) + Arrays.toString(scores));
+						}
+					});
+					
+					ArrayList<String> expected = new ArrayList<String>();
+					for(String mainWord : candidates){
+						ArrayList<String> labels = new ArrayList<String>();
+						ArrayList<Double> scores = new ArrayList<Double>();
+						for(Entry<String,Double> e : Tools.sort(simFinder.getScores(mainWord, candidateIndex, simMeasure, false), !simMeasure.isDistance()).entrySet()){
+							if(!Double.isNaN(minScore) && (simMeasure.isDistance() ? e.getValue() > minScore : e.getValue() < minScore))
+								break;
+							if(k > 0 && labels.size() >= k)
+								break;
+							labels.add(e.getKey());
+							scores.add(e.getValue());
+						}
+						double[] scoreArray = new double[scores.size()];
+						for(int i = 0; i < scoreArray.length; i++)
+							scoreArray[i] = scores.get(i);
+						expected.add(mainWord + Arrays.toString(labels.toArray(new String[labels.size()])) + Arrays.toString(scoreArray));
+					}
+					assertEquals(simMeasure.getLabel(), expected, rows);
+				}
+			}
+		}
+		pool.shutdown();
+	}
+	
+	@Test
+	public void testParallelQuery() throws SemModelException {
+		// Enough candidates for a single query to be split into chunks
+		SemModel vsm = new SemModel(false);
+		Random random = new Random(2);
+		Graph graph = new Graph();
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		for(int i = 0; i < 1500; i++)
+			nodes.add(graph.addNode("w" + i, "N"));
+		for(int i = 0; i < 6000; i++)
+			graph.addEdge("e" + random.nextInt(5), nodes.get(random.nextInt(nodes.size())), nodes.get(random.nextInt(nodes.size())));
+		vsm.add(graph);
+		vsm.freeze();
+		
+		VectorSpace vectorSpace = new VectorSpace(vsm, VectorSpace.WEIGHT_PMI, true);
+		SimFinder simFinder = new SimFinder(vectorSpace, new ForkJoinPool(4));
+		LinkedHashSet<String> candidates = new LinkedHashSet<String>(vsm.getNodeIndex().getIdMap().keySet());
+		CandidateIndex candidateIndex = simFinder.getCandidateIndex(candidates);
+		for(SimMeasure simMeasure : new SimMeasure[]{SimMeasure.COSINE, SimMeasure.CLARKE_DE, SimMeasure.MANHATTAN}){
+			LinkedHashMap<String,Double> scores = simFinder.getScores("w7_N", candidateIndex, simMeasure, false);
+			assertEquals(new ArrayList<String>(candidates), new ArrayList<String>(scores.keySet()));
+			for(String candidate : candidates)
+				assertTrue(Double.compare(scores.get(candidate), simMeasure.sim(vectorSpace.getVector(candidate), vectorSpace.getVector("w7_N"))) == 0);
+			assertEquals(scores, simFinder.getScores(new LinkedHashSet<String>(Arrays.asList("w7_N")), candidateIndex, simMeasure, false, 3).get("w7_N"));
+			
+			ArrayList<Entry<String,Double>> expected = new ArrayList<Entry<String,Double>>(Tools.sort(scores, !simMeasure.isDistance()).entrySet());
+			assertEquals(expected.subList(0, 20), new ArrayList<Entry<String,Double>>(simFinder.getTopScores("w7_N", candidateIndex, simMeasure, false, 20).entrySet()));
+		}
+	}
 }
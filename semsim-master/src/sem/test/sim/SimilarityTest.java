@@ -3,6 +3,7 @@ package sem.test.sim;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Random;
@@ -11,7 +12,10 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import sem.sim.MultiSimMeasure;
 import sem.sim.SimMeasure;
+import sem.util.SparseVector;
+import sem.util.Tools;
 
 public class SimilarityTest {
 	
@@ -439,4 +443,104 @@ public class SimilarityTest {
 		assertTrue(Math.abs(SimMeasure.weightedCosine2(vector1, vector1) - 1.0) < smallValue);
 		assertTrue(Math.abs(SimMeasure.weightedCosine2(vector2, vector2) - 1.0) < smallValue);
 	}
+	
+	/**
+	 * Random vector with positive, negative and zero weights, many ties, and keys in random order.
+	 */
+	private LinkedHashMap<Integer,Double> createRandSignedVector(int length){
+		LinkedHashMap<Integer,Double> v = new LinkedHashMap<Integer,Double>();
+		Random random = new Random();
+		for(int i = 0; i < length; i++){
+			int key = random.nextInt(3 * length);
+			double p = random.nextDouble();
+			if(p < 0.4)
+				v.put(key, random.nextGaussian());
+			else if(p < 0.8)
+				v.put(key, (double)(random.nextInt(10) - 3));
+			else
+				v.put(key, random.nextDouble() * 10);
+		}
+		return v;
+	}
+	
+	@Test
+	public void testSparseVector(){
+		SparseVector sparse = new SparseVector(vector2);
+		assertTrue(sparse.size() == 3);
+		assertTrue(sparse.getId(0) == 3 && sparse.getId(1) == 4 && sparse.getId(2) == 7);
+		assertTrue(sparse.get(4) == 3.0);
+		assertTrue(sparse.get(5) == 0.0);
+		assertTrue(sparse.indexOf(7) == 2);
+		assertTrue(sparse.indexOf(1) == -1);
+		assertTrue(new ArrayList<Integer>(sparse.toMap().keySet()).equals(new ArrayList<Integer>(vector2.keySet())));
+		
+		// The results have to be exactly the same as with the maps, for vectors sorted the same way as in VectorSpace and for unsorted ones
+		for(int experiment = 0; experiment < 200; experiment++){
+			LinkedHashMap<Integer,Double> v1 = createRandSignedVector(experiment % 20 * 10);
+			LinkedHashMap<Integer,Double> v2 = createRandSignedVector(experiment % 7 * 30);
+			if(experiment % 2 == 0){
+				v1 = Tools.sort(v1, true);
+				v2 = Tools.sort(v2, true);
+			}
+			SparseVector s1 = new SparseVector(v1);
+			SparseVector s2 = new SparseVector(v2);
+			assertTrue(s1.toMap().equals(v1));
+			for(SimMeasure simMeasure : SimMeasure.values()){
+				double expected, actual;
+				try{
+					expected = simMeasure.sim(v1, v2);
+				} catch(RuntimeException e){
+					expected = Double.NaN;
+				}
+				try{
+					actual = simMeasure.sim(s1, s2);
+				} catch(RuntimeException e){
+					actual = Double.NaN;
+				}
+				assertTrue(simMeasure.getLabel(), Double.compare(expected, actual) == 0);
+			}
+		}
+	}
+	
+	@Test
+	public void testMultiSimMeasure(){
+		MultiSimMeasure all = new MultiSimMeasure(Arrays.asList(SimMeasure.values()));
+		MultiSimMeasure some = new MultiSimMeasure(Arrays.asList(SimMeasure.BAL_PREC, SimMeasure.COSINE, SimMeasure.AP, SimMeasure.JACCARD_SET));
+		assertTrue(all.getMeasures().size() == SimMeasure.values().length);
+		
+		// Every score has to be exactly the same as from the individual measure
+		for(int experiment = 0; experiment < 200; experiment++){
+			LinkedHashMap<Integer,Double> v1 = createRandSignedVector(experiment % 20 * 10);
+			LinkedHashMap<Integer,Double> v2 = createRandSignedVector(experiment % 7 * 30);
+			if(experiment % 2 == 0){
+				v1 = Tools.sort(v1, true);
+				v2 = Tools.sort(v2, true);
+			}
+			SparseVector s1 = new SparseVector(v1);
+			SparseVector s2 = new SparseVector(v2);
+			for(MultiSimMeasure multiSimMeasure : new MultiSimMeasure[]{all, some}){
+				ArrayList<SimMeasure> measures = multiSimMeasure.getMeasures();
+				double[] expected = new double[measures.size()];
+				boolean failed = false;
+				for(int m = 0; m < measures.size(); m++){
+					try{
+						expected[m] = measures.get(m).sim(s1, s2);
+					} catch(RuntimeException e){
+						failed = true;
+					}
+				}
+				double[] actual = null;
+				try{
+					actual = multiSimMeasure.sim(s1, s2);
+				} catch(RuntimeException e){
+					assertTrue(failed);
+				}
+				if(actual != null){
+					assertTrue(!failed);
+					for(int m = 0; m < measures.size(); m++)
+						assertTrue(measures.get(m).getLabel(), Double.compare(expected[m], actual[m]) == 0);
+				}
+			}
+		}
+	}
 }
@@ -3,6 +3,7 @@ package sem.test.util;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import org.junit.After;
@@ -184,5 +185,83 @@ public class IndexTest {
 		assertTrue(index2.getCount("str2") == 5.0);
 		assertTrue(index2.getCount("str3") == 10.0);
 	}
+	
+	@Test
+	public void testSaveBinary() {
+		Index index = new Index();
+		index.add("str1", 3.0);
+		index.add("str2", 5.0);
+		index.add("str1", 8.0);
+		index.add("\u00e9t\u00e9", 10.0);
+		
+		index.saveBinary(file);
+		
+		Index index2 = new Index(file);
+		assertTrue(index2.size() == 3);
+		assertTrue(index2.getCount("str1") == 11.0);
+		assertTrue(index2.getCount("str2") == 5.0);
+		assertTrue(index2.getCount("\u00e9t\u00e9") == 10.0);
+		assertTrue(index2.getId("str2") == 2);
+		assertTrue(index2.getLabel(3).equals("\u00e9t\u00e9"));
+	}
 
+	@Test
+	public void testConcurrentAdd() throws InterruptedException {
+		final Index index = new Index();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(int t = 0; t < 8; t++){
+			threads.add(new Thread(){
+				public void run(){
+					for(int i = 0; i < 1000; i++)
+						index.add("str" + i, 1.0);
+				}
+			});
+		}
+		for(Thread thread : threads)
+			thread.start();
+		for(Thread thread : threads)
+			thread.join();
+		
+		assertTrue(index.size() == 1000);
+		assertTrue(index.getTotalCount() == 8000.0);
+		boolean[] seen = new boolean[1001];
+		for(int i = 0; i < 1000; i++){
+			int id = index.getId("str" + i);
+			assertTrue(id >= 1 && id <= 1000 && !seen[id]);
+			seen[id] = true;
+			assertTrue(index.getCount(id) == 8.0);
+			assertTrue(index.getLabel(id).equals("str" + i));
+		}
+	}
+
+	@Test
+	public void testLargeIndex() {
+		Index index = new Index();
+		for(int i = 0; i < 10000; i++)
+			index.add("str" + i, (double)i);
+		index.add("str5000", 1.0);
+		
+		assertTrue(index.size() == 10000);
+		assertTrue(index.getId("str9999") == 10000);
+		assertTrue(index.getLabel(5001).equals("str5000"));
+		assertTrue(index.getCount(5001) == 5001.0);
+		assertTrue(index.getTotalCount() == 49995001.0);
+		assertTrue(index.contains(10000));
+		assertTrue(!index.contains(10001));
+		assertTrue(!index.contains(0));
+		assertTrue(index.getLabel(10001) == null);
+		assertTrue(index.getCount(10001) == 0.0);
+		assertTrue(index.getId("str10000") == null);
+		
+		index.saveBinary(file);
+		Index index2 = new Index(file);
+		assertTrue(index2.size() == 10000);
+		assertTrue(index2.getId("str4096") == 4097);
+		assertTrue(index2.getTotalCount() == 49995001.0);
+		
+		index.clear();
+		assertTrue(index.size() == 0);
+		assertTrue(index.getTotalCount() == 0.0);
+		assertTrue(index.add("str5000") == 1);
+	}
 }
@@ -0,0 +1,177 @@
+package sem.test.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sem.util.IntegerMultiMap;
+import sem.util.LocationIndex;
+
+public class LocationIndexTest {
+	
+	private String dir = "semtests/";
+	private String file = dir + "test-locations.bin";
+	
+	private int blockSize;
+	
+	@Before
+	public void setUp() throws Exception {
+		File d = new File(dir);
+		if(!d.exists())
+			d.mkdir();
+		// Small blocks, so that the lists are split into many of them
+		blockSize = LocationIndex.BLOCK_SIZE;
+		LocationIndex.BLOCK_SIZE = 4;
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		LocationIndex.BLOCK_SIZE = blockSize;
+		(new File(file)).delete();
+		(new File(dir)).delete();
+	}
+	
+	private long countMatches(IntegerMultiMap map, int key1, int key2){
+		long total = 0;
+		if(!map.containsKey(key1) || !map.containsKey(key2))
+			return 0;
+		for(int i = 0; i < map.get(key1).size(); i++)
+			for(int j = (key1 == key2 ? i + 1 : 0); j < map.get(key2).size(); j++)
+				if(map.get(key1).get(i).equals(map.get(key2).get(j)))
+					total++;
+		return total;
+	}
+	
+	private void check(LocationIndex index, IntegerMultiMap map, int numKeys){
+		long all = 0;
+		for(int key1 = 0; key1 < numKeys; key1++){
+			long wildcard = 0;
+			for(int key2 = 0; key2 < numKeys; key2++){
+				long expected = countMatches(map, key1, key2);
+				assertEquals(expected, index.countMatches(key1, key2));
+				if(key1 != key2){
+					all += expected;
+					if(map.containsKey(key1) && map.containsKey(key2))
+						for(Integer sentence : map.get(key2))
+							if(map.get(key1).contains(sentence))
+								wildcard++;
+				}
+				else
+					all += 2 * expected;
+			}
+			assertEquals(wildcard, index.countMatches(key1));
+			
+			int[] expectedList = null;
+			if(map.containsKey(key1)){
+				expectedList = new int[map.get(key1).size()];
+				for(int i = 0; i < expectedList.length; i++)
+					expectedList[i] = map.get(key1).get(i);
+				Arrays.sort(expectedList);
+			}
+			assertTrue(Arrays.equals(expectedList, index.get(key1)));
+		}
+		assertEquals(all, index.countAllMatches());
+		assertEquals(map.size(), index.size());
+		
+		int[] lengths = new int[index.getMaxSentence() + 2];
+		for(ArrayList<Integer> list : map.values())
+			for(Integer sentence : list)
+				lengths[sentence]++;
+		for(int sentence = 0; sentence < lengths.length; sentence++)
+			assertEquals(lengths[sentence], index.getLength(sentence));
+	}
+	
+	@Test
+	public void testCountMatches(){
+		Random random = new Random(5);
+		int numKeys = 30;
+		LocationIndex index = new LocationIndex();
+		IntegerMultiMap map = new IntegerMultiMap();
+		for(int sentence = 1; sentence <= 300; sentence++){
+			for(int i = random.nextInt(6); i > 0; i--){
+				// Frequent keys with repetitions, and rare ones
+				int key = random.nextBoolean() ? random.nextInt(4) : random.nextInt(numKeys);
+				// Some sentences arrive out of order
+				int location = random.nextInt(10) == 0 ? 1 + random.nextInt(sentence) : sentence;
+				index.add(key, location);
+				map.put(key, location);
+			}
+		}
+		// A long list with large gaps
+		for(int sentence = 1; sentence <= 100000; sentence += 997){
+			index.add(numKeys - 1, sentence);
+			map.put(numKeys - 1, sentence);
+		}
+		assertEquals(99701, index.getMaxSentence());
+		check(index, map, numKeys);
+		
+		index.saveBinary(file);
+		LocationIndex mapped = new LocationIndex(file);
+		assertEquals(index.getMaxSentence(), mapped.getMaxSentence());
+		check(mapped, map, numKeys);
+		
+		// Lists are copied into memory when they are modified
+		mapped.add(2, 5);
+		mapped.add(2, 200000);
+		map.put(2, 5);
+		map.put(2, 200000);
+		check(mapped, map, numKeys);
+		mapped.saveBinary(file);
+		check(new LocationIndex(file), map, numKeys);
+		
+		index.save(file);
+		check(new LocationIndex(file), new IntegerMultiMap(file), numKeys);
+	}
+	
+	@Test
+	public void testLegacyFormat(){
+		IntegerMultiMap map = new IntegerMultiMap();
+		map.put(1, 3);
+		map.put(1, 3);
+		map.put(1, 8);
+		map.put(2, 3);
+		map.put(4, 8);
+		map.saveBinary(file);
+		LocationIndex index = new LocationIndex(file);
+		assertEquals(3, index.getCount(1));
+		assertEquals(2, index.countMatches(1, 2));
+		assertEquals(1, index.countMatches(1, 1));
+		assertEquals(8, index.getMaxSentence());
+		check(index, map, 5);
+	}
+	
+	@Test
+	public void testConcurrentAdd() throws InterruptedException {
+		final LocationIndex index = new LocationIndex();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(int t = 0; t < 4; t++){
+			final int offset = t;
+			threads.add(new Thread(){
+				public void run(){
+					for(int sentence = 1 + offset; sentence <= 4000; sentence += 4){
+						index.add(1, sentence);
+						index.add(sentence % 7, sentence);
+					}
+				}
+			});
+		}
+		for(Thread thread : threads)
+			thread.start();
+		for(Thread thread : threads)
+			thread.join();
+		
+		int[] list = index.get(1);
+		assertEquals(4000 + 4000 / 7 + 1, list.length);
+		for(int i = 1; i < list.length; i++)
+			assertTrue(list[i-1] <= list[i]);
+		assertEquals(4000 / 7 + 1, index.countMatches(1, 1));
+		assertEquals(572, index.countMatches(1, 3));
+	}
+}
@@ -1,12 +1,22 @@
 package sem.test.util;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.*;
 
 import static org.junit.Assert.*;
 
+import sem.util.ExternalTripleSorter;
+import sem.util.FrozenTensor;
+import sem.util.MappedTensor;
+import sem.util.SymmetricTensor;
 import sem.util.Tensor;
+import sem.util.TensorMarginals;
 
 public class TensorTest {
 	
@@ -77,6 +87,108 @@ public class TensorTest {
 		assertTrue(tensor.get(3, 1, 6) == 12.0);
 		assertTrue(tensor.get(6, 3, 1) == 19.0);
 	}
+	
+	@Test
+	public void testSaveSorted() throws Exception {
+		// The same cells, in different stripes and in a different order
+		Tensor tensor1 = new Tensor(2);
+		Tensor tensor2 = new Tensor(64);
+		for(int i = 0; i < 200; i++){
+			tensor1.add(i % 37, i % 5, i, 1.0);
+			tensor2.add((199 - i) % 37, (199 - i) % 5, 199 - i, 1.0);
+		}
+		tensor1.save(file);
+		byte[] bytes1 = Files.readAllBytes(Paths.get(file));
+		tensor2.save(file);
+		byte[] bytes2 = Files.readAllBytes(Paths.get(file));
+		assertTrue(Arrays.equals(bytes1, bytes2));
+		assertTrue(new String(bytes1, "UTF-8").startsWith("0\t0:0:1.0\t0:185:1.0"));
+	}
+
+	@Test
+	public void testSaveBinary(){
+		Tensor tensor = new Tensor();
+		tensor.add(1, 3, 6, 15.0);
+		tensor.add(3, 1, 6, 12.0);
+		tensor.add(6, 3, 1, 17.0);
+		tensor.add(6, 3, 1, 2.0);
+		tensor.add(6, 2, 4, 1.0);
+		tensor.saveBinary(file);
+		
+		MappedTensor mappedTensor = new MappedTensor(file);
+		assertTrue(mappedTensor.size() == 3);
+		assertTrue(mappedTensor.get(1, 3, 6) == 15.0);
+		assertTrue(mappedTensor.get(3, 1, 6) == 12.0);
+		assertTrue(mappedTensor.get(6, 3, 1) == 19.0);
+		assertTrue(mappedTensor.get(6, 3, 2) == 0.0);
+		assertTrue(mappedTensor.get(5, 3, 1) == 0.0);
+		assertTrue(mappedTensor.getKeys(6).length == 2);
+		assertTrue(mappedTensor.getKeys(6, 2)[0] == 4);
+		assertTrue(mappedTensor.getKeys(5) == null);
+		assertTrue(mappedTensor.getKeys(6, 1) == null);
+		
+		tensor = new Tensor(mappedTensor);
+		assertTrue(tensor.get(6, 3, 1) == 19.0);
+		assertTrue(tensor.get(null, null, null) == 47.0);
+	}
+	
+	@Test
+	public void testWildcardBinary(){
+		Tensor tensor = new Tensor();
+		tensor.add(3, 2, 1, 5.0);
+		tensor.add(1, 2, 1, 2.0);
+		tensor.add(19, 2, 1, 10.0);
+		tensor.add(3, 15, 1, 3.0);
+		tensor.add(3, 0, 1, 25.0);
+		tensor.add(3, 2, 3, 7.0);
+		tensor.add(3, 2, 6, 2.0);
+		tensor.saveBinary(file);
+		
+		MappedTensor mappedTensor = new MappedTensor(file);
+		assertTrue(mappedTensor.get(null, 2, 1) == 17.0);
+		assertTrue(mappedTensor.get(3, null, 1) == 33.0);
+		assertTrue(mappedTensor.get(3, 2, null) == 14.0);
+		assertTrue(mappedTensor.get(3, null, null) == 42.0);
+		assertTrue(mappedTensor.get(null, 2, null) == 26.0);
+		assertTrue(mappedTensor.get(null, null, 1) == 45.0);
+		assertTrue(mappedTensor.get(null, null, null) == 54.0);
+	}
+
+	@Test
+	public void testFreeze(){
+		Tensor tensor = new Tensor();
+		tensor.add(3, 2, 1, 5.0);
+		tensor.add(1, 2, 1, 2.0);
+		tensor.add(19, 2, 1, 10.0);
+		tensor.add(3, 15, 1, 3.0);
+		tensor.add(3, 0, 1, 25.0);
+		for(int i = 40; i > 0; i--)
+			tensor.add(3, 2, i + 2, 1.0);
+		
+		FrozenTensor frozenTensor = tensor.freeze();
+		assertTrue(frozenTensor.size() == 3);
+		assertTrue(frozenTensor.get(3, 2, 1) == 5.0);
+		assertTrue(frozenTensor.get(3, 2, 42) == 1.0);
+		assertTrue(frozenTensor.get(3, 2, 43) == 0.0);
+		assertTrue(frozenTensor.get(2, 2, 1) == 0.0);
+		assertTrue(frozenTensor.get(null, 2, 1) == 17.0);
+		assertTrue(frozenTensor.get(3, null, 1) == 33.0);
+		assertTrue(frozenTensor.get(3, 2, null) == 45.0);
+		assertTrue(frozenTensor.get(null, null, 1) == 45.0);
+		assertTrue(frozenTensor.get(null, null, null) == 85.0);
+		
+		int[] keys = frozenTensor.getKeys(3, 2);
+		double[] values = frozenTensor.getValues(3, 2);
+		assertTrue(keys.length == 41 && values.length == 41);
+		for(int i = 1; i < keys.length; i++)
+			assertTrue(keys[i-1] < keys[i]);
+		assertTrue(keys[0] == 1 && values[0] == 5.0);
+		
+		frozenTensor.saveBinary(file);
+		MappedTensor mappedTensor = new MappedTensor(file);
+		assertTrue(mappedTensor.get(3, 2, null) == 45.0);
+		assertTrue(mappedTensor.get(null, null, null) == 85.0);
+	}
 
 	@Test
 	public void testWildcard(){
@@ -102,6 +214,178 @@ public class TensorTest {
 		assertTrue(tensor.get(null, null, 1) == 45.0);
 		assertTrue(tensor.get(null, null, null) == 54.0);
 	}
+
+	@Test
+	public void testMarginals(){
+		Tensor tensor = new Tensor();
+		tensor.add(3, 2, 1, 5.0);
+		tensor.add(1, 2, 1, 2.0);
+		tensor.add(19, 2, 1, 10.0);
+		tensor.add(3, 15, 1, 3.0);
+		tensor.add(3, 0, 1, 25.0);
+		tensor.add(3, 2, 3, 7.0);
+		tensor.add(3, 2, 6, 2.0);
+		
+		TensorMarginals marginals = new TensorMarginals(tensor);
+		assertTrue(marginals.get(2, 1) == 17.0);
+		assertTrue(marginals.get(2, null) == 26.0);
+		assertTrue(marginals.get(null, 1) == 45.0);
+		assertTrue(marginals.get(null, null) == 54.0);
+		assertTrue(marginals.get(4, 1) == 0.0);
+		int[] keys1 = marginals.getKeys1(2, 1);
+		assertTrue(keys1.length == 3 && keys1[0] == 1 && keys1[1] == 3 && keys1[2] == 19);
+		assertTrue(marginals.getKeys1(2, 2) == null);
+		
+		marginals.save(file);
+		TensorMarginals loaded = new TensorMarginals(file);
+		assertTrue(loaded.get(2, 1) == 17.0);
+		assertTrue(loaded.get(null, 6) == 2.0);
+		assertTrue(loaded.get(null, null) == 54.0);
+		assertTrue(loaded.getKeys1(15, 1)[0] == 3);
+		assertTrue(loaded.getKeys1(2, 2) == null);
+		assertTrue(loaded.get(4, null) == 0.0);
+
+		// The mapped indexes can overwrite the file they were opened from
+		loaded.save(file);
+		loaded = new TensorMarginals(file);
+		keys1 = loaded.getKeys1(2, 1);
+		assertTrue(keys1.length == 3 && keys1[0] == 1 && keys1[1] == 3 && keys1[2] == 19);
+		assertTrue(loaded.get(2, null) == 26.0);
+		assertTrue(loaded.get(null, 1) == 45.0);
+
+		MappedTensor mappedTensor;
+		tensor.saveBinary(file);
+		mappedTensor = new MappedTensor(file);
+		mappedTensor.setMarginals(loaded);
+		assertTrue(mappedTensor.get(null, 2, 1) == 17.0);
+		assertTrue(mappedTensor.get(null, 2, null) == 26.0);
+		assertTrue(mappedTensor.get(3, null, 1) == 33.0);
+	}
+
+	@Test
+	public void testSymmetricTensor(){
+		Random random = new Random(3);
+		Tensor tensor = new Tensor();
+		for(int i = 0; i < 2000; i++)
+			tensor.add(1 + random.nextInt(60), 1 + random.nextInt(12), 1 + random.nextInt(80), 1.0 + random.nextInt(5));
+		// Key2 1-9 are mirrored into 11-19, key2 10-12 are not
+		int[] reverseKeys = new int[13];
+		for(int key2 = 1; key2 < 10; key2++)
+			reverseKeys[key2] = key2 + 10;
+		
+		Tensor expected = new Tensor(tensor);
+		for(int key1 : tensor.getKeys())
+			for(int key2 : tensor.getKeys(key1))
+				if(key2 < 10)
+					for(int key3 : tensor.getKeys(key1, key2))
+						expected.add(key3, key2 + 10, key1, tensor.get(key1, key2, key3));
+		
+		SymmetricTensor symmetricTensor = new SymmetricTensor(tensor, reverseKeys);
+		for(SymmetricTensor view : new SymmetricTensor[]{symmetricTensor, symmetricTensor.freeze()}){
+			assertEquals(expected.size(), view.size());
+			assertEquals(expected.getKeys().length, view.getKeys().length);
+			for(int key1 : expected.getKeys()){
+				assertTrue(view.containsKey(key1));
+				assertEquals(expected.getKeys(key1).length, view.getKeys(key1).length);
+				for(int key2 : expected.getKeys(key1)){
+					int[] keys3 = view.getKeys(key1, key2);
+					double[] values3 = view.getValues(key1, key2);
+					assertEquals(expected.getKeys(key1, key2).length, keys3.length);
+					for(int i = 0; i < keys3.length; i++)
+						assertTrue(expected.get(key1, key2, keys3[i]) == values3[i]);
+				}
+			}
+			for(Integer key1 : new Integer[]{null, 5, 70}){
+				for(Integer key2 : new Integer[]{null, 3, 11, 12, 13}){
+					for(Integer key3 : new Integer[]{null, 5, 42}){
+						assertTrue(expected.get(key1, key2, key3) == view.get(key1, key2, key3));
+					}
+				}
+			}
+		}
+		assertTrue(symmetricTensor.getNumReverseEntries() > 0);
+		
+		// Cells that already exist in the reverse direction are added up
+		tensor = new Tensor();
+		tensor.add(1, 2, 3, 4.0);
+		tensor.add(3, 12, 1, 1.0);
+		tensor.add(3, 12, 2, 1.0);
+		symmetricTensor = new SymmetricTensor(tensor, reverseKeys);
+		assertTrue(symmetricTensor.get(3, 12, 1) == 5.0);
+		assertTrue(symmetricTensor.get(3, 12, null) == 6.0);
+		assertTrue(symmetricTensor.get(null, 12, null) == 6.0);
+		assertTrue(symmetricTensor.getKeys(3, 12).length == 2);
+		assertTrue(symmetricTensor.getValues(3, 12)[0] + symmetricTensor.getValues(3, 12)[1] == 6.0);
+		assertTrue(tensor.get(3, 12, 1) == 1.0);
+	}
 	
+	@Test
+	public void testConcurrentAdd() throws InterruptedException {
+		final Tensor tensor = new Tensor(4);
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(int t = 0; t < 8; t++){
+			threads.add(new Thread(){
+				public void run(){
+					for(int i = 0; i < 100; i++)
+						for(int j = 0; j < 10; j++)
+							tensor.add(i, j, i + j, 1.0);
+				}
+			});
+		}
+		for(Thread thread : threads)
+			thread.start();
+		for(Thread thread : threads)
+			thread.join();
+		
+		assertTrue(tensor.size() == 100);
+		assertTrue(tensor.getKeys().length == 100);
+		assertTrue(tensor.get(null, null, null) == 8000.0);
+		assertTrue(tensor.get(5, 3, 8) == 8.0);
+		assertTrue(tensor.get(5, null, null) == 80.0);
+		assertTrue(tensor.get(null, 3, null) == 800.0);
+		assertTrue(tensor.getMap().size() == 100);
+	}
+
+	@Test
+	public void testExternalSort(){
+		Tensor tensor = new Tensor();
+		ExternalTripleSorter sorter = new ExternalTripleSorter(ExternalTripleSorter.ENTRY_SIZE * 50, new File(dir));
+		Random random = new Random(1);
+		for(int i = 0; i < 2000; i++){
+			int key1 = random.nextInt(20), key2 = random.nextInt(3), key3 = random.nextInt(20);
+			tensor.add(key1, key2, key3, 1.0);
+			sorter.add(key1, key2, key3, 1.0);
+		}
+		assertTrue(sorter.getNumRuns() == 39);
+		sorter.write(file);
+		assertTrue(new File(dir).list().length == 1);
+		
+		MappedTensor mappedTensor = new MappedTensor(file);
+		assertTrue(mappedTensor.size() == tensor.size());
+		assertTrue(mappedTensor.get(null, null, null) == 2000.0);
+		for(int key1 : tensor.getKeys())
+			for(int key2 : tensor.getKeys(key1))
+				for(int key3 : tensor.getKeys(key1, key2))
+					assertTrue(mappedTensor.get(key1, key2, key3) == tensor.get(key1, key2, key3));
+	}
 	
+	@Test
+	public void testExternalSortPasses() throws Exception {
+		// 39 runs merged 4 at a time take three passes before the final merge
+		ExternalTripleSorter sorter = new ExternalTripleSorter(ExternalTripleSorter.ENTRY_SIZE * 50, new File(dir));
+		ExternalTripleSorter passSorter = new ExternalTripleSorter(ExternalTripleSorter.ENTRY_SIZE * 50, new File(dir), 4);
+		Random random = new Random(1);
+		for(int i = 0; i < 2000; i++){
+			int key1 = random.nextInt(20), key2 = random.nextInt(3), key3 = random.nextInt(20);
+			sorter.add(key1, key2, key3, 1.0);
+			passSorter.add(key1, key2, key3, 1.0);
+		}
+		String passFile = dir + "test-tensor-passes.bin";
+		long size = sorter.write(file);
+		assertTrue(passSorter.getNumRuns() == 39);
+		assertTrue(passSorter.write(passFile) == size);
+		assertTrue(new File(dir).list().length == 2);
+		assertTrue(Arrays.equals(Files.readAllBytes(Paths.get(file)), Files.readAllBytes(Paths.get(passFile))));
+		(new File(passFile)).delete();
+	}
 }
@@ -0,0 +1,276 @@
+package sem.util;
+
+/**
+ * A read-only tensor in compressed sparse fiber (CSF) layout.
+ * All keys are sorted, and every level stores offsets into the next one:
+ * <pre>
+ * key1 ids     [n1]
+ * key1 offsets [n1+1]   into the key2 arrays
+ * key2 ids     [n2]
+ * key2 offsets [n2+1]   into the key3 arrays
+ * key3 ids     [nnz]
+ * values       [nnz]
+ * </pre>
+ * Point lookups use binary search and all the values under a key are stored contiguously.
+ * Subclasses only decide where the arrays are stored.
+ * <p>Queries where key1 is a wildcard would have to scan the whole tensor. If TensorMarginals are attached, these queries are answered from them instead.
+ */
+public abstract class CsfTensor implements TensorView {
+	private TensorMarginals marginals;
+
+	protected abstract long n1();
+	protected abstract long n2();
+	protected abstract long nnz();
+
+	protected abstract int key1Id(long pos1);
+	protected abstract long key1Ptr(long pos1);
+	protected abstract int key2Id(long pos2);
+	protected abstract long key2Ptr(long pos2);
+	protected abstract int key3Id(long pos3);
+	protected abstract double value(long pos3);
+
+	/**
+	 * Find the position of key1.
+	 * @return The position, or -1 if key1 does not exist.
+	 */
+	protected long findKey1(int key1){
+		long low = 0, high = n1() - 1;
+		while(low <= high){
+			long mid = (low + high) >>> 1;
+			int value = key1Id(mid);
+			if(value < key1)
+				low = mid + 1;
+			else if(value > key1)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the position of key2 under the key1 at position pos1.
+	 * @return The position, or -1 if the pair does not exist.
+	 */
+	protected long findKey2(long pos1, int key2){
+		long low = key1Ptr(pos1), high = key1Ptr(pos1 + 1) - 1;
+		while(low <= high){
+			long mid = (low + high) >>> 1;
+			int value = key2Id(mid);
+			if(value < key2)
+				low = mid + 1;
+			else if(value > key2)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the position of key3 in the fiber at position pos2.
+	 * @return The position, or -1 if the triple does not exist.
+	 */
+	protected long findKey3(long pos2, int key3){
+		long low = key2Ptr(pos2), high = key2Ptr(pos2 + 1) - 1;
+		while(low <= high){
+			long mid = (low + high) >>> 1;
+			int value = key3Id(mid);
+			if(value < key3)
+				low = mid + 1;
+			else if(value > key3)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	protected double sumFiber(long pos2){
+		double sum = 0.0;
+		for(long pos3 = key2Ptr(pos2), end = key2Ptr(pos2 + 1); pos3 < end; pos3++)
+			sum += value(pos3);
+		return sum;
+	}
+
+	protected double getFromFiber(long pos2, int key3){
+		long pos3 = findKey3(pos2, key3);
+		if(pos3 < 0)
+			return 0.0;
+		return value(pos3);
+	}
+
+	/**
+	 * Attach secondary indexes for queries where key1 is a wildcard. They must have been built from this tensor.
+	 * @param marginals The indexes, or null to remove them.
+	 */
+	public void setMarginals(TensorMarginals marginals){
+		this.marginals = marginals;
+	}
+
+	/**
+	 * Build the secondary indexes from this tensor and attach them.
+	 */
+	public void buildMarginals(){
+		this.marginals = new TensorMarginals(this);
+	}
+
+	public TensorMarginals getMarginals(){
+		return this.marginals;
+	}
+
+	public double get(Integer key1, Integer key2, Integer key3){
+		if(key1 == null && marginals != null){
+			return marginals.get(key2, key3);
+		}
+		else if(key1 != null){
+			long pos1 = findKey1(key1);
+			if(pos1 < 0)
+				return 0.0;
+			if(key2 != null){
+				long pos2 = findKey2(pos1, key2);
+				if(pos2 < 0)
+					return 0.0;
+				if(key3 != null)
+					return getFromFiber(pos2, key3);
+				return sumFiber(pos2);
+			}
+			double sum = 0.0;
+			for(long pos2 = key1Ptr(pos1), end = key1Ptr(pos1 + 1); pos2 < end; pos2++){
+				if(key3 != null)
+					sum += getFromFiber(pos2, key3);
+				else
+					sum += sumFiber(pos2);
+			}
+			return sum;
+		}
+		else if(key2 != null){
+			double sum = 0.0;
+			for(long pos1 = 0, n1 = n1(); pos1 < n1; pos1++){
+				long pos2 = findKey2(pos1, key2);
+				if(pos2 < 0)
+					continue;
+				if(key3 != null)
+					sum += getFromFiber(pos2, key3);
+				else
+					sum += sumFiber(pos2);
+			}
+			return sum;
+		}
+		else if(key3 != null){
+			double sum = 0.0;
+			for(long pos2 = 0, n2 = n2(); pos2 < n2; pos2++)
+				sum += getFromFiber(pos2, key3);
+			return sum;
+		}
+		else {
+			double sum = 0.0;
+			for(long pos3 = 0, nnz = nnz(); pos3 < nnz; pos3++)
+				sum += value(pos3);
+			return sum;
+		}
+	}
+
+	public int[] getKeys(){
+		int[] keys = new int[(int)n1()];
+		for(int i = 0; i < keys.length; i++)
+			keys[i] = key1Id(i);
+		return keys;
+	}
+
+	public int[] getKeys(Integer key1){
+		long pos1 = findKey1(key1);
+		if(pos1 < 0)
+			return null;
+		long start = key1Ptr(pos1);
+		int[] keys = new int[(int)(key1Ptr(pos1 + 1) - start)];
+		for(int i = 0; i < keys.length; i++)
+			keys[i] = key2Id(start + i);
+		return keys;
+	}
+
+	public int[] getKeys(Integer key1, Integer key2){
+		long pos1 = findKey1(key1);
+		if(pos1 < 0)
+			return null;
+		long pos2 = findKey2(pos1, key2);
+		if(pos2 < 0)
+			return null;
+		long start = key2Ptr(pos2);
+		int[] keys = new int[(int)(key2Ptr(pos2 + 1) - start)];
+		for(int i = 0; i < keys.length; i++)
+			keys[i] = key3Id(start + i);
+		return keys;
+	}
+
+	public double[] getValues(Integer key1, Integer key2){
+		long pos1 = findKey1(key1);
+		if(pos1 < 0)
+			return null;
+		long pos2 = findKey2(pos1, key2);
+		if(pos2 < 0)
+			return null;
+		long start = key2Ptr(pos2);
+		double[] values = new double[(int)(key2Ptr(pos2 + 1) - start)];
+		for(int i = 0; i < values.length; i++)
+			values[i] = value(start + i);
+		return values;
+	}
+
+	public boolean containsKey(int key1){
+		return findKey1(key1) >= 0;
+	}
+
+	/**
+	 * Sort the keys in ascending order, and reorder the values along with them.
+	 * Used when converting a hash-based tensor into CSF layout.
+	 * @param keys Keys
+	 * @param values Values aligned with the keys
+	 */
+	public static void sort(int[] keys, double[] values){
+		sort(keys, values, 0, keys.length - 1);
+	}
+
+	private static void sort(int[] keys, double[] values, int low, int high){
+		while(high - low > 16){
+			int pivot = keys[(low + high) >>> 1];
+			int i = low, j = high;
+			while(i <= j){
+				while(keys[i] < pivot)
+					i++;
+				while(keys[j] > pivot)
+					j--;
+				if(i <= j){
+					swap(keys, values, i, j);
+					i++;
+					j--;
+				}
+			}
+			// Recurse into the smaller half, loop on the larger one
+			if(j - low < high - i){
+				sort(keys, values, low, j);
+				low = i;
+			}
+			else {
+				sort(keys, values, i, high);
+				high = j;
+			}
+		}
+		for(int i = low + 1; i <= high; i++)
+			for(int j = i; j > low && keys[j-1] > keys[j]; j--)
+				swap(keys, values, j, j-1);
+	}
+
+	private static void swap(int[] keys, double[] values, int i, int j){
+		int tempKey = keys[i];
+		keys[i] = keys[j];
+		keys[j] = tempKey;
+		double tempValue = values[i];
+		values[i] = values[j];
+		values[j] = tempValue;
+	}
+
+	public int size(){
+		return (int)n1();
+	}
+}
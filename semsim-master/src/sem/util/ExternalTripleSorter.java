@@ -0,0 +1,326 @@
+package sem.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sums up (key1, key2, key3, value) entries that do not fit into memory.
+ * Entries are collected into a fixed-size buffer. When the buffer is full, it is sorted, equal keys are combined, and the result is written to a temporary file as a sorted run.
+ * At the end, the runs are merged with a k-way merge and the sums are written into a MappedTensor file, so the size of the tensor is limited only by the disk.
+ * At most a fixed number of runs are merged at once, so that the number of open files and read buffers stays bounded. If there are more runs, they are first merged into longer runs in several passes.
+ * The temporary files are deleted by write().
+ */
+public class ExternalTripleSorter {
+	/**
+	 * Bytes of memory used by every buffered entry.
+	 */
+	public static final int ENTRY_SIZE = 20;
+	
+	/**
+	 * Default maximum number of runs merged at once.
+	 */
+	public static final int DEFAULT_MERGE_FAN_IN = 128;
+	
+	private File tempDir;
+	private int mergeFanIn;
+	private int[] keys1, keys2, keys3;
+	private double[] values;
+	private int size;
+	private ArrayList<File> runs;
+	
+	/**
+	 * @param memoryBudget Memory used for buffering entries, in bytes
+	 * @param tempDir Directory for the temporary run files
+	 */
+	public ExternalTripleSorter(long memoryBudget, File tempDir){
+		this(memoryBudget, tempDir, DEFAULT_MERGE_FAN_IN);
+	}
+	
+	/**
+	 * @param memoryBudget Memory used for buffering entries, in bytes
+	 * @param tempDir Directory for the temporary run files
+	 * @param mergeFanIn Maximum number of runs merged at once
+	 */
+	public ExternalTripleSorter(long memoryBudget, File tempDir, int mergeFanIn){
+		if(mergeFanIn < 2)
+			throw new RuntimeException("At least 2 runs must be merged at once: " + mergeFanIn);
+		int capacity = (int)Math.min(memoryBudget / ENTRY_SIZE, Integer.MAX_VALUE - 8);
+		if(capacity < 1)
+			throw new RuntimeException("Memory budget is too small: " + memoryBudget);
+		this.tempDir = tempDir;
+		this.mergeFanIn = mergeFanIn;
+		this.keys1 = new int[capacity];
+		this.keys2 = new int[capacity];
+		this.keys3 = new int[capacity];
+		this.values = new double[capacity];
+		this.size = 0;
+		this.runs = new ArrayList<File>();
+	}
+	
+	/**
+	 * Add a value. Values with the same keys are summed.
+	 */
+	public void add(int key1, int key2, int key3, double value){
+		if(size == keys1.length)
+			spill();
+		keys1[size] = key1;
+		keys2[size] = key2;
+		keys3[size] = key3;
+		values[size] = value;
+		size++;
+	}
+	
+	/**
+	 * @return The number of sorted runs that have been written to disk.
+	 */
+	public int getNumRuns(){
+		return this.runs.size();
+	}
+	
+	private int compare(int i, int j){
+		if(keys1[i] != keys1[j])
+			return keys1[i] < keys1[j] ? -1 : 1;
+		if(keys2[i] != keys2[j])
+			return keys2[i] < keys2[j] ? -1 : 1;
+		if(keys3[i] != keys3[j])
+			return keys3[i] < keys3[j] ? -1 : 1;
+		return 0;
+	}
+	
+	private void swap(int i, int j){
+		int tempKey = keys1[i]; keys1[i] = keys1[j]; keys1[j] = tempKey;
+		tempKey = keys2[i]; keys2[i] = keys2[j]; keys2[j] = tempKey;
+		tempKey = keys3[i]; keys3[i] = keys3[j]; keys3[j] = tempKey;
+		double tempValue = values[i]; values[i] = values[j]; values[j] = tempValue;
+	}
+	
+	private void sort(int low, int high){
+		while(high - low > 16){
+			// Three-way partitioning, because the same triple is often added many times
+			swap(low, (low + high) >>> 1);
+			int lt = low, gt = high, i = low + 1;
+			while(i <= gt){
+				int c = compare(i, lt);
+				if(c < 0)
+					swap(lt++, i++);
+				else if(c > 0)
+					swap(i, gt--);
+				else
+					i++;
+			}
+			// Recurse into the smaller part, loop on the larger one
+			if(lt - low < high - gt){
+				sort(low, lt - 1);
+				low = gt + 1;
+			}
+			else {
+				sort(gt + 1, high);
+				high = lt - 1;
+			}
+		}
+		for(int i = low + 1; i <= high; i++)
+			for(int j = i; j > low && compare(j-1, j) > 0; j--)
+				swap(j, j-1);
+	}
+	
+	/**
+	 * Sort the buffer, combine the equal keys and write it to a new run file.
+	 */
+	private void spill(){
+		if(size == 0)
+			return;
+		sort(0, size - 1);
+		File run = null;
+		try{
+			run = File.createTempFile("semsim", ".run", tempDir);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+			int i = 0;
+			while(i < size){
+				double sum = values[i];
+				int j = i + 1;
+				while(j < size && compare(i, j) == 0)
+					sum += values[j++];
+				out.writeInt(keys1[i]);
+				out.writeInt(keys2[i]);
+				out.writeInt(keys3[i]);
+				out.writeDouble(sum);
+				i = j;
+			}
+			out.close();
+			runs.add(run);
+			size = 0;
+		}catch (IOException e){
+			if(run != null)
+				run.delete();
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Reads the entries of one run in order.
+	 */
+	private static class RunReader implements Comparable<RunReader>{
+		private DataInputStream in;
+		private long remaining;
+		private int index;
+		int key1, key2, key3;
+		double value;
+		
+		public RunReader(File run, int index) throws IOException{
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+			this.remaining = run.length() / ENTRY_SIZE;
+			this.index = index;
+		}
+		
+		public boolean next() throws IOException{
+			if(remaining == 0)
+				return false;
+			key1 = in.readInt();
+			key2 = in.readInt();
+			key3 = in.readInt();
+			value = in.readDouble();
+			remaining--;
+			return true;
+		}
+		
+		public void close() throws IOException{
+			in.close();
+		}
+		
+		public int compareTo(RunReader other){
+			if(key1 != other.key1)
+				return key1 < other.key1 ? -1 : 1;
+			if(key2 != other.key2)
+				return key2 < other.key2 ? -1 : 1;
+			if(key3 != other.key3)
+				return key3 < other.key3 ? -1 : 1;
+			// Ties are broken by the run order, so the values are always summed in the same order
+			return index < other.index ? -1 : (index > other.index ? 1 : 0);
+		}
+	}
+	
+	/**
+	 * Receives the merged entries in order.
+	 */
+	private interface MergeOutput {
+		void add(int key1, int key2, int key3, double value) throws IOException;
+	}
+	
+	/**
+	 * Merge the runs with a k-way merge, summing the values of equal keys.
+	 * Equal keys are summed in the order of the runs.
+	 */
+	private static void merge(List<File> runs, MergeOutput output) throws IOException{
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(runs.size(), 1));
+		try{
+			for(int i = 0; i < runs.size(); i++){
+				RunReader reader = new RunReader(runs.get(i), i);
+				if(reader.next())
+					queue.add(reader);
+				else
+					reader.close();
+			}
+			
+			while(!queue.isEmpty()){
+				RunReader reader = queue.poll();
+				int key1 = reader.key1, key2 = reader.key2, key3 = reader.key3;
+				double sum = reader.value;
+				if(reader.next())
+					queue.add(reader);
+				else
+					reader.close();
+				while(!queue.isEmpty() && queue.peek().key1 == key1 && queue.peek().key2 == key2 && queue.peek().key3 == key3){
+					reader = queue.poll();
+					sum += reader.value;
+					if(reader.next())
+						queue.add(reader);
+					else
+						reader.close();
+				}
+				output.add(key1, key2, key3, sum);
+			}
+		}finally{
+			for(RunReader reader : queue)
+				reader.close();
+		}
+	}
+	
+	/**
+	 * Merge consecutive groups of runs into longer runs, until at most mergeFanIn runs are left.
+	 * The merged runs keep the order of their groups, so the values are summed in the same order as in a single merge.
+	 */
+	private void mergePasses() throws IOException{
+		while(runs.size() > mergeFanIn){
+			ArrayList<File> merged = new ArrayList<File>();
+			boolean done = false;
+			try{
+				for(int start = 0; start < runs.size(); start += mergeFanIn){
+					List<File> group = runs.subList(start, Math.min(start + mergeFanIn, runs.size()));
+					if(group.size() == 1){
+						merged.add(group.get(0));
+						continue;
+					}
+					File run = File.createTempFile("semsim", ".run", tempDir);
+					merged.add(run);
+					final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+					try{
+						merge(group, new MergeOutput(){
+							public void add(int key1, int key2, int key3, double value) throws IOException{
+								out.writeInt(key1);
+								out.writeInt(key2);
+								out.writeInt(key3);
+								out.writeDouble(value);
+							}
+						});
+					}finally{
+						out.close();
+					}
+					for(File file : group)
+						file.delete();
+				}
+				done = true;
+			}finally{
+				// On failure, the new runs are deleted here and the remaining old ones by write()
+				if(!done)
+					for(File run : merged)
+						run.delete();
+			}
+			runs = merged;
+		}
+	}
+	
+	/**
+	 * Merge all the runs and write the sums into a file that can be opened with MappedTensor. The temporary files are deleted.
+	 * @param file Output file
+	 * @return The number of distinct (key1, key2, key3) entries
+	 */
+	public long write(String file){
+		spill();
+		final MappedTensorWriter writer = new MappedTensorWriter(file);
+		try{
+			mergePasses();
+			merge(runs, new MergeOutput(){
+				public void add(int key1, int key2, int key3, double value){
+					writer.add(key1, key2, key3, value);
+				}
+			});
+			writer.close();
+		}catch (IOException e){
+			throw new RuntimeException(e);
+		}finally{
+			for(File run : runs)
+				run.delete();
+			runs.clear();
+		}
+		return writer.size();
+	}
+}
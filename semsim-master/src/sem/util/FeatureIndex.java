@@ -0,0 +1,190 @@
+package sem.util;
+
+/**
+ * Maps (relation, node) features to dense integer IDs and counts their occurrences.
+ * Works like Index, but the features are keyed by two integers packed into a long instead of a "relation,node" string, so nothing is allocated when looking them up.
+ * The keys are kept in an open-addressing hash table, and the features and counts in arrays indexed by the ID.
+ * <p>The index is not synchronized. It should be filled by one thread, after which it can be read by many.
+ */
+public class FeatureIndex {
+	private long[] tableKeys;
+	private int[] tableIds;
+	private long[] features;
+	private double[] counts;
+	private int size;
+	private double totalCount;
+	
+	public FeatureIndex(){
+		this.tableKeys = new long[16];
+		this.tableIds = new int[16];
+		this.features = new long[16];
+		this.counts = new double[16];
+		this.size = 0;
+		this.totalCount = 0.0;
+	}
+	
+	/**
+	 * Create an index from saved features, for example by VectorSpace.open(). Only the hash table is rebuilt.
+	 * @param features Packed features by ID, starting from index 1
+	 * @param counts Counts by ID, starting from index 1
+	 * @param size Number of features
+	 * @param totalCount The sum of all the counts, as returned by getTotalCount()
+	 */
+	public FeatureIndex(long[] features, double[] counts, int size, double totalCount){
+		int capacity = 16;
+		while(capacity < 2 * (size + 1))
+			capacity *= 2;
+		this.tableKeys = new long[capacity];
+		this.tableIds = new int[capacity];
+		this.features = features;
+		this.counts = counts;
+		this.size = size;
+		this.totalCount = totalCount;
+		for(int id = 1; id <= size; id++){
+			int pos = findSlot(features[id]);
+			if(tableIds[pos] != 0)
+				throw new RuntimeException("Duplicate feature: " + getLabel(id));
+			tableKeys[pos] = features[id];
+			tableIds[pos] = id;
+		}
+	}
+	
+	/**
+	 * Pack the two keys of a feature into a single long.
+	 */
+	public static long pack(int key2, int key3){
+		return ((long)key2 << 32) | (key3 & 0xffffffffL);
+	}
+	
+	private static int hash(long feature, int mask){
+		long h = feature * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+	
+	/**
+	 * Find the position of a feature in the hash table.
+	 * @return The position of the feature, or the empty position where it should be inserted.
+	 */
+	private int findSlot(long feature){
+		int mask = tableIds.length - 1;
+		int pos = hash(feature, mask);
+		while(tableIds[pos] != 0 && tableKeys[pos] != feature)
+			pos = (pos + 1) & mask;
+		return pos;
+	}
+	
+	private void grow(){
+		long[] oldKeys = tableKeys;
+		int[] oldIds = tableIds;
+		tableKeys = new long[2 * oldKeys.length];
+		tableIds = new int[2 * oldIds.length];
+		for(int i = 0; i < oldIds.length; i++){
+			if(oldIds[i] == 0)
+				continue;
+			int pos = findSlot(oldKeys[i]);
+			tableKeys[pos] = oldKeys[i];
+			tableIds[pos] = oldIds[i];
+		}
+	}
+	
+	/**
+	 * Add a feature to the index. If the feature already exists, the counts are added up.
+	 * @param key2 Relation ID
+	 * @param key3 Node ID
+	 * @param count Added count
+	 * @return The ID of the feature
+	 */
+	public int add(int key2, int key3, double count){
+		long feature = pack(key2, key3);
+		int pos = findSlot(feature);
+		int id = tableIds[pos];
+		if(id == 0){
+			if(2 * (size + 1) > tableIds.length){
+				grow();
+				pos = findSlot(feature);
+			}
+			id = ++size;
+			if(id >= features.length){
+				long[] newFeatures = new long[2 * features.length];
+				System.arraycopy(features, 0, newFeatures, 0, features.length);
+				features = newFeatures;
+				double[] newCounts = new double[2 * counts.length];
+				System.arraycopy(counts, 0, newCounts, 0, counts.length);
+				counts = newCounts;
+			}
+			tableKeys[pos] = feature;
+			tableIds[pos] = id;
+			features[id] = feature;
+		}
+		counts[id] += count;
+		totalCount += count;
+		return id;
+	}
+	
+	/**
+	 * Get the ID of a feature.
+	 * @param key2 Relation ID
+	 * @param key3 Node ID
+	 * @return The ID, or 0 if the feature does not exist.
+	 */
+	public int getId(int key2, int key3){
+		return tableIds[findSlot(pack(key2, key3))];
+	}
+	
+	/**
+	 * Get the count of a feature.
+	 * @param id Feature ID
+	 * @return The count, 0 if the feature does not exist.
+	 */
+	public double getCount(int id){
+		if(id < 1 || id > size)
+			return 0.0;
+		return counts[id];
+	}
+	
+	/**
+	 * @return The packed keys of a feature, as returned by pack().
+	 */
+	public long getFeature(int id){
+		return features[id];
+	}
+	
+	/**
+	 * @return The relation ID of a feature.
+	 */
+	public int getKey2(int id){
+		return (int)(features[id] >>> 32);
+	}
+	
+	/**
+	 * @return The node ID of a feature.
+	 */
+	public int getKey3(int id){
+		return (int)features[id];
+	}
+	
+	/**
+	 * Get a readable label for a feature, in the same "relation,node" form that was previously used as the key.
+	 * @param id Feature ID
+	 * @return The label, or null if the feature does not exist.
+	 */
+	public String getLabel(int id){
+		if(id < 1 || id > size)
+			return null;
+		return getKey2(id) + "," + getKey3(id);
+	}
+	
+	/**
+	 * @return The sum of all the counts.
+	 */
+	public double getTotalCount(){
+		return this.totalCount;
+	}
+	
+	/**
+	 * @return The number of features in the index.
+	 */
+	public int size(){
+		return this.size;
+	}
+}
@@ -0,0 +1,132 @@
+package sem.util;
+
+import java.util.Arrays;
+
+/**
+ * An immutable tensor that keeps the sorted CSF arrays described in CsfTensor on the heap.
+ * It is much more compact than the nested hash maps of Tensor, and all the values under one key are stored next to each other.
+ * Create it with Tensor.freeze() once the tensor is no longer modified.
+ */
+public class FrozenTensor extends CsfTensor {
+	private int[] key1Ids;
+	private int[] key1Ptr;
+	private int[] key2Ids;
+	private int[] key2Ptr;
+	private int[] key3Ids;
+	private double[] values;
+
+	/**
+	 * Create a frozen copy of a tensor.
+	 * @param tensor Source tensor
+	 */
+	public FrozenTensor(TensorView tensor){
+		int[] keys1 = tensor.getKeys();
+		Arrays.sort(keys1);
+		long n2 = 0, nnz = 0;
+		for(int key1 : keys1){
+			int[] keys2 = tensor.getKeys(key1);
+			n2 += keys2.length;
+			for(int key2 : keys2)
+				nnz += tensor.getKeys(key1, key2).length;
+		}
+		if(nnz >= Integer.MAX_VALUE)
+			throw new RuntimeException("Tensor is too large to be frozen in memory, save it in the binary format and use MappedTensor instead.");
+
+		this.key1Ids = keys1;
+		this.key1Ptr = new int[keys1.length + 1];
+		this.key2Ids = new int[(int)n2];
+		this.key2Ptr = new int[(int)n2 + 1];
+		this.key3Ids = new int[(int)nnz];
+		this.values = new double[(int)nnz];
+
+		int pos2 = 0, pos3 = 0;
+		for(int pos1 = 0; pos1 < keys1.length; pos1++){
+			key1Ptr[pos1] = pos2;
+			int[] keys2 = tensor.getKeys(keys1[pos1]);
+			Arrays.sort(keys2);
+			for(int key2 : keys2){
+				key2Ids[pos2] = key2;
+				key2Ptr[pos2] = pos3;
+				int[] keys3 = tensor.getKeys(keys1[pos1], key2);
+				double[] values3 = tensor.getValues(keys1[pos1], key2);
+				sort(keys3, values3);
+				System.arraycopy(keys3, 0, key3Ids, pos3, keys3.length);
+				System.arraycopy(values3, 0, values, pos3, values3.length);
+				pos3 += keys3.length;
+				pos2++;
+			}
+		}
+		key1Ptr[keys1.length] = pos2;
+		key2Ptr[pos2] = pos3;
+	}
+
+	/**
+	 * Wrap CSF arrays that were built elsewhere. The arrays are not copied.
+	 */
+	FrozenTensor(int[] key1Ids, int[] key1Ptr, int[] key2Ids, int[] key2Ptr, int[] key3Ids, double[] values){
+		this.key1Ids = key1Ids;
+		this.key1Ptr = key1Ptr;
+		this.key2Ids = key2Ids;
+		this.key2Ptr = key2Ptr;
+		this.key3Ids = key3Ids;
+		this.values = values;
+	}
+
+	@Override
+	protected long n1(){
+		return key1Ids.length;
+	}
+
+	@Override
+	protected long n2(){
+		return key2Ids.length;
+	}
+
+	@Override
+	protected long nnz(){
+		return key3Ids.length;
+	}
+
+	@Override
+	protected int key1Id(long pos1){
+		return key1Ids[(int)pos1];
+	}
+
+	@Override
+	protected long key1Ptr(long pos1){
+		return key1Ptr[(int)pos1];
+	}
+
+	@Override
+	protected int key2Id(long pos2){
+		return key2Ids[(int)pos2];
+	}
+
+	@Override
+	protected long key2Ptr(long pos2){
+		return key2Ptr[(int)pos2];
+	}
+
+	@Override
+	protected int key3Id(long pos3){
+		return key3Ids[(int)pos3];
+	}
+
+	@Override
+	protected double value(long pos3){
+		return values[(int)pos3];
+	}
+
+	@Override
+	public int[] getKeys(){
+		return key1Ids.clone();
+	}
+
+	/**
+	 * Save the tensor in the binary format that can be memory-mapped with MappedTensor.
+	 * @param file Output file
+	 */
+	public void saveBinary(String file){
+		MappedTensor.save(this, file);
+	}
+}
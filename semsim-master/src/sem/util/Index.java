@@ -1,40 +1,166 @@
 package sem.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.HashMap;
-import java.util.Map.Entry;
 
 /**
  * Maintains an index.
  * Every unique string is mapped to an integer and the number of occurrences is counted.
+ * <p>IDs are dense, so labels and counts are kept in arrays indexed by the ID, and labels are found through an open-addressing hash table of IDs.
+ * The arrays are split into fixed-size pages. Growing the index only adds new pages, so existing entries never move.
+ * <p>Items can be added from several threads at once. Looking up an existing item does not lock, only new IDs are assigned under a lock, so that they remain contiguous. Counts are updated under one of several striped locks.
  */
 public class Index{
+	public static final int MAGIC = 0x53454d49;
+	public static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 	
-	private HashMap<String,Integer> idMap;
-	private HashMap<Integer,Double> countMap;
-	private HashMap<Integer,String> labelMap;
+	private static final int PAGE_BITS = 12;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+	private static final int NUM_STRIPES = 64;
+	
+	private volatile String[][] labelPages;
+	private volatile double[][] countPages;
+	private volatile int[] table;
+	private volatile int size;
+	
+	private Object[] stripes;
+	private double[] stripeTotals;
 	
 	/**
 	 * Create a new Index.
 	 */
 	public Index(){
-		this.idMap = new HashMap<String,Integer>();
-		this.countMap = new HashMap<Integer,Double>();
-		this.labelMap = null;
+		this.stripes = new Object[NUM_STRIPES];
+		for(int i = 0; i < NUM_STRIPES; i++)
+			this.stripes[i] = new Object();
+		this.init();
 	}
 	
 	/**
-	 * Create a new Dictionary from file. The file should be created by the save() method.
+	 * Create a new Dictionary from file. The file should be created by the save() or saveBinary() method.
 	 * @param file Input file
 	 */
 	public Index(String file){
 		this();
-		this.load(file);
+		if(MappedFile.hasMagic(file, MAGIC))
+			this.loadBinary(file);
+		else
+			this.load(file);
+	}
+	
+	private void init(){
+		this.countPages = new double[0][];
+		this.labelPages = new String[0][];
+		this.table = new int[16];
+		this.size = 0;
+		this.stripeTotals = new double[NUM_STRIPES];
+	}
+	
+	private static int hash(String label){
+		int h = label.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	private static String getLabel(String[][] labelPages, int id){
+		int page = id >>> PAGE_BITS;
+		if(page >= labelPages.length)
+			return null;
+		return labelPages[page][id & PAGE_MASK];
+	}
+	
+	/**
+	 * Find the ID of a label without locking.
+	 * An item that is being added by another thread may not be found yet, so a miss has to be checked again under the lock.
+	 * @return The ID, or 0 if it was not found.
+	 */
+	private int find(String label){
+		int[] table = this.table;
+		String[][] labelPages = this.labelPages;
+		int mask = table.length - 1;
+		for(int pos = hash(label) & mask; ; pos = (pos + 1) & mask){
+			int id = table[pos];
+			if(id == 0)
+				return 0;
+			if(label.equals(getLabel(labelPages, id)))
+				return id;
+		}
+	}
+	
+	/**
+	 * Make sure that the pages for the ID exist. The caller must hold the lock.
+	 */
+	private void ensurePage(int id){
+		int numPages = (id >>> PAGE_BITS) + 1;
+		if(numPages <= this.labelPages.length)
+			return;
+		double[][] newCountPages = new double[numPages][];
+		String[][] newLabelPages = new String[numPages][];
+		System.arraycopy(this.countPages, 0, newCountPages, 0, this.countPages.length);
+		System.arraycopy(this.labelPages, 0, newLabelPages, 0, this.labelPages.length);
+		for(int page = this.labelPages.length; page < numPages; page++){
+			newCountPages[page] = new double[PAGE_SIZE];
+			newLabelPages[page] = new String[PAGE_SIZE];
+		}
+		// The count pages are published first, so that any thread that can see a label can also see its count
+		this.countPages = newCountPages;
+		this.labelPages = newLabelPages;
+	}
+	
+	/**
+	 * Insert the ID into the hash table, growing it if needed. The caller must hold the lock.
+	 */
+	private void insert(String label, int id){
+		int[] table = this.table;
+		if(2 * (this.size + 1) > table.length){
+			int[] newTable = new int[2 * table.length];
+			int newMask = newTable.length - 1;
+			for(int oldId : table){
+				if(oldId == 0)
+					continue;
+				int pos = hash(getLabel(this.labelPages, oldId)) & newMask;
+				while(newTable[pos] != 0)
+					pos = (pos + 1) & newMask;
+				newTable[pos] = oldId;
+			}
+			table = newTable;
+		}
+		int mask = table.length - 1;
+		int pos = hash(label) & mask;
+		while(table[pos] != 0)
+			pos = (pos + 1) & mask;
+		table[pos] = id;
+		this.table = table;
+	}
+	
+	/**
+	 * Store a new item with the specified ID. The caller must hold the lock.
+	 */
+	private void put(String label, int id){
+		ensurePage(id);
+		this.labelPages[id >>> PAGE_BITS][id & PAGE_MASK] = label;
+		insert(label, id);
+		if(id > this.size)
+			this.size = id;
+	}
+	
+	private void addCount(int id, double count){
+		int stripe = id & (NUM_STRIPES - 1);
+		synchronized(this.stripes[stripe]){
+			this.countPages[id >>> PAGE_BITS][id & PAGE_MASK] += count;
+			this.stripeTotals[stripe] += count;
+		}
 	}
 	
 	/**
@@ -43,20 +169,19 @@ public class Index{
 	 * @param count Added count
 	 * @return The ID of the item that was just added.
 	 */
-	public synchronized int add(String label, Double count){
-		Integer tempInt = idMap.get(label);
-		if(tempInt == null){
-			int newId = this.getNextId();
-			idMap.put(label, newId);
-			countMap.put(newId, count);
-			if(this.labelMap != null)
-				this.labelMap.put(newId, label);
-			return newId;
-		}
-		else {
-			countMap.put(tempInt, countMap.get(tempInt) + count);
-			return tempInt;
+	public int add(String label, Double count){
+		int id = find(label);
+		if(id == 0){
+			synchronized(this){
+				id = find(label);
+				if(id == 0){
+					id = this.getNextId();
+					this.put(label, id);
+				}
+			}
 		}
+		addCount(id, count);
+		return id;
 	}
 	
 	/**
@@ -64,17 +189,29 @@ public class Index{
 	 * @param label	Label
 	 * @return The ID of the item that was just added.
 	 */
-	public synchronized int add(String label){
+	public int add(String label){
 		return this.add(label, 1.0);
 	}
 	
 	/**
 	 * Get the Id corresponding to the label.
 	 * @param label Key
-	 * @return The ID belonging to the key. Null if the label does not exist in the index.
+	 * @return The ID belonging to the key. Null if the label does not exist in the index, or if it is just being added by another thread.
 	 */
 	public Integer getId(String label){
-		return this.idMap.get(label);
+		if(label == null)
+			return null;
+		int id = find(label);
+		return id == 0 ? null : id;
+	}
+	
+	/**
+	 * Get the ID corresponding to the label, without boxing it.
+	 * @param label Key
+	 * @return The ID belonging to the key. 0 if the label does not exist in the index, or if it is just being added by another thread.
+	 */
+	public int indexOf(String label){
+		return label == null ? 0 : find(label);
 	}
 	
 	/**
@@ -83,10 +220,9 @@ public class Index{
 	 * @return The count of the object. 0 if it does not exist.
 	 */
 	public Double getCount(Integer id){
-		Double tempDouble = this.countMap.get(id);
-		if(tempDouble != null)
-			return tempDouble;
-		return 0.0;
+		if(id == null || id < 1 || id > this.size)
+			return 0.0;
+		return this.countPages[id >>> PAGE_BITS][id & PAGE_MASK];
 	}
 	
 	/**
@@ -103,11 +239,13 @@ public class Index{
 	
 	/**
 	 * Get the label using their ID.
-	 * @param id	ID	
-	 * @return 	The label
+	 * @param id	ID
+	 * @return 	The label, or null if the ID does not exist.
 	 */
 	public String getLabel(Integer id){
-		return this.getLabelMap().get(id);
+		if(id == null || id < 1 || id > this.size)
+			return null;
+		return getLabel(this.labelPages, id);
 	}
 	
 	/**
@@ -115,50 +253,56 @@ public class Index{
 	 * @return The number of elements in the index.
 	 */
 	public int size(){
-		return this.idMap.size();
+		return this.size;
 	}
 	
 	/**
 	 * Remove all elements from the dictionary.
 	 */
-	public void clear(){
-		if(this.idMap != null)
-			this.idMap.clear();
-		if(this.countMap != null)
-			this.countMap.clear();
-		if(this.labelMap != null)
-			this.labelMap.clear();
+	public synchronized void clear(){
+		this.init();
 	}
 	
 	private int getNextId(){
 		return this.size() + 1;
 	}
-
+	
 	/**
-	 * Get the Label-to-ID map.
+	 * Get the Label-to-ID map. A new map is built on every call.
 	 * @return Label-to-ID map
 	 */
 	public HashMap<String, Integer> getIdMap() {
-		return this.idMap;
+		HashMap<String,Integer> idMap = new HashMap<String,Integer>();
+		for(int id = 1; id <= this.size; id++){
+			String label = this.getLabel(id);
+			if(label != null)
+				idMap.put(label, id);
+		}
+		return idMap;
 	}
-
+	
 	/**
-	 * Get the ID-to-Count map.
+	 * Get the ID-to-Count map. A new map is built on every call.
 	 * @return ID-to-Count map
 	 */
 	public HashMap<Integer, Double> getCountMap() {
-		return this.countMap;
+		HashMap<Integer,Double> countMap = new HashMap<Integer,Double>();
+		for(int id = 1; id <= this.size; id++)
+			if(this.getLabel(id) != null)
+				countMap.put(id, this.getCount(id));
+		return countMap;
 	}
 	
 	/**
-	 * Get the ID-to-Label map. Compared to others, this takes more time, as it is only created when needed.
+	 * Get the ID-to-Label map. A new map is built on every call, getLabel() should be used for single lookups.
 	 * @return ID-to-Label map
 	 */
 	public HashMap<Integer,String> getLabelMap(){
-		if(this.labelMap == null){
-			this.labelMap = new HashMap<Integer,String>();
-			for(Entry<String,Integer> e : this.idMap.entrySet())
-				labelMap.put(e.getValue(), e.getKey());
+		HashMap<Integer,String> labelMap = new HashMap<Integer,String>();
+		for(int id = 1; id <= this.size; id++){
+			String label = this.getLabel(id);
+			if(label != null)
+				labelMap.put(id, label);
 		}
 		return labelMap;
 	}
@@ -167,7 +311,7 @@ public class Index{
 	 * Load the index from a file.
 	 * @param file Input file
 	 */
-	private void load(String file)
+	private synchronized void load(String file)
 	{
 		Integer tempInt;
 		String[] temp;
@@ -181,8 +325,8 @@ public class Index{
 				temp = strLine.split("\\t+");
 				if(temp.length == 3){
 					tempInt = Integer.parseInt(temp[0]);
-					this.idMap.put(temp[1], tempInt);
-					this.countMap.put(tempInt, Double.parseDouble(temp[2]));
+					this.put(temp[1], tempInt);
+					this.addCount(tempInt, Double.parseDouble(temp[2]));
 				}
 				else{
 					throw new RuntimeException("Illegal number of columns in the input file.");
@@ -204,8 +348,10 @@ public class Index{
 		try{
 			FileWriter fstream = new FileWriter(file);
 		    BufferedWriter out = new BufferedWriter(fstream);
-		    for(Entry<String,Integer> e : this.idMap.entrySet()){
-		    	out.write(e.getValue() + "\t" + e.getKey()+"\t"+this.countMap.get(e.getValue()) + "\n");
+		    for(int id = 1; id <= this.size; id++){
+		    	String label = this.getLabel(id);
+		    	if(label != null)
+		    		out.write(id + "\t" + label + "\t" + this.getCount(id) + "\n");
 		    }
 		    out.close();
 		    fstream.close();
@@ -214,18 +360,82 @@ public class Index{
 		}
 	}
 	
+	/**
+	 * Load the index from a binary file created by saveBinary().
+	 * @param file Input file
+	 */
+	private synchronized void loadBinary(String file)
+	{
+		try{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			if(in.readInt() != MAGIC)
+				throw new RuntimeException("Unknown file format");
+			int version = in.readInt();
+			if(version != VERSION)
+				throw new RuntimeException("Unsupported format version: " + version + ", expected " + VERSION);
+			
+			int size = in.readInt();
+			byte[] bytes = new byte[64];
+			for(int id = 1; id <= size; id++){
+				double count = in.readDouble();
+				int length = in.readInt();
+				if(length > bytes.length)
+					bytes = new byte[Math.max(length, 2 * bytes.length)];
+				in.readFully(bytes, 0, length);
+				this.put(new String(bytes, 0, length, UTF8), id);
+				this.addCount(id, count);
+			}
+			in.close();
+		}catch (Exception e){
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Save the dictionary to a binary file. Labels are stored in the order of their IDs, so the IDs themselves are not written.
+	 * @param file Output file
+	 */
+	public synchronized void saveBinary(String file)
+	{
+		try{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(this.size());
+			for(int id = 1; id <= this.size(); id++){
+				String label = this.getLabel(id);
+				if(label == null)
+					throw new RuntimeException("Index IDs are not contiguous, missing ID " + id);
+				byte[] bytes = label.getBytes(UTF8);
+				out.writeDouble(this.getCount(id));
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			out.close();
+		}catch (Exception e){
+			throw new RuntimeException(e);
+		}
+	}
+	
 	public boolean contains(String label){
-		return this.idMap.containsKey(label);
+		return this.getId(label) != null;
 	}
 	
 	public boolean contains(Integer id){
-		return this.idMap.containsValue(id);
+		return this.getLabel(id) != null;
 	}
 	
+	/**
+	 * Get the sum of all the counts. The total is updated whenever a count changes, so this does not iterate over the index.
+	 * @return The total count
+	 */
 	public Double getTotalCount(){
 		double total = 0.0;
-		for(Double value : this.countMap.values())
-			total += value;
+		for(int stripe = 0; stripe < NUM_STRIPES; stripe++){
+			synchronized(this.stripes[stripe]){
+				total += this.stripeTotals[stripe];
+			}
+		}
 		return total;
 	}
 }
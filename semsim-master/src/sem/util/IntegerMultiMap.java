@@ -1,6 +1,12 @@
 package sem.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.util.ArrayList;
 import java.util.Map.Entry;
@@ -10,6 +16,8 @@ import java.util.Map.Entry;
  *
  */
 public class IntegerMultiMap extends java.util.HashMap<Integer,ArrayList<Integer>>{
+	public static final int MAGIC = 0x53454d4c;
+	public static final int VERSION = 1;
 	
 	public IntegerMultiMap(){
 		super();
@@ -17,7 +25,10 @@ public class IntegerMultiMap extends java.util.HashMap<Integer,ArrayList<Integer
 	
 	public IntegerMultiMap(String inputFile){
 		super();
-		this.load(inputFile);
+		if(MappedFile.hasMagic(inputFile, MAGIC))
+			this.loadBinary(inputFile);
+		else
+			this.load(inputFile);
 	}
 	
 	public void load(String file){
@@ -57,6 +68,50 @@ public class IntegerMultiMap extends java.util.HashMap<Integer,ArrayList<Integer
 		}
 	}
 	
+	public void loadBinary(String file){
+		try{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			if(in.readInt() != MAGIC)
+				throw new RuntimeException("Unknown file format");
+			int version = in.readInt();
+			if(version != VERSION)
+				throw new RuntimeException("Unsupported format version: " + version + ", expected " + VERSION);
+			int numKeys = in.readInt();
+			for(int i = 0; i < numKeys; i++){
+				Integer id = in.readInt();
+				int length = in.readInt();
+				ArrayList<Integer> list = this.get(id);
+				if(list == null){
+					list = new ArrayList<Integer>(length);
+					this.put(id, list);
+				}
+				for(int j = 0; j < length; j++)
+					list.add(in.readInt());
+			}
+			in.close();
+		}catch (Exception e){
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public void saveBinary(String file){
+		try{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(this.size());
+			for(Entry<Integer,ArrayList<Integer>> e : this.entrySet()){
+				out.writeInt(e.getKey());
+				out.writeInt(e.getValue().size());
+				for(Integer i : e.getValue())
+					out.writeInt(i);
+			}
+			out.close();
+		}catch (Exception e){
+			throw new RuntimeException(e);
+		}
+	}
+	
 	public void put(Integer key, Integer value){
 		if(!this.containsKey(key))
 			this.put(key, new ArrayList<Integer>());
@@ -0,0 +1,578 @@
+package sem.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+/**
+ * The sentences where every node occurs, stored as compressed posting lists.
+ * <p>The sorted sentence ids of a node are split into blocks of BLOCK_SIZE ids. The first id of every block is kept in a skip table, and the other ids are stored as the difference to the previous id in variable-byte encoding, so an id usually takes one or two bytes.
+ * A node that occurs several times in a sentence has the id repeated, which is stored as a difference of 0.
+ * <p>The number of sentences shared by two nodes is counted by intersecting their lists. The skip tables are searched with galloping search, so only the blocks that can contain a match are decoded.
+ * <p>The number of locations in every sentence is kept as well. The number of words that occur together with a node is then counted from the sentences of that node only, and the total number of pairs in all the sentences does not need to read the lists.
+ * <p>Binary files are memory-mapped and the lists are decoded directly from the mapped pages. A list is copied into memory only if new locations are added to it.
+ * Text files and the binary files of IntegerMultiMap are still loaded, and are converted into the compressed lists.
+ * <p>Locations can be added from several threads. Queries should only be made once all the locations have been added.
+ */
+public class LocationIndex {
+	public static final int MAGIC = 0x53454d50;
+	public static final int VERSION = 2;
+	public static int BLOCK_SIZE = 128;
+
+	private static final int HEADER_SIZE = 28;
+	private static final int MIN_PENDING = 32;
+
+	private Postings[] lists;
+	private int blockSize;
+	private int maxSentence;
+	// The number of locations in every sentence. Null if they are read from the mapped file
+	private int[] lengths;
+	private long lengthsPosition;
+	private MappedFile mappedFile;
+
+	private static class Postings {
+		int count;
+		int last;
+		int numBlocks;
+		int[] blockFirst;
+		int[] blockOffset;
+		int length;
+		// Null if the list is read from the mapped file
+		byte[] data;
+		long position;
+		// Locations that arrived out of order, merged into the list before it is read
+		int[] pending;
+		int numPending;
+	}
+
+	public LocationIndex(){
+		this.lists = new Postings[16];
+		this.lengths = new int[16];
+		this.blockSize = BLOCK_SIZE;
+	}
+
+	/**
+	 * Open a binary file created by saveBinary(), or load a file created by save() or by IntegerMultiMap.
+	 * @param file Input file
+	 */
+	public LocationIndex(String file){
+		this();
+		if(MappedFile.hasMagic(file, MAGIC)){
+			open(file);
+		}
+		else {
+			IntegerMultiMap map = new IntegerMultiMap(file);
+			for(Entry<Integer,ArrayList<Integer>> e : map.entrySet())
+				for(Integer sentence : e.getValue())
+					add(e.getKey(), sentence);
+		}
+	}
+
+	private void open(String file){
+		this.mappedFile = new MappedFile(file);
+		mappedFile.checkHeader(MAGIC, VERSION);
+		this.blockSize = mappedFile.getInt(8);
+		this.maxSentence = mappedFile.getInt(12);
+		int numKeys = mappedFile.getInt(16);
+		this.lengthsPosition = mappedFile.getLong(20);
+		this.lengths = null;
+		for(int i = 0; i < numKeys; i++){
+			long entry = HEADER_SIZE + 16L * i;
+			Postings postings = getOrCreate(mappedFile.getInt(entry));
+			postings.count = mappedFile.getInt(entry + 4);
+			postings.position = mappedFile.getLong(entry + 8);
+		}
+	}
+
+	private Postings getOrCreate(int key){
+		if(key < 0)
+			throw new RuntimeException("Negative key: " + key);
+		if(key >= lists.length)
+			lists = Arrays.copyOf(lists, Math.max(key + 1, lists.length * 2));
+		if(lists[key] == null)
+			lists[key] = new Postings();
+		return lists[key];
+	}
+
+	/**
+	 * Record that a node occurs in a sentence. The same location can be added several times.
+	 * @param key Node ID
+	 * @param sentence Sentence ID
+	 */
+	public synchronized void add(int key, int sentence){
+		Postings postings = getOrCreate(key);
+		if(postings.data == null && postings.count > 0)
+			rebuild(postings, decode(postings), postings.count);
+		if(postings.count == 0 || sentence >= postings.last){
+			append(postings, sentence);
+		}
+		else {
+			if(postings.pending == null)
+				postings.pending = new int[MIN_PENDING];
+			else if(postings.numPending == postings.pending.length)
+				postings.pending = Arrays.copyOf(postings.pending, postings.pending.length * 2);
+			postings.pending[postings.numPending++] = sentence;
+			if(postings.numPending >= Math.max(MIN_PENDING, postings.count / 4))
+				flush(postings);
+		}
+		if(lengths == null)
+			lengths = mappedFile.getInts(lengthsPosition, maxSentence + 1);
+		if(sentence >= lengths.length)
+			lengths = Arrays.copyOf(lengths, Math.max(sentence + 1, lengths.length * 2));
+		lengths[sentence]++;
+		maxSentence = Math.max(maxSentence, sentence);
+	}
+
+	private void append(Postings postings, int sentence){
+		if(postings.count % blockSize == 0){
+			if(postings.blockFirst == null){
+				postings.blockFirst = new int[4];
+				postings.blockOffset = new int[4];
+				postings.data = new byte[16];
+			}
+			else if(postings.numBlocks == postings.blockFirst.length){
+				postings.blockFirst = Arrays.copyOf(postings.blockFirst, postings.numBlocks * 2);
+				postings.blockOffset = Arrays.copyOf(postings.blockOffset, postings.numBlocks * 2);
+			}
+			postings.blockFirst[postings.numBlocks] = sentence;
+			postings.blockOffset[postings.numBlocks] = postings.length;
+			postings.numBlocks++;
+		}
+		else {
+			if(postings.length + 5 > postings.data.length)
+				postings.data = Arrays.copyOf(postings.data, postings.data.length * 2);
+			int delta = sentence - postings.last;
+			while((delta & ~0x7f) != 0){
+				postings.data[postings.length++] = (byte)((delta & 0x7f) | 0x80);
+				delta >>>= 7;
+			}
+			postings.data[postings.length++] = (byte)delta;
+		}
+		postings.last = sentence;
+		postings.count++;
+	}
+
+	/**
+	 * Merge the locations that arrived out of order into the list.
+	 */
+	private void flush(Postings postings){
+		if(postings.numPending == 0)
+			return;
+		int[] values = decode(postings);
+		int[] pending = Arrays.copyOf(postings.pending, postings.numPending);
+		Arrays.sort(pending);
+		int[] merged = new int[values.length + pending.length];
+		int i = 0, j = 0, k = 0;
+		while(i < values.length || j < pending.length){
+			if(j == pending.length || (i < values.length && values[i] <= pending[j]))
+				merged[k++] = values[i++];
+			else
+				merged[k++] = pending[j++];
+		}
+		rebuild(postings, merged, merged.length);
+	}
+
+	/**
+	 * Encode the list again in memory from the sorted locations.
+	 */
+	private void rebuild(Postings postings, int[] values, int length){
+		postings.count = 0;
+		postings.numBlocks = 0;
+		postings.length = 0;
+		postings.blockFirst = null;
+		postings.blockOffset = null;
+		postings.data = null;
+		postings.pending = null;
+		postings.numPending = 0;
+		for(int i = 0; i < length; i++)
+			append(postings, values[i]);
+	}
+
+	/**
+	 * Get a list that is ready to be read, with all the pending locations merged and the skip table loaded.
+	 * @return The list, or null if the node has no locations.
+	 */
+	private synchronized Postings getPostings(int key){
+		if(key < 0 || key >= lists.length || lists[key] == null || lists[key].count == 0)
+			return null;
+		Postings postings = lists[key];
+		flush(postings);
+		loadSkipTable(postings);
+		return postings;
+	}
+
+	/**
+	 * Read the skip table of a list in the mapped file.
+	 */
+	private void loadSkipTable(Postings postings){
+		if(postings.data != null || postings.blockFirst != null)
+			return;
+		int numBlocks = (postings.count + blockSize - 1) / blockSize;
+		postings.length = mappedFile.getInt(postings.position);
+		postings.blockFirst = mappedFile.getInts(postings.position + 4, numBlocks);
+		postings.blockOffset = mappedFile.getInts(postings.position + 4 + 4L * numBlocks, numBlocks);
+		postings.numBlocks = numBlocks;
+	}
+
+	private long getDataPosition(Postings postings){
+		return postings.position + 4 + 8L * postings.numBlocks;
+	}
+
+	private int[] decode(Postings postings){
+		loadSkipTable(postings);
+		int[] values = new int[postings.count];
+		Cursor cursor = new Cursor(postings);
+		for(int i = 0; i < values.length; i++, cursor.next())
+			values[i] = cursor.value();
+		return values;
+	}
+
+	/**
+	 * Reads a list in order, one block at a time.
+	 */
+	private class Cursor {
+		private Postings postings;
+		private int[] values;
+		private byte[] bytes;
+		private int block, size, pos;
+		boolean done;
+
+		Cursor(Postings postings){
+			this.postings = postings;
+			if(postings == null || postings.count == 0){
+				this.done = true;
+			}
+			else {
+				this.values = new int[blockSize];
+				load(0);
+			}
+		}
+
+		private void load(int block){
+			int start = postings.blockOffset[block];
+			int end = block + 1 < postings.numBlocks ? postings.blockOffset[block + 1] : postings.length;
+			byte[] data = postings.data;
+			int offset = start;
+			if(data == null){
+				if(bytes == null || bytes.length < end - start)
+					bytes = new byte[Math.max(end - start, 5 * blockSize)];
+				mappedFile.getBytes(getDataPosition(postings) + start, bytes, 0, end - start);
+				data = bytes;
+				offset = 0;
+			}
+			this.block = block;
+			this.size = Math.min(blockSize, postings.count - block * blockSize);
+			this.pos = 0;
+			int value = postings.blockFirst[block];
+			values[0] = value;
+			for(int i = 1; i < size; i++){
+				int delta = 0, shift = 0;
+				byte b;
+				do {
+					b = data[offset++];
+					delta |= (b & 0x7f) << shift;
+					shift += 7;
+				} while(b < 0);
+				value += delta;
+				values[i] = value;
+			}
+		}
+
+		int value(){
+			return values[pos];
+		}
+
+		void next(){
+			if(++pos == size){
+				if(block + 1 < postings.numBlocks)
+					load(block + 1);
+				else
+					done = true;
+			}
+		}
+
+		/**
+		 * Count the repetitions of the current location and move past them.
+		 */
+		int skipRun(){
+			int value = values[pos];
+			int n = 0;
+			while(!done && values[pos] == value){
+				n++;
+				next();
+			}
+			return n;
+		}
+
+		/**
+		 * Move to the first location that is not smaller than the target.
+		 */
+		void advance(int target){
+			if(done || values[pos] >= target)
+				return;
+			int[] first = postings.blockFirst;
+			int numBlocks = postings.numBlocks;
+			if(block + 1 < numBlocks && first[block + 1] < target){
+				// Gallop over the skip table to the last block that starts below the target
+				int low = block + 1, step = 1;
+				while(low + step < numBlocks && first[low + step] < target){
+					low += step;
+					step <<= 1;
+				}
+				int high = Math.min(low + step, numBlocks) - 1;
+				while(low < high){
+					int mid = (low + high + 1) >>> 1;
+					if(first[mid] < target)
+						low = mid;
+					else
+						high = mid - 1;
+				}
+				load(low);
+			}
+			int low = pos, high = size;
+			while(low < high){
+				int mid = (low + high) >>> 1;
+				if(values[mid] < target)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			if(low < size)
+				pos = low;
+			else if(block + 1 < numBlocks)
+				load(block + 1);
+			else
+				done = true;
+		}
+	}
+
+	/**
+	 * Intersect two lists.
+	 * @return The number of pairs of repetitions, summed over the shared sentences
+	 */
+	private long intersect(Postings postings1, Postings postings2){
+		Cursor cursor1 = new Cursor(postings1), cursor2 = new Cursor(postings2);
+		long total = 0;
+		while(!cursor1.done && !cursor2.done){
+			int value1 = cursor1.value(), value2 = cursor2.value();
+			if(value1 < value2)
+				cursor1.advance(value2);
+			else if(value2 < value1)
+				cursor2.advance(value1);
+			else {
+				long count1 = cursor1.skipRun();
+				long count2 = cursor2.skipRun();
+				total += count1 * count2;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Count the pairs of occurrences of two nodes in the same sentence.
+	 * If the keys are equal, the pairs of different occurrences of the node are counted, each pair once.
+	 * @param key1 Node ID
+	 * @param key2 Node ID
+	 * @return The number of pairs
+	 */
+	public long countMatches(int key1, int key2){
+		if(key1 != key2)
+			return intersect(getPostings(key1), getPostings(key2));
+		long total = 0;
+		Cursor cursor = new Cursor(getPostings(key1));
+		while(!cursor.done){
+			long count = cursor.skipRun();
+			total += count * (count - 1) / 2;
+		}
+		return total;
+	}
+
+	/**
+	 * Count the occurrences of all the other nodes in the sentences where a node occurs.
+	 * Every sentence of the node adds its length minus the occurrences of the node.
+	 * @param key Node ID
+	 * @return The number of occurrences
+	 */
+	public long countMatches(int key){
+		Cursor cursor = new Cursor(getPostings(key));
+		long total = 0;
+		while(!cursor.done){
+			int sentence = cursor.value();
+			total += getLength(sentence) - cursor.skipRun();
+		}
+		return total;
+	}
+
+	/**
+	 * Count the ordered pairs of different occurrences in every sentence, summed over all the sentences.
+	 * @return The number of pairs
+	 */
+	public long countAllMatches(){
+		long total = 0;
+		int[] lengths = this.lengths;
+		if(lengths != null){
+			for(int sentence = 0; sentence <= maxSentence; sentence++)
+				total += (long)lengths[sentence] * (lengths[sentence] - 1);
+			return total;
+		}
+		int[] buffer = new int[1 << 16];
+		for(int start = 0; start <= maxSentence; start += buffer.length){
+			int n = Math.min(buffer.length, maxSentence + 1 - start);
+			mappedFile.getInts(lengthsPosition + 4L * start, buffer, 0, n);
+			for(int i = 0; i < n; i++)
+				total += (long)buffer[i] * (buffer[i] - 1);
+		}
+		return total;
+	}
+
+	/**
+	 * @param sentence Sentence ID
+	 * @return The number of locations in the sentence
+	 */
+	public int getLength(int sentence){
+		if(sentence < 0 || sentence > maxSentence)
+			return 0;
+		int[] lengths = this.lengths;
+		if(lengths != null)
+			return lengths[sentence];
+		return mappedFile.getInt(lengthsPosition + 4L * sentence);
+	}
+
+	/**
+	 * @param key Node ID
+	 * @return The sorted sentence IDs where the node occurs, or null if it has no locations.
+	 */
+	public int[] get(int key){
+		Postings postings = getPostings(key);
+		if(postings == null)
+			return null;
+		return decode(postings);
+	}
+
+	/**
+	 * @param key Node ID
+	 * @return The number of locations of the node
+	 */
+	public synchronized int getCount(int key){
+		if(key < 0 || key >= lists.length || lists[key] == null)
+			return 0;
+		return lists[key].count + lists[key].numPending;
+	}
+
+	/**
+	 * @return The sorted IDs of the nodes that have locations
+	 */
+	public synchronized int[] getKeys(){
+		int[] keys = new int[lists.length];
+		int n = 0;
+		for(int key = 0; key < lists.length; key++)
+			if(lists[key] != null && lists[key].count > 0)
+				keys[n++] = key;
+		return Arrays.copyOf(keys, n);
+	}
+
+	/**
+	 * @return The number of nodes that have locations
+	 */
+	public int size(){
+		return getKeys().length;
+	}
+
+	/**
+	 * @return The largest sentence ID
+	 */
+	public int getMaxSentence(){
+		return this.maxSentence;
+	}
+
+	/**
+	 * @return The memory taken by the encoded lists and the sentence lengths that are not memory-mapped
+	 */
+	public synchronized long getBytes(){
+		long bytes = 0;
+		for(Postings postings : lists)
+			if(postings != null && postings.data != null)
+				bytes += postings.data.length + 8L * postings.blockFirst.length;
+		if(lengths != null)
+			bytes += 4L * lengths.length;
+		return bytes;
+	}
+
+	/**
+	 * Save the locations in the text format of IntegerMultiMap.
+	 * @param file Output file
+	 */
+	public void save(String file){
+		try{
+			BufferedWriter out = new BufferedWriter(new FileWriter(file));
+			for(int key : getKeys()){
+				out.write("" + key);
+				for(int sentence : get(key))
+					out.write("\t" + sentence);
+				out.write("\n");
+			}
+			out.close();
+		}catch (Exception e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Save the compressed lists in the binary format that is memory-mapped when it is loaded.
+	 * The file is written to a temporary file first, so it is safe to overwrite the file that this index was opened from.
+	 * @param file Output file
+	 */
+	public void saveBinary(String file){
+		int[] keys = getKeys();
+		Postings[] postings = new Postings[keys.length];
+		for(int i = 0; i < keys.length; i++)
+			postings[i] = getPostings(keys[i]);
+		try{
+			File tempFile = new File(file + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(blockSize);
+			out.writeInt(maxSentence);
+			out.writeInt(keys.length);
+			long[] positions = new long[keys.length + 1];
+			positions[0] = HEADER_SIZE + 16L * keys.length;
+			for(int i = 0; i < keys.length; i++)
+				positions[i+1] = positions[i] + 4 + 8L * postings[i].numBlocks + postings[i].length;
+			out.writeLong(positions[keys.length]);
+			for(int i = 0; i < keys.length; i++){
+				out.writeInt(keys[i]);
+				out.writeInt(postings[i].count);
+				out.writeLong(positions[i]);
+			}
+			for(Postings p : postings){
+				out.writeInt(p.length);
+				for(int i = 0; i < p.numBlocks; i++)
+					out.writeInt(p.blockFirst[i]);
+				for(int i = 0; i < p.numBlocks; i++)
+					out.writeInt(p.blockOffset[i]);
+				if(p.data != null)
+					out.write(p.data, 0, p.length);
+				else
+					out.write(mappedFile.getBytes(getDataPosition(p), p.length));
+			}
+			for(int sentence = 0; sentence <= maxSentence; sentence++)
+				out.writeInt(getLength(sentence));
+			out.close();
+			File target = new File(file);
+			if(target.exists() && !target.delete())
+				throw new RuntimeException("Unable to replace file: " + file);
+			if(!tempFile.renameTo(target))
+				throw new RuntimeException("Unable to rename " + tempFile + " to " + file);
+		} catch(IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+}
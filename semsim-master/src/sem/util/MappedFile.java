@@ -0,0 +1,230 @@
+package sem.util;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory-mapped file.
+ * A single MappedByteBuffer is limited to 2GB, so larger files are mapped in several overlapping chunks.
+ * Values are addressed by their absolute byte position in the file and are read directly from the mapped pages, without loading the file into the heap.
+ */
+public class MappedFile {
+	private static final long CHUNK_SIZE = 1L << 30;
+	private static final long CHUNK_OVERLAP = 8;
+
+	private MappedByteBuffer[] chunks;
+	private long length;
+
+	/**
+	 * Map the whole file into memory.
+	 * @param file Input file
+	 */
+	public MappedFile(String file){
+		try{
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			this.length = channel.size();
+			int numChunks = (int)((this.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+			this.chunks = new MappedByteBuffer[Math.max(numChunks, 1)];
+			for(int i = 0; i < numChunks; i++){
+				long start = i * CHUNK_SIZE;
+				long size = Math.min(CHUNK_SIZE + CHUNK_OVERLAP, this.length - start);
+				this.chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+			}
+			// The mappings stay valid after the channel is closed
+			raf.close();
+		}catch (IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Check whether the file starts with the specified magic number.
+	 * @param file Input file
+	 * @param magic The magic number
+	 * @return True if the file exists and starts with the magic number.
+	 */
+	public static boolean hasMagic(String file, int magic){
+		File f = new File(file);
+		if(!f.isFile() || f.length() < 4)
+			return false;
+		try{
+			DataInputStream in = new DataInputStream(new FileInputStream(f));
+			int value = in.readInt();
+			in.close();
+			return value == magic;
+		}catch (IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Check the magic number and the format version in the first 8 bytes of the file.
+	 * @param magic Expected magic number
+	 * @param version Expected format version
+	 */
+	public void checkHeader(int magic, int version){
+		if(this.length < 8 || getInt(0) != magic)
+			throw new RuntimeException("Unknown file format");
+		if(getInt(4) != version)
+			throw new RuntimeException("Unsupported format version: " + getInt(4) + ", expected " + version);
+	}
+
+	public long length(){
+		return this.length;
+	}
+
+	public byte getByte(long position){
+		return this.chunks[(int)(position / CHUNK_SIZE)].get((int)(position % CHUNK_SIZE));
+	}
+
+	public int getInt(long position){
+		return this.chunks[(int)(position / CHUNK_SIZE)].getInt((int)(position % CHUNK_SIZE));
+	}
+
+	public long getLong(long position){
+		return this.chunks[(int)(position / CHUNK_SIZE)].getLong((int)(position % CHUNK_SIZE));
+	}
+
+	public double getDouble(long position){
+		return this.chunks[(int)(position / CHUNK_SIZE)].getDouble((int)(position % CHUNK_SIZE));
+	}
+
+	/**
+	 * Copy a range of bytes from the file.
+	 * @param position Start position
+	 * @param length Number of bytes
+	 * @return A new byte array
+	 */
+	public byte[] getBytes(long position, int length){
+		byte[] bytes = new byte[length];
+		getBytes(position, bytes, 0, length);
+		return bytes;
+	}
+
+	/**
+	 * Copy a range of bytes from the file into an array, with bulk reads from the mapped chunks.
+	 * @param position Start position
+	 * @param dest Destination array
+	 * @param offset Start position in the array
+	 * @param length Number of bytes
+	 */
+	public void getBytes(long position, byte[] dest, int offset, int length){
+		while(length > 0){
+			int count = getBulkCount(position, 1, length);
+			ByteBuffer buffer = getBuffer(position);
+			buffer.get(dest, offset, count);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Copy a range of integers from the file.
+	 * @param position Start position in bytes
+	 * @param length Number of integers
+	 * @return A new int array
+	 */
+	public int[] getInts(long position, int length){
+		int[] ints = new int[length];
+		getInts(position, ints, 0, length);
+		return ints;
+	}
+
+	/**
+	 * Copy a range of integers from the file into an array, with bulk reads from the mapped chunks.
+	 * @param position Start position in bytes
+	 * @param dest Destination array
+	 * @param offset Start position in the array
+	 * @param length Number of integers
+	 */
+	public void getInts(long position, int[] dest, int offset, int length){
+		while(length > 0){
+			int count = getBulkCount(position, 4, length);
+			if(count == 0){
+				dest[offset++] = getInt(position);
+				position += 4;
+				length--;
+				continue;
+			}
+			ByteBuffer buffer = getBuffer(position);
+			buffer.asIntBuffer().get(dest, offset, count);
+			position += 4L * count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Copy a range of longs from the file into an array, with bulk reads from the mapped chunks.
+	 * @param position Start position in bytes
+	 * @param dest Destination array
+	 * @param offset Start position in the array
+	 * @param length Number of longs
+	 */
+	public void getLongs(long position, long[] dest, int offset, int length){
+		while(length > 0){
+			int count = getBulkCount(position, 8, length);
+			if(count == 0){
+				dest[offset++] = getLong(position);
+				position += 8;
+				length--;
+				continue;
+			}
+			ByteBuffer buffer = getBuffer(position);
+			buffer.asLongBuffer().get(dest, offset, count);
+			position += 8L * count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Copy a range of doubles from the file into an array, with bulk reads from the mapped chunks.
+	 * @param position Start position in bytes
+	 * @param dest Destination array
+	 * @param offset Start position in the array
+	 * @param length Number of doubles
+	 */
+	public void getDoubles(long position, double[] dest, int offset, int length){
+		while(length > 0){
+			int count = getBulkCount(position, 8, length);
+			if(count == 0){
+				dest[offset++] = getDouble(position);
+				position += 8;
+				length--;
+				continue;
+			}
+			ByteBuffer buffer = getBuffer(position);
+			buffer.asDoubleBuffer().get(dest, offset, count);
+			position += 8L * count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Number of values that can be read in bulk from the chunk that contains the position.
+	 * A value that starts in the overlap at the end of a chunk is read on its own.
+	 */
+	private int getBulkCount(long position, int size, int length){
+		long remaining = CHUNK_SIZE - position % CHUNK_SIZE;
+		return (int)Math.min(length, remaining / size);
+	}
+
+	/**
+	 * A view of the chunk that contains the position, starting at the position.
+	 */
+	private ByteBuffer getBuffer(long position){
+		ByteBuffer buffer = this.chunks[(int)(position / CHUNK_SIZE)].duplicate();
+		buffer.position((int)(position % CHUNK_SIZE));
+		return buffer;
+	}
+}
@@ -0,0 +1,243 @@
+package sem.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A read-only tensor that is queried directly from a memory-mapped binary file.
+ * The file stores the tensor in the sorted CSF layout described in CsfTensor:
+ * <pre>
+ * header   magic, version, n1, (unused), n2, nnz
+ * int[n1]      key1 ids
+ * long[n1+1]   offsets into the key2 arrays
+ * int[n2]      key2 ids
+ * long[n2+1]   offsets into the key3 arrays
+ * int[nnz]     key3 ids
+ * double[nnz]  values
+ * </pre>
+ * Opening the tensor takes constant time regardless of its size.
+ */
+public class MappedTensor extends CsfTensor {
+	public static final int MAGIC = 0x53454d54;
+	public static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+
+	private MappedFile file;
+	private int n1;
+	private long n2;
+	private long nnz;
+
+	private long key1IdsOffset;
+	private long key1PtrOffset;
+	private long key2IdsOffset;
+	private long key2PtrOffset;
+	private long key3IdsOffset;
+	private long valuesOffset;
+
+	/**
+	 * Open a tensor that was written by save().
+	 * @param file Input file
+	 */
+	public MappedTensor(String file){
+		this.file = new MappedFile(file);
+		this.file.checkHeader(MAGIC, VERSION);
+		this.n1 = this.file.getInt(8);
+		this.n2 = this.file.getLong(16);
+		this.nnz = this.file.getLong(24);
+
+		this.key1IdsOffset = HEADER_SIZE;
+		this.key1PtrOffset = key1IdsOffset + 4L * n1;
+		this.key2IdsOffset = key1PtrOffset + 8L * (n1 + 1);
+		this.key2PtrOffset = key2IdsOffset + 4L * n2;
+		this.key3IdsOffset = key2PtrOffset + 8L * (n2 + 1);
+		this.valuesOffset = key3IdsOffset + 4L * nnz;
+
+		if(this.valuesOffset + 8L * nnz != this.file.length())
+			throw new RuntimeException("Tensor file is truncated or corrupt: " + file);
+	}
+
+	@Override
+	protected long n1(){
+		return this.n1;
+	}
+
+	@Override
+	protected long n2(){
+		return this.n2;
+	}
+
+	@Override
+	protected long nnz(){
+		return this.nnz;
+	}
+
+	@Override
+	protected int key1Id(long pos1){
+		return file.getInt(key1IdsOffset + 4L * pos1);
+	}
+
+	@Override
+	protected long key1Ptr(long pos1){
+		return file.getLong(key1PtrOffset + 8L * pos1);
+	}
+
+	@Override
+	protected int key2Id(long pos2){
+		return file.getInt(key2IdsOffset + 4L * pos2);
+	}
+
+	@Override
+	protected long key2Ptr(long pos2){
+		return file.getLong(key2PtrOffset + 8L * pos2);
+	}
+
+	@Override
+	protected int key3Id(long pos3){
+		return file.getInt(key3IdsOffset + 4L * pos3);
+	}
+
+	@Override
+	protected double value(long pos3){
+		return file.getDouble(valuesOffset + 8L * pos3);
+	}
+
+	@Override
+	public int[] getKeys(){
+		return file.getInts(key1IdsOffset, n1);
+	}
+
+	/**
+	 * Buffered writer for one section of the output file.
+	 * Every section starts at a precomputed position, which allows all of them to be filled in a single pass over the tensor.
+	 */
+	private static class SectionWriter {
+		private FileChannel channel;
+		private ByteBuffer buffer;
+		private long position;
+
+		public SectionWriter(FileChannel channel, long position){
+			this.channel = channel;
+			this.position = position;
+			this.buffer = ByteBuffer.allocate(1 << 16);
+		}
+
+		private void ensureSpace(int bytes) throws IOException{
+			if(buffer.remaining() < bytes)
+				flush();
+		}
+
+		public void putInt(int value) throws IOException{
+			ensureSpace(4);
+			buffer.putInt(value);
+		}
+
+		public void putLong(long value) throws IOException{
+			ensureSpace(8);
+			buffer.putLong(value);
+		}
+
+		public void putDouble(double value) throws IOException{
+			ensureSpace(8);
+			buffer.putDouble(value);
+		}
+
+		public void flush() throws IOException{
+			buffer.flip();
+			while(buffer.hasRemaining())
+				position += channel.write(buffer, position);
+			buffer.clear();
+		}
+	}
+
+	private static int[] sorted(int[] keys){
+		Arrays.sort(keys);
+		return keys;
+	}
+
+	/**
+	 * Save any tensor in the binary format that can be opened by this class.
+	 * The file is written to a temporary location first, so it is safe to overwrite a file that is currently mapped.
+	 * @param tensor The tensor
+	 * @param file Output file
+	 */
+	public static void save(TensorView tensor, String file){
+		int[] keys1 = sorted(tensor.getKeys());
+		long n2 = 0, nnz = 0;
+		for(int key1 : keys1){
+			int[] keys2 = tensor.getKeys(key1);
+			n2 += keys2.length;
+			for(int key2 : keys2)
+				nnz += tensor.getKeys(key1, key2).length;
+		}
+
+		long key1PtrOffset = HEADER_SIZE + 4L * keys1.length;
+		long key2IdsOffset = key1PtrOffset + 8L * (keys1.length + 1);
+		long key2PtrOffset = key2IdsOffset + 4L * n2;
+		long key3IdsOffset = key2PtrOffset + 8L * (n2 + 1);
+		long valuesOffset = key3IdsOffset + 4L * nnz;
+
+		File tempFile = new File(file + ".tmp");
+		try{
+			RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+
+			SectionWriter header = new SectionWriter(channel, 0);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(keys1.length);
+			header.putInt(0);
+			header.putLong(n2);
+			header.putLong(nnz);
+
+			SectionWriter key1Ids = new SectionWriter(channel, HEADER_SIZE);
+			SectionWriter key1Ptr = new SectionWriter(channel, key1PtrOffset);
+			SectionWriter key2Ids = new SectionWriter(channel, key2IdsOffset);
+			SectionWriter key2Ptr = new SectionWriter(channel, key2PtrOffset);
+			SectionWriter key3Ids = new SectionWriter(channel, key3IdsOffset);
+			SectionWriter values = new SectionWriter(channel, valuesOffset);
+
+			long pos2 = 0, pos3 = 0;
+			for(int key1 : keys1){
+				key1Ids.putInt(key1);
+				key1Ptr.putLong(pos2);
+				for(int key2 : sorted(tensor.getKeys(key1))){
+					key2Ids.putInt(key2);
+					key2Ptr.putLong(pos3);
+					int[] keys3 = tensor.getKeys(key1, key2);
+					double[] values3 = tensor.getValues(key1, key2);
+					sort(keys3, values3);
+					for(int i = 0; i < keys3.length; i++){
+						key3Ids.putInt(keys3[i]);
+						values.putDouble(values3[i]);
+					}
+					pos3 += keys3.length;
+					pos2++;
+				}
+			}
+			key1Ptr.putLong(pos2);
+			key2Ptr.putLong(pos3);
+
+			header.flush();
+			key1Ids.flush();
+			key1Ptr.flush();
+			key2Ids.flush();
+			key2Ptr.flush();
+			key3Ids.flush();
+			values.flush();
+			raf.close();
+
+			File target = new File(file);
+			if(target.exists() && !target.delete())
+				throw new IOException("Unable to replace " + file);
+			if(!tempFile.renameTo(target))
+				throw new IOException("Unable to rename " + tempFile + " to " + file);
+		}catch (IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+}
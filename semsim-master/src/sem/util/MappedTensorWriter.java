@@ -0,0 +1,136 @@
+package sem.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a tensor file that can be opened with MappedTensor, from values that arrive already sorted by (key1, key2, key3).
+ * Only a few buffers are kept in memory, so the tensor can be much larger than the heap.
+ * Every section of the file is first written to its own temporary file, and the sections are joined when the writer is closed.
+ */
+public class MappedTensorWriter {
+	private String file;
+	private File[] sectionFiles;
+	private DataOutputStream key1Ids, key1Ptr, key2Ids, key2Ptr, key3Ids, values;
+	
+	private int n1 = 0;
+	private long n2 = 0, nnz = 0;
+	private int lastKey1, lastKey2, lastKey3;
+	
+	/**
+	 * @param file Output file
+	 */
+	public MappedTensorWriter(String file){
+		this.file = file;
+		this.sectionFiles = new File[6];
+		try{
+			for(int i = 0; i < sectionFiles.length; i++)
+				sectionFiles[i] = new File(file + ".section" + i);
+			key1Ids = open(sectionFiles[0]);
+			key1Ptr = open(sectionFiles[1]);
+			key2Ids = open(sectionFiles[2]);
+			key2Ptr = open(sectionFiles[3]);
+			key3Ids = open(sectionFiles[4]);
+			values = open(sectionFiles[5]);
+		}catch (IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static DataOutputStream open(File file) throws IOException{
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+	}
+	
+	/**
+	 * Add the next value. The keys have to be strictly increasing in the order of (key1, key2, key3).
+	 * @param key1 Key 1
+	 * @param key2 Key 2
+	 * @param key3 Key 3
+	 * @param value The value
+	 */
+	public void add(int key1, int key2, int key3, double value){
+		try{
+			boolean newKey1 = (nnz == 0 || key1 != lastKey1);
+			boolean newKey2 = (newKey1 || key2 != lastKey2);
+			if(nnz > 0 && (key1 < lastKey1 || (!newKey1 && key2 < lastKey2) || (!newKey2 && key3 <= lastKey3)))
+				throw new RuntimeException("Values have to be added in sorted order, got (" + key1 + "," + key2 + "," + key3 + ") after (" + lastKey1 + "," + lastKey2 + "," + lastKey3 + ")");
+			
+			if(newKey1){
+				key1Ids.writeInt(key1);
+				key1Ptr.writeLong(n2);
+				n1++;
+			}
+			if(newKey2){
+				key2Ids.writeInt(key2);
+				key2Ptr.writeLong(nnz);
+				n2++;
+			}
+			key3Ids.writeInt(key3);
+			values.writeDouble(value);
+			nnz++;
+			
+			lastKey1 = key1;
+			lastKey2 = key2;
+			lastKey3 = key3;
+		}catch (IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Finish the file. It is written to a temporary location first, so it is safe to overwrite a file that is currently mapped.
+	 */
+	public void close(){
+		try{
+			key1Ptr.writeLong(n2);
+			key2Ptr.writeLong(nnz);
+			key1Ids.close();
+			key1Ptr.close();
+			key2Ids.close();
+			key2Ptr.close();
+			key3Ids.close();
+			values.close();
+			
+			File tempFile = new File(file + ".tmp");
+			DataOutputStream header = open(tempFile);
+			header.writeInt(MappedTensor.MAGIC);
+			header.writeInt(MappedTensor.VERSION);
+			header.writeInt(n1);
+			header.writeInt(0);
+			header.writeLong(n2);
+			header.writeLong(nnz);
+			header.close();
+			
+			FileChannel out = new FileOutputStream(tempFile, true).getChannel();
+			for(File sectionFile : sectionFiles){
+				FileChannel in = new FileInputStream(sectionFile).getChannel();
+				long position = 0, size = in.size();
+				while(position < size)
+					position += in.transferTo(position, size - position, out);
+				in.close();
+				sectionFile.delete();
+			}
+			out.close();
+			
+			File target = new File(file);
+			if(target.exists() && !target.delete())
+				throw new IOException("Unable to replace " + file);
+			if(!tempFile.renameTo(target))
+				throw new IOException("Unable to rename " + tempFile + " to " + file);
+		}catch (IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * @return The number of values written so far.
+	 */
+	public long size(){
+		return this.nnz;
+	}
+}
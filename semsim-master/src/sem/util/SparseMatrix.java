@@ -0,0 +1,188 @@
+package sem.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A sparse matrix in compressed sparse row (CSR) layout.
+ * <pre>
+ * row offsets [rows+1]  into the entry arrays
+ * ids         [nnz]     feature IDs, ascending within every row
+ * weights     [nnz]
+ * order       [nnz]     original order of the entries within every row
+ * </pre>
+ * Rows are appended in order and returned as SparseVector views that share the arrays of the matrix.
+ * <p>Every entry takes 16 bytes, compared to around 80 bytes in a LinkedHashMap.
+ * <p>A matrix that was written with write() can also be mapped from the file with map(). The arrays then stay in the file, getRow() copies only the requested row, and no rows can be added.
+ */
+public class SparseMatrix {
+	private int[] rowPtr;
+	private int[] ids;
+	private double[] weights;
+	private int[] order;
+	private int numRows;
+	
+	// Set if the arrays are read from the mapped file
+	private MappedFile file;
+	private long rowPtrOffset;
+	private long idsOffset;
+	private long weightsOffset;
+	private long orderOffset;
+	
+	public SparseMatrix(){
+		this.rowPtr = new int[17];
+		this.ids = new int[64];
+		this.weights = new double[64];
+		this.order = new int[64];
+		this.numRows = 0;
+	}
+	
+	private SparseMatrix(int[] rowPtr, int[] ids, double[] weights, int[] order, int numRows){
+		this.rowPtr = rowPtr;
+		this.ids = ids;
+		this.weights = weights;
+		this.order = order;
+		this.numRows = numRows;
+	}
+	
+	/**
+	 * Write the matrix to a stream: the number of rows and entries, followed by the arrays in the layout above.
+	 * @param out Output stream
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		int nnz = getNumEntries();
+		out.writeInt(numRows);
+		out.writeInt(nnz);
+		if(file != null){
+			// Copied row by row, so that a mapped matrix can be written without loading it
+			for(int i = 0; i <= numRows; i++)
+				out.writeInt(getRowPtr(i));
+			for(int i = 0; i < nnz; i++)
+				out.writeInt(file.getInt(idsOffset + 4L * i));
+			for(int i = 0; i < nnz; i++)
+				out.writeDouble(file.getDouble(weightsOffset + 8L * i));
+			for(int i = 0; i < nnz; i++)
+				out.writeInt(file.getInt(orderOffset + 4L * i));
+			return;
+		}
+		for(int i = 0; i <= numRows; i++)
+			out.writeInt(rowPtr[i]);
+		for(int i = 0; i < nnz; i++)
+			out.writeInt(ids[i]);
+		for(int i = 0; i < nnz; i++)
+			out.writeDouble(weights[i]);
+		for(int i = 0; i < nnz; i++)
+			out.writeInt(order[i]);
+	}
+	
+	/**
+	 * Open a matrix written by write() from a mapped file, without copying it into memory.
+	 * @param file The mapped file
+	 * @param position Start of the matrix in the file
+	 * @return The read-only matrix
+	 */
+	public static SparseMatrix map(MappedFile file, long position){
+		SparseMatrix matrix = new SparseMatrix(null, null, null, null, file.getInt(position));
+		int nnz = file.getInt(position + 4);
+		matrix.file = file;
+		matrix.rowPtrOffset = position + 8;
+		matrix.idsOffset = matrix.rowPtrOffset + 4L * (matrix.numRows + 1);
+		matrix.weightsOffset = matrix.idsOffset + 4L * nnz;
+		matrix.orderOffset = matrix.weightsOffset + 8L * nnz;
+		if(matrix.numRows < 0 || nnz < 0 || matrix.orderOffset + 4L * nnz > file.length() || matrix.getRowPtr(matrix.numRows) != nnz)
+			throw new RuntimeException("Corrupted matrix");
+		return matrix;
+	}
+	
+	private int getRowPtr(int row){
+		return file != null ? file.getInt(rowPtrOffset + 4L * row) : rowPtr[row];
+	}
+	
+	/**
+	 * Append a row to the matrix.
+	 * @param vector The row, in the same form as taken by the SparseVector constructor
+	 * @return Index of the new row
+	 */
+	public int addRow(Map<Integer,Double> vector){
+		return addRow(new SparseVector(vector));
+	}
+	
+	/**
+	 * Append a row to the matrix.
+	 * @param vector The row
+	 * @return Index of the new row
+	 */
+	public int addRow(SparseVector vector){
+		if(file != null)
+			throw new RuntimeException("Unable to add rows to a mapped SparseMatrix");
+		int start = rowPtr[numRows];
+		if((long)start + vector.size() > Integer.MAX_VALUE - 8)
+			throw new RuntimeException("Too many entries for a SparseMatrix");
+		if(numRows + 2 > rowPtr.length)
+			rowPtr = Arrays.copyOf(rowPtr, 2 * rowPtr.length);
+		if(start + vector.size() > ids.length){
+			int capacity = (int)Math.min(Integer.MAX_VALUE - 8, Math.max(2L * ids.length, (long)start + vector.size()));
+			ids = Arrays.copyOf(ids, capacity);
+			weights = Arrays.copyOf(weights, capacity);
+			order = Arrays.copyOf(order, capacity);
+		}
+		for(int i = 0; i < vector.size(); i++){
+			ids[start + i] = vector.getId(i);
+			weights[start + i] = vector.getWeight(i);
+			order[start + i] = vector.getOrder(i);
+		}
+		rowPtr[numRows + 1] = start + vector.size();
+		return numRows++;
+	}
+	
+	/**
+	 * Release the unused capacity once all the rows have been added.
+	 */
+	public void trim(){
+		if(file != null)
+			return;
+		int nnz = rowPtr[numRows];
+		rowPtr = Arrays.copyOf(rowPtr, numRows + 1);
+		ids = Arrays.copyOf(ids, nnz);
+		weights = Arrays.copyOf(weights, nnz);
+		order = Arrays.copyOf(order, nnz);
+	}
+	
+	/**
+	 * Get a row of the matrix.
+	 * @param row Index of the row
+	 * @return View into the row, or a copy of the row if the matrix is mapped. Rows outside the matrix are empty.
+	 */
+	public SparseVector getRow(int row){
+		if(row < 0 || row >= numRows)
+			return (file != null ? new SparseVector(new int[0], new double[0], new int[0], 0, 0) : new SparseVector(ids, weights, order, 0, 0));
+		if(file != null){
+			int start = getRowPtr(row);
+			int length = getRowPtr(row + 1) - start;
+			double[] rowWeights = new double[length];
+			file.getDoubles(weightsOffset + 8L * start, rowWeights, 0, length);
+			return new SparseVector(file.getInts(idsOffset + 4L * start, length), rowWeights, file.getInts(orderOffset + 4L * start, length), 0, length);
+		}
+		return new SparseVector(ids, weights, order, rowPtr[row], rowPtr[row + 1] - rowPtr[row]);
+	}
+	
+	public int getNumRows(){
+		return this.numRows;
+	}
+	
+	/**
+	 * @return True if the matrix was opened with map(), so getRow() copies the rows from the file
+	 */
+	public boolean isMapped(){
+		return this.file != null;
+	}
+	
+	/**
+	 * Total number of nonzero entries.
+	 */
+	public int getNumEntries(){
+		return getRowPtr(numRows);
+	}
+}
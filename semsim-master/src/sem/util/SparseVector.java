@@ -0,0 +1,212 @@
+package sem.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A sparse vector stored in primitive arrays, with the feature IDs in ascending order.
+ * It can be a view into a row of a SparseMatrix, in which case it shares the arrays of the matrix.
+ * <p>The vector also remembers the order in which the features were originally inserted (for VectorSpace vectors, by descending weight).
+ * Similarity measures that depend on the iteration order can use it to give exactly the same results as with the LinkedHashMap vectors.
+ * <p>The rankings of the entries by weight are computed when they are first needed, and kept with the vector.
+ */
+public class SparseVector {
+	private int[] ids;
+	private double[] weights;
+	private int[] order;
+	private int offset;
+	private int length;
+	
+	private volatile int[] sortedOrder;
+	private volatile int[] sortedRanks;
+	private volatile double[] tiedRanks;
+	
+	/**
+	 * Create a view into the arrays.
+	 * @param ids Feature IDs, ascending between offset and offset+length
+	 * @param weights Weights aligned with the IDs
+	 * @param order Positions of the entries in their original order, relative to the offset
+	 * @param offset Start of the vector in the arrays
+	 * @param length Number of entries
+	 */
+	public SparseVector(int[] ids, double[] weights, int[] order, int offset, int length){
+		this.ids = ids;
+		this.weights = weights;
+		this.order = order;
+		this.offset = offset;
+		this.length = length;
+	}
+	
+	/**
+	 * Create a vector from a map. The iteration order of the map is kept as the original order.
+	 * @param vector Map from feature IDs to weights
+	 */
+	public SparseVector(Map<Integer,Double> vector){
+		this.length = vector.size();
+		this.offset = 0;
+		this.ids = new int[length];
+		this.weights = new double[length];
+		this.order = new int[length];
+		
+		long[] sorted = new long[length];
+		int i = 0;
+		for(Entry<Integer,Double> e : vector.entrySet()){
+			ids[i] = e.getKey();
+			weights[i] = e.getValue();
+			sorted[i] = ((long)ids[i] << 32) | i;
+			i++;
+		}
+		// Sort the entries by ID, and remember where each of them came from
+		Arrays.sort(sorted);
+		int[] tempIds = ids;
+		double[] tempWeights = weights;
+		this.ids = new int[length];
+		this.weights = new double[length];
+		for(i = 0; i < length; i++){
+			int pos = (int)sorted[i];
+			ids[i] = tempIds[pos];
+			weights[i] = tempWeights[pos];
+			order[pos] = i;
+		}
+	}
+	
+	/**
+	 * Number of nonzero features.
+	 */
+	public int size(){
+		return this.length;
+	}
+	
+	/**
+	 * Feature ID of the i-th entry, in ascending order of the IDs.
+	 */
+	public int getId(int i){
+		return ids[offset + i];
+	}
+	
+	/**
+	 * Weight of the i-th entry, in ascending order of the IDs.
+	 */
+	public double getWeight(int i){
+		return weights[offset + i];
+	}
+	
+	/**
+	 * Position (as used by getId and getWeight) of the i-th entry in the original order.
+	 */
+	public int getOrder(int i){
+		return order[offset + i];
+	}
+	
+	/**
+	 * Find the position of a feature with binary search.
+	 * @param id Feature ID
+	 * @return The position, or -1 if the feature is not in the vector.
+	 */
+	public int indexOf(int id){
+		int pos = Arrays.binarySearch(ids, offset, offset + length, id);
+		return pos >= 0 ? pos - offset : -1;
+	}
+	
+	/**
+	 * Get the weight of a feature.
+	 * @param id Feature ID
+	 * @return The weight, 0.0 if the feature is not in the vector.
+	 */
+	public double get(int id){
+		int pos = indexOf(id);
+		return pos >= 0 ? weights[offset + pos] : 0.0;
+	}
+	
+	/**
+	 * Convert the vector into a map, with the entries in their original order.
+	 */
+	public LinkedHashMap<Integer,Double> toMap(){
+		LinkedHashMap<Integer,Double> vector = new LinkedHashMap<Integer,Double>();
+		for(int i = 0; i < length; i++){
+			int pos = offset + order[offset + i];
+			vector.put(ids[pos], weights[pos]);
+		}
+		return vector;
+	}
+	
+	/**
+	 * Positions of the entries, sorted by descending weight. Tied entries keep their original order, the same way as in Tools.sort().
+	 * The returned array must not be modified.
+	 */
+	public int[] getSortedOrder(){
+		int[] sorted = this.sortedOrder;
+		if(sorted == null){
+			sorted = new int[length];
+			boolean isSorted = true;
+			for(int k = 0; k < length; k++){
+				sorted[k] = order[offset + k];
+				if(k > 0 && weights[offset + sorted[k-1]] < weights[offset + sorted[k]])
+					isSorted = false;
+			}
+			// Vectors from VectorSpace are already in this order
+			if(!isSorted){
+				Integer[] temp = new Integer[length];
+				for(int k = 0; k < length; k++)
+					temp[k] = sorted[k];
+				Arrays.sort(temp, new Comparator<Integer>(){
+					public int compare(Integer pos1, Integer pos2){
+						double weight1 = weights[offset + pos1], weight2 = weights[offset + pos2];
+						if(weight1 > weight2)
+							return -1;
+						else if(weight1 < weight2)
+							return 1;
+						return 0;
+					}
+				});
+				for(int k = 0; k < length; k++)
+					sorted[k] = temp[k];
+			}
+			this.sortedOrder = sorted;
+		}
+		return sorted;
+	}
+
+	/**
+	 * For every position, the rank of the entry in getSortedOrder(), starting from 1.
+	 * The returned array must not be modified.
+	 */
+	public int[] getSortedRanks(){
+		int[] ranks = this.sortedRanks;
+		if(ranks == null){
+			int[] sorted = getSortedOrder();
+			ranks = new int[length];
+			for(int k = 0; k < length; k++)
+				ranks[sorted[k]] = k + 1;
+			this.sortedRanks = ranks;
+		}
+		return ranks;
+	}
+	
+	/**
+	 * For every position, the rank of the entry by descending weight, where tied entries get the average of their ranks.
+	 * Same as Tools._convert_to_ranks(). The returned array must not be modified.
+	 */
+	public double[] getTiedRanks(){
+		double[] ranks = this.tiedRanks;
+		if(ranks == null){
+			int[] sorted = getSortedOrder();
+			ranks = new double[length];
+			int start = 0, end;
+			while(start < length){
+				end = start;
+				do{
+					end++;
+				}while(end < length && weights[offset + sorted[start]] == weights[offset + sorted[end]]);
+				for(int k = start; k < end; k++)
+					ranks[sorted[k]] = (start+1+end)/2.0;
+				start = end;
+			}
+			this.tiedRanks = ranks;
+		}
+		return ranks;
+	}
+}
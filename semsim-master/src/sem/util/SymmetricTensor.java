@@ -0,0 +1,304 @@
+package sem.util;
+
+import java.util.Arrays;
+
+/**
+ * A read-only view of a tensor that also contains every cell in the reverse direction.
+ * For each cell (key1, key2, key3) of the base tensor where key2 has a reverse key, the view also contains (key3, reverse(key2), key1) with the same value.
+ * If the base tensor already contains that cell, the two values are added up.
+ * <p>The base tensor is not copied. The reverse cells are kept in a secondary index sorted by key3, in the CSF layout of FrozenTensor, so they take about 12 bytes each.
+ * Queries where key1 is a wildcard are answered from the base tensor, so the secondary index does not need marginals.
+ * <p>The base tensor must not be modified while the view is used.
+ */
+public class SymmetricTensor implements TensorView {
+	private TensorView tensor;
+	private FrozenTensor reverse;
+	private int[] reverseKeys;
+	private int[] forwardKeys;
+	private double reverseTotal;
+	private int size;
+
+	/**
+	 * @param tensor Base tensor
+	 * @param reverseKeys The reverse key of every key2, indexed by key2. Keys that are 0 or outside the array are not mirrored.
+	 */
+	public SymmetricTensor(TensorView tensor, int[] reverseKeys){
+		this.tensor = tensor;
+		this.reverseKeys = reverseKeys;
+		int maxKey = 0;
+		for(int reverseKey : reverseKeys)
+			maxKey = Math.max(maxKey, reverseKey);
+		this.forwardKeys = new int[maxKey + 1];
+		for(int key2 = 0; key2 < reverseKeys.length; key2++)
+			if(reverseKeys[key2] > 0)
+				forwardKeys[reverseKeys[key2]] = key2;
+		this.reverse = buildReverse();
+
+		this.size = tensor.size();
+		for(int key1 : reverse.getKeys())
+			if(!tensor.containsKey(key1))
+				this.size++;
+	}
+
+	private SymmetricTensor(TensorView tensor, SymmetricTensor other){
+		this.tensor = tensor;
+		this.reverse = other.reverse;
+		this.reverseKeys = other.reverseKeys;
+		this.forwardKeys = other.forwardKeys;
+		this.reverseTotal = other.reverseTotal;
+		this.size = other.size;
+	}
+
+	private int getReverseKey(int key2){
+		return (key2 >= 0 && key2 < reverseKeys.length) ? reverseKeys[key2] : 0;
+	}
+
+	private int getForwardKey(int key2){
+		return (key2 >= 0 && key2 < forwardKeys.length) ? forwardKeys[key2] : 0;
+	}
+
+	/**
+	 * Build the secondary index with a counting sort on key3, followed by a sort of the (reverse key, key1) pairs under every key3.
+	 */
+	private FrozenTensor buildReverse(){
+		int[] keys1 = tensor.getKeys();
+		int[] offsets = new int[16];
+		long nnz = 0;
+		for(int key1 : keys1){
+			for(int key2 : tensor.getKeys(key1)){
+				if(getReverseKey(key2) == 0)
+					continue;
+				for(int key3 : tensor.getKeys(key1, key2)){
+					if(key3 + 1 >= offsets.length)
+						offsets = Arrays.copyOf(offsets, Math.max(key3 + 2, offsets.length * 2));
+					offsets[key3 + 1]++;
+					nnz++;
+				}
+			}
+		}
+		if(nnz >= Integer.MAX_VALUE)
+			throw new RuntimeException("Tensor is too large to be mirrored in memory.");
+		for(int i = 1; i < offsets.length; i++)
+			offsets[i] += offsets[i-1];
+
+		long[] keys = new long[(int)nnz];
+		double[] values = new double[(int)nnz];
+		int[] next = offsets.clone();
+		for(int key1 : keys1){
+			for(int key2 : tensor.getKeys(key1)){
+				int reverseKey = getReverseKey(key2);
+				if(reverseKey == 0)
+					continue;
+				int[] keys3 = tensor.getKeys(key1, key2);
+				double[] values3 = tensor.getValues(key1, key2);
+				for(int i = 0; i < keys3.length; i++){
+					int pos = next[keys3[i]]++;
+					keys[pos] = ((long)reverseKey << 32) | key1;
+					values[pos] = values3[i];
+					reverseTotal += values3[i];
+				}
+			}
+		}
+
+		int n1 = 0, n2 = 0;
+		for(int key1 = 0; key1 + 1 < offsets.length; key1++){
+			if(offsets[key1] == offsets[key1 + 1])
+				continue;
+			sort(keys, values, offsets[key1], offsets[key1 + 1] - 1);
+			n1++;
+			for(int pos = offsets[key1]; pos < offsets[key1 + 1]; pos++)
+				if(pos == offsets[key1] || (keys[pos] >>> 32) != (keys[pos-1] >>> 32))
+					n2++;
+		}
+
+		int[] key1Ids = new int[n1];
+		int[] key1Ptr = new int[n1 + 1];
+		int[] key2Ids = new int[n2];
+		int[] key2Ptr = new int[n2 + 1];
+		int[] key3Ids = new int[(int)nnz];
+		int pos1 = 0, pos2 = 0;
+		for(int key1 = 0; key1 + 1 < offsets.length; key1++){
+			if(offsets[key1] == offsets[key1 + 1])
+				continue;
+			key1Ids[pos1] = key1;
+			key1Ptr[pos1++] = pos2;
+			for(int pos = offsets[key1]; pos < offsets[key1 + 1]; pos++){
+				if(pos == offsets[key1] || (keys[pos] >>> 32) != (keys[pos-1] >>> 32)){
+					key2Ids[pos2] = (int)(keys[pos] >>> 32);
+					key2Ptr[pos2++] = pos;
+				}
+				key3Ids[pos] = (int)keys[pos];
+			}
+		}
+		key1Ptr[n1] = n2;
+		key2Ptr[n2] = (int)nnz;
+		return new FrozenTensor(key1Ids, key1Ptr, key2Ids, key2Ptr, key3Ids, values);
+	}
+
+	private static void sort(long[] keys, double[] values, int low, int high){
+		while(high - low > 16){
+			long pivot = keys[(low + high) >>> 1];
+			int i = low, j = high;
+			while(i <= j){
+				while(keys[i] < pivot)
+					i++;
+				while(keys[j] > pivot)
+					j--;
+				if(i <= j){
+					swap(keys, values, i, j);
+					i++;
+					j--;
+				}
+			}
+			if(j - low < high - i){
+				sort(keys, values, low, j);
+				low = i;
+			}
+			else {
+				sort(keys, values, i, high);
+				high = j;
+			}
+		}
+		for(int i = low + 1; i <= high; i++)
+			for(int j = i; j > low && keys[j-1] > keys[j]; j--)
+				swap(keys, values, j - 1, j);
+	}
+
+	private static void swap(long[] keys, double[] values, int i, int j){
+		long key = keys[i];
+		keys[i] = keys[j];
+		keys[j] = key;
+		double value = values[i];
+		values[i] = values[j];
+		values[j] = value;
+	}
+
+	/**
+	 * Get a view over a compact copy of the base tensor. A mutable Tensor is frozen, and a CsfTensor gets its marginals. The secondary index is shared.
+	 * @return The view
+	 */
+	public SymmetricTensor freeze(){
+		TensorView base = this.tensor;
+		if(base instanceof Tensor)
+			base = ((Tensor)base).freeze();
+		else if(base instanceof CsfTensor && ((CsfTensor)base).getMarginals() == null)
+			((CsfTensor)base).buildMarginals();
+		return new SymmetricTensor(base, this);
+	}
+
+	public TensorView getBaseTensor(){
+		return this.tensor;
+	}
+
+	/**
+	 * @return The number of reverse cells in the secondary index.
+	 */
+	public long getNumReverseEntries(){
+		return reverse.nnz();
+	}
+
+	public double get(Integer key1, Integer key2, Integer key3){
+		return tensor.get(key1, key2, key3) + getReverse(key1, key2, key3);
+	}
+
+	private double getReverse(Integer key1, Integer key2, Integer key3){
+		if(key1 != null)
+			return reverse.get(key1, key2, key3);
+		if(key2 != null){
+			int forwardKey = getForwardKey(key2);
+			if(forwardKey == 0)
+				return 0.0;
+			return tensor.get(key3, forwardKey, null);
+		}
+		if(key3 == null)
+			return reverseTotal;
+		int[] keys2 = tensor.getKeys(key3);
+		if(keys2 == null)
+			return 0.0;
+		double sum = 0.0;
+		for(int forwardKey : keys2)
+			if(getReverseKey(forwardKey) != 0)
+				sum += tensor.get(key3, forwardKey, null);
+		return sum;
+	}
+
+	/**
+	 * Find which of the sorted other keys are also in keys.
+	 */
+	private static boolean[] findShared(int[] keys, int[] otherKeys){
+		boolean[] shared = new boolean[otherKeys.length];
+		for(int key : keys){
+			int pos = Arrays.binarySearch(otherKeys, key);
+			if(pos >= 0)
+				shared[pos] = true;
+		}
+		return shared;
+	}
+
+	/**
+	 * The keys of the base tensor, followed by the sorted other keys that are not among them.
+	 */
+	private static int[] union(int[] keys, int[] otherKeys){
+		if(otherKeys == null)
+			return keys;
+		if(keys == null)
+			return otherKeys;
+		boolean[] shared = findShared(keys, otherKeys);
+		int[] result = Arrays.copyOf(keys, keys.length + otherKeys.length);
+		int n = keys.length;
+		for(int i = 0; i < otherKeys.length; i++)
+			if(!shared[i])
+				result[n++] = otherKeys[i];
+		return n == result.length ? result : Arrays.copyOf(result, n);
+	}
+
+	public int[] getKeys(){
+		return union(tensor.getKeys(), reverse.getKeys());
+	}
+
+	public int[] getKeys(Integer key1){
+		return union(tensor.getKeys(key1), reverse.getKeys(key1));
+	}
+
+	public int[] getKeys(Integer key1, Integer key2){
+		if(key2 == null || getForwardKey(key2) == 0)
+			return tensor.getKeys(key1, key2);
+		return union(tensor.getKeys(key1, key2), reverse.getKeys(key1, key2));
+	}
+
+	public double[] getValues(Integer key1, Integer key2){
+		if(key2 == null || getForwardKey(key2) == 0)
+			return tensor.getValues(key1, key2);
+		int[] otherKeys = reverse.getKeys(key1, key2);
+		if(otherKeys == null)
+			return tensor.getValues(key1, key2);
+		int[] keys = tensor.getKeys(key1, key2);
+		if(keys == null)
+			return reverse.getValues(key1, key2);
+
+		double[] values = tensor.getValues(key1, key2);
+		double[] otherValues = reverse.getValues(key1, key2);
+		double[] result = Arrays.copyOf(values, keys.length + otherKeys.length);
+		boolean[] shared = new boolean[otherKeys.length];
+		for(int i = 0; i < keys.length; i++){
+			int pos = Arrays.binarySearch(otherKeys, keys[i]);
+			if(pos >= 0){
+				result[i] += otherValues[pos];
+				shared[pos] = true;
+			}
+		}
+		int n = keys.length;
+		for(int i = 0; i < otherKeys.length; i++)
+			if(!shared[i])
+				result[n++] = otherValues[i];
+		return n == result.length ? result : Arrays.copyOf(result, n);
+	}
+
+	public boolean containsKey(int key1){
+		return tensor.containsKey(key1) || reverse.containsKey(key1);
+	}
+
+	public int size(){
+		return this.size;
+	}
+}
@@ -9,19 +9,36 @@ import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 
 /**
  * Holds a three-dimensional tensor.
  * The three keys that specify a position in the tensor are integers, and the value in a specific position is a double.
+ * <p>The tensor is split into stripes by key1, and every stripe has its own lock. This allows many threads to call add() and set() at the same time, as long as they mostly write to different key1 values.
+ * Reading the tensor is not synchronized, so it should only be done once all the writes have finished.
  */
-public class Tensor{
-	private TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> map;
+public class Tensor implements TensorView{
+	private TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>>[] stripes;
+	private int stripeShift;
 	
 	/**
 	 * Creates a new tensor.
 	 */
 	public Tensor(){
-		map = new TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>>();
+		this(4 * Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Creates a new tensor with the specified number of lock stripes.
+	 * @param numStripes Number of stripes, rounded up to a power of two. Should be a few times larger than the number of writing threads.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public Tensor(int numStripes){
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(numStripes, 2) - 1);
+		this.stripeShift = 32 - bits;
+		this.stripes = new TIntObjectHashMap[1 << bits];
+		for(int i = 0; i < this.stripes.length; i++)
+			this.stripes[i] = new TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>>();
 	}
 	
 	/**
@@ -34,11 +51,59 @@ public class Tensor{
 	}
 	
 	/**
-	 * Get the underlying three-dimensional map.
+	 * Creates a new tensor and copies all the values from another tensor.
+	 * @param tensor The source tensor, for example one that was opened from a binary file.
+	 */
+	public Tensor(TensorView tensor){
+		this();
+		for(int key1 : tensor.getKeys()){
+			for(int key2 : tensor.getKeys(key1)){
+				int[] keys3 = tensor.getKeys(key1, key2);
+				double[] values3 = tensor.getValues(key1, key2);
+				for(int i = 0; i < keys3.length; i++)
+					this.set(key1, key2, keys3[i], values3[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Find the stripe that holds key1.
+	 */
+	private TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> getStripe(int key1){
+		// Fibonacci hashing, so that consecutive IDs are spread over all the stripes
+		return this.stripes[(key1 * 0x9E3779B9) >>> this.stripeShift];
+	}
+	
+	/**
+	 * Get the underlying three-dimensional map. The first level is merged from all the stripes into a new map, the lower levels are shared with the tensor.
 	 * @return	Get the map.
 	 */
 	public TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> getMap(){
-		return this.map;
+		TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> map = new TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>>();
+		for(TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> stripe : this.stripes){
+			synchronized(stripe){
+				map.putAll(stripe);
+			}
+		}
+		return map;
+	}
+	
+	/**
+	 * Find the map for (key1, key2), and create it if it does not exist. The caller must hold the lock of the stripe.
+	 */
+	private static TIntDoubleHashMap getOrCreate(TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> stripe, int key1, int key2){
+		TIntObjectHashMap<TIntDoubleHashMap> tempMap1 = stripe.get(key1);
+		if(tempMap1 == null){
+			tempMap1 = new TIntObjectHashMap<TIntDoubleHashMap>();
+			stripe.put(key1, tempMap1);
+		}
+		
+		TIntDoubleHashMap tempMap2 = tempMap1.get(key2);
+		if(tempMap2 == null){
+			tempMap2 = new TIntDoubleHashMap();
+			tempMap1.put(key2, tempMap2);
+		}
+		return tempMap2;
 	}
 	
 	/**
@@ -50,22 +115,14 @@ public class Tensor{
 	 * @param key3 Key 3
 	 * @param value The new value
 	 */
-	public synchronized void set(Integer key1, Integer key2, Integer key3, Double value){
+	public void set(Integer key1, Integer key2, Integer key3, Double value){
 		if(key1 == null || key2 == null || key3 == null || value == null)
 			throw new RuntimeException("Keys and values are not allowed to be null.");
 		
-		TIntObjectHashMap<TIntDoubleHashMap> tempMap1 = map.get(key1);
-		if(tempMap1 == null){
-			tempMap1 = new TIntObjectHashMap<TIntDoubleHashMap>();
-			map.put(key1, tempMap1);
-		}
-		
-		TIntDoubleHashMap tempMap2 = tempMap1.get(key2);
-		if(tempMap2 == null){
-			tempMap2 = new TIntDoubleHashMap();
-			tempMap1.put(key2, tempMap2);
+		TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> stripe = getStripe(key1);
+		synchronized(stripe){
+			getOrCreate(stripe, key1, key2).put(key3, value);
 		}
-		tempMap2.put(key3, value);
 	}
 	
 	/**
@@ -75,34 +132,25 @@ public class Tensor{
 	 * @param key3 Key 3
 	 * @param value The added value
 	 */
-	public synchronized void add(Integer key1, Integer key2, Integer key3, Double value){
+	public void add(Integer key1, Integer key2, Integer key3, Double value){
 		if(key1 == null || key2 == null || key3 == null || value == null)
 			throw new RuntimeException("Keys and values are not allowed to be null.");
 		
-		TIntObjectHashMap<TIntDoubleHashMap> tempMap1 = map.get(key1);
-		if(tempMap1 == null){
-			tempMap1 = new TIntObjectHashMap<TIntDoubleHashMap>();
-			map.put(key1, tempMap1);
-		}
-		
-		TIntDoubleHashMap tempMap2 = tempMap1.get(key2);
-		if(tempMap2 == null){
-			tempMap2 = new TIntDoubleHashMap();
-			tempMap1.put(key2, tempMap2);
+		TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> stripe = getStripe(key1);
+		synchronized(stripe){
+			getOrCreate(stripe, key1, key2).adjustOrPutValue(key3, value, value);
 		}
-		
-		Double oldVal = tempMap2.get(key3);
-		if(oldVal == null)
-			tempMap2.put(key3, value);
-		else
-			tempMap2.put(key3, oldVal + value);
 	}
 	
 	/**
 	 * Clear the tensor
 	 */
-	public synchronized void clear(){
-		this.map.clear();
+	public void clear(){
+		for(TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> stripe : this.stripes){
+			synchronized(stripe){
+				stripe.clear();
+			}
+		}
 	}
 	
 	/**
@@ -110,28 +158,37 @@ public class Tensor{
 	 * @return the size of the first dimension
 	 */
 	public int size(){
-		return this.map.size();
+		int size = 0;
+		for(TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> stripe : this.stripes)
+			size += stripe.size();
+		return size;
 	}
 	
 	/**
 	 * Save the tensor into a text file.
 	 * @param file File path
 	 */
-	public synchronized void save(String file)
+	public void save(String file)
+	{
+		save(this, file);
+	}
+	
+	/**
+	 * Save any tensor into a text file, in the format read by the load() method.
+	 * @param tensor The tensor
+	 * @param file File path
+	 */
+	public static void save(TensorView tensor, String file)
 	{
-		TIntObjectHashMap<TIntDoubleHashMap> tempMap1;
-		TIntDoubleHashMap tempMap2;
-		
 		try{
 			FileWriter fstream = new FileWriter(file);
 		    BufferedWriter out = new BufferedWriter(fstream);
-		    for(int key1 : map.keys()){
-		    	tempMap1 = map.get(key1);
+		    // The keys are sorted, so that the file does not depend on the number of stripes or the order of the hash maps
+		    for(int key1 : sorted(tensor.getKeys())){
 		    	out.write("" + key1);
-		    	for(int key2 : tempMap1.keys()){
-		    		tempMap2 = tempMap1.get(key2);
-		    		for(int key3 : tempMap2.keys()){
-		    			out.write("\t" + key2 + ":" + key3 + ":" + tempMap2.get(key3));
+		    	for(int key2 : sorted(tensor.getKeys(key1))){
+		    		for(int key3 : sorted(tensor.getKeys(key1, key2))){
+		    			out.write("\t" + key2 + ":" + key3 + ":" + tensor.get(key1, key2, key3));
 		    		}
 		    	}
 		    	out.write("\n");
@@ -143,11 +200,29 @@ public class Tensor{
 		}
 	}
 	
+	/**
+	 * Sorted copy of the keys.
+	 */
+	private static int[] sorted(int[] keys){
+		int[] copy = keys.clone();
+		Arrays.sort(copy);
+		return copy;
+	}
+	
+	/**
+	 * Save the tensor into a binary file that can be memory-mapped with MappedTensor.
+	 * @param file File path
+	 */
+	public void saveBinary(String file)
+	{
+		MappedTensor.save(this, file);
+	}
+	
 	/**
 	 * Load the tensor from a text file. The file should be generated by the save() method.
 	 * @param file
 	 */
-	public synchronized void load(String file)
+	public void load(String file)
 	{
 		String[] chunks, chunks2;
 		try{
@@ -196,16 +271,16 @@ public class Tensor{
 		if(key1 != null){
 			if(key2 != null){
 				if(key3 != null){
-					if(((tempMap1 = this.map.get(key1)) != null) 
+					if(((tempMap1 = getStripe(key1).get(key1)) != null) 
 							&& ((tempMap2 = tempMap1.get(key2)) != null) 
-							&& ((tempValue = tempMap2.get(key3)) != this.map.getNoEntryValue() ))
+							&& ((tempValue = tempMap2.get(key3)) != 0.0 ))
 						return  tempValue;
 					else
 						return 0.0;
 				}
 				else {
 					double sum = 0.0;
-					if(((tempMap1 = this.map.get(key1)) != null) 
+					if(((tempMap1 = getStripe(key1).get(key1)) != null) 
 							&& ((tempMap2 = tempMap1.get(key2)) != null)) {
 						for(double d : tempMap2.values()){
 							sum += d;
@@ -216,9 +291,9 @@ public class Tensor{
 			}
 			else if(key3 != null){
 				double sum = 0.0;
-				if(((tempMap1 = this.map.get(key1)) != null)){
+				if(((tempMap1 = getStripe(key1).get(key1)) != null)){
 					for(int tempKey2 : tempMap1.keys()){
-						if((tempValue = tempMap1.get(tempKey2).get(key3)) != this.map.getNoEntryValue())
+						if((tempValue = tempMap1.get(tempKey2).get(key3)) != 0.0)
 							sum += tempValue;
 					}
 				}
@@ -226,7 +301,7 @@ public class Tensor{
 			}
 			else {
 				double sum = 0.0;
-				if(((tempMap1 = this.map.get(key1)) != null)){
+				if(((tempMap1 = getStripe(key1).get(key1)) != null)){
 					/*for(TIntDoubleHashMap tMap2 : tempMap1.values()){
 						for(double d : tMap2.values())
 							sum += d;
@@ -251,10 +326,12 @@ public class Tensor{
 				}
 				*/
 				
-				for(int tempKey1 : this.map.keys()){
-					if(((tempMap2 = this.map.get(tempKey1).get(key2)) != null)
-							&& ((tempValue = tempMap2.get(key3)) != this.map.getNoEntryValue())){
-						sum += tempValue;
+				for(TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> stripe : this.stripes){
+					for(int tempKey1 : stripe.keys()){
+						if(((tempMap2 = stripe.get(tempKey1).get(key2)) != null)
+								&& ((tempValue = tempMap2.get(key3)) != 0.0)){
+							sum += tempValue;
+						}
 					}
 				}
 				return sum;
@@ -269,10 +346,12 @@ public class Tensor{
 					}
 				}
 				*/
-				for(int tempKey1 : this.map.keys()){
-					if(((tempMap2 = this.map.get(tempKey1).get(key2)) != null)){
-						for(double d : tempMap2.values())
-							sum += d;
+				for(TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> stripe : this.stripes){
+					for(int tempKey1 : stripe.keys()){
+						if(((tempMap2 = stripe.get(tempKey1).get(key2)) != null)){
+							for(double d : tempMap2.values())
+								sum += d;
+						}
 					}
 				}
 				return sum;
@@ -288,12 +367,14 @@ public class Tensor{
 				}
 			}
 			*/
-			for(int tempKey1 : this.map.keys()){
-				tempMap1 = this.map.get(tempKey1);
-				for(int tempKey2 : tempMap1.keys()){
-					tempMap2 = tempMap1.get(tempKey2);
-					if((tempValue = tempMap2.get(key3)) != this.map.getNoEntryValue())
-						sum += tempValue;
+			for(TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> stripe : this.stripes){
+				for(int tempKey1 : stripe.keys()){
+					tempMap1 = stripe.get(tempKey1);
+					for(int tempKey2 : tempMap1.keys()){
+						tempMap2 = tempMap1.get(tempKey2);
+						if((tempValue = tempMap2.get(key3)) != 0.0)
+							sum += tempValue;
+					}
 				}
 			}
 			return sum;
@@ -308,11 +389,13 @@ public class Tensor{
 				}
 			}
 			*/
-			for(int tempKey1 : this.map.keys()){
-				tempMap1 = this.map.get(tempKey1);
-				for(int tempKey2 : tempMap1.keys()){
-					for(double d : tempMap1.get(tempKey2).values())
-						sum += d;
+			for(TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> stripe : this.stripes){
+				for(int tempKey1 : stripe.keys()){
+					tempMap1 = stripe.get(tempKey1);
+					for(int tempKey2 : tempMap1.keys()){
+						for(double d : tempMap1.get(tempKey2).values())
+							sum += d;
+					}
 				}
 			}
 			return sum;
@@ -320,21 +403,51 @@ public class Tensor{
 	}
 	
 	public int[] getKeys(){
-		return this.map.keys();
+		int[] keys = new int[this.size()];
+		int pos = 0;
+		for(TIntObjectHashMap<TIntObjectHashMap<TIntDoubleHashMap>> stripe : this.stripes){
+			int[] stripeKeys = stripe.keys();
+			System.arraycopy(stripeKeys, 0, keys, pos, stripeKeys.length);
+			pos += stripeKeys.length;
+		}
+		return keys;
 	}
 	
-
-			return this.map.get(key1).keys();
+	public int[] getKeys(Integer key1){
+		TIntObjectHashMap<TIntDoubleHashMap> tempMap1 = getStripe(key1).get(key1);
+		if(tempMap1 != null)
+			return tempMap1.keys();
 		return null;
 	}
 	
 	public int[] getKeys(Integer key1, Integer key2){
-		if(this.map.contains(key1) && this.map.get(key1).contains(key2))
-			return this.map.get(key1).get(key2).keys();
+		TIntObjectHashMap<TIntDoubleHashMap> tempMap1 = getStripe(key1).get(key1);
+		TIntDoubleHashMap tempMap2;
+		if(tempMap1 != null && (tempMap2 = tempMap1.get(key2)) != null)
+			return tempMap2.keys();
 		return null;
 	}
 	
+	public double[] getValues(Integer key1, Integer key2){
+		TIntObjectHashMap<TIntDoubleHashMap> tempMap1 = getStripe(key1).get(key1);
+		TIntDoubleHashMap tempMap2;
+		if(tempMap1 != null && (tempMap2 = tempMap1.get(key2)) != null)
+			return tempMap2.values();
+		return null;
+	}
+	
+	/**
+	 * Create an immutable copy of the tensor in compressed sparse fiber layout, together with the TensorMarginals for wildcard queries.
+	 * The copy uses a fraction of the memory and is faster to query, so it should be used once the tensor is no longer modified.
+	 * @return The frozen tensor
+	 */
+	public FrozenTensor freeze(){
+		FrozenTensor frozenTensor = new FrozenTensor(this);
+		frozenTensor.buildMarginals();
+		return frozenTensor;
+	}
+	
 	public boolean containsKey(int key1){
-		return this.map.containsKey(key1);
+		return getStripe(key1).containsKey(key1);
 	}
 }
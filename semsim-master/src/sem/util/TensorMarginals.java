@@ -0,0 +1,323 @@
+package sem.util;
+
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TLongDoubleHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+/**
+ * Secondary indexes over a tensor, for answering queries where key1 is a wildcard.
+ * Without them, get(null, key2, key3) and similar queries have to scan the whole tensor.
+ * Stores the sums for (key2,key3), key2 and key3, the grand total, and the list of key1 values for every (key2,key3) pair.
+ * All the keys are kept in sorted arrays and found with binary search.
+ * <p>The file written by save() stores every array as a separate section, so it is memory-mapped when it is loaded and the arrays are read through their offsets:
+ * <pre>
+ * header        magic, version, numPairs, numKeys2, numKeys3, (unused), total, nnz
+ * long[numPairs]     (key2,key3) pairs
+ * double[numPairs]   pair sums
+ * int[numPairs+1]    offsets into the key1 lists
+ * int[nnz]           key1 lists
+ * int[numKeys2]      key2 ids
+ * double[numKeys2]   key2 sums
+ * int[numKeys3]      key3 ids
+ * double[numKeys3]   key3 sums
+ * </pre>
+ */
+public class TensorMarginals {
+	public static final int MAGIC = 0x53454d4d;
+	public static final int VERSION = 2;
+	private static final int HEADER_SIZE = 40;
+
+	private int numPairs;
+	private int numKeys2;
+	private int numKeys3;
+
+	// Null if they are read from the mapped file
+	private long[] pairs;
+	private double[] pairSums;
+	private int[] pairPtr;
+	private int[] pairKeys1;
+
+	private int[] keys2;
+	private double[] key2Sums;
+	private int[] keys3;
+	private double[] key3Sums;
+	private double total;
+
+	private MappedFile mappedFile;
+	private long pairsOffset;
+	private long pairSumsOffset;
+	private long pairPtrOffset;
+	private long pairKeys1Offset;
+	private long keys2Offset;
+	private long key2SumsOffset;
+	private long keys3Offset;
+	private long key3SumsOffset;
+
+	/**
+	 * Build the indexes with two passes over the tensor.
+	 * @param tensor The tensor
+	 */
+	public TensorMarginals(TensorView tensor){
+		TLongDoubleHashMap pairSumMap = new TLongDoubleHashMap();
+		TLongIntHashMap pairCountMap = new TLongIntHashMap();
+		TIntDoubleHashMap key2SumMap = new TIntDoubleHashMap();
+		TIntDoubleHashMap key3SumMap = new TIntDoubleHashMap();
+		this.total = 0.0;
+
+		int[] sortedKeys1 = tensor.getKeys();
+		Arrays.sort(sortedKeys1);
+		long nnz = 0;
+		for(int key1 : sortedKeys1){
+			for(int key2 : tensor.getKeys(key1)){
+				int[] keys3 = tensor.getKeys(key1, key2);
+				double[] values3 = tensor.getValues(key1, key2);
+				for(int i = 0; i < keys3.length; i++){
+					long pair = pack(key2, keys3[i]);
+					pairSumMap.adjustOrPutValue(pair, values3[i], values3[i]);
+					pairCountMap.adjustOrPutValue(pair, 1, 1);
+					key2SumMap.adjustOrPutValue(key2, values3[i], values3[i]);
+					key3SumMap.adjustOrPutValue(keys3[i], values3[i], values3[i]);
+					this.total += values3[i];
+				}
+				nnz += keys3.length;
+			}
+		}
+		if(nnz >= Integer.MAX_VALUE)
+			throw new RuntimeException("Tensor is too large for building the marginals in memory.");
+
+		this.pairs = pairSumMap.keys();
+		Arrays.sort(this.pairs);
+		this.pairSums = new double[pairs.length];
+		this.pairPtr = new int[pairs.length + 1];
+		for(int i = 0; i < pairs.length; i++){
+			pairSums[i] = pairSumMap.get(pairs[i]);
+			pairPtr[i+1] = pairPtr[i] + pairCountMap.get(pairs[i]);
+		}
+		pairSumMap = null;
+		pairCountMap = null;
+
+		// Second pass fills the key1 lists. Key1 is visited in ascending order, so every list ends up sorted.
+		this.pairKeys1 = new int[(int)nnz];
+		int[] cursor = Arrays.copyOf(pairPtr, pairs.length);
+		for(int key1 : sortedKeys1){
+			for(int key2 : tensor.getKeys(key1)){
+				for(int key3 : tensor.getKeys(key1, key2)){
+					int pos = Arrays.binarySearch(pairs, pack(key2, key3));
+					pairKeys1[cursor[pos]++] = key1;
+				}
+			}
+		}
+
+		this.keys2 = key2SumMap.keys();
+		Arrays.sort(this.keys2);
+		this.key2Sums = new double[keys2.length];
+		for(int i = 0; i < keys2.length; i++)
+			key2Sums[i] = key2SumMap.get(keys2[i]);
+
+		this.keys3 = key3SumMap.keys();
+		Arrays.sort(this.keys3);
+		this.key3Sums = new double[keys3.length];
+		for(int i = 0; i < keys3.length; i++)
+			key3Sums[i] = key3SumMap.get(keys3[i]);
+
+		this.numPairs = pairs.length;
+		this.numKeys2 = keys2.length;
+		this.numKeys3 = keys3.length;
+	}
+
+	/**
+	 * Open the indexes from a file created by save(). The file is memory-mapped, so opening takes constant time regardless of its size.
+	 * @param file Input file
+	 */
+	public TensorMarginals(String file){
+		this.mappedFile = new MappedFile(file);
+		mappedFile.checkHeader(MAGIC, VERSION);
+		this.numPairs = mappedFile.getInt(8);
+		this.numKeys2 = mappedFile.getInt(12);
+		this.numKeys3 = mappedFile.getInt(16);
+		this.total = mappedFile.getDouble(24);
+		long nnz = mappedFile.getLong(32);
+
+		this.pairsOffset = HEADER_SIZE;
+		this.pairSumsOffset = pairsOffset + 8L * numPairs;
+		this.pairPtrOffset = pairSumsOffset + 8L * numPairs;
+		this.pairKeys1Offset = pairPtrOffset + 4L * (numPairs + 1);
+		this.keys2Offset = pairKeys1Offset + 4L * nnz;
+		this.key2SumsOffset = keys2Offset + 4L * numKeys2;
+		this.keys3Offset = key2SumsOffset + 8L * numKeys2;
+		this.key3SumsOffset = keys3Offset + 4L * numKeys3;
+
+		if(this.key3SumsOffset + 8L * numKeys3 != mappedFile.length())
+			throw new RuntimeException("Marginals file is truncated or corrupt: " + file);
+	}
+
+	/**
+	 * Save the indexes to a binary file.
+	 * The file is written to a temporary file first, so it is safe to overwrite the file that these indexes were opened from.
+	 * @param file Output file
+	 */
+	public void save(String file){
+		try{
+			File tempFile = new File(file + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+			int nnz = getPairPtr(numPairs);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numPairs);
+			out.writeInt(numKeys2);
+			out.writeInt(numKeys3);
+			out.writeInt(0);
+			out.writeDouble(total);
+			out.writeLong(nnz);
+			for(int i = 0; i < numPairs; i++)
+				out.writeLong(getPair(i));
+			for(int i = 0; i < numPairs; i++)
+				out.writeDouble(getPairSum(i));
+			for(int i = 0; i <= numPairs; i++)
+				out.writeInt(getPairPtr(i));
+			for(int i = 0; i < nnz; i++)
+				out.writeInt(getPairKey1(i));
+			for(int i = 0; i < numKeys2; i++)
+				out.writeInt(getKey2(i));
+			for(int i = 0; i < numKeys2; i++)
+				out.writeDouble(getKey2Sum(i));
+			for(int i = 0; i < numKeys3; i++)
+				out.writeInt(getKey3(i));
+			for(int i = 0; i < numKeys3; i++)
+				out.writeDouble(getKey3Sum(i));
+			out.close();
+			File target = new File(file);
+			if(target.exists() && !target.delete())
+				throw new RuntimeException("Unable to replace file: " + file);
+			if(!tempFile.renameTo(target))
+				throw new RuntimeException("Unable to rename " + tempFile + " to " + file);
+		}catch (Exception e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	private long getPair(int pos){
+		return pairs != null ? pairs[pos] : mappedFile.getLong(pairsOffset + 8L * pos);
+	}
+
+	private double getPairSum(int pos){
+		return pairSums != null ? pairSums[pos] : mappedFile.getDouble(pairSumsOffset + 8L * pos);
+	}
+
+	private int getPairPtr(int pos){
+		return pairPtr != null ? pairPtr[pos] : mappedFile.getInt(pairPtrOffset + 4L * pos);
+	}
+
+	private int getPairKey1(int pos){
+		return pairKeys1 != null ? pairKeys1[pos] : mappedFile.getInt(pairKeys1Offset + 4L * pos);
+	}
+
+	private int getKey2(int pos){
+		return keys2 != null ? keys2[pos] : mappedFile.getInt(keys2Offset + 4L * pos);
+	}
+
+	private double getKey2Sum(int pos){
+		return key2Sums != null ? key2Sums[pos] : mappedFile.getDouble(key2SumsOffset + 8L * pos);
+	}
+
+	private int getKey3(int pos){
+		return keys3 != null ? keys3[pos] : mappedFile.getInt(keys3Offset + 4L * pos);
+	}
+
+	private double getKey3Sum(int pos){
+		return key3Sums != null ? key3Sums[pos] : mappedFile.getDouble(key3SumsOffset + 8L * pos);
+	}
+
+	/**
+	 * Binary search for a (key2,key3) pair.
+	 * @return The position of the pair, or -1 if it does not exist.
+	 */
+	private int findPair(long pair){
+		if(pairs != null)
+			return Math.max(Arrays.binarySearch(pairs, pair), -1);
+		int low = 0, high = numPairs - 1;
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			long value = getPair(mid);
+			if(value < pair)
+				low = mid + 1;
+			else if(value > pair)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Binary search for key2, or for key3 if key2 is false.
+	 * @return The position of the key, or -1 if it does not exist.
+	 */
+	private int findKey(boolean key2, int key){
+		int[] keys = key2 ? keys2 : keys3;
+		if(keys != null)
+			return Math.max(Arrays.binarySearch(keys, key), -1);
+		int low = 0, high = (key2 ? numKeys2 : numKeys3) - 1;
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			int value = key2 ? getKey2(mid) : getKey3(mid);
+			if(value < key)
+				low = mid + 1;
+			else if(value > key)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	private static long pack(int key2, int key3){
+		return ((long)key2 << 32) | (key3 & 0xffffffffL);
+	}
+
+	/**
+	 * Sum over all key1 values.
+	 * Either of the keys can be null, in which case it is also treated as a wildcard.
+	 * @param key2 Key 2
+	 * @param key3 Key 3
+	 * @return The sum, 0.0 if the keys do not exist.
+	 */
+	public double get(Integer key2, Integer key3){
+		int pos;
+		if(key2 != null && key3 != null){
+			pos = findPair(pack(key2, key3));
+			return pos >= 0 ? getPairSum(pos) : 0.0;
+		}
+		else if(key2 != null){
+			pos = findKey(true, key2);
+			return pos >= 0 ? getKey2Sum(pos) : 0.0;
+		}
+		else if(key3 != null){
+			pos = findKey(false, key3);
+			return pos >= 0 ? getKey3Sum(pos) : 0.0;
+		}
+		return total;
+	}
+
+	/**
+	 * Get all the key1 values that occur together with key2 and key3.
+	 * @param key2 Key 2
+	 * @param key3 Key 3
+	 * @return Sorted array of key1 values, or null if the pair does not exist.
+	 */
+	public int[] getKeys1(int key2, int key3){
+		int pos = findPair(pack(key2, key3));
+		if(pos < 0)
+			return null;
+		if(pairKeys1 != null)
+			return Arrays.copyOfRange(pairKeys1, pairPtr[pos], pairPtr[pos+1]);
+		int start = getPairPtr(pos);
+		return mappedFile.getInts(pairKeys1Offset + 4L * start, getPairPtr(pos + 1) - start);
+	}
+}
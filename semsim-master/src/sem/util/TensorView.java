@@ -0,0 +1,45 @@
+package sem.util;
+
+/**
+ * Read access to a three-dimensional tensor.
+ * Implemented by the mutable Tensor, and by the read-only tensors that are opened from disk.
+ */
+public interface TensorView {
+
+	/**
+	 * Counts the values in the tensor.
+	 * If any of the three keys is null, this is interpreted as a wildcard and the appropriate columns are summed.
+	 * @param key1 Key 1
+	 * @param key2 Key 2
+	 * @param key3 Key 3
+	 * @return The value, 0.0 if it does not exist, or a sum over the columns if some keys are null.
+	 */
+	public double get(Integer key1, Integer key2, Integer key3);
+
+	/**
+	 * @return All the keys in the first dimension.
+	 */
+	public int[] getKeys();
+
+	/**
+	 * @return All the second keys under key1, or null if key1 does not exist.
+	 */
+	public int[] getKeys(Integer key1);
+
+	/**
+	 * @return All the third keys under (key1, key2), or null if the pair does not exist.
+	 */
+	public int[] getKeys(Integer key1, Integer key2);
+
+	/**
+	 * @return The values under (key1, key2), in the same order as getKeys(key1, key2), or null if the pair does not exist.
+	 */
+	public double[] getValues(Integer key1, Integer key2);
+
+	public boolean containsKey(int key1);
+
+	/**
+	 * @return The size of the first dimension.
+	 */
+	public int size();
+}
@@ -0,0 +1,112 @@
+package sem.util;
+
+import java.util.Arrays;
+
+/**
+ * A cache of triple counts with a fixed memory budget, keyed by the (head, relation, dependent) IDs.
+ * An ID of 0 stands for a wildcard, so the counts of partial triples can be cached as well.
+ * <p>The cache is a hash table of 2-way sets that is allocated once. A new entry goes to the first slot of its set and moves the previous one to the second slot, so the oldest entry of a full set is evicted.
+ * <p>Entries are immutable, so get() reads the table without locking and without allocating. Concurrent puts may lose an entry, which only causes another miss later.
+ */
+public class TripleCountCache {
+	/**
+	 * Estimated memory taken by an entry, including its slot in the table.
+	 */
+	public static final int ENTRY_BYTES = 40;
+
+	private final Entry[] entries;
+
+	private static final class Entry {
+		final int headId;
+		final int edgeId;
+		final int depId;
+		final double value;
+
+		Entry(int headId, int edgeId, int depId, double value){
+			this.headId = headId;
+			this.edgeId = edgeId;
+			this.depId = depId;
+			this.value = value;
+		}
+
+		boolean matches(int headId, int edgeId, int depId){
+			return this.headId == headId && this.edgeId == edgeId && this.depId == depId;
+		}
+	}
+
+	/**
+	 * @param maxBytes Memory budget. The number of entries is rounded down to a power of 2, and is at least 2.
+	 */
+	public TripleCountCache(long maxBytes){
+		if(maxBytes < 0)
+			throw new RuntimeException("Cache size cannot be negative: " + maxBytes);
+		long capacity = 2;
+		while(capacity * 2 * ENTRY_BYTES <= maxBytes && capacity < (1 << 30))
+			capacity *= 2;
+		this.entries = new Entry[(int)capacity];
+	}
+
+	/**
+	 * Position of the first slot of the set of a triple.
+	 */
+	private int getSet(int headId, int edgeId, int depId){
+		int h = headId * 0x9e3779b9;
+		h = (h ^ (h >>> 16) ^ edgeId) * 0x85ebca6b;
+		h = (h ^ (h >>> 13) ^ depId) * 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h & (entries.length - 2);
+	}
+
+	/**
+	 * Get a count from the cache.
+	 * @return The count, or NaN if it is not in the cache.
+	 */
+	public double get(int headId, int edgeId, int depId){
+		Entry[] entries = this.entries;
+		int pos = getSet(headId, edgeId, depId);
+		Entry entry = entries[pos];
+		if(entry != null && entry.matches(headId, edgeId, depId))
+			return entry.value;
+		entry = entries[pos + 1];
+		if(entry != null && entry.matches(headId, edgeId, depId))
+			return entry.value;
+		return Double.NaN;
+	}
+
+	/**
+	 * Add a count to the cache, evicting the oldest entry of its set if the set is full.
+	 */
+	public void put(int headId, int edgeId, int depId, double value){
+		Entry[] entries = this.entries;
+		int pos = getSet(headId, edgeId, depId);
+		Entry first = entries[pos];
+		if(first != null && !first.matches(headId, edgeId, depId))
+			entries[pos + 1] = first;
+		entries[pos] = new Entry(headId, edgeId, depId, value);
+	}
+
+	/**
+	 * Remove all the entries.
+	 */
+	public void clear(){
+		Arrays.fill(entries, null);
+	}
+
+	/**
+	 * @return The maximum number of entries
+	 */
+	public int capacity(){
+		return entries.length;
+	}
+
+	/**
+	 * @return The number of entries in the cache. This scans the table.
+	 */
+	public int size(){
+		int size = 0;
+		for(Entry entry : entries)
+			if(entry != null)
+				size++;
+		return size;
+	}
+}
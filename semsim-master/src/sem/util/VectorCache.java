@@ -0,0 +1,230 @@
+package sem.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * A thread-safe cache of SparseVectors with a memory budget.
+ * <p>The cache is split into segments by key, and every segment is a LinkedHashMap in access order with its own lock and its share of the budget.
+ * When a segment goes over its share, the least recently used vectors are evicted.
+ * Pinned vectors are kept in a separate map, are never evicted, and do not count towards the budget.
+ * <p>The size of a vector is estimated from its arrays, including the rankings that SparseVector computes when they are needed.
+ */
+public class VectorCache {
+	public static int NUM_SEGMENTS = 16;
+	
+	private Segment[] segments;
+	
+	private static class Segment {
+		LinkedHashMap<Integer,SparseVector> vectors = new LinkedHashMap<Integer,SparseVector>(16, 0.75f, true);
+		HashMap<Integer,SparseVector> pinned = new HashMap<Integer,SparseVector>();
+		long maxBytes, bytes, pinnedBytes;
+		long hits, misses, evictions;
+	}
+	
+	/**
+	 * @param maxBytes Memory budget of the unpinned vectors
+	 */
+	public VectorCache(long maxBytes){
+		this.segments = new Segment[NUM_SEGMENTS];
+		for(int i = 0; i < segments.length; i++)
+			segments[i] = new Segment();
+		setMaxBytes(maxBytes);
+	}
+	
+	/**
+	 * Estimated memory taken by a vector in the cache.
+	 */
+	public static long getBytes(SparseVector vector){
+		return 128 + 32L * vector.size();
+	}
+	
+	private Segment getSegment(int key){
+		int h = key * 0x9e3779b9;
+		return segments[((h ^ (h >>> 16)) & 0x7fffffff) % segments.length];
+	}
+	
+	/**
+	 * Change the memory budget. Vectors are evicted if the cache is over the new budget.
+	 * @param maxBytes Memory budget of the unpinned vectors
+	 */
+	public void setMaxBytes(long maxBytes){
+		if(maxBytes < 0)
+			throw new RuntimeException("Cache size cannot be negative: " + maxBytes);
+		for(Segment segment : segments){
+			synchronized(segment){
+				segment.maxBytes = maxBytes / segments.length;
+				evict(segment);
+			}
+		}
+	}
+	
+	/**
+	 * Get a vector from the cache.
+	 * @param key Key of the vector
+	 * @return The vector, or null if it is not in the cache.
+	 */
+	public SparseVector get(int key){
+		Segment segment = getSegment(key);
+		synchronized(segment){
+			SparseVector vector = segment.pinned.get(key);
+			if(vector == null)
+				vector = segment.vectors.get(key);
+			if(vector == null)
+				segment.misses++;
+			else
+				segment.hits++;
+			return vector;
+		}
+	}
+	
+	/**
+	 * Add a vector to the cache. Vectors that are larger than the share of the budget of a segment are not added.
+	 * @param key Key of the vector
+	 * @param vector The vector
+	 */
+	public void put(int key, SparseVector vector){
+		Segment segment = getSegment(key);
+		long size = getBytes(vector);
+		synchronized(segment){
+			if(segment.pinned.containsKey(key) || size > segment.maxBytes)
+				return;
+			SparseVector old = segment.vectors.put(key, vector);
+			if(old != null)
+				segment.bytes -= getBytes(old);
+			segment.bytes += size;
+			evict(segment);
+		}
+	}
+	
+	/**
+	 * Add a vector to the cache and keep it there until unpinAll() or clear() is called.
+	 * @param key Key of the vector
+	 * @param vector The vector
+	 */
+	public void pin(int key, SparseVector vector){
+		Segment segment = getSegment(key);
+		synchronized(segment){
+			SparseVector old = segment.vectors.remove(key);
+			if(old != null)
+				segment.bytes -= getBytes(old);
+			old = segment.pinned.put(key, vector);
+			if(old != null)
+				segment.pinnedBytes -= getBytes(old);
+			segment.pinnedBytes += getBytes(vector);
+		}
+	}
+	
+	/**
+	 * Release all the pinned vectors. They are dropped from the cache.
+	 */
+	public void unpinAll(){
+		for(Segment segment : segments){
+			synchronized(segment){
+				segment.pinned.clear();
+				segment.pinnedBytes = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Remove all the vectors, including the pinned ones. The counters are kept.
+	 */
+	public void clear(){
+		for(Segment segment : segments){
+			synchronized(segment){
+				segment.vectors.clear();
+				segment.pinned.clear();
+				segment.bytes = 0;
+				segment.pinnedBytes = 0;
+			}
+		}
+	}
+	
+	private void evict(Segment segment){
+		Iterator<Entry<Integer,SparseVector>> it = segment.vectors.entrySet().iterator();
+		while(segment.bytes > segment.maxBytes && it.hasNext()){
+			segment.bytes -= getBytes(it.next().getValue());
+			it.remove();
+			segment.evictions++;
+		}
+	}
+	
+	/**
+	 * Number of vectors in the cache, including the pinned ones.
+	 */
+	public int size(){
+		int size = 0;
+		for(Segment segment : segments){
+			synchronized(segment){
+				size += segment.vectors.size() + segment.pinned.size();
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * Estimated memory taken by the unpinned vectors.
+	 */
+	public long getBytes(){
+		long bytes = 0;
+		for(Segment segment : segments){
+			synchronized(segment){
+				bytes += segment.bytes;
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Estimated memory taken by the pinned vectors.
+	 */
+	public long getPinnedBytes(){
+		long bytes = 0;
+		for(Segment segment : segments){
+			synchronized(segment){
+				bytes += segment.pinnedBytes;
+			}
+		}
+		return bytes;
+	}
+	
+	public long getHits(){
+		long hits = 0;
+		for(Segment segment : segments){
+			synchronized(segment){
+				hits += segment.hits;
+			}
+		}
+		return hits;
+	}
+	
+	public long getMisses(){
+		long misses = 0;
+		for(Segment segment : segments){
+			synchronized(segment){
+				misses += segment.misses;
+			}
+		}
+		return misses;
+	}
+	
+	public long getEvictions(){
+		long evictions = 0;
+		for(Segment segment : segments){
+			synchronized(segment){
+				evictions += segment.evictions;
+			}
+		}
+		return evictions;
+	}
+	
+	/**
+	 * Summary of the counters, for logging.
+	 */
+	public String getStatistics(){
+		return "vectors " + size() + ", bytes " + getBytes() + ", pinned bytes " + getPinnedBytes() + ", hits " + getHits() + ", misses " + getMisses() + ", evictions " + getEvictions();
+	}
+}